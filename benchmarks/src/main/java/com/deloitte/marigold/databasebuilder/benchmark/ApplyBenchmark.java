@@ -0,0 +1,82 @@
+package com.deloitte.marigold.databasebuilder.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.deloitte.marigold.DatabaseBuilder.EmbeddedDatabase;
+import com.deloitte.marigold.DatabaseBuilder.WorkspaceGenerator;
+import com.deloitte.marigold.databasebuilder.ScriptProcessor;
+
+/**
+ * Applying a whole workspace end to end against an embedded database, from
+ * the schema scheduler down to the bookkeeping rows. Every invocation starts
+ * from an empty database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ApplyBenchmark {
+	private static final AtomicInteger DATABASES = new AtomicInteger();
+
+	@Param({ "10", "100" })
+	public int directories;
+
+	@Param({ "100", "1000" })
+	public int rowsPerFile;
+
+	@Param({ "1", "4" })
+	public int fileParallelism;
+
+	private File             root;
+	private EmbeddedDatabase database;
+	private ScriptProcessor  processor;
+
+	@Setup(Level.Trial)
+	public void generate() throws Exception {
+		WorkspaceGenerator generator = new WorkspaceGenerator();
+		generator.setDirectories(directories);
+		generator.setDataFiles(2);
+		generator.setRowsPerFile(rowsPerFile);
+		generator.setRuleFiles(2);
+		root = Workspaces.generate(generator);
+	}
+
+	@Setup(Level.Invocation)
+	public void createDatabase() throws Exception {
+		database = new EmbeddedDatabase("apply" + DATABASES.incrementAndGet());
+		processor = new ScriptProcessor(database.processorProperties(root, EmbeddedDatabase.USER, fileParallelism));
+	}
+
+	@TearDown(Level.Invocation)
+	public void dropDatabase() throws Exception {
+		database.close();
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws Exception {
+		Workspaces.delete(root);
+	}
+
+	@Benchmark
+	public void apply() throws Exception {
+		processor.processTopLevelDir();
+	}
+}
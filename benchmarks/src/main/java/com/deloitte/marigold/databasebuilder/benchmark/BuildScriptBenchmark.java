@@ -0,0 +1,72 @@
+package com.deloitte.marigold.databasebuilder.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.deloitte.marigold.DatabaseBuilder.WorkspaceGenerator;
+import com.deloitte.marigold.databasebuilder.BuildScript;
+
+/**
+ * Parsing the order out of every build script directory name and sorting
+ * the result, as parseRootFile does for each schema.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildScriptBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	public int directories;
+
+	private File   root;
+	private File[] files;
+
+	@Setup(Level.Trial)
+	public void generate() throws Exception {
+		WorkspaceGenerator generator = new WorkspaceGenerator();
+		generator.setDirectories(directories);
+		generator.setRowsPerFile(1);
+		root = Workspaces.generate(generator);
+		files = root.listFiles();
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws Exception {
+		Workspaces.delete(root);
+	}
+
+	@Benchmark
+	public List<BuildScript> parseAndSort() throws Exception {
+		List<BuildScript> buildScripts = new ArrayList<>(files.length);
+		for (File file : files) {
+			buildScripts.add(new BuildScript(file));
+		}
+		Collections.sort(buildScripts);
+		return buildScripts;
+	}
+
+	@Benchmark
+	public File[] listRoot() {
+		return root.listFiles();
+	}
+}
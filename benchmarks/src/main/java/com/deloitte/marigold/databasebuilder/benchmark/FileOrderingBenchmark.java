@@ -0,0 +1,69 @@
+package com.deloitte.marigold.databasebuilder.benchmark;
+
+import java.io.File;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.deloitte.marigold.DatabaseBuilder.WorkspaceGenerator;
+import com.deloitte.marigold.databasebuilder.ScriptProcessor;
+
+/**
+ * Ordering the sql and rule files of a build script directory, the part of
+ * runChangeScript that runs before any statement, including scrubMap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileOrderingBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	public int dataFiles;
+
+	@Param({ "0", "50" })
+	public int ruleFiles;
+
+	private File            root;
+	private File            directory;
+	private ScriptProcessor processor;
+
+	@Setup(Level.Trial)
+	public void generate() throws Exception {
+		WorkspaceGenerator generator = new WorkspaceGenerator();
+		generator.setDirectories(1);
+		generator.setDataFiles(dataFiles);
+		generator.setRowsPerFile(1);
+		generator.setRuleFiles(ruleFiles);
+		generator.setRulesPerFile(1);
+		root = Workspaces.generate(generator);
+		directory = root.listFiles()[0];
+		processor = new ScriptProcessor(new Properties());
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws Exception {
+		Workspaces.delete(root);
+	}
+
+	@Benchmark
+	public List<File> orderSqlFiles() {
+		return processor.orderSqlFiles(directory);
+	}
+}
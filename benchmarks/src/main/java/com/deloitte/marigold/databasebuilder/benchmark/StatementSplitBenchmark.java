@@ -0,0 +1,97 @@
+package com.deloitte.marigold.databasebuilder.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.deloitte.marigold.databasebuilder.SqlStatementReader;
+
+/**
+ * Splitting sql files into statements, which is what runListOfCommands,
+ * runProcedures and processRules spend their time on apart from the
+ * database. Measured both from memory and from a file on disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatementSplitBenchmark {
+
+	@Param({ "STANDARD", "PROCEDURE", "RULE" })
+	public SqlStatementReader.Mode mode;
+
+	@Param({ "1000", "100000" })
+	public int statements;
+
+	private String text;
+	private File   file;
+
+	@Setup(Level.Trial)
+	public void generate() throws IOException {
+		StringBuilder sql = new StringBuilder("set define off;\n");
+		for (int index = 0; index < statements; index++) {
+			if (mode == SqlStatementReader.Mode.PROCEDURE) {
+				sql.append("create or replace procedure p").append(index).append(" as\nbegin\n  update t set a = a + 1;\nend;\n--<\n");
+			} else if (mode == SqlStatementReader.Mode.RULE) {
+				sql.append("update t set name = 'rule ").append(index).append("' where id = ").append(index).append(";--end\n");
+			} else {
+				sql.append("insert into t (id, name, amount) values (").append(index).append(", 'row ").append(index)
+						.append("', 12.50);--<\n");
+			}
+		}
+		text = sql.toString();
+		String name = mode == SqlStatementReader.Mode.PROCEDURE ? "1-PROCEDURES.sql"
+				: mode == SqlStatementReader.Mode.RULE ? "1-Rules.sql" : "1-data.sql";
+		file = new File(Files.createTempDirectory("databasebuilder-split").toFile(), name);
+		try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+			writer.write(text);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws IOException {
+		Workspaces.delete(file.getParentFile());
+	}
+
+	@Benchmark
+	public void splitFromMemory(Blackhole blackhole) throws IOException {
+		try (SqlStatementReader reader = new SqlStatementReader(new StringReader(text), mode)) {
+			drain(reader, blackhole);
+		}
+	}
+
+	@Benchmark
+	public void splitFromFile(Blackhole blackhole) throws IOException {
+		try (SqlStatementReader reader = new SqlStatementReader(file)) {
+			drain(reader, blackhole);
+		}
+	}
+
+	private static void drain(SqlStatementReader reader, Blackhole blackhole) throws IOException {
+		String statement;
+		while ((statement = reader.nextStatement()) != null) {
+			blackhole.consume(statement);
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.deloitte.marigold.databasebuilder.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.deloitte.marigold.DatabaseBuilder.EmbeddedDatabase;
+import com.deloitte.marigold.DatabaseBuilder.WorkspaceGenerator;
+import com.deloitte.marigold.databasebuilder.DatabaseBuilderException;
+
+/**
+ * Creates and removes the temporary workspaces the benchmarks run on, with
+ * the helpers of the embedded database harness in the DatabaseBuilder test jar.
+ */
+final class Workspaces {
+
+	private Workspaces() {}
+
+	/**
+	 * @param generator - the configured shape of the workspace
+	 * @return File - a new temporary directory holding the build script directories
+	 */
+	static File generate(WorkspaceGenerator generator) throws IOException, DatabaseBuilderException {
+		return EmbeddedDatabase.generateWorkspace(generator);
+	}
+
+	static void delete(File root) throws IOException {
+		EmbeddedDatabase.delete(root);
+	}
+}
@@ -14,12 +14,39 @@ public class App {
 	/**
 	 * This is the kick off point for Database building.
 	 * 
-	 * @param args - command line arguments are not used.
+	 * @param args - "plan" prints the pending statements with an estimated duration instead of running them,
+	 * "watch" keeps applying new build script directories as they appear,
+	 * "--resume" carries on with a build script from where a failed or killed run stopped,
+	 * "fanout" applies the workspace to every configured target at the same time,
+	 * "daemon" keeps the processor resident and serves requests on the loopback interface,
+	 * "remote apply|plan|status [--resume] [schemas]" sends a request to a running daemon.
 	 */
 	public static void main(String[] args) {	
 		try {
+			if (args.length > 0 && DaemonClient.REMOTE_COMMAND.equalsIgnoreCase(args[0])) {
+				System.exit(DaemonClient.run(args));
+			}
 			ScriptProcessor scriptProcessor = new ScriptProcessor();
-			scriptProcessor.processTopLevelDir();
+			for (String arg : args) {
+				if (ScriptProcessor.PLAN_COMMAND.equalsIgnoreCase(arg)) {
+					scriptProcessor.setPlanOnly(true);
+				} else if (ScriptProcessor.RESUME_OPTION.equalsIgnoreCase(arg)) {
+					scriptProcessor.setResume(true);
+				}
+			}
+			if (args.length > 0 && ScriptProcessor.WATCH_COMMAND.equalsIgnoreCase(args[0])) {
+				new ResidentSchemas(scriptProcessor).watch();
+			} else if (args.length > 0 && ScriptProcessor.FANOUT_COMMAND.equalsIgnoreCase(args[0])) {
+				new TargetFanOut(scriptProcessor).run();
+			} else if (args.length > 0 && ScriptProcessor.DAEMON_COMMAND.equalsIgnoreCase(args[0])) {
+				// the server threads keep the application running
+				final BuilderDaemon daemon = new BuilderDaemon(scriptProcessor, scriptProcessor.getDaemonPort(),
+						scriptProcessor.getDaemonTokenFile());
+				daemon.start();
+				Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop, "builder-daemon-shutdown"));
+			} else {
+				scriptProcessor.processTopLevelDir();
+			}
 		} catch (Exception e){
 			log.error("Error occured running Database Builder application", e);
 			System.exit(-1);
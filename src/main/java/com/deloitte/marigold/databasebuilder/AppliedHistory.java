@@ -0,0 +1,117 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * This class is an index of every build script recorded in the
+ * db_build_scripts table, keyed and ordered by the order column. It is
+ * loaded once per run and used to work out which of the build scripts
+ * found in the file system still have to be applied.
+ */
+public class AppliedHistory {
+	private static final LogManager log = LogManager.getLogger(AppliedHistory.class);
+
+	private final NavigableMap<BigDecimal, BuildScript> applied = new TreeMap<>();
+
+	/**
+	 * Adds a row read from the db_build_scripts table.
+	 *
+	 * @param buildScript - the recorded build script
+	 */
+	public void add(BuildScript buildScript) {
+		applied.put(buildScript.getOrder(), buildScript);
+	}
+
+	public boolean isEmpty() {
+		return applied.isEmpty();
+	}
+
+	public int size() {
+		return applied.size();
+	}
+
+	/**
+	 * @return BuildScript - the recorded build script with the highest order, or null if none
+	 */
+	public BuildScript getLatest() {
+		return applied.isEmpty() ? null : applied.lastEntry().getValue();
+	}
+
+	/**
+	 * @param order - the order of a build script
+	 * @return BuildScript - the recorded build script with that order, or null
+	 */
+	public BuildScript get(BigDecimal order) {
+		return applied.get(order);
+	}
+
+	/**
+	 * @param buildScript - a build script from the file system
+	 * @return boolean - true if a build script with the same order has been recorded
+	 */
+	public boolean isApplied(BuildScript buildScript) {
+		BuildScript recorded = applied.get(buildScript.getOrder());
+		if (null != recorded && !recorded.equals(buildScript)) {
+			log.warn("Build script {} was recorded under the name {}", new Object[] { buildScript, recorded.getName() });
+		}
+		return null != recorded;
+	}
+
+	/**
+	 * The build scripts of the file system that have not been recorded,
+	 * in the order of the given collection.
+	 *
+	 * @param fileSystem - the build scripts found in the file system, sorted
+	 * @return List - the pending build scripts
+	 */
+	public List<BuildScript> pending(Collection<BuildScript> fileSystem) {
+		List<BuildScript> pending = new ArrayList<>();
+		for (BuildScript buildScript : fileSystem) {
+			if (!isApplied(buildScript)) {
+				pending.add(buildScript);
+			}
+		}
+		return pending;
+	}
+
+	/**
+	 * The pending build scripts ordered before the latest recorded one. These
+	 * typically come from a merged branch and used to be skipped silently.
+	 *
+	 * @param pending - the result of {@link #pending(Collection)}
+	 * @return List - the pending build scripts older than the latest recorded one
+	 */
+	public List<BuildScript> outOfOrder(Collection<BuildScript> pending) {
+		List<BuildScript> outOfOrder = new ArrayList<>();
+		BuildScript latest = getLatest();
+		if (null == latest) {
+			return outOfOrder;
+		}
+		for (BuildScript buildScript : pending) {
+			if (buildScript.compareTo(latest) < 0) {
+				outOfOrder.add(buildScript);
+			}
+		}
+		return outOfOrder;
+	}
+
+	/**
+	 * Recorded build scripts with no directory in the file system, ignoring
+	 * the negative orders used for flags such as the forced rebuild.
+	 *
+	 * @param fileSystem - the build scripts found in the file system
+	 * @return List - the recorded build scripts missing from the file system
+	 */
+	public List<BuildScript> missingFrom(Collection<BuildScript> fileSystem) {
+		NavigableMap<BigDecimal, BuildScript> missing = new TreeMap<>(applied.tailMap(BigDecimal.ZERO, true));
+		for (BuildScript buildScript : fileSystem) {
+			missing.remove(buildScript.getOrder());
+		}
+		return new ArrayList<>(missing.values());
+	}
+}
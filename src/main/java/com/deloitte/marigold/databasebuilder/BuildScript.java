@@ -22,6 +22,9 @@ public class BuildScript implements Comparable<BuildScript> {
 	public static final String  OWNER_TAG = "<OWNER>";
 	public static final String  SCRIPT_NAME = "scriptname";
 	public static final String  SCRIPT_ID = "scriptid";
+	public static final String  CHECKSUM = "checksum";
+	public static final String  FILE_CHECKSUMS = "fileChecksums";
+	public static final String  WORKSPACE_CHECKSUM = "workspaceChecksum";
 	public static final String  DB_BUILD_SCRIPT_SEQ = "DB_BUILD_SCRIPT_SEQ";
 	public static final String  DB_BUILD_SCRIPTS = "DB_BUILD_SCRIPTS";
 	
@@ -30,14 +33,38 @@ public class BuildScript implements Comparable<BuildScript> {
 	
 	public static final String  DB_BUILD_SCRIPT_CREATE = "CREATE TABLE " + DB_BUILD_SCRIPTS
 			+ " (scriptId NUMBER(5) PRIMARY KEY, orderby float not null, scriptname VARCHAR2(128) not null, " 
-			+ " createdOn TIMESTAMP(0) not null, CONSTRAINT ORDERBY_CONSTRAINT unique(orderby))";
+			+ " createdOn TIMESTAMP(0) not null, checksum VARCHAR2(64), fileChecksums CLOB, workspaceChecksum VARCHAR2(64),"
+			+ " CONSTRAINT ORDERBY_CONSTRAINT unique(orderby))";
+
+	public static final String  CHECKSUM_COLUMN_EXISTS_QUERY = "SELECT column_name FROM all_tab_columns WHERE table_name ='"
+			+ DB_BUILD_SCRIPTS + "' and column_name = 'CHECKSUM' and OWNER = '" + OWNER_TAG + "'";
+
+	public static final String  ADD_CHECKSUM_COLUMNS = "ALTER TABLE " + DB_BUILD_SCRIPTS
+			+ " ADD (checksum VARCHAR2(64), fileChecksums CLOB, workspaceChecksum VARCHAR2(64))";
 	
 	public static final String  GET_LATEST_BUILD_SCRIPT = "SELECT scriptId, orderby, scriptname, createdOn FROM "
 			+ DB_BUILD_SCRIPTS + " WHERE orderby = (SELECT MAX(orderby) FROM " + DB_BUILD_SCRIPTS + ")";
 
+	public static final String  GET_ALL_BUILD_SCRIPTS = "SELECT scriptId, orderby, scriptname, createdOn, checksum, fileChecksums FROM "
+			+ DB_BUILD_SCRIPTS + " ORDER BY orderby";
+
+	public static final String  GET_ALL_BUILD_SCRIPTS_WITHOUT_CHECKSUMS = "SELECT scriptId, orderby, scriptname, createdOn FROM "
+			+ DB_BUILD_SCRIPTS + " ORDER BY orderby";
+
+	public static final String  GET_WORKSPACE_CHECKSUM = "SELECT workspaceChecksum FROM " + DB_BUILD_SCRIPTS
+			+ " WHERE orderby = (SELECT MAX(orderby) FROM " + DB_BUILD_SCRIPTS + ") AND NOT EXISTS (SELECT 1 FROM "
+			+ DB_BUILD_SCRIPTS + " WHERE orderby = -1 and scriptname = ?)";
+
+	public static final String  UPDATE_WORKSPACE_CHECKSUM = "UPDATE " + DB_BUILD_SCRIPTS
+			+ " SET workspaceChecksum = ? WHERE orderby = (SELECT MAX(orderby) FROM " + DB_BUILD_SCRIPTS + ")";
+
 	public static final String  GET_DB_USER = "select USER from dual";
 	
 	public static final String  INSERT_BUILD_SCRIPT = "INSERT INTO " + DB_BUILD_SCRIPTS
+			+ "(scriptId, orderby, scriptname, createdOn, checksum, fileChecksums) VALUES" + "(" + DB_BUILD_SCRIPT_SEQ
+			+ ".nextval,?,?,current_timestamp,?,?)";
+	
+	public static final String  INSERT_BUILD_SCRIPT_WITHOUT_CHECKSUMS = "INSERT INTO " + DB_BUILD_SCRIPTS
 			+ "(scriptId, orderby, scriptname, createdOn) VALUES" + "(" + DB_BUILD_SCRIPT_SEQ
 			+ ".nextval,?,?,current_timestamp)";
 	
@@ -51,6 +78,8 @@ public class BuildScript implements Comparable<BuildScript> {
 	private String name = null;
 	private File file = null;
 	private Integer scriptId = null;
+	private String checksum = null;
+	private String fileChecksums = null;
 
 	/**
 	 * The build script derived from the db build scripts
@@ -84,7 +113,7 @@ public class BuildScript implements Comparable<BuildScript> {
 	 */
 	public BuildScript(File file) throws DatabaseBuilderException {
 		super();
-		log.info("processing file " + file.getAbsolutePath());
+		log.info("processing file {}", file.getAbsolutePath());
 		String fileName = file.getName();
 		Matcher matcher = ORDER_PATTERN.matcher(fileName);
 		if (matcher.find()) {
@@ -105,6 +134,28 @@ public class BuildScript implements Comparable<BuildScript> {
 		this.scriptId = scriptId;
 	}
 
+	/**
+	 * @return String - SHA-256 of the directory contents, null if not known
+	 */
+	public String getChecksum() {
+		return checksum;
+	}
+
+	public void setChecksum(String checksum) {
+		this.checksum = checksum;
+	}
+
+	/**
+	 * @return String - the manifest of file checksums, one path=sha256 per line
+	 */
+	public String getFileChecksums() {
+		return fileChecksums;
+	}
+
+	public void setFileChecksums(String fileChecksums) {
+		this.fileChecksums = fileChecksums;
+	}
+
 	public BigDecimal getOrder() {
 		return order;
 	}
@@ -0,0 +1,335 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class keeps a configured processor resident and serves apply, plan
+ * and status requests over HTTP on the loopback interface, so CI and deploy
+ * scripts do not pay JVM start up, class loading, the data source lookup
+ * and fresh database logins on every run. The connection pool of each
+ * schema and its checksum index stay warm between requests.
+ *
+ * Requests:
+ *   POST /apply?schemas=a,b&amp;resume=true   applies the pending build scripts
+ *   POST /plan?schemas=a,b                  prints the plan
+ *   GET  /status                            uptime, requests, connected schemas and metrics
+ *
+ * Apply and plan stream their progress as plain text lines and end with a
+ * line starting with OK or FAILED. They run one at a time, a second request
+ * waits for the first. Status is answered at any time.
+ *
+ * Every request has to carry the token the daemon writes to its token file
+ * on start, readable by the owner only, in the X-DatabaseBuilder-Token
+ * header. Other local users and web pages cannot read the file, and a
+ * browser has to ask before sending a custom header across origins.
+ * Applying runs without prompting, so the daemon only applies when
+ * daemonAutoConfirm is set, otherwise it serves plan and status only.
+ */
+public class BuilderDaemon {
+	private static final LogManager log = LogManager.getLogger(BuilderDaemon.class);
+
+	// Constants
+	public static final int    DEFAULT_PORT   = 7478;
+	public static final String APPLY_PATH     = "/apply";
+	public static final String PLAN_PATH      = "/plan";
+	public static final String STATUS_PATH    = "/status";
+	public static final String SCHEMAS_PARAM  = "schemas";
+	public static final String RESUME_PARAM   = "resume";
+	public static final String OK             = "OK";
+	public static final String FAILED         = "FAILED";
+	public static final String TOKEN_HEADER   = "X-DatabaseBuilder-Token";
+	public static final String TOKEN_FILE     = "daemon.token";
+
+	private final ScriptProcessor processor;
+	private final ResidentSchemas resident;
+	private final int             port;
+	private final File            tokenFile;
+	private final boolean         applying;
+	private final String          token;
+	private volatile int          boundPort = 0;
+	private final long            started   = System.currentTimeMillis();
+	private final AtomicLong      requests  = new AtomicLong();
+	private final AtomicLong      failures  = new AtomicLong();
+	private volatile String       running   = null;
+	private HttpServer            server    = null;
+	private ExecutorService       executor  = null;
+
+	/**
+	 * @param processor - the configured processor, applying without prompts if its daemonAutoConfirm is set
+	 * @param port - the loopback port to listen on, 0 for any free port
+	 * @param tokenFile - where to write the token clients have to send
+	 */
+	public BuilderDaemon(ScriptProcessor processor, int port, File tokenFile) {
+		this.processor = processor;
+		this.resident = new ResidentSchemas(processor);
+		this.port = port;
+		this.tokenFile = tokenFile;
+		this.applying = processor.isDaemonAutoConfirm();
+		// nobody can answer a prompt, so without the setting nothing is applied
+		processor.setAutoConfirm(applying);
+		byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		StringBuilder hex = new StringBuilder();
+		for (byte b : random) {
+			hex.append(String.format("%02x", b));
+		}
+		this.token = hex.toString();
+	}
+
+	/**
+	 * @param properties - the loaded property file
+	 * @return int - the daemonPort, shared by the daemon and its clients
+	 * @throws NumberFormatException - if the port is not a whole number
+	 */
+	static int port(Properties properties) {
+		return Integer.parseInt(properties.getProperty(ScriptProcessor.DAEMON_PORT_FLD, String.valueOf(DEFAULT_PORT)).trim());
+	}
+
+	/**
+	 * @param properties - the loaded property file
+	 * @return File - the daemonTokenFile, by default daemon.token in the DatabaseBuilder directory of the home directory
+	 */
+	static File tokenFile(Properties properties) {
+		String path = properties.getProperty(ScriptProcessor.DAEMON_TOKEN_FLD);
+		if (null == path || path.trim().isEmpty()) {
+			return new File(System.getProperty("user.home") + ScriptProcessor.DB_BUILDER_FLD, TOKEN_FILE);
+		}
+		return new File(path.trim());
+	}
+
+	/**
+	 * Starts listening. The server threads keep the JVM running until {@link #stop()}.
+	 *
+	 * @throws DatabaseBuilderException - if the port cannot be bound
+	 */
+	public synchronized void start() throws DatabaseBuilderException {
+		writeToken();
+		try {
+			server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		} catch (IOException e) {
+			deleteToken();
+			throw new DatabaseBuilderException("Unable to listen on port " + port, e);
+		}
+		Authenticator authenticator = new TokenAuthenticator();
+		server.createContext(APPLY_PATH, exchange -> process(exchange, false)).setAuthenticator(authenticator);
+		server.createContext(PLAN_PATH, exchange -> process(exchange, true)).setAuthenticator(authenticator);
+		server.createContext(STATUS_PATH, this::status).setAuthenticator(authenticator);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+		boundPort = server.getAddress().getPort();
+		log.info("DatabaseBuilder daemon listening on {}", server.getAddress());
+	}
+
+	/**
+	 * Stops listening, deletes the token file and closes the connection pools.
+	 */
+	public synchronized void stop() {
+		if (null != server) {
+			server.stop(1);
+			executor.shutdownNow();
+			server = null;
+			deleteToken();
+		}
+		resident.close();
+	}
+
+	/**
+	 * @return int - the port listened on, which differs from the configured one if that was 0
+	 */
+	public int getPort() {
+		return 0 == boundPort ? port : boundPort;
+	}
+
+	private void process(HttpExchange exchange, boolean plan) throws IOException {
+		try {
+			if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+				respond(exchange, 405, "Use POST\n");
+				return;
+			}
+			if (!plan && !applying) {
+				respond(exchange, 403, "This daemon does not apply build scripts, set " + ScriptProcessor.DAEMON_CONFIRM_FLD
+						+ ":true to let it apply them without prompting\n");
+				return;
+			}
+			Map<String, String> parameters = parameters(exchange.getRequestURI().getRawQuery());
+			Set<String> schemas = processor.getSchemaNames();
+			if (parameters.containsKey(SCHEMAS_PARAM)) {
+				Set<String> requested = new LinkedHashSet<>();
+				for (String name : parameters.get(SCHEMAS_PARAM).split(",")) {
+					if (!schemas.contains(name.trim())) {
+						respond(exchange, 404, "Schema " + name.trim() + " is not configured\n");
+						return;
+					}
+					requested.add(name.trim());
+				}
+				schemas = requested;
+			}
+			requests.incrementAndGet();
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+			exchange.sendResponseHeaders(200, 0);
+			final OutputStream body = exchange.getResponseBody();
+			ProgressListener listener = message -> write(body, message.endsWith("\n") ? message : message + "\n");
+			// one request at a time, the resident processors are not shared
+			synchronized (processor) {
+				running = (plan ? "plan " : "apply ") + schemas;
+				try {
+					processor.setPlanOnly(plan);
+					processor.setResume(Boolean.parseBoolean(parameters.get(RESUME_PARAM)));
+					processor.setProgressListener(listener);
+					resident.apply(schemas);
+					write(body, OK + "\n");
+				} catch (DatabaseBuilderException | RuntimeException e) {
+					failures.incrementAndGet();
+					log.error("Request " + running + " failed", e);
+					write(body, FAILED + ": " + e.getMessage() + "\n");
+				} finally {
+					processor.setProgressListener(null);
+					running = null;
+				}
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void status(HttpExchange exchange) throws IOException {
+		try {
+			String busy = running;
+			StringBuilder status = new StringBuilder("{\"uptimeSeconds\":")
+					.append((System.currentTimeMillis() - started) / 1000)
+					.append(",\"requests\":").append(requests.get())
+					.append(",\"failures\":").append(failures.get())
+					.append(",\"applying\":").append(applying)
+					.append(",\"running\":").append(null == busy ? "null" : ExecutionMetrics.quote(busy))
+					.append(",\"connectedSchemas\":[");
+			String separator = "";
+			for (String schema : resident.getConnectedSchemas()) {
+				status.append(separator).append(ExecutionMetrics.quote(schema));
+				separator = ",";
+			}
+			status.append("],\"metrics\":").append(processor.getMetrics().toJson().trim()).append("}\n");
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+			respond(exchange, 200, status.toString());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Replaces the token file with one only the owner can read, created
+	 * with those permissions where the file system supports them.
+	 */
+	private void writeToken() throws DatabaseBuilderException {
+		Path path = tokenFile.toPath();
+		try {
+			Files.createDirectories(path.toAbsolutePath().getParent());
+			Files.deleteIfExists(path);
+			if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+				Files.createFile(path, PosixFilePermissions.asFileAttribute(
+						EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+			} else {
+				Files.createFile(path);
+				File file = path.toFile();
+				file.setReadable(false, false);
+				file.setWritable(false, false);
+				file.setReadable(true, true);
+				file.setWritable(true, true);
+			}
+			Files.write(path, token.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new DatabaseBuilderException("Unable to write the daemon token file " + tokenFile, e);
+		}
+		log.info("Daemon token written to {}", tokenFile);
+	}
+
+	private void deleteToken() {
+		try {
+			Files.deleteIfExists(tokenFile.toPath());
+		} catch (IOException e) {
+			log.warn("Unable to delete the daemon token file {}: {}", new Object[] { tokenFile, e.getMessage() });
+		}
+	}
+
+	/**
+	 * Lets a request through only if it carries the token.
+	 */
+	private final class TokenAuthenticator extends Authenticator {
+
+		@Override
+		public Result authenticate(HttpExchange exchange) {
+			String presented = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+			if (null != presented && MessageDigest.isEqual(presented.getBytes(StandardCharsets.UTF_8),
+					token.getBytes(StandardCharsets.UTF_8))) {
+				return new Success(new HttpPrincipal("client", "databasebuilder"));
+			}
+			log.warn("Refused a request for {} without the daemon token", exchange.getRequestURI().getPath());
+			return new Failure(401);
+		}
+	}
+
+	/**
+	 * Writes a line as it happens. A client that went away does not stop the
+	 * request, it runs to the end like a run from the command line.
+	 */
+	private static void write(OutputStream body, String text) {
+		synchronized (body) {
+			try {
+				body.write(text.getBytes(StandardCharsets.UTF_8));
+				body.flush();
+			} catch (IOException e) {
+				log.debug("Client went away: {}", e.getMessage());
+			}
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream body = exchange.getResponseBody()) {
+			body.write(bytes);
+		}
+	}
+
+	private static Map<String, String> parameters(String query) throws UnsupportedEncodingException {
+		Map<String, String> parameters = new TreeMap<>();
+		if (null == query) {
+			return parameters;
+		}
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0) {
+				parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+						URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+			}
+		}
+		return parameters;
+	}
+}
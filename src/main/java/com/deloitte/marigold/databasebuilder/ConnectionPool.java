@@ -0,0 +1,483 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * This class is a bounded pool of physical connections drawn from another
+ * data source. Closing a connection handed out by the pool returns it to the
+ * pool instead of ending the session, so the tcp and authentication handshake
+ * is paid once per physical connection rather than once per statement.
+ *
+ * Each physical connection keeps a cache of its prepared statements keyed by
+ * sql text. Idle connections are validated before being handed out again.
+ * The session profile of the run is applied to a connection before it is
+ * first handed out; connections set up for another profile are closed.
+ */
+public class ConnectionPool implements DataSource {
+	private static final LogManager log = LogManager.getLogger(ConnectionPool.class);
+
+	// Constants
+	public static final int  DEFAULT_MIN_SIZE             = 1;
+	public static final int  DEFAULT_MAX_SIZE             = 10;
+	public static final int  DEFAULT_STATEMENT_CACHE_SIZE = 50;
+	public static final int  DEFAULT_VALIDATION_TIMEOUT   = 5;
+	public static final long VALIDATE_AFTER_IDLE_MILLIS   = 30000;
+	public static final long BORROW_TIMEOUT_SECONDS       = 300;
+
+	private final DataSource                           source;
+	private final int                                  minSize;
+	private final int                                  maxSize;
+	private final int                                  statementCacheSize;
+	private final int                                  validationTimeout;
+	private final Semaphore                            permits;
+	private final LinkedBlockingDeque<PooledConnection> idle     = new LinkedBlockingDeque<>();
+	private final AtomicLong                           created  = new AtomicLong();
+	private final AtomicLong                           borrowed = new AtomicLong();
+	private final AtomicLong                           hits     = new AtomicLong();
+	private final AtomicLong                           misses   = new AtomicLong();
+	private volatile boolean                           closed   = false;
+	private volatile SessionProfile                    profile  = null;
+	private volatile long                              validateAfterIdleMillis = VALIDATE_AFTER_IDLE_MILLIS;
+
+	/**
+	 * @param source - creates the physical connections
+	 * @param minSize - the number of connections opened up front by {@link #prewarm()}
+	 * @param maxSize - the maximum number of connections handed out at the same time
+	 * @param statementCacheSize - prepared statements cached per connection, 0 disables the cache
+	 * @param validationTimeout - seconds allowed for validating a connection that has been idle
+	 */
+	public ConnectionPool(DataSource source, int minSize, int maxSize, int statementCacheSize, int validationTimeout) {
+		this.source = source;
+		this.maxSize = Math.max(1, maxSize);
+		this.minSize = Math.min(Math.max(0, minSize), this.maxSize);
+		this.statementCacheSize = Math.max(0, statementCacheSize);
+		this.validationTimeout = Math.max(1, validationTimeout);
+		this.permits = new Semaphore(this.maxSize, true);
+	}
+
+	/**
+	 * Opens the minimum number of connections so the first statements do not
+	 * wait for a login.
+	 *
+	 * @throws SQLException - if a connection cannot be opened
+	 */
+	public void prewarm() throws SQLException {
+		while (idle.size() < minSize && created.get() < maxSize) {
+			idle.offerLast(newPooledConnection());
+		}
+		log.info("Connection pool warmed with {} connections", idle.size());
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		FlightRecorderEvents.ConnectionAcquisition event = new FlightRecorderEvents.ConnectionAcquisition();
+		event.begin();
+		try {
+			return borrow(event);
+		} finally {
+			event.commit();
+		}
+	}
+
+	private Connection borrow(FlightRecorderEvents.ConnectionAcquisition event) throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+		try {
+			if (!permits.tryAcquire(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				throw new SQLException("Timed out waiting for one of " + maxSize + " pooled connections");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a pooled connection", e);
+		}
+		try {
+			SessionProfile wanted = profile;
+			PooledConnection pooled;
+			while ((pooled = idle.pollFirst()) != null) {
+				if (pooled.isUsable() && pooled.accepts(wanted)) {
+					borrowed.incrementAndGet();
+					return pooled.lease(wanted);
+				}
+				pooled.destroy();
+			}
+			borrowed.incrementAndGet();
+			event.opened = true;
+			return newPooledConnection().lease(wanted);
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		return getConnection();
+	}
+
+	/**
+	 * Closes the idle connections and stops handing out new ones. Connections
+	 * still in use are closed when they are returned.
+	 */
+	public void shutdown() {
+		closed = true;
+		PooledConnection pooled;
+		while ((pooled = idle.pollFirst()) != null) {
+			pooled.destroy();
+		}
+		log.info("Connection pool closed: {} physical connections, {} borrows, statement cache {} hits {} misses",
+				new Object[] { created.get(), borrowed.get(), hits.get(), misses.get() });
+	}
+
+	/**
+	 * Sets the session settings of the connections handed out from now on.
+	 * Idle connections set up for another profile are closed when next
+	 * borrowed, since settings cannot in general be undone.
+	 *
+	 * @param profile - the session profile, null for the database defaults
+	 */
+	public void setSessionProfile(SessionProfile profile) {
+		if (null != profile) {
+			log.info("Applying session profile {} to every connection: {}", new Object[] { profile.getName(), profile.getStatements() });
+		}
+		this.profile = profile;
+	}
+
+	public SessionProfile getSessionProfile() {
+		return profile;
+	}
+
+	/**
+	 * @param validateAfterIdleMillis - how long a connection may sit idle before it is validated again, 0 validates every borrow
+	 */
+	public void setValidateAfterIdleMillis(long validateAfterIdleMillis) {
+		this.validateAfterIdleMillis = Math.max(0, validateAfterIdleMillis);
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	private PooledConnection newPooledConnection() throws SQLException {
+		Connection physical = source.getConnection();
+		created.incrementAndGet();
+		return new PooledConnection(physical);
+	}
+
+	private void release(PooledConnection pooled) {
+		try {
+			if (closed || !pooled.reset()) {
+				pooled.destroy();
+			} else {
+				idle.offerFirst(pooled);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return null;
+	}
+
+	/**
+	 * Ignored, the physical connections are opened by the wrapped data
+	 * source, so its own log writer applies.
+	 */
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException {
+	}
+
+	/**
+	 * Ignored, the physical connections are opened by the wrapped data
+	 * source, so its own login timeout applies.
+	 */
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException {
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return 0;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(this)) {
+			return iface.cast(this);
+		}
+		return source.unwrap(iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this) || source.isWrapperFor(iface);
+	}
+
+	/**
+	 * Answers unwrap and isWrapperFor on a pooled connection or statement
+	 * with the proxy itself, so a caller can never reach the physical
+	 * connection and close it or keep it after it went back to the pool.
+	 */
+	private static Object unwrapProxy(Object proxy, String method, Class<?> iface) throws SQLException {
+		boolean wraps = iface.isInstance(proxy);
+		if ("isWrapperFor".equals(method)) {
+			return wraps;
+		} else if (!wraps) {
+			throw new SQLException("A pooled " + proxy.getClass().getInterfaces()[0].getSimpleName() + " does not unwrap to " + iface.getName());
+		}
+		return proxy;
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getTargetException();
+		}
+	}
+
+	/**
+	 * A physical connection together with its statement cache.
+	 */
+	final class PooledConnection {
+		private final Connection                            physical;
+		private final Map<String, CachedStatement>          statements;
+		private long                                        lastUsed = System.currentTimeMillis();
+		private SessionProfile                              profile  = null;
+
+		PooledConnection(Connection physical) {
+			this.physical = physical;
+			this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+					if (size() > statementCacheSize) {
+						eldest.getValue().evict();
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		/**
+		 * @return boolean - true if the session has no settings yet or the ones wanted
+		 */
+		boolean accepts(SessionProfile wanted) {
+			return null == profile || profile == wanted;
+		}
+
+		Connection lease(SessionProfile wanted) {
+			if (null != wanted && profile != wanted) {
+				wanted.apply(physical);
+				profile = wanted;
+			}
+			return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new ConnectionHandler(this));
+		}
+
+		boolean isUsable() {
+			if (System.currentTimeMillis() - lastUsed < validateAfterIdleMillis) {
+				return true;
+			}
+			try {
+				return physical.isValid(validationTimeout);
+			} catch (SQLException e) {
+				log.warn("Discarding pooled connection that failed validation: {}", e.getMessage());
+				return false;
+			}
+		}
+
+		PreparedStatement prepare(String sql, Connection owner) throws SQLException {
+			if (statementCacheSize == 0) {
+				return physical.prepareStatement(sql);
+			}
+			CachedStatement cached = statements.get(sql);
+			if (cached == null) {
+				misses.incrementAndGet();
+				cached = new CachedStatement(physical.prepareStatement(sql));
+				statements.put(sql, cached);
+			} else if (cached.inUse) {
+				// the same sql prepared twice on one connection, the second copy is not cached
+				misses.incrementAndGet();
+				return physical.prepareStatement(sql);
+			} else {
+				hits.incrementAndGet();
+			}
+			cached.inUse = true;
+			return cached.lease(owner);
+		}
+
+		boolean reset() {
+			lastUsed = System.currentTimeMillis();
+			try {
+				if (physical.isClosed()) {
+					return false;
+				}
+				if (!physical.getAutoCommit()) {
+					physical.rollback();
+					physical.setAutoCommit(true);
+				}
+				return true;
+			} catch (SQLException e) {
+				log.warn("Discarding pooled connection that could not be reset: {}", e.getMessage());
+				return false;
+			}
+		}
+
+		void destroy() {
+			for (Iterator<CachedStatement> iterator = statements.values().iterator(); iterator.hasNext();) {
+				iterator.next().evict();
+				iterator.remove();
+			}
+			try {
+				physical.close();
+			} catch (SQLException e) {
+				log.warn("Error closing pooled connection: {}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * A prepared statement kept open between uses. Closing the statement handed
+	 * out clears its parameters and leaves it in the cache.
+	 */
+	static final class CachedStatement {
+		private final PreparedStatement statement;
+		private boolean                 inUse   = false;
+		private boolean                 evicted = false;
+
+		CachedStatement(PreparedStatement statement) {
+			this.statement = statement;
+		}
+
+		PreparedStatement lease(final Connection owner) {
+			return (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+						private boolean closed = false;
+
+						@Override
+						public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							String name = method.getName();
+							if ("close".equals(name)) {
+								if (!closed) {
+									closed = true;
+									release();
+								}
+								return null;
+							} else if ("isClosed".equals(name)) {
+								return closed;
+							} else if ("getConnection".equals(name)) {
+								return owner;
+							} else if ("equals".equals(name)) {
+								return proxy == args[0];
+							} else if ("hashCode".equals(name)) {
+								return System.identityHashCode(proxy);
+							} else if ("unwrap".equals(name) || "isWrapperFor".equals(name)) {
+								return unwrapProxy(proxy, name, (Class<?>) args[0]);
+							} else if (closed) {
+								throw new SQLException("Statement is closed");
+							}
+							return ConnectionPool.invoke(statement, method, args);
+						}
+					});
+		}
+
+		private void release() {
+			inUse = false;
+			if (evicted) {
+				close();
+				return;
+			}
+			try {
+				statement.clearParameters();
+				statement.clearBatch();
+			} catch (SQLException e) {
+				evicted = true;
+				close();
+			}
+		}
+
+		void evict() {
+			evicted = true;
+			if (!inUse) {
+				close();
+			}
+		}
+
+		private void close() {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				log.debug("Error closing cached statement: {}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Hands every call through to the physical connection except close, which
+	 * returns the connection to the pool, and prepareStatement, which goes
+	 * through the statement cache.
+	 */
+	final class ConnectionHandler implements InvocationHandler {
+		private final PooledConnection pooled;
+		private boolean                closed = false;
+
+		ConnectionHandler(PooledConnection pooled) {
+			this.pooled = pooled;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("close".equals(name)) {
+				if (!closed) {
+					closed = true;
+					release(pooled);
+				}
+				return null;
+			} else if ("isClosed".equals(name)) {
+				return closed || pooled.physical.isClosed();
+			} else if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			} else if ("toString".equals(name)) {
+				return "pooled " + pooled.physical;
+			} else if ("unwrap".equals(name) || "isWrapperFor".equals(name)) {
+				return unwrapProxy(proxy, name, (Class<?>) args[0]);
+			} else if (closed) {
+				throw new SQLException("Connection is closed");
+			} else if ("prepareStatement".equals(name) && args.length == 1) {
+				return pooled.prepare((String) args[0], (Connection) proxy);
+			}
+			return ConnectionPool.invoke(pooled.physical, method, args);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Properties;
+
+/**
+ * This class is the thin client of {@link BuilderDaemon}. It sends one
+ * request to the daemon on the loopback interface and copies the streamed
+ * progress to the console as it arrives, without loading the workspace or
+ * connecting to a database itself. Every request carries the token from
+ * the token file the daemon wrote on start.
+ */
+public class DaemonClient {
+
+	// Constants
+	public static final String REMOTE_COMMAND = "remote";
+	public static final String STATUS_COMMAND = "status";
+	public static final String APPLY_COMMAND  = "apply";
+
+	private final int  port;
+	private final File tokenFile;
+
+	/**
+	 * @param port - the port of the daemon
+	 * @param tokenFile - the token file of the daemon
+	 */
+	public DaemonClient(int port, File tokenFile) {
+		this.port = port;
+		this.tokenFile = tokenFile;
+	}
+
+	/**
+	 * Sends a request and copies the response to the output.
+	 *
+	 * @param command - apply, plan or status
+	 * @param schemas - comma separated schema names, null for all
+	 * @param resume - true to carry on from where a failed or killed run stopped
+	 * @param out - receives the response lines
+	 * @return int - 0 if the daemon reported success, 1 otherwise
+	 * @throws DatabaseBuilderException - if the daemon cannot be reached or its token file cannot be read
+	 */
+	public int send(String command, String schemas, boolean resume, PrintStream out) throws DatabaseBuilderException {
+		boolean status = STATUS_COMMAND.equalsIgnoreCase(command);
+		if (!status && !APPLY_COMMAND.equalsIgnoreCase(command) && !ScriptProcessor.PLAN_COMMAND.equalsIgnoreCase(command)) {
+			throw new DatabaseBuilderException("Unknown daemon command " + command + ", use apply, plan or status");
+		}
+		String token = readToken();
+		HttpURLConnection connection = null;
+		try {
+			StringBuilder query = new StringBuilder("?").append(BuilderDaemon.RESUME_PARAM).append('=').append(resume);
+			if (null != schemas) {
+				query.append('&').append(BuilderDaemon.SCHEMAS_PARAM).append('=').append(URLEncoder.encode(schemas, "UTF-8"));
+			}
+			URL url = new URL("http", "127.0.0.1", port, "/" + command.toLowerCase() + (status ? "" : query.toString()));
+			connection = (HttpURLConnection) url.openConnection();
+			connection.setRequestMethod(status ? "GET" : "POST");
+			connection.setRequestProperty(BuilderDaemon.TOKEN_HEADER, token);
+			// an apply runs as long as it needs to
+			connection.setReadTimeout(0);
+			int code = connection.getResponseCode();
+			InputStream input = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if (null == input) {
+				out.println(BuilderDaemon.FAILED + ": HTTP " + code);
+				return 1;
+			}
+			String last = copy(new InputStreamReader(input, StandardCharsets.UTF_8), out);
+			if (code >= 400) {
+				return 1;
+			}
+			return status || (null != last && last.startsWith(BuilderDaemon.OK)) ? 0 : 1;
+		} catch (IOException e) {
+			throw new DatabaseBuilderException("Unable to reach the DatabaseBuilder daemon on port " + port, e);
+		} finally {
+			if (null != connection) {
+				connection.disconnect();
+			}
+		}
+	}
+
+	private String readToken() throws DatabaseBuilderException {
+		try {
+			return new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8).trim();
+		} catch (NoSuchFileException e) {
+			throw new DatabaseBuilderException("No daemon token file " + tokenFile + ", is the DatabaseBuilder daemon running?", e);
+		} catch (IOException e) {
+			throw new DatabaseBuilderException("Unable to read the daemon token file " + tokenFile, e);
+		}
+	}
+
+	/**
+	 * @return String - the last line copied, null if there was none
+	 */
+	static String copy(Reader input, PrintStream out) throws IOException {
+		String last = null;
+		try (BufferedReader reader = new BufferedReader(input)) {
+			String line;
+			while (null != (line = reader.readLine())) {
+				out.println(line);
+				out.flush();
+				last = line;
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Runs "remote &lt;apply|plan|status&gt; [--resume] [schema,schema]". The
+	 * daemon port and token file are taken from the same property file the
+	 * daemon reads, database-builder.properties in the home directory.
+	 *
+	 * @param args - the command line, starting with "remote"
+	 * @return int - the exit code
+	 * @throws DatabaseBuilderException - if the daemon cannot be reached or the command is unknown
+	 */
+	public static int run(String[] args) throws DatabaseBuilderException {
+		if (args.length < 2) {
+			throw new DatabaseBuilderException("Usage: remote <apply|plan|status> [--resume] [schema,schema]");
+		}
+		boolean resume = false;
+		String schemas = null;
+		for (int index = 2; index < args.length; index++) {
+			if (ScriptProcessor.RESUME_OPTION.equalsIgnoreCase(args[index])) {
+				resume = true;
+			} else {
+				schemas = args[index];
+			}
+		}
+		File propertyFile = new File(System.getProperty("user.home") + ScriptProcessor.MAIN_PROPERTY_FLD);
+		Properties properties = new Properties();
+		try (InputStream input = Files.newInputStream(propertyFile.toPath())) {
+			properties.load(input);
+		} catch (IOException e) {
+			throw new DatabaseBuilderException("Unable to read the property file " + propertyFile, e);
+		}
+		int port;
+		try {
+			port = BuilderDaemon.port(properties);
+		} catch (NumberFormatException e) {
+			throw new DatabaseBuilderException("The daemon port must be a whole number", e);
+		}
+		return new DaemonClient(port, BuilderDaemon.tokenFile(properties)).send(args[1], schemas, resume, System.out);
+	}
+}
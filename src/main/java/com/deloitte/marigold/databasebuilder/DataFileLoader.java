@@ -0,0 +1,187 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+
+/**
+ * This class loads the rows of a {@link DelimitedDataFile} in batches,
+ * streaming them from the disk. Each batch is handed to a runner which
+ * binds it to the insert as one array and commits it, so a table of any
+ * size never has to be turned into an insert script.
+ *
+ * With a parallelism above one, batches run on a bounded pool of threads,
+ * each drawing its own connection, while the next batches are read. At most
+ * one batch per thread is held in memory. Progress is reported as the
+ * number of rows loaded without a gap, so a failed load can carry on from
+ * there even though later batches may have finished first.
+ */
+public class DataFileLoader {
+	private static final LogManager log = LogManager.getLogger(DataFileLoader.class);
+
+	// Constants
+	public static final int DEFAULT_BATCH_SIZE = 5000;
+
+	/**
+	 * The work done for a single batch of rows.
+	 */
+	public interface BatchRunner {
+		void run(List<Object[]> rows) throws DatabaseBuilderException;
+	}
+
+	private final int batchSize;
+	private final int parallelism;
+
+	/**
+	 * @param batchSize - the rows bound and committed together
+	 * @param parallelism - the maximum number of batches loaded at the same time
+	 */
+	public DataFileLoader(int batchSize, int parallelism) {
+		this.batchSize = Math.max(1, batchSize);
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Loads the rows of the file. After the first failure no further
+	 * batches are started; the batches already running are allowed to finish.
+	 *
+	 * @param data - the open data file, positioned after its header
+	 * @param skipRows - the rows loaded by an earlier run, read but not loaded again
+	 * @param runner - loads a single batch
+	 * @param progress - told the number of rows loaded without a gap, in increasing order
+	 * @return long - the rows loaded by this call
+	 * @throws DatabaseBuilderException - the first failure of any batch, or a row that does not match the header
+	 * @throws IOException - if the file cannot be read
+	 */
+	public long load(DelimitedDataFile data, int skipRows, final BatchRunner runner, IntConsumer progress)
+			throws DatabaseBuilderException, IOException {
+		final AtomicReference<DatabaseBuilderException> failure = new AtomicReference<>();
+		final AtomicLong loaded = new AtomicLong();
+		final Progress contiguous = new Progress(skipRows, progress);
+		final Semaphore slots = new Semaphore(parallelism);
+		ExecutorService executor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+		try {
+			List<Object[]> batch = new ArrayList<>();
+			int rowNumber = 0;
+			int firstRow = 0;
+			int firstLine = 0;
+			Object[] row;
+			while (null == failure.get() && null != (row = data.nextRow())) {
+				if (++rowNumber <= skipRows) {
+					continue;
+				}
+				if (batch.isEmpty()) {
+					firstRow = rowNumber;
+					firstLine = data.getLine();
+				}
+				batch.add(row);
+				if (batch.size() >= batchSize) {
+					submit(executor, slots, new Batch(data, batch, firstRow, firstLine), runner, failure, loaded, contiguous);
+					batch = new ArrayList<>();
+				}
+			}
+			if (!batch.isEmpty() && null == failure.get()) {
+				submit(executor, slots, new Batch(data, batch, firstRow, firstLine), runner, failure, loaded, contiguous);
+			}
+			if (rowNumber < skipRows) {
+				log.warn("{} has {} rows, fewer than the {} loaded by an earlier run",
+						new Object[] { data.getFile(), rowNumber, skipRows });
+			}
+		} finally {
+			// wait for the batches still running
+			slots.acquireUninterruptibly(parallelism);
+			slots.release(parallelism);
+			if (null != executor) {
+				executor.shutdown();
+			}
+		}
+		if (null != failure.get()) {
+			throw failure.get();
+		}
+		return loaded.get();
+	}
+
+	private void submit(ExecutorService executor, final Semaphore slots, final Batch batch, final BatchRunner runner,
+			final AtomicReference<DatabaseBuilderException> failure, final AtomicLong loaded, final Progress contiguous)
+			throws DatabaseBuilderException {
+		try {
+			slots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DatabaseBuilderException("Interrupted while loading " + batch.location(), e);
+		}
+		Runnable task = () -> {
+			try {
+				runner.run(batch.rows);
+				loaded.addAndGet(batch.rows.size());
+				contiguous.completed(batch.firstRow, batch.firstRow + batch.rows.size() - 1);
+			} catch (DatabaseBuilderException | RuntimeException e) {
+				log.error("Error loading " + batch.location(), e);
+				failure.compareAndSet(null, new DatabaseBuilderException("Error loading " + batch.location() + ": "
+						+ e.getMessage(), e));
+			} finally {
+				slots.release();
+			}
+		};
+		if (null == executor) {
+			task.run();
+		} else {
+			executor.execute(task);
+		}
+	}
+
+	/**
+	 * A batch of rows and where it came from.
+	 */
+	private static final class Batch {
+		private final DelimitedDataFile data;
+		private final List<Object[]>    rows;
+		private final int               firstRow;
+		private final int               firstLine;
+
+		Batch(DelimitedDataFile data, List<Object[]> rows, int firstRow, int firstLine) {
+			this.data = data;
+			this.rows = rows;
+			this.firstRow = firstRow;
+			this.firstLine = firstLine;
+		}
+
+		String location() {
+			return "rows " + firstRow + " to " + (firstRow + rows.size() - 1) + " (from line " + firstLine + ") of "
+					+ data.getFile().getPath();
+		}
+	}
+
+	/**
+	 * Turns batches finishing in any order into the rows loaded without a gap.
+	 */
+	private static final class Progress {
+		private final TreeMap<Integer, Integer> finished = new TreeMap<>();
+		private final IntConsumer               listener;
+		private int                             rows;
+
+		Progress(int rows, IntConsumer listener) {
+			this.rows = rows;
+			this.listener = listener;
+		}
+
+		synchronized void completed(int firstRow, int lastRow) {
+			finished.put(firstRow, lastRow);
+			int before = rows;
+			Integer last;
+			while (null != (last = finished.remove(rows + 1))) {
+				rows = last;
+			}
+			if (rows != before) {
+				listener.accept(rows);
+			}
+		}
+	}
+}
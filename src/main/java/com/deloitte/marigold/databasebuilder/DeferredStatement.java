@@ -0,0 +1,129 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class recognises the ddl a full rebuild can hold back until the data
+ * has been loaded: non unique indexes, and foreign key and check constraints
+ * added with alter table. Building an index once over loaded rows, and
+ * validating a constraint once, is much cheaper than maintaining them row by
+ * row while the seed data is inserted.
+ *
+ * Unique indexes and primary and unique keys are never deferred, since the
+ * data scripts may rely on them rejecting duplicates and foreign keys need
+ * them.
+ */
+public final class DeferredStatement {
+
+	// Constants
+	private static final String  NAME       = "((?:\"[^\"]+\"|[\\w$#]+)(?:\\.(?:\"[^\"]+\"|[\\w$#]+))?)";
+	private static final Pattern INDEX      = Pattern.compile(
+			"(?is)^\\s*create\\s+(?:bitmap\\s+)?index\\s+" + NAME + "\\s+on\\s+" + NAME);
+	private static final Pattern CONSTRAINT = Pattern.compile(
+			"(?is)^\\s*alter\\s+table\\s+" + NAME + "\\s+add\\s*\\(?\\s*(?:constraint\\s+" + NAME + "\\s+)?(foreign\\s+key|check)\\b");
+	private static final Pattern REFERENCES = Pattern.compile("(?is)\\breferences\\s+" + NAME);
+	private static final Pattern STRUCTURAL = Pattern.compile(
+			"(?is)^(?:\\s|--[^\\n]*(?:\\n|$)|/\\*.*?\\*/)*(alter|drop|rename|truncate|begin|declare|call|create\\s+(?:unique\\s+|bitmap\\s+)?index)\\b.*");
+
+	private final String      sql;
+	private final File        file;
+	private final String      name;
+	private final Set<String> tables;
+
+	private DeferredStatement(String sql, File file, String name, Set<String> tables) {
+		this.sql = sql;
+		this.file = file;
+		this.name = name;
+		this.tables = Collections.unmodifiableSet(tables);
+	}
+
+	/**
+	 * @param statement - a statement as split from a sql file
+	 * @param file - the file the statement comes from
+	 * @return DeferredStatement - the statement to hold back, or null if it runs in its place
+	 */
+	public static DeferredStatement parse(String statement, File file) {
+		Set<String> tables = new HashSet<>();
+		Matcher index = INDEX.matcher(statement);
+		if (index.lookingAt()) {
+			tables.add(objectName(index.group(2)));
+			return new DeferredStatement(statement, file, objectName(index.group(1)), tables);
+		}
+		Matcher constraint = CONSTRAINT.matcher(statement);
+		if (constraint.lookingAt()) {
+			tables.add(objectName(constraint.group(1)));
+			Matcher references = REFERENCES.matcher(statement);
+			if (references.find(constraint.end())) {
+				tables.add(objectName(references.group(1)));
+			}
+			return new DeferredStatement(statement, file, null == constraint.group(2) ? null : objectName(constraint.group(2)),
+					tables);
+		}
+		return null;
+	}
+
+	/**
+	 * @param statement - a statement about to run
+	 * @return boolean - true if the statement changes the structure of the database, e.g. alter, drop or a pl/sql block
+	 */
+	public static boolean isStructural(String statement) {
+		return STRUCTURAL.matcher(statement).matches();
+	}
+
+	/**
+	 * @param identifiers - the upper case identifiers of a statement
+	 * @return boolean - true if the statement names the index, the constraint or one of its tables
+	 */
+	public boolean isNamedIn(Set<String> identifiers) {
+		return (null != name && identifiers.contains(name)) || !Collections.disjoint(tables, identifiers);
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return String - the upper case name of the index or constraint, null for an unnamed constraint
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return Set - the upper case names of the tables the statement locks
+	 */
+	public Set<String> getTables() {
+		return tables;
+	}
+
+	private static String objectName(String qualified) {
+		String last = qualified.substring(qualified.lastIndexOf('.') + 1);
+		// a dot inside quotes is part of the name
+		if (qualified.endsWith("\"") && !last.startsWith("\"")) {
+			last = qualified.substring(qualified.lastIndexOf('"', qualified.length() - 2));
+		}
+		return last.startsWith("\"") ? last.substring(1, last.length() - 1).toUpperCase() : last.toUpperCase();
+	}
+
+	/**
+	 * This is used to display the content of the object as a String
+	 *
+	 * @return string - contents for DeferredStatement
+	 */
+	@Override
+	public String toString() {
+		return new StringBuilder("name:").append(name)
+				.append(", tables:").append(tables)
+				.append(", file:").append(null == file ? null : file.getName())
+				.toString();
+	}
+}
@@ -0,0 +1,329 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import org.springframework.jdbc.core.SqlParameterValue;
+
+/**
+ * This class streams the rows of a seed data file of a build script
+ * directory, e.g. 40-country.csv, one row at a time. The table is the part
+ * of the file name between the number and the extension. Values are comma
+ * separated in a .csv file and tab separated in a .tsv file; a value holding
+ * the separator, a quote or a line break is quoted, with quotes doubled.
+ *
+ * Lines starting with # before the header are comments. The header names
+ * the columns, each optionally followed by its type, e.g.
+ * id:number,name,created:date. The types are number, varchar (the default)
+ * and date, which accepts yyyy-mm-dd and yyyy-mm-dd hh:mm:ss. An empty
+ * unquoted value is a null.
+ */
+public class DelimitedDataFile implements Closeable {
+
+	// Constants
+	public static final String CSV_EXT          = ".csv";
+	public static final String TSV_EXT          = ".tsv";
+	public static final String DIRECT_PATH_HINT = "/*+ APPEND_VALUES */ ";
+	private static final Pattern NAME = Pattern.compile("[A-Za-z][\\w$#]*(\\.[A-Za-z][\\w$#]*)?");
+
+	/**
+	 * The column types a header can declare.
+	 */
+	public enum ColumnType {
+		VARCHAR(Types.VARCHAR), NUMBER(Types.NUMERIC), DATE(Types.TIMESTAMP);
+
+		private final int sqlType;
+
+		ColumnType(int sqlType) {
+			this.sqlType = sqlType;
+		}
+
+		/**
+		 * @param name - the type as written in the header, e.g. varchar2 or integer
+		 * @return ColumnType - the type, null if it is not known
+		 */
+		public static ColumnType forName(String name) {
+			switch (name.trim().toLowerCase(Locale.ROOT)) {
+			case "":
+			case "varchar":
+			case "varchar2":
+			case "nvarchar2":
+			case "char":
+			case "clob":
+			case "string":
+				return VARCHAR;
+			case "number":
+			case "integer":
+			case "decimal":
+			case "numeric":
+				return NUMBER;
+			case "date":
+			case "timestamp":
+				return DATE;
+			default:
+				return null;
+			}
+		}
+
+		Object convert(String value) {
+			if (null == value) {
+				return new SqlParameterValue(sqlType, null);
+			} else if (this == NUMBER) {
+				return new BigDecimal(value.trim());
+			} else if (this == DATE) {
+				String trimmed = value.trim();
+				return Timestamp.valueOf(trimmed.length() == 10 ? trimmed + " 00:00:00" : trimmed);
+			}
+			return value;
+		}
+	}
+
+	private final File             file;
+	private final Reader           reader;
+	private final char             separator;
+	private final String           table;
+	private final List<String>     columns = new ArrayList<>();
+	private final List<ColumnType> types   = new ArrayList<>();
+	private int                    line    = 1;
+	private int                    rowLine = 0;
+	private int                    pushedBack = -2;
+
+	/**
+	 * Opens the file in the platform default charset, like the sql files, and reads its header.
+	 *
+	 * @param file - the data file
+	 * @throws IOException - if the file cannot be read
+	 * @throws DatabaseBuilderException - if the file name or the header is not valid
+	 */
+	public DelimitedDataFile(File file) throws IOException, DatabaseBuilderException {
+		this(file, Charset.defaultCharset());
+	}
+
+	/**
+	 * Opens the file and reads its header.
+	 *
+	 * @param file - the data file
+	 * @param charset - the encoding of the workspace files
+	 * @throws IOException - if the file cannot be read
+	 * @throws DatabaseBuilderException - if the file name or the header is not valid
+	 */
+	public DelimitedDataFile(File file, Charset charset) throws IOException, DatabaseBuilderException {
+		this(new InputStreamReader(new FileInputStream(file), charset), file);
+	}
+
+	DelimitedDataFile(Reader source, File file) throws IOException, DatabaseBuilderException {
+		this.file = file;
+		this.reader = new BufferedReader(source);
+		this.separator = file.getName().toLowerCase(Locale.ROOT).endsWith(TSV_EXT) ? '\t' : ',';
+		this.table = tableName(file);
+		boolean read = false;
+		try {
+			readHeader();
+			read = true;
+		} finally {
+			if (!read) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * @param file - a file of a build script directory
+	 * @return boolean - true if the file is loaded as data rather than run as sql
+	 */
+	public static boolean isDataFile(File file) {
+		String name = file.getName().toLowerCase(Locale.ROOT);
+		return name.endsWith(CSV_EXT) || name.endsWith(TSV_EXT);
+	}
+
+	/**
+	 * @param file - a data file named number-table.extension
+	 * @return String - the table the file is loaded into
+	 * @throws DatabaseBuilderException - if the name holds no valid table name
+	 */
+	public static String tableName(File file) throws DatabaseBuilderException {
+		String name = file.getName();
+		int start = name.indexOf('-') + 1;
+		int end = name.lastIndexOf('.');
+		String table = end > start ? name.substring(start, end) : "";
+		if (!NAME.matcher(table).matches()) {
+			throw new DatabaseBuilderException("The data file " + file.getPath() + " must be named number-table" + CSV_EXT);
+		}
+		return table;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return int - the line the row last returned by {@link #nextRow()} starts on
+	 */
+	public int getLine() {
+		return rowLine;
+	}
+
+	/**
+	 * @param directPath - true to add the APPEND_VALUES hint, writing the rows above the high water mark
+	 * @return String - the insert the rows are bound to
+	 */
+	public String getInsertSql(boolean directPath) {
+		StringBuilder sql = new StringBuilder("INSERT ").append(directPath ? DIRECT_PATH_HINT : "").append("INTO ")
+				.append(table).append(" (");
+		StringBuilder parameters = new StringBuilder();
+		for (int index = 0; index < columns.size(); index++) {
+			sql.append(index == 0 ? "" : ", ").append(columns.get(index));
+			parameters.append(index == 0 ? "?" : ", ?");
+		}
+		return sql.append(") VALUES (").append(parameters).append(')').toString();
+	}
+
+	/**
+	 * @return Object[] - the values of the next row in column order, null at the end of the file
+	 * @throws IOException - if the file cannot be read
+	 * @throws DatabaseBuilderException - if the row does not match the header
+	 */
+	public Object[] nextRow() throws IOException, DatabaseBuilderException {
+		List<String> fields = readRecord();
+		while (null != fields && fields.size() == 1 && null == fields.get(0)) {
+			// blank line
+			fields = readRecord();
+		}
+		if (null == fields) {
+			return null;
+		}
+		if (fields.size() != columns.size()) {
+			throw new DatabaseBuilderException(location() + " has " + fields.size() + " values, the header names "
+					+ columns.size() + " columns");
+		}
+		Object[] row = new Object[fields.size()];
+		for (int index = 0; index < row.length; index++) {
+			try {
+				row[index] = types.get(index).convert(fields.get(index));
+			} catch (IllegalArgumentException e) {
+				throw new DatabaseBuilderException(location() + ", column " + columns.get(index) + ": '"
+						+ fields.get(index) + "' is not a valid " + types.get(index).name().toLowerCase(Locale.ROOT), e);
+			}
+		}
+		return row;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private void readHeader() throws IOException, DatabaseBuilderException {
+		List<String> header;
+		do {
+			header = readRecord();
+		} while (null != header && (null == header.get(0) ? header.size() == 1 : header.get(0).startsWith("#")));
+		if (null == header) {
+			throw new DatabaseBuilderException("The data file " + file.getPath() + " has no header");
+		}
+		for (String field : header) {
+			String column = null == field ? "" : field.trim();
+			ColumnType type = ColumnType.VARCHAR;
+			int colon = column.lastIndexOf(':');
+			if (colon > 0) {
+				type = ColumnType.forName(column.substring(colon + 1));
+				column = column.substring(0, colon).trim();
+			}
+			if (null == type || column.contains(".") || !NAME.matcher(column).matches()) {
+				throw new DatabaseBuilderException("The header of " + file.getPath() + " has an invalid column '" + field
+						+ "', use name or name:number, name:varchar or name:date");
+			}
+			columns.add(column);
+			types.add(type);
+		}
+	}
+
+	/**
+	 * Reads one record, which may span lines inside quotes. An empty
+	 * unquoted field is returned as null.
+	 */
+	private List<String> readRecord() throws IOException, DatabaseBuilderException {
+		rowLine = line;
+		int c = read();
+		if (c < 0) {
+			return null;
+		}
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		while (true) {
+			if (c == '"' && field.length() == 0 && !quoted) {
+				quoted = true;
+				while (true) {
+					c = read();
+					if (c < 0) {
+						throw new DatabaseBuilderException(location() + " has an unterminated quoted value");
+					} else if (c == '"') {
+						c = read();
+						if (c != '"') {
+							break;
+						}
+					}
+					field.append((char) c);
+				}
+				continue;
+			}
+			if (c < 0 || c == '\n' || c == '\r' || c == separator) {
+				fields.add(field.length() == 0 && !quoted ? null : field.toString());
+				field.setLength(0);
+				quoted = false;
+				if (c == separator) {
+					c = read();
+					continue;
+				}
+				if (c == '\r') {
+					int next = read();
+					if (next != '\n') {
+						pushedBack = next;
+					}
+				}
+				return fields;
+			}
+			field.append((char) c);
+			c = read();
+		}
+	}
+
+	private int read() throws IOException {
+		if (pushedBack != -2) {
+			int c = pushedBack;
+			pushedBack = -2;
+			return c;
+		}
+		int c = reader.read();
+		if (c == '\n') {
+			line++;
+		}
+		return c;
+	}
+
+	private String location() {
+		return "Line " + rowLine + " of " + file.getPath();
+	}
+}
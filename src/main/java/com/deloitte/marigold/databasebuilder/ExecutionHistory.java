@@ -0,0 +1,221 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * This class remembers how long statements took to run, so a plan can
+ * estimate how long the pending build scripts will take.
+ *
+ * Statements are recorded under a fingerprint of their normalised text, with
+ * literals, comments and whitespace removed, so the same statement found in
+ * another build script or with other values reuses the timing. Statements
+ * never seen before fall back to the average of all recorded statements of
+ * the same kind, e.g. every insert.
+ *
+ * The timings are kept in a properties file per schema on the local disk.
+ */
+public class ExecutionHistory {
+	private static final LogManager log = LogManager.getLogger(ExecutionHistory.class);
+
+	// Constants
+	public static final String  HISTORY_FILE_NAME = "execution-history-";
+	public static final String  HISTORY_FILE_EXT  = ".properties";
+	public static final String  KIND_PREFIX       = "kind.";
+	public static final String  SQL_PREFIX        = "sql.";
+	private static final char[] HEX               = "0123456789abcdef".toCharArray();
+	private static final Pattern COMMENTS         = Pattern.compile("--[^\\n]*|/\\*.*?\\*/", Pattern.DOTALL);
+	private static final Pattern STRINGS          = Pattern.compile("'(?:[^']|'')*'");
+	private static final Pattern NUMBERS          = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+	private static final Pattern WHITESPACE       = Pattern.compile("\\s+");
+
+	private final File                      historyFile;
+	private final Map<String, Timing>       timings = new ConcurrentHashMap<>();
+	private volatile boolean                dirty   = false;
+
+	/**
+	 * @param historyFile - the timings file, created on {@link #save()} if it does not exist
+	 */
+	public ExecutionHistory(File historyFile) {
+		this.historyFile = historyFile;
+		if (historyFile.isFile()) {
+			Properties properties = new Properties();
+			try (InputStream input = new FileInputStream(historyFile)) {
+				properties.load(input);
+				for (String key : properties.stringPropertyNames()) {
+					Timing timing = Timing.parse(properties.getProperty(key));
+					if (null != timing) {
+						timings.put(key, timing);
+					}
+				}
+			} catch (IOException e) {
+				log.warn("Ignoring unreadable execution history {}: {}", new Object[] { historyFile, e.getMessage() });
+			}
+		}
+	}
+
+	/**
+	 * Records the duration of a statement that completed successfully.
+	 *
+	 * @param statement - the sql that was executed
+	 * @param millis - how long it took
+	 */
+	public void record(String statement, long millis) {
+		add(SQL_PREFIX + fingerprint(statement), millis);
+		add(KIND_PREFIX + kind(statement), millis);
+		dirty = true;
+	}
+
+	/**
+	 * @param statement - the sql to estimate
+	 * @return Estimate - the expected duration, or null if nothing similar has been recorded
+	 */
+	public Estimate estimate(String statement) {
+		Timing timing = timings.get(SQL_PREFIX + fingerprint(statement));
+		if (null != timing) {
+			return new Estimate(timing.average(), true);
+		}
+		timing = timings.get(KIND_PREFIX + kind(statement));
+		if (null != timing) {
+			return new Estimate(timing.average(), false);
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the timings file if anything was recorded during this run.
+	 */
+	public void save() {
+		if (!dirty) {
+			return;
+		}
+		Properties properties = new Properties();
+		for (Map.Entry<String, Timing> entry : timings.entrySet()) {
+			properties.setProperty(entry.getKey(), entry.getValue().toString());
+		}
+		File parent = historyFile.getAbsoluteFile().getParentFile();
+		if (null != parent && !parent.isDirectory() && !parent.mkdirs()) {
+			log.warn("Unable to create directory for execution history {}", historyFile);
+			return;
+		}
+		try (OutputStream output = new FileOutputStream(historyFile)) {
+			properties.store(output, "DatabaseBuilder execution history: fingerprint = count,total millis");
+			dirty = false;
+		} catch (IOException e) {
+			log.warn("Unable to write execution history {}: {}", new Object[] { historyFile, e.getMessage() });
+		}
+	}
+
+	/**
+	 * @param statement - the sql
+	 * @return String - the statement with comments, literals, case and whitespace normalised
+	 */
+	public static String normalise(String statement) {
+		String normalised = COMMENTS.matcher(statement).replaceAll(" ");
+		normalised = STRINGS.matcher(normalised).replaceAll("?");
+		normalised = NUMBERS.matcher(normalised).replaceAll("?");
+		normalised = WHITESPACE.matcher(normalised).replaceAll(" ");
+		return normalised.trim().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @param statement - the sql
+	 * @return String - a short hash of the normalised statement
+	 */
+	public static String fingerprint(String statement) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(normalise(statement).getBytes(StandardCharsets.UTF_8));
+			char[] chars = new char[16];
+			for (int index = 0; index < chars.length / 2; index++) {
+				chars[index * 2] = HEX[(digest[index] >> 4) & 0xf];
+				chars[index * 2 + 1] = HEX[digest[index] & 0xf];
+			}
+			return new String(chars);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is required by every JVM", e);
+		}
+	}
+
+	/**
+	 * @param statement - the sql
+	 * @return String - the leading keyword, e.g. insert or create
+	 */
+	public static String kind(String statement) {
+		String normalised = normalise(statement);
+		int space = normalised.indexOf(' ');
+		return space < 0 ? normalised : normalised.substring(0, space);
+	}
+
+	private void add(String key, long millis) {
+		timings.merge(key, new Timing(1, Math.max(0, millis)), Timing::plus);
+	}
+
+	/**
+	 * An expected duration and whether it comes from the statement itself or
+	 * from statements of the same kind.
+	 */
+	public static final class Estimate {
+		private final long    millis;
+		private final boolean exact;
+
+		Estimate(long millis, boolean exact) {
+			this.millis = millis;
+			this.exact = exact;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		public boolean isExact() {
+			return exact;
+		}
+	}
+
+	private static final class Timing {
+		private final long count;
+		private final long totalMillis;
+
+		Timing(long count, long totalMillis) {
+			this.count = count;
+			this.totalMillis = totalMillis;
+		}
+
+		Timing plus(Timing other) {
+			return new Timing(count + other.count, totalMillis + other.totalMillis);
+		}
+
+		long average() {
+			return count == 0 ? 0 : totalMillis / count;
+		}
+
+		static Timing parse(String value) {
+			int comma = value.indexOf(',');
+			if (comma < 0) {
+				return null;
+			}
+			try {
+				return new Timing(Long.parseLong(value.substring(0, comma).trim()), Long.parseLong(value.substring(comma + 1).trim()));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return count + "," + totalMillis;
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts what a run does per schema: statements, rows affected,
+ * errors, files and build script directories, with latency histograms for
+ * statements, files and build scripts.
+ *
+ * Snapshots are written in the Prometheus text format, for the node exporter
+ * textfile collector, and as JSON. Each file is written next to its final
+ * name and moved into place so a scrape never sees half a file.
+ */
+public class ExecutionMetrics {
+	private static final LogManager log = LogManager.getLogger(ExecutionMetrics.class);
+
+	// Constants
+	public static final String   PREFIX            = "databasebuilder_";
+	public static final String   PROMETHEUS_FILE   = "databasebuilder.prom";
+	public static final String   JSON_FILE         = "databasebuilder.json";
+	public static final String   STATEMENTS        = "statements_total";
+	public static final String   ROWS              = "rows_affected_total";
+	public static final String   ERRORS            = "errors_total";
+	public static final String   FILES             = "files_total";
+	public static final String   BUILD_SCRIPTS     = "build_scripts_total";
+	public static final String   STATEMENT_SECONDS = "statement_duration_seconds";
+	public static final String   FILE_SECONDS      = "file_duration_seconds";
+	public static final String   SCRIPT_SECONDS    = "build_script_duration_seconds";
+	private static final double[] BUCKETS          = { 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 60, 300, 1800 };
+
+	private final ConcurrentMap<String, ConcurrentMap<String, LongAdder>> counters   = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, ConcurrentMap<String, Histogram>> histograms = new ConcurrentHashMap<>();
+	private ScheduledExecutorService                                       exporter   = null;
+
+	/**
+	 * A statement completed.
+	 *
+	 * @param schema - the schema label
+	 * @param millis - how long it took
+	 * @param rows - the rows affected
+	 */
+	public void statement(String schema, long millis, int rows) {
+		counter(STATEMENTS, schema).increment();
+		counter(ROWS, schema).add(Math.max(0, rows));
+		histogram(STATEMENT_SECONDS, schema).observe(millis);
+	}
+
+	/**
+	 * A statement or batch failed. Each failure is counted once, where it
+	 * is final: a batch run again statement by statement only counts the
+	 * statement that fails, and the build script it stops is not counted.
+	 *
+	 * @param schema - the schema label
+	 */
+	public void error(String schema) {
+		counter(ERRORS, schema).increment();
+	}
+
+	/**
+	 * A sql file completed.
+	 *
+	 * @param schema - the schema label
+	 * @param millis - how long it took
+	 */
+	public void file(String schema, long millis) {
+		counter(FILES, schema).increment();
+		histogram(FILE_SECONDS, schema).observe(millis);
+	}
+
+	/**
+	 * A build script directory was applied and recorded.
+	 *
+	 * @param schema - the schema label
+	 * @param millis - how long it took
+	 */
+	public void buildScript(String schema, long millis) {
+		counter(BUILD_SCRIPTS, schema).increment();
+		histogram(SCRIPT_SECONDS, schema).observe(millis);
+	}
+
+	/**
+	 * Adds the counts and observations of other metrics, e.g. those of a
+	 * target once it is done.
+	 *
+	 * @param other - the metrics to add, left unchanged
+	 */
+	public void add(ExecutionMetrics other) {
+		for (Map.Entry<String, ConcurrentMap<String, LongAdder>> byName : other.counters.entrySet()) {
+			for (Map.Entry<String, LongAdder> bySchema : byName.getValue().entrySet()) {
+				counter(byName.getKey(), bySchema.getKey()).add(bySchema.getValue().sum());
+			}
+		}
+		for (Map.Entry<String, ConcurrentMap<String, Histogram>> byName : other.histograms.entrySet()) {
+			for (Map.Entry<String, Histogram> bySchema : byName.getValue().entrySet()) {
+				histogram(byName.getKey(), bySchema.getKey()).add(bySchema.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @param name - one of the counter names
+	 * @param schema - the schema label
+	 * @return long - the current value, 0 if never counted
+	 */
+	public long getCount(String name, String schema) {
+		Map<String, LongAdder> bySchema = counters.get(name);
+		LongAdder adder = null == bySchema ? null : bySchema.get(schema);
+		return null == adder ? 0 : adder.sum();
+	}
+
+	/**
+	 * Writes a snapshot every few seconds until {@link #stopExporter()}.
+	 *
+	 * @param directory - where the snapshot files are written
+	 * @param intervalSeconds - seconds between snapshots, 0 or less for none
+	 */
+	public synchronized void startExporter(final File directory, long intervalSeconds) {
+		if (intervalSeconds <= 0 || null != exporter) {
+			return;
+		}
+		exporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-exporter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		exporter.scheduleWithFixedDelay(() -> writeSnapshot(directory), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stopExporter() {
+		if (null != exporter) {
+			exporter.shutdownNow();
+			exporter = null;
+		}
+	}
+
+	/**
+	 * Writes the Prometheus and JSON snapshots. Failures are logged, a run
+	 * never fails because its metrics could not be written.
+	 *
+	 * @param directory - where the snapshot files are written
+	 */
+	public void writeSnapshot(File directory) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			log.warn("Unable to create metrics directory {}", directory);
+			return;
+		}
+		try {
+			write(new File(directory, PROMETHEUS_FILE), toPrometheus());
+			write(new File(directory, JSON_FILE), toJson());
+		} catch (IOException e) {
+			log.warn("Unable to write metrics to {}: {}", new Object[] { directory, e.getMessage() });
+		}
+	}
+
+	/**
+	 * @return String - every metric in the Prometheus text exposition format
+	 */
+	public String toPrometheus() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, SortedMap<String, Long>> counter : sortedCounters().entrySet()) {
+			text.append("# TYPE ").append(PREFIX).append(counter.getKey()).append(" counter\n");
+			for (Map.Entry<String, Long> value : counter.getValue().entrySet()) {
+				text.append(PREFIX).append(counter.getKey()).append(labels(value.getKey(), null)).append(' ')
+						.append(value.getValue()).append('\n');
+			}
+		}
+		for (Map.Entry<String, SortedMap<String, Histogram>> histogram : sortedHistograms().entrySet()) {
+			String name = PREFIX + histogram.getKey();
+			text.append("# TYPE ").append(name).append(" histogram\n");
+			for (Map.Entry<String, Histogram> value : histogram.getValue().entrySet()) {
+				Histogram h = value.getValue();
+				long cumulative = 0;
+				for (int index = 0; index < BUCKETS.length; index++) {
+					cumulative += h.buckets[index].sum();
+					text.append(name).append("_bucket").append(labels(value.getKey(), String.valueOf(BUCKETS[index])))
+							.append(' ').append(cumulative).append('\n');
+				}
+				long count = h.count.sum();
+				text.append(name).append("_bucket").append(labels(value.getKey(), "+Inf")).append(' ').append(count).append('\n');
+				text.append(name).append("_sum").append(labels(value.getKey(), null)).append(' ')
+						.append(h.totalMillis.sum() / 1000.0).append('\n');
+				text.append(name).append("_count").append(labels(value.getKey(), null)).append(' ').append(count).append('\n');
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * @return String - every metric as JSON, keyed by schema and metric name
+	 */
+	public String toJson() {
+		SortedMap<String, SortedMap<String, String>> bySchema = new TreeMap<>();
+		for (Map.Entry<String, SortedMap<String, Long>> counter : sortedCounters().entrySet()) {
+			for (Map.Entry<String, Long> value : counter.getValue().entrySet()) {
+				schemaEntry(bySchema, value.getKey()).put(counter.getKey(), String.valueOf(value.getValue()));
+			}
+		}
+		for (Map.Entry<String, SortedMap<String, Histogram>> histogram : sortedHistograms().entrySet()) {
+			for (Map.Entry<String, Histogram> value : histogram.getValue().entrySet()) {
+				Histogram h = value.getValue();
+				long count = h.count.sum();
+				schemaEntry(bySchema, value.getKey()).put(histogram.getKey(), "{\"count\":" + count + ",\"sum\":"
+						+ (h.totalMillis.sum() / 1000.0) + ",\"max\":" + (h.maxMillis.get() / 1000.0) + "}");
+			}
+		}
+		StringBuilder json = new StringBuilder("{\"timestamp\":").append(System.currentTimeMillis()).append(",\"schemas\":{");
+		String separator = "";
+		for (Map.Entry<String, SortedMap<String, String>> schema : bySchema.entrySet()) {
+			json.append(separator).append(quote(schema.getKey())).append(":{");
+			String inner = "";
+			for (Map.Entry<String, String> metric : schema.getValue().entrySet()) {
+				json.append(inner).append(quote(metric.getKey())).append(':').append(metric.getValue());
+				inner = ",";
+			}
+			json.append('}');
+			separator = ",";
+		}
+		return json.append("}}\n").toString();
+	}
+
+	private LongAdder counter(String name, String schema) {
+		return counters.computeIfAbsent(name, key -> new ConcurrentHashMap<>())
+				.computeIfAbsent(String.valueOf(schema), key -> new LongAdder());
+	}
+
+	private Histogram histogram(String name, String schema) {
+		return histograms.computeIfAbsent(name, key -> new ConcurrentHashMap<>())
+				.computeIfAbsent(String.valueOf(schema), key -> new Histogram());
+	}
+
+	private SortedMap<String, SortedMap<String, Long>> sortedCounters() {
+		SortedMap<String, SortedMap<String, Long>> sorted = new TreeMap<>();
+		for (Map.Entry<String, ConcurrentMap<String, LongAdder>> counter : counters.entrySet()) {
+			SortedMap<String, Long> values = new TreeMap<>();
+			for (Map.Entry<String, LongAdder> value : counter.getValue().entrySet()) {
+				values.put(value.getKey(), value.getValue().sum());
+			}
+			sorted.put(counter.getKey(), values);
+		}
+		return sorted;
+	}
+
+	private SortedMap<String, SortedMap<String, Histogram>> sortedHistograms() {
+		SortedMap<String, SortedMap<String, Histogram>> sorted = new TreeMap<>();
+		for (Map.Entry<String, ConcurrentMap<String, Histogram>> histogram : histograms.entrySet()) {
+			sorted.put(histogram.getKey(), new TreeMap<>(histogram.getValue()));
+		}
+		return sorted;
+	}
+
+	private static SortedMap<String, String> schemaEntry(SortedMap<String, SortedMap<String, String>> bySchema, String schema) {
+		return bySchema.computeIfAbsent(schema, key -> new TreeMap<>());
+	}
+
+	private static String labels(String schema, String le) {
+		return "{schema=" + quote(schema) + (null == le ? "" : ",le=\"" + le + "\"") + "}";
+	}
+
+	/**
+	 * @param value - any text
+	 * @return String - the text as a json string, with quotes, backslashes and control characters escaped
+	 */
+	static String quote(String value) {
+		StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+		for (char c : value.toCharArray()) {
+			if ('"' == c || '\\' == c) {
+				quoted.append('\\').append(c);
+			} else if ('\n' == c) {
+				quoted.append("\\n");
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static void write(File target, String content) throws IOException {
+		File temp = new File(target.getParentFile(), target.getName() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+			writer.write(content);
+		}
+		try {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Counts observations per upper bound in seconds.
+	 */
+	private static final class Histogram {
+		private final LongAdder[]                          buckets     = new LongAdder[BUCKETS.length];
+		private final LongAdder                            count       = new LongAdder();
+		private final LongAdder                            totalMillis = new LongAdder();
+		private final AtomicLong                           maxMillis   = new AtomicLong();
+
+		Histogram() {
+			for (int index = 0; index < buckets.length; index++) {
+				buckets[index] = new LongAdder();
+			}
+		}
+
+		void observe(long millis) {
+			double seconds = millis / 1000.0;
+			for (int index = 0; index < BUCKETS.length; index++) {
+				if (seconds <= BUCKETS[index]) {
+					buckets[index].increment();
+					break;
+				}
+			}
+			count.increment();
+			totalMillis.add(millis);
+			maxMillis.accumulateAndGet(millis, Math::max);
+		}
+
+		void add(Histogram other) {
+			for (int index = 0; index < buckets.length; index++) {
+				buckets[index].add(other.buckets[index].sum());
+			}
+			count.add(other.count.sum());
+			totalMillis.add(other.totalMillis.sum());
+			maxMillis.accumulateAndGet(other.maxMillis.get(), Math::max);
+		}
+	}
+}
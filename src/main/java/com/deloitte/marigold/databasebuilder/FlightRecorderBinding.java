@@ -0,0 +1,202 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Hands the events in FlightRecorderEvents to the flight recorder. This is
+ * the only class that refers to jdk.jfr, and it is only loaded once
+ * FlightRecorderEvents has found that api, so the builder still runs on JVMs
+ * without it.
+ *
+ * Requires a JVM that ships the jdk.jfr api, which for Java 8 means OpenJDK
+ * 8u262 or later.
+ */
+final class FlightRecorderBinding implements FlightRecorderEvents.Binding {
+	private static final Map<Class<?>, Supplier<Event>> EVENTS = new HashMap<Class<?>, Supplier<Event>>();
+
+	static {
+		EVENTS.put(FlightRecorderEvents.WorkspaceScan.class, WorkspaceScan::new);
+		EVENTS.put(FlightRecorderEvents.FileRead.class, FileRead::new);
+		EVENTS.put(FlightRecorderEvents.StatementSplit.class, StatementSplit::new);
+		EVENTS.put(FlightRecorderEvents.StatementExecution.class, StatementExecution::new);
+		EVENTS.put(FlightRecorderEvents.ConnectionAcquisition.class, ConnectionAcquisition::new);
+		EVENTS.put(FlightRecorderEvents.BookkeepingQuery.class, BookkeepingQuery::new);
+	}
+
+	/**
+	 * Pairs of facade field and recorded event field with the same name, worked out once per event type.
+	 */
+	private static final ClassValue<Field[][]> FIELDS = new ClassValue<Field[][]>() {
+		@Override
+		protected Field[][] computeValue(Class<?> type) {
+			Class<? extends Event> recorded = EVENTS.get(type).get().getClass();
+			List<Field[]> pairs = new ArrayList<Field[]>();
+			for (Field field : type.getFields()) {
+				if (Modifier.isStatic(field.getModifiers())) {
+					continue;
+				}
+				try {
+					pairs.add(new Field[] { field, recorded.getField(field.getName()) });
+				} catch (NoSuchFieldException e) {
+					throw new IllegalStateException("Flight recorder event " + recorded.getName() + " has no field " + field.getName(), e);
+				}
+			}
+			return pairs.toArray(new Field[pairs.size()][]);
+		}
+	};
+
+	private final Event event;
+
+	private FlightRecorderBinding(Event event) {
+		this.event = event;
+	}
+
+	static FlightRecorderBinding create(FlightRecorderEvents.BuilderEvent facade) {
+		Supplier<Event> factory = EVENTS.get(facade.getClass());
+		if (null == factory) {
+			throw new IllegalArgumentException("No flight recorder event for " + facade.getClass().getName());
+		}
+		return new FlightRecorderBinding(factory.get());
+	}
+
+	@Override
+	public void begin() {
+		event.begin();
+	}
+
+	@Override
+	public void end() {
+		event.end();
+	}
+
+	@Override
+	public boolean shouldCommit() {
+		return event.shouldCommit();
+	}
+
+	@Override
+	public void commit(FlightRecorderEvents.BuilderEvent facade) {
+		// the fields are only copied when a recording wants the event
+		if (!event.shouldCommit()) {
+			return;
+		}
+		try {
+			for (Field[] pair : FIELDS.get(facade.getClass())) {
+				pair[1].set(event, pair[0].get(facade));
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Could not copy the fields of " + facade.getClass().getName(), e);
+		}
+		event.commit();
+	}
+
+	@Name(FlightRecorderEvents.PREFIX + "WorkspaceScan")
+	@Label("Workspace Scan")
+	@Category(FlightRecorderEvents.CATEGORY)
+	@StackTrace(false)
+	public static final class WorkspaceScan extends Event {
+		@Label("Schema")
+		public String schema;
+
+		@Label("Root Directory")
+		public String root;
+
+		@Label("Build Scripts")
+		public int buildScripts;
+	}
+
+	@Name(FlightRecorderEvents.PREFIX + "FileRead")
+	@Label("Sql File Read")
+	@Category(FlightRecorderEvents.CATEGORY)
+	@StackTrace(false)
+	public static final class FileRead extends Event {
+		@Label("File")
+		public String file;
+
+		@Label("Characters")
+		@DataAmount(DataAmount.BYTES)
+		public long characters;
+
+		@Label("Statements")
+		public int statements;
+
+		@Label("Read Time")
+		@Description("Time spent reading from the file, the rest of the duration is spent splitting and running statements")
+		@Timespan(Timespan.NANOSECONDS)
+		public long readTime;
+	}
+
+	@Name(FlightRecorderEvents.PREFIX + "StatementSplit")
+	@Label("Statement Split")
+	@Category(FlightRecorderEvents.CATEGORY)
+	@StackTrace(false)
+	public static final class StatementSplit extends Event {
+		@Label("File")
+		public String file;
+
+		@Label("Ordinal")
+		public int ordinal;
+
+		@Label("Length")
+		public int length;
+	}
+
+	@Name(FlightRecorderEvents.PREFIX + "StatementExecution")
+	@Label("Statement Execution")
+	@Category(FlightRecorderEvents.CATEGORY)
+	@StackTrace(false)
+	public static final class StatementExecution extends Event {
+		@Label("Schema")
+		public String schema;
+
+		@Label("File")
+		public String file;
+
+		@Label("Fingerprint")
+		@Description("Hash of the normalised sql, as in the execution history")
+		public String fingerprint;
+
+		@Label("Rows")
+		public int rows;
+
+		@Label("Succeeded")
+		public boolean succeeded;
+	}
+
+	@Name(FlightRecorderEvents.PREFIX + "ConnectionAcquisition")
+	@Label("Connection Acquisition")
+	@Category(FlightRecorderEvents.CATEGORY)
+	@StackTrace(false)
+	public static final class ConnectionAcquisition extends Event {
+		@Label("Opened")
+		@Description("True if a new physical connection had to be opened")
+		public boolean opened;
+	}
+
+	@Name(FlightRecorderEvents.PREFIX + "BookkeepingQuery")
+	@Label("Bookkeeping Query")
+	@Category(FlightRecorderEvents.CATEGORY)
+	@StackTrace(false)
+	public static final class BookkeepingQuery extends Event {
+		@Label("Schema")
+		public String schema;
+
+		@Label("Query")
+		public String query;
+	}
+}
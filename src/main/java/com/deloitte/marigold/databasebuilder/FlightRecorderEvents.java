@@ -0,0 +1,170 @@
+package com.deloitte.marigold.databasebuilder;
+
+/**
+ * Java Flight Recorder events for the stages of applying build scripts, so a
+ * recording of a slow run shows where the time went next to gc and socket io.
+ * The events cost next to nothing unless a recording with them enabled is
+ * running, e.g. started with -XX:StartFlightRecording.
+ *
+ * The classes here only carry the fields, the jdk.jfr types live in
+ * FlightRecorderBinding. Whether the running JVM ships the jdk.jfr api is
+ * checked once, and on JVMs without it, such as Java 8 before 8u262, every
+ * event is a no-op that never wants to be committed.
+ */
+public final class FlightRecorderEvents {
+	// Constants
+	public static final String CATEGORY = "DatabaseBuilder";
+	public static final String PREFIX   = "com.deloitte.marigold.databasebuilder.";
+
+	private static final LogManager log = LogManager.getLogger(FlightRecorderEvents.class);
+
+	private static final Binding NO_BINDING = new Binding() {
+		@Override
+		public void begin() {}
+
+		@Override
+		public void end() {}
+
+		@Override
+		public boolean shouldCommit() {
+			return false;
+		}
+
+		@Override
+		public void commit(BuilderEvent event) {}
+	};
+
+	private static volatile boolean available = isFlightRecorderPresent();
+
+	private FlightRecorderEvents() {}
+
+	/**
+	 * @return boolean - true if events are handed to the flight recorder, false if they are no-ops
+	 */
+	public static boolean isAvailable() {
+		return available;
+	}
+
+	private static boolean isFlightRecorderPresent() {
+		try {
+			Class.forName("jdk.jfr.Event", false, FlightRecorderEvents.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			log.debug("jdk.jfr is not available, flight recorder events are disabled");
+			return false;
+		}
+	}
+
+	private static Binding bind(BuilderEvent event) {
+		if (available) {
+			try {
+				return FlightRecorderBinding.create(event);
+			} catch (LinkageError e) {
+				available = false;
+				log.warn("Could not load the flight recorder events, they are disabled: {}", e.toString());
+			}
+		}
+		return NO_BINDING;
+	}
+
+	/**
+	 * What an event does with its timing and fields, either the matching
+	 * jdk.jfr event or nothing at all.
+	 */
+	interface Binding {
+		void begin();
+
+		void end();
+
+		boolean shouldCommit();
+
+		void commit(BuilderEvent event);
+	}
+
+	/**
+	 * The timing every event shares, mirroring jdk.jfr.Event. The public
+	 * fields of a subclass are copied to the recorded event on commit, so set
+	 * them before calling it.
+	 */
+	public abstract static class BuilderEvent {
+		private final Binding binding;
+
+		BuilderEvent() {
+			binding = bind(this);
+		}
+
+		public void begin() {
+			binding.begin();
+		}
+
+		public void end() {
+			binding.end();
+		}
+
+		/**
+		 * @return boolean - true if a running recording wants this event, so its fields are worth filling in
+		 */
+		public boolean shouldCommit() {
+			return binding.shouldCommit();
+		}
+
+		public void commit() {
+			binding.commit(this);
+		}
+	}
+
+	/**
+	 * Listing the build script directories of a schema.
+	 */
+	public static final class WorkspaceScan extends BuilderEvent {
+		public String schema;
+		public String root;
+		public int buildScripts;
+	}
+
+	/**
+	 * A sql file from being opened until it is closed, with the time spent
+	 * waiting for the disk.
+	 */
+	public static final class FileRead extends BuilderEvent {
+		public String file;
+		public long characters;
+		public int statements;
+		public long readTime;
+	}
+
+	/**
+	 * Reading and splitting off a single statement.
+	 */
+	public static final class StatementSplit extends BuilderEvent {
+		public String file;
+		public int ordinal;
+		public int length;
+	}
+
+	/**
+	 * Executing a single statement, including any throttle delay.
+	 */
+	public static final class StatementExecution extends BuilderEvent {
+		public String schema;
+		public String file;
+		public String fingerprint;
+		public int rows;
+		public boolean succeeded;
+	}
+
+	/**
+	 * Borrowing a connection from the pool, including any wait for a free one.
+	 */
+	public static final class ConnectionAcquisition extends BuilderEvent {
+		public boolean opened;
+	}
+
+	/**
+	 * A query or update against the db_build_scripts table.
+	 */
+	public static final class BookkeepingQuery extends BuilderEvent {
+		public String schema;
+		public String query;
+	}
+}
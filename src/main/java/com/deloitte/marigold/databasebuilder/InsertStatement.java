@@ -0,0 +1,138 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.jdbc.core.SqlParameterValue;
+
+/**
+ * This class recognises an insert of literal values into an explicit
+ * column list, e.g. insert into t (a, b) values (1, 'x'), and turns it
+ * into a parameterised statement and its values. Consecutive inserts with
+ * the same parameterised statement can then run as one jdbc batch.
+ *
+ * Only numbers, quoted strings and null are accepted as values. Anything
+ * else, e.g. a function call, a sequence, a date literal or a sub query,
+ * leaves the statement to run as it is written.
+ */
+public final class InsertStatement {
+
+	private static final Pattern HEAD = Pattern.compile(
+			"(?is)^insert\\s+into\\s+([\\w$#.\"]+)\\s*\\(([^()'\"]*(?:\"[^\"]*\"[^()'\"]*)*)\\)\\s*values\\s*\\(");
+	private static final Pattern NUMBER = Pattern.compile("[-+]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][-+]?\\d+)?");
+
+	private final String   sql;
+	private final Object[] values;
+
+	private InsertStatement(String sql, Object[] values) {
+		this.sql = sql;
+		this.values = values;
+	}
+
+	/**
+	 * @return String - the insert with a ? for every value, the same for every statement of the same shape
+	 */
+	public String getSql() {
+		return sql;
+	}
+
+	/**
+	 * @return Object[] - the values in column order; strings, numbers as BigDecimal, and nulls typed as varchar
+	 */
+	public Object[] getValues() {
+		return values;
+	}
+
+	/**
+	 * @param statement - a statement as split from a sql file
+	 * @return InsertStatement - the parameterised insert, or null if the statement is anything else
+	 */
+	public static InsertStatement parse(String statement) {
+		Matcher head = HEAD.matcher(statement);
+		if (!head.lookingAt()) {
+			return null;
+		}
+		List<String> columns = new ArrayList<>();
+		for (String column : head.group(2).split(",")) {
+			if (column.trim().isEmpty()) {
+				return null;
+			}
+			columns.add(column.trim());
+		}
+		List<Object> values = new ArrayList<>();
+		int position = head.end();
+		int length = statement.length();
+		while (true) {
+			position = skipWhitespace(statement, position);
+			if (position >= length) {
+				return null;
+			}
+			char c = statement.charAt(position);
+			if (c == '\'') {
+				StringBuilder value = new StringBuilder();
+				position++;
+				while (true) {
+					if (position >= length) {
+						return null;
+					}
+					char next = statement.charAt(position++);
+					if (next == '\'') {
+						if (position < length && statement.charAt(position) == '\'') {
+							value.append('\'');
+							position++;
+						} else {
+							break;
+						}
+					} else {
+						value.append(next);
+					}
+				}
+				values.add(value.toString());
+			} else if (statement.regionMatches(true, position, "null", 0, 4)
+					&& (position + 4 >= length || !Character.isLetterOrDigit(statement.charAt(position + 4)))) {
+				values.add(new SqlParameterValue(Types.VARCHAR, null));
+				position += 4;
+			} else {
+				Matcher number = NUMBER.matcher(statement);
+				number.region(position, length);
+				if (!number.lookingAt()) {
+					return null;
+				}
+				values.add(new BigDecimal(number.group()));
+				position = number.end();
+			}
+			position = skipWhitespace(statement, position);
+			if (position >= length) {
+				return null;
+			}
+			char separator = statement.charAt(position++);
+			if (separator == ')') {
+				break;
+			} else if (separator != ',') {
+				return null;
+			}
+		}
+		if (skipWhitespace(statement, position) != length || values.size() != columns.size()) {
+			return null;
+		}
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(head.group(1)).append(" (");
+		StringBuilder parameters = new StringBuilder();
+		for (int index = 0; index < columns.size(); index++) {
+			sql.append(index == 0 ? "" : ", ").append(columns.get(index));
+			parameters.append(index == 0 ? "?" : ", ?");
+		}
+		sql.append(") VALUES (").append(parameters).append(')');
+		return new InsertStatement(sql.toString(), values.toArray());
+	}
+
+	private static int skipWhitespace(String statement, int position) {
+		while (position < statement.length() && Character.isWhitespace(statement.charAt(position))) {
+			position++;
+		}
+		return position;
+	}
+}
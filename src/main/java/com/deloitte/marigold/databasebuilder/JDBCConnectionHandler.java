@@ -9,15 +9,14 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.naming.spi.InitialContextFactory;
-import javax.naming.spi.InitialContextFactoryBuilder;
 import javax.naming.spi.NamingManager;
 import javax.sql.DataSource;
 
@@ -40,12 +39,19 @@ public class JDBCConnectionHandler {
 	public static final String PASSWORD_FIELD = "password";
 	public static final String PORT_FIELD = "port";
 	public static final String SID_FIELD = "sid";
+	public static final String URL_FIELD = "url";
+	public static final String POOL_MIN_FIELD = "poolMinSize";
+	public static final String POOL_MAX_FIELD = "poolMaxSize";
+	public static final String STMT_CACHE_FIELD = "statementCacheSize";
+	public static final String VALIDATION_TIMEOUT_FIELD = "validationTimeout";
 	public static final String USER_FIELD = "user";
 	public static final String MARIGOLD_SCHEMA = "marigold";
 	public static final String MARIGOLD_DATA_SCHEMA = "marigoldData";
 
 	private static final LogManager logger = LogManager.getLogger(JDBCConnectionHandler.class);
 
+	private static final String JNDI_RESOURCE = "jndi.properties";
+
 	// from database-builder.properties
 	//private String marPropertyFile = "c:/dev/resources/marigold-jdbc.properties";
 	private String marPropertyFile = "/home/ec2-user/.marigold/db_builder/marigold-jdbc.properties";
@@ -54,6 +60,7 @@ public class JDBCConnectionHandler {
 
 	private Connection 	connection 	= null;
 	private DataSource  dataSource  = null;
+	private ConnectionPool pool     = null;
 	private String 		host 		= null;
 	private InputStream input 		= null;
 	private String 		password 	= null;
@@ -61,11 +68,17 @@ public class JDBCConnectionHandler {
 	private Properties 	prop 		= new Properties();
 	private String 		sid 		= null;
 	private String 		user 		= null;
+	private String 		url 		= null;
+	private Map<String, String> propertyFiles = new HashMap<>();
+	private int         poolMinSize        = ConnectionPool.DEFAULT_MIN_SIZE;
+	private int         poolMaxSize        = ConnectionPool.DEFAULT_MAX_SIZE;
+	private int         statementCacheSize = ConnectionPool.DEFAULT_STATEMENT_CACHE_SIZE;
+	private int         validationTimeout  = ConnectionPool.DEFAULT_VALIDATION_TIMEOUT;
 	
 
 	/**
 	 * Pass through method to close the jdbc connection and null out 
-	 * variable.
+	 * variable. The connection pool behind the data source is shut down.
 	 * 
 	 * @throws DatabaseBuilderException
 	 */
@@ -76,14 +89,22 @@ public class JDBCConnectionHandler {
 			}
 		} catch (SQLException e) {
 			throw new DatabaseBuilderException(e);
+		} finally {
+			if(null != pool) {
+				pool.shutdown();
+			}
+			pool = null;
+			dataSource = null;
+			connection = null;
 		}
-		dataSource = null;
-		connection = null;
 	}
 	
 	@SuppressWarnings("squid:S1067")
 	private boolean testConnectionVariables() {
 		// NOSONAR
+		if (!StringUtils.isEmpty(url)) {
+			return !StringUtils.isEmpty(user) && null != password;
+		}
 		if( StringUtils.isEmpty(host) || 
 				StringUtils.isEmpty(password) ||
 				StringUtils.isEmpty(port) ||
@@ -104,11 +125,13 @@ public class JDBCConnectionHandler {
 		password = null;
 		port = null;
 		sid = null;
+		url = null;
 	}
 	
 	/**
 	 * Method to retrieve data source for the JdbcDaoSupport class
-	 * in the ScriptProcessor.
+	 * in the ScriptProcessor. The data source is a bounded connection
+	 * pool shared by every statement and the bookkeeping connection.
 	 * 
 	 * @param schema - identifies which of the supported schemas to use.
 	 * 
@@ -117,32 +140,73 @@ public class JDBCConnectionHandler {
 	 * @throws DatabaseBuilderException - wraps any errors which may have occured
 	 */
 	public DataSource getDataSource(String schema) throws DatabaseBuilderException {
+		if(null != pool) {
+			return pool;
+		}
 		if(!testConnectionVariables()) {
 			loadPropertyFile(schema);
 		}
 				
-		try {
-			dataSource = (DataSource)NamingManager.getInitialContext(null).lookup(JDBC_PREFIX + schema);
-        } catch (NamingException e) {
-        	
-        	logger.error("getDataSource(0 threw NamingException: ", e);
+		DataSource physicalDataSource = null;
+		// outside a container the lookup can only fail, so it is not tried
+		if (isNamingContainerPresent()) {
 			try {
-				NamingManager.setInitialContextFactoryBuilder(new DatabaseContextFactory()); 
-				dataSource = (DataSource)NamingManager.getInitialContext(null).lookup(JDBC_PREFIX + schema);
-	        } catch (NamingException e1) {
-	        	logger.error("getDataSource(0 threw NamingException: ", e);
-				try {
-					NamingManager.setInitialContextFactoryBuilder(new DatabaseContextFactory()); 
-					dataSource = (DataSource)NamingManager.getInitialContext(null).lookup(JDBC_PREFIX + schema);
-				} catch (NamingException e2) {
-					logger.error("Unable to load schema datasource " + schema, e1);
-					throw new DatabaseBuilderException("Unable to load schema datasource " + schema, e2);
-				}
-	        }
+				physicalDataSource = (DataSource) new InitialContext().lookup(JDBC_PREFIX + schema);
+			} catch (NamingException e) {
+				logger.warn("No data source bound to {}, connecting directly: {}", new Object[] { JDBC_PREFIX + schema, e.getMessage() });
+			}
+		}
+		if (null == physicalDataSource) {
+			physicalDataSource = createDataSource(schema);
+		}
+		pool = new ConnectionPool(physicalDataSource, poolMinSize, poolMaxSize, statementCacheSize, validationTimeout);
+		try {
+			pool.prewarm();
+		} catch (SQLException e) {
+			pool.shutdown();
+			pool = null;
+			throw new DatabaseBuilderException("Unable to open connections for schema " + schema, e);
 		}
+		dataSource = pool;
 		return dataSource;
 	}
 	
+	/**
+	 * @return boolean - true if a JNDI provider is configured, e.g. by an application server
+	 */
+	private static boolean isNamingContainerPresent() {
+		return null != System.getProperty(Context.INITIAL_CONTEXT_FACTORY)
+				|| NamingManager.hasInitialContextFactoryBuilder()
+				|| null != JDBCConnectionHandler.class.getClassLoader().getResource(JNDI_RESOURCE);
+	}
+	
+	/**
+	 * Creates the data source straight from the connection variables.
+	 * Nothing connects until the pool asks for its first connection.
+	 * 
+	 * @param schema - the name of the schema, for the error message
+	 * @return DataSource - an Oracle data source, or a plain jdbc one if a url is configured
+	 * @throws DatabaseBuilderException - if the Oracle data source cannot be created
+	 */
+	private DataSource createDataSource(String schema) throws DatabaseBuilderException {
+		if(!StringUtils.isEmpty(url)) {
+			// any other jdbc database, e.g. an embedded one for benchmarks and tests
+			return new MarDataSource(url, user, password);
+		}
+		try {
+			OracleConnectionPoolDataSource ds = new OracleConnectionPoolDataSource();
+			StringBuilder conUrl = new StringBuilder("jdbc:oracle:thin:@")
+					.append(host).append(":").append(port)
+					.append(":").append(sid);
+			ds.setURL(conUrl.toString());
+			ds.setUser(user);
+			ds.setPassword(password);
+			return ds;
+		} catch (SQLException e) {
+			throw new DatabaseBuilderException("Unable to load schema datasource " + schema, e);
+		}
+	}
+	
 	/**
 	 * call the create data source method and uses the 
 	 * returned data source to retrieve ojdbc connection.
@@ -167,6 +231,18 @@ public class JDBCConnectionHandler {
 		return connection;
 	}
 	
+	/**
+	 * Sets the session settings the pool applies to the connections it
+	 * hands out from now on.
+	 * 
+	 * @param profile - the session profile, null for the database defaults
+	 */
+	public void setSessionProfile(SessionProfile profile) {
+		if(null != pool) {
+			pool.setSessionProfile(profile);
+		}
+	}
+	
 	public String getHost() {
 		return host;
 	}
@@ -203,6 +279,14 @@ public class JDBCConnectionHandler {
 		return user;
 	}
 
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
 	public void setUser(String user) {
 		this.user = user;
 	}
@@ -221,6 +305,10 @@ public class JDBCConnectionHandler {
 				input = new FileInputStream(getMarPropertyFile());
 			} else if (schema.equals(MARIGOLD_DATA_SCHEMA) || schema.equals(getMarDataPropertyFile())) {
 				input = new FileInputStream(getMarDataPropertyFile());
+			} else if (propertyFiles.containsKey(schema)) {
+				input = new FileInputStream(propertyFiles.get(schema));
+			} else if (propertyFiles.containsValue(schema)) {
+				input = new FileInputStream(schema);
 			} else {
 				throw new DatabaseBuilderException("Schema must be specified when loading propery file for JDBC connection.");
 			}
@@ -233,6 +321,17 @@ public class JDBCConnectionHandler {
 			password = prop.getProperty(PASSWORD_FIELD);
 			port = prop.getProperty(PORT_FIELD);
 			sid = prop.getProperty(SID_FIELD);
+			url = prop.getProperty(URL_FIELD);
+			try {
+				poolMinSize = Integer.parseInt(prop.getProperty(POOL_MIN_FIELD, String.valueOf(ConnectionPool.DEFAULT_MIN_SIZE)).trim());
+				poolMaxSize = Integer.parseInt(prop.getProperty(POOL_MAX_FIELD, String.valueOf(ConnectionPool.DEFAULT_MAX_SIZE)).trim());
+				statementCacheSize = Integer.parseInt(prop.getProperty(STMT_CACHE_FIELD,
+						String.valueOf(ConnectionPool.DEFAULT_STATEMENT_CACHE_SIZE)).trim());
+				validationTimeout = Integer.parseInt(prop.getProperty(VALIDATION_TIMEOUT_FIELD,
+						String.valueOf(ConnectionPool.DEFAULT_VALIDATION_TIMEOUT)).trim());
+			} catch (NumberFormatException e) {
+				throw new DatabaseBuilderException("Connection pool settings must be whole numbers", e);
+			}
 
 			// get the property value and print it out
 			logger.debug("schema:" + schema);
@@ -241,6 +340,10 @@ public class JDBCConnectionHandler {
 			logger.debug("password:" + password);
 			logger.debug("port:" + port);
 			logger.debug("sid:" + sid);
+			logger.debug("url:" + url);
+			logger.debug("poolMinSize:" + poolMinSize);
+			logger.debug("poolMaxSize:" + poolMaxSize);
+			logger.debug("statementCacheSize:" + statementCacheSize);
 
 		} catch (IOException ex) {
 			
@@ -327,60 +430,14 @@ public class JDBCConnectionHandler {
 
 	}
 
-	final class DatabaseContext extends InitialContext {
-
-		DatabaseContext() throws NamingException {}
-
-	    @Override
-	    public Object lookup(String name) throws NamingException
-	    {    	
-	    	
-	    	OracleConnectionPoolDataSource ds = null;
-	    	try {
-		    	if(!testConnectionVariables()) {
-					loadPropertyFile(name.substring(JDBCConnectionHandler.JDBC_PREFIX.length(), name.length()));
-				}
-
-		    	ds = new OracleConnectionPoolDataSource();
-	            
-	            //our connection strings
-	            Class.forName("oracle.jdbc.driver.OracleDriver");
-	            StringBuilder conUrl = new StringBuilder("jdbc:oracle:thin:@")
-	            		.append(host).append(":").append(port)
-	            		.append(":").append(sid).append("");
-	
-	            ds.setURL(conUrl.toString());
-                ds.setUser(user);
-                ds.setPassword(password);
-                    
-                return ds;
-	        }
-	         catch(Exception e) {
-	             logger.error("Lookup Problem ", e);
-	         }  
-	         return null;            
-	    }        
-	     
-	}
-
-	final class DatabaseContextFactory implements  InitialContextFactory, InitialContextFactoryBuilder {
-	
-	    @SuppressWarnings("squid:S1319")
-	    @Override
-	    public Context getInitialContext(Hashtable<?, ?> environment)
-	            throws NamingException
-	    {
-	        return new DatabaseContext();
-	    }
-	
-	    @SuppressWarnings("squid:S1319")
-	    @Override
-	    public InitialContextFactory createInitialContextFactory(
-	            Hashtable<?, ?> environment) throws NamingException
-	    {
-	        return new DatabaseContextFactory();
-	    }
-	    
+	/**
+	 * Maps a schema to the property file holding its connection variables.
+	 * 
+	 * @param schema - the name of the schema
+	 * @param propertyFile - the path of the jdbc property file
+	 */
+	public void setPropertyFile(String schema, String propertyFile) {
+		propertyFiles.put(schema, propertyFile);
 	}
 
 	public String getMarPropertyFile() {
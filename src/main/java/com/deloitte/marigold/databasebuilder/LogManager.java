@@ -1,7 +1,7 @@
 package com.deloitte.marigold.databasebuilder;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +18,10 @@ import org.slf4j.LoggerFactory;
  * Note that SLF4J-enabling your library/application implies the addition of only a single mandatory 
  * dependency, namely slf4j-api-1.7.7.jar.
  *
+ * Messages are only formatted when the level is enabled, so pass values as
+ * place holder parameters rather than concatenating them. Sql text should be
+ * wrapped with {@link #sql(String)}, which abbreviates long statements.
+ *
  * @author mapabba
  *
  */
@@ -26,29 +30,57 @@ public class LogManager {
 	
 	public static final String SPACE = " ";
     public static final String TAB = "\t";
-    private static final String END_OF_LINE = System.getProperty("line.separator");
+	public static final int DEFAULT_SQL_MAX_LENGTH = 500;
 	private Logger logger = null;
-	@SuppressWarnings("rawtypes")
-	private static final Map loggers = new HashMap();
+	private static final ConcurrentMap<String, LogManager> loggers = new ConcurrentHashMap<>();
+	private static volatile int sqlMaxLength = DEFAULT_SQL_MAX_LENGTH;
 	
 	private LogManager(@SuppressWarnings("rawtypes") Class c) {
 		this.logger = LoggerFactory.getLogger(c);
 	}
 	
-	@SuppressWarnings("unchecked")
-	public static LogManager getLogger(@SuppressWarnings("rawtypes") Class c) {
-		String className = c.getName();
-		LogManager logger = (LogManager) loggers.get(className);
-		if (logger == null) {
-			synchronized (LogManager.class) {
-				logger = (LogManager) loggers.get(className);
-				if (logger == null) {
-					logger = new LogManager(c);
-					loggers.put(className, logger);
+	public static LogManager getLogger(@SuppressWarnings("rawtypes") final Class c) {
+		return loggers.computeIfAbsent(c.getName(), className -> new LogManager(c));
+	}
+	
+	/**
+	 * Sets the length beyond which sql text passed through {@link #sql(String)}
+	 * is abbreviated.
+	 * @param maxLength - the number of characters kept, 0 or less to always log the full text
+	 */
+	public static void setSqlMaxLength(int maxLength) {
+		sqlMaxLength = maxLength;
+	}
+	
+	/**
+	 * Wraps sql text for use as a place holder parameter. The text is only
+	 * abbreviated if the message is actually logged; long statements keep
+	 * their start followed by their length and fingerprint, which matches
+	 * the fingerprint used by {@link ExecutionHistory}.
+	 * usage :	log.info("running statement {}", LogManager.sql(statement));
+	 * @param sql
+	 * @return Object - renders the abbreviated sql in toString
+	 */
+	public static Object sql(final String sql) {
+		return new Object() {
+			@Override
+			public String toString() {
+				int maxLength = sqlMaxLength;
+				if (null == sql || maxLength <= 0 || sql.length() <= maxLength) {
+					return sql;
 				}
+				return sql.substring(0, maxLength) + "... [" + sql.length() + " chars, fingerprint "
+						+ ExecutionHistory.fingerprint(sql) + "]";
 			}
-		}
-		return logger;
+		};
+	}
+	
+	public boolean isDebugEnabled() {
+		return logger.isDebugEnabled();
+	}
+	
+	public boolean isInfoEnabled() {
+		return logger.isInfoEnabled();
 	}
 	
 	/**
@@ -64,7 +96,6 @@ public class LogManager {
 	 */
 	public void error(String message, Throwable t) {
 		logger.error(message, t);
-		printStackTrace(t);
 	}
 	
 	
@@ -82,7 +113,6 @@ public class LogManager {
 	 */
 	public void warn(String message, Throwable t) {
 		logger.warn(message, t);
-		printStackTrace(t);
 	}
 	
 	/**
@@ -115,8 +145,6 @@ public class LogManager {
 				messageWPlaceHolders,
 			    messageArr,
 			    t);
-		
-		printStackTrace(t);
 	}
 	
 	/**
@@ -126,7 +154,7 @@ public class LogManager {
 	 * @param messageArr
 	 * @param t
 	 */
-	public void error(String messageWPlaceHolders, Object[] messageArr) {
+	public void error(String messageWPlaceHolders, Object... messageArr) {
 		logger.error(
 				messageWPlaceHolders,
 			    messageArr
@@ -144,24 +172,22 @@ public class LogManager {
 				messageWPlaceHolders,
 			    messageArr,
 			    t);
-		
-		printStackTrace(t);
 	}
 
 	/**
 	 * This method works with place holders and respective messages.
-	 * usage :	logger.warn("one two three: {} {} {}", new Object[]{"a", "b", "c"});
+	 * usage :	logger.warn("one two three: {} {} {}", "a", "b", "c");
 	 * @param messageWPlaceHolders
 	 * @param Object[]  messageArr
 	 * @param t
 	 */
-	public void warn(String messageWPlaceHolders, Object[] messageArr) {
+	public void warn(String messageWPlaceHolders, Object... messageArr) {
 		logger.warn(
 				messageWPlaceHolders,
 			    messageArr);
 	}
 	
-	public void debug(String messageWPlaceHolders, Object[] messageArr) {
+	public void debug(String messageWPlaceHolders, Object... messageArr) {
 		logger.debug(
 				messageWPlaceHolders,
 			    messageArr
@@ -169,7 +195,7 @@ public class LogManager {
 		
 	}
 
-	public void info(String messageWPlaceHolders, Object[] messageArr) {
+	public void info(String messageWPlaceHolders, Object... messageArr) {
 		logger.info(
 				messageWPlaceHolders,
 			    messageArr
@@ -189,8 +215,6 @@ public class LogManager {
 				messageWPlaceHolders,
 			    message,
 			    t);
-		
-		printStackTrace(t);
 	}
 	
 	public void error(String messageWPlaceHolders, Object message) {
@@ -204,8 +228,6 @@ public class LogManager {
 				messageWPlaceHolders,
 			    message,
 			    t);
-		
-		printStackTrace(t);
 	}
 	public void warn(String messageWPlaceHolders, Object message) {
 		logger.warn(
@@ -228,22 +250,6 @@ public class LogManager {
 			    );
 		
 	}
-	/**
-	 * Constructs all the stack trace elements.
-	 * @param t
-	 * @return
-	 */
-	private String printStackTrace( Throwable t){
-	        StringBuilder sbl = new StringBuilder();
-	    	sbl.append(END_OF_LINE);
-	        sbl.append(t.toString());
-	        for(StackTraceElement ste:t.getStackTrace()){
-	        	sbl.append(END_OF_LINE);
-	        	sbl.append(TAB);
-	        	sbl.append(ste.toString());
-	        }
-	        return sbl.toString();
-	    }
 	
 	
 
@@ -0,0 +1,317 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class records how far each sql file of a build script directory has
+ * got, so a run that failed or was killed part way through a directory can
+ * carry on from the statement after the last one that completed instead of
+ * starting the directory again.
+ *
+ * The journal is a memory mapped file of fixed size slots, one per sql file,
+ * holding the build script, the file, its checksum and the ordinal of the
+ * last completed statement. Advancing the ordinal is a single write into the
+ * mapping, which the operating system keeps even if the process is killed.
+ * The slots of a build script are freed once its db_build_scripts row is
+ * recorded.
+ *
+ * In transactional mode progress is staged with {@link Cursor#defer(int)} and
+ * only written by {@link #flush()} once the statements have been committed.
+ */
+public class ProgressJournal implements AutoCloseable {
+	private static final LogManager log = LogManager.getLogger(ProgressJournal.class);
+
+	// Constants
+	public static final String  JOURNAL_FILE_NAME = "progress-journal-";
+	public static final String  JOURNAL_FILE_EXT  = ".dat";
+	public static final int     COMPLETE          = -1;
+	private static final int    MAGIC             = 0x44424a31;
+	private static final int    HEADER_SIZE       = 16;
+	private static final int    SLOT_SIZE         = 512;
+	private static final int    INITIAL_SLOTS     = 256;
+	// slot layout: in use flag, ordinal, key length, checksum, key
+	private static final int    IN_USE            = 0;
+	private static final int    ORDINAL           = 4;
+	private static final int    KEY_LENGTH        = 8;
+	private static final int    CHECKSUM          = 12;
+	private static final int    CHECKSUM_SIZE     = 64;
+	private static final int    KEY               = CHECKSUM + CHECKSUM_SIZE;
+	private static final int    KEY_SIZE          = SLOT_SIZE - KEY;
+
+	private final File                     journalFile;
+	private final RandomAccessFile         file;
+	private final FileChannel              channel;
+	private MappedByteBuffer               buffer;
+	private int                            slots;
+	private final Map<String, Integer>     index    = new HashMap<>();
+	private final Deque<Integer>           free     = new ArrayDeque<>();
+	private final Map<Integer, Integer>    deferred = new LinkedHashMap<>();
+
+	/**
+	 * Opens the journal, creating it if it does not exist.
+	 *
+	 * @param journalFile - the journal file
+	 * @throws DatabaseBuilderException - if the file cannot be opened or is not a journal
+	 */
+	public ProgressJournal(File journalFile) throws DatabaseBuilderException {
+		this.journalFile = journalFile;
+		File parent = journalFile.getAbsoluteFile().getParentFile();
+		if (null != parent && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new DatabaseBuilderException("Unable to create directory for progress journal " + journalFile);
+		}
+		try {
+			file = new RandomAccessFile(journalFile, "rw");
+			channel = file.getChannel();
+			if (file.length() < HEADER_SIZE) {
+				map(INITIAL_SLOTS);
+				buffer.putInt(0, MAGIC);
+			} else {
+				map((int) ((file.length() - HEADER_SIZE) / SLOT_SIZE));
+				if (buffer.getInt(0) != MAGIC) {
+					close();
+					throw new DatabaseBuilderException(journalFile + " is not a progress journal");
+				}
+			}
+		} catch (IOException e) {
+			throw new DatabaseBuilderException("Unable to open progress journal " + journalFile, e);
+		}
+		for (int slot = 0; slot < slots; slot++) {
+			if (buffer.get(offset(slot) + IN_USE) == 1) {
+				index.put(readKey(slot), slot);
+			} else {
+				free.add(slot);
+			}
+		}
+	}
+
+	/**
+	 * Looks up, or allocates, the slot of a sql file. A slot recorded for
+	 * other contents of the file starts over from the first statement.
+	 *
+	 * @param buildScript - the build script directory name
+	 * @param sqlFile - the file path within the directory
+	 * @param checksum - the current checksum of the file
+	 * @return Cursor - the progress of the file
+	 */
+	public synchronized Cursor cursor(String buildScript, String sqlFile, String checksum) {
+		String key = key(buildScript, sqlFile);
+		Integer slot = index.get(key);
+		int completed = 0;
+		if (null == slot) {
+			slot = allocate(key, checksum);
+		} else if (!checksum.equals(readChecksum(slot))) {
+			log.warn("{} of {} has changed since it was partially applied, it runs from the start", new Object[] { sqlFile, buildScript });
+			writeChecksum(slot, checksum);
+			buffer.putInt(offset(slot) + ORDINAL, 0);
+		} else {
+			completed = buffer.getInt(offset(slot) + ORDINAL);
+		}
+		return new Cursor(null == slot ? -1 : slot, completed);
+	}
+
+	/**
+	 * @param buildScript - the build script directory name
+	 * @return boolean - true if any statement of the build script has been recorded
+	 */
+	public synchronized boolean hasProgress(String buildScript) {
+		String prefix = buildScript + "/";
+		for (Map.Entry<String, Integer> entry : index.entrySet()) {
+			if (entry.getKey().startsWith(prefix) && buffer.getInt(offset(entry.getValue()) + ORDINAL) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the progress staged by {@link Cursor#defer(int)}, called after a commit.
+	 */
+	public synchronized void flush() {
+		for (Map.Entry<Integer, Integer> entry : deferred.entrySet()) {
+			buffer.putInt(offset(entry.getKey()) + ORDINAL, entry.getValue());
+		}
+		deferred.clear();
+	}
+
+	/**
+	 * Drops the staged progress, called after a rollback.
+	 */
+	public synchronized void discard() {
+		deferred.clear();
+	}
+
+	/**
+	 * Frees the slots of a build script, once it has been recorded in the
+	 * db_build_scripts table or is about to run from the start.
+	 *
+	 * @param buildScript - the build script directory name
+	 */
+	public synchronized void clear(String buildScript) {
+		String prefix = buildScript + "/";
+		List<String> keys = new ArrayList<>();
+		for (String key : index.keySet()) {
+			if (key.startsWith(prefix)) {
+				keys.add(key);
+			}
+		}
+		for (String key : keys) {
+			int slot = index.remove(key);
+			buffer.put(offset(slot) + IN_USE, (byte) 0);
+			deferred.remove(slot);
+			free.add(slot);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		try {
+			if (null != buffer) {
+				buffer.force();
+			}
+			file.close();
+		} catch (IOException e) {
+			log.warn("Error closing progress journal {}: {}", new Object[] { journalFile, e.getMessage() });
+		}
+	}
+
+	private Integer allocate(String key, String checksum) {
+		if (free.isEmpty()) {
+			int before = slots;
+			try {
+				map(slots * 2);
+			} catch (IOException e) {
+				log.warn("Unable to grow progress journal {}, progress of {} is not recorded: {}",
+						new Object[] { journalFile, key, e.getMessage() });
+				return null;
+			}
+			for (int slot = before; slot < slots; slot++) {
+				free.add(slot);
+			}
+		}
+		int slot = free.poll();
+		int offset = offset(slot);
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(offset + ORDINAL, 0);
+		buffer.putInt(offset + KEY_LENGTH, keyBytes.length);
+		writeChecksum(slot, checksum);
+		for (int position = 0; position < keyBytes.length; position++) {
+			buffer.put(offset + KEY + position, keyBytes[position]);
+		}
+		// the slot only counts once everything else has been written
+		buffer.put(offset + IN_USE, (byte) 1);
+		index.put(key, slot);
+		return slot;
+	}
+
+	private void map(int slotCount) throws IOException {
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+		slots = slotCount;
+	}
+
+	private void writeChecksum(int slot, String checksum) {
+		int offset = offset(slot);
+		byte[] checksumBytes = checksum.getBytes(StandardCharsets.US_ASCII);
+		for (int position = 0; position < CHECKSUM_SIZE; position++) {
+			buffer.put(offset + CHECKSUM + position, position < checksumBytes.length ? checksumBytes[position] : 0);
+		}
+	}
+
+	private String readKey(int slot) {
+		int offset = offset(slot);
+		byte[] keyBytes = new byte[Math.min(KEY_SIZE, Math.max(0, buffer.getInt(offset + KEY_LENGTH)))];
+		for (int position = 0; position < keyBytes.length; position++) {
+			keyBytes[position] = buffer.get(offset + KEY + position);
+		}
+		return new String(keyBytes, StandardCharsets.UTF_8);
+	}
+
+	private String readChecksum(int slot) {
+		int offset = offset(slot);
+		StringBuilder checksum = new StringBuilder(CHECKSUM_SIZE);
+		for (int position = 0; position < CHECKSUM_SIZE; position++) {
+			byte value = buffer.get(offset + CHECKSUM + position);
+			if (value == 0) {
+				break;
+			}
+			checksum.append((char) value);
+		}
+		return checksum.toString();
+	}
+
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	/**
+	 * File paths too long for a slot are replaced by their checksum.
+	 */
+	private static String key(String buildScript, String sqlFile) {
+		String key = buildScript + "/" + sqlFile;
+		if (key.getBytes(StandardCharsets.UTF_8).length > KEY_SIZE) {
+			key = buildScript + "/#" + WorkspaceChecksums.checksum(sqlFile);
+		}
+		return key;
+	}
+
+	/**
+	 * The progress of one sql file. A cursor whose slot could not be
+	 * allocated records nothing.
+	 */
+	public final class Cursor {
+		private final int slot;
+		private final int completed;
+
+		Cursor(int slot, int completed) {
+			this.slot = slot;
+			this.completed = completed;
+		}
+
+		/**
+		 * @return int - the ordinal of the last completed statement when the cursor was
+		 * opened, {@link #COMPLETE} if the whole file completed, 0 if none
+		 */
+		public int getCompleted() {
+			return completed;
+		}
+
+		/**
+		 * Records a completed statement.
+		 *
+		 * @param ordinal - the ordinal of the statement in the file, or {@link #COMPLETE}
+		 */
+		public void advance(int ordinal) {
+			if (slot < 0) {
+				return;
+			}
+			synchronized (ProgressJournal.this) {
+				buffer.putInt(offset(slot) + ORDINAL, ordinal);
+			}
+		}
+
+		/**
+		 * Stages a completed statement until the next {@link ProgressJournal#flush()}.
+		 *
+		 * @param ordinal - the ordinal of the statement in the file, or {@link #COMPLETE}
+		 */
+		public void defer(int ordinal) {
+			if (slot < 0) {
+				return;
+			}
+			synchronized (ProgressJournal.this) {
+				deferred.put(slot, ordinal);
+			}
+		}
+	}
+}
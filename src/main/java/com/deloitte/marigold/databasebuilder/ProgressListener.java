@@ -0,0 +1,14 @@
+package com.deloitte.marigold.databasebuilder;
+
+/**
+ * Receives progress messages while schemas are processed, e.g. to stream
+ * them to the client of the daemon. Called from the threads processing the
+ * schemas, so implementations must be thread safe.
+ */
+public interface ProgressListener {
+
+	/**
+	 * @param message - one or more lines describing what was just done
+	 */
+	void progress(String message);
+}
@@ -0,0 +1,312 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class reads and splits the sql files that are about to run on a
+ * background thread, so the database does not sit idle while the next file
+ * is read from a slow, e.g. network mounted, workspace.
+ *
+ * Files are read in the order they were handed to {@link #prefetch(List)}.
+ * The characters held by split but not yet finished files are capped: the
+ * reading thread waits until statements are finished with before reading
+ * further. A file larger than the cap is read on its own once everything
+ * before it has been finished with.
+ *
+ * Files that were not prefetched are streamed from the disk as before. So
+ * are prefetched files whose reading has not started, or is waiting for
+ * room under the cap, when they are opened: when files run side by side a
+ * later file may be opened before an earlier one has been finished with,
+ * and waiting for it could then block every worker for good.
+ */
+public class ReadAheadPipeline implements AutoCloseable {
+	private static final LogManager log = LogManager.getLogger(ReadAheadPipeline.class);
+
+	// Constants
+	public static final int DEFAULT_MAX_MB = 32;
+	// states of a queued file
+	private static final int QUEUED    = 0;
+	private static final int WAITING   = 1;
+	private static final int READING   = 2;
+	private static final int ABANDONED = 3;
+
+	private final int                             maxChars;
+	private final Charset                         charset;
+	private final Semaphore                       budget;
+	private final ExecutorService                 executor;
+	private final Map<File, Load>                 pending = new LinkedHashMap<>();
+
+	/**
+	 * @param maxMegabytes - the cap on the sql text held ahead of execution
+	 */
+	public ReadAheadPipeline(int maxMegabytes) {
+		this(maxMegabytes, Charset.defaultCharset());
+	}
+
+	/**
+	 * @param maxMegabytes - the cap on the sql text held ahead of execution
+	 * @param charset - the encoding of the sql files
+	 */
+	public ReadAheadPipeline(int maxMegabytes, Charset charset) {
+		this.charset = charset;
+		maxChars = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxMegabytes) * 1024L * 1024L);
+		budget = new Semaphore(maxChars);
+		executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "sql-read-ahead");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Queues files to be read and split. Files already queued keep their
+	 * place. Data files are left out, they are streamed as they load.
+	 *
+	 * @param files - the sql files in the order they will run
+	 */
+	public synchronized void prefetch(List<File> files) {
+		for (final File file : files) {
+			if (!pending.containsKey(file) && !DelimitedDataFile.isDataFile(file)) {
+				final AtomicInteger state = new AtomicInteger(QUEUED);
+				pending.put(file, new Load(state, executor.submit(() -> load(file, state))));
+			}
+		}
+	}
+
+	/**
+	 * Hands out the statements of a file, waiting for it to be split if it
+	 * is being read, or streaming it from the disk if it is not. Closing the
+	 * returned source frees its share of the cap.
+	 *
+	 * @param sqlFile - the sql file about to run
+	 * @return StatementSource - the statements of the file
+	 * @throws IOException - if the file cannot be read
+	 */
+	public StatementSource open(File sqlFile) throws IOException {
+		Load load;
+		synchronized (this) {
+			load = pending.remove(sqlFile);
+		}
+		if (null == load) {
+			return new SqlStatementReader(sqlFile, charset);
+		}
+		if (load.state.compareAndSet(QUEUED, ABANDONED) || load.state.compareAndSet(WAITING, ABANDONED)) {
+			// the reader has not got to the file or has no room for it, it may be waiting on files not yet run
+			load.future.cancel(true);
+			log.debug("Streaming {}, it was not read ahead yet", sqlFile);
+			return new SqlStatementReader(sqlFile, charset);
+		}
+		Prefetched prefetched = get(load, sqlFile);
+		return null == prefetched ? new SqlStatementReader(sqlFile, charset) : prefetched;
+	}
+
+	private Prefetched get(Load load, File sqlFile) throws IOException {
+		try {
+			return load.future.get();
+		} catch (CancellationException e) {
+			// given up on by peek, which is reading the file itself
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + sqlFile + " to be read");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Unable to read " + sqlFile, e.getCause());
+		}
+	}
+
+	/**
+	 * Hands out the statements of a file without finishing with them, so the
+	 * file can be scanned before it runs and still be read only once. A file
+	 * the reader has not got to, or has no room for, is read on the calling
+	 * thread instead and kept for {@link #open(File)} if it fits under the cap.
+	 *
+	 * @param sqlFile - a sql file about to run
+	 * @return StatementSource - the statements of the file, closing it frees nothing
+	 * @throws IOException - if the file cannot be read
+	 */
+	public StatementSource peek(File sqlFile) throws IOException {
+		Load load;
+		synchronized (this) {
+			load = pending.get(sqlFile);
+		}
+		if (null != load && !load.state.compareAndSet(QUEUED, ABANDONED) && !load.state.compareAndSet(WAITING, ABANDONED)) {
+			Prefetched prefetched = get(load, sqlFile);
+			if (null != prefetched) {
+				return prefetched.view();
+			}
+		}
+		if (null != load) {
+			load.future.cancel(true);
+		}
+		List<String> statements = new ArrayList<>();
+		SqlStatementReader.Mode mode;
+		try (SqlStatementReader reader = new SqlStatementReader(sqlFile, charset)) {
+			mode = reader.getMode();
+			String statement;
+			while ((statement = reader.nextStatement()) != null) {
+				statements.add(statement);
+			}
+		}
+		int permits = (int) Math.max(1, Math.min(sqlFile.length(), maxChars));
+		Prefetched prefetched = new Prefetched(mode, statements, permits);
+		synchronized (this) {
+			if (pending.get(sqlFile) == load && budget.tryAcquire(permits)) {
+				pending.put(sqlFile, new Load(new AtomicInteger(READING), CompletableFuture.completedFuture(prefetched)));
+			} else if (null != load) {
+				pending.remove(sqlFile);
+			}
+		}
+		return prefetched.view();
+	}
+
+	/**
+	 * Stops reading ahead and drops the statements nobody asked for.
+	 */
+	@Override
+	public void close() {
+		List<Future<Prefetched>> dropped = new ArrayList<>();
+		synchronized (this) {
+			for (Load load : pending.values()) {
+				load.state.set(ABANDONED);
+				dropped.add(load.future);
+			}
+			pending.clear();
+		}
+		executor.shutdownNow();
+		for (Future<Prefetched> future : dropped) {
+			future.cancel(true);
+			if (future.isDone() && !future.isCancelled()) {
+				try {
+					Prefetched prefetched = future.get();
+					if (null != prefetched) {
+						prefetched.close();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException | CancellationException e) {
+					// nothing was held
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Prefetched - the split file, or null if it was opened before it could be read
+	 */
+	private Prefetched load(File file, AtomicInteger state) throws IOException, InterruptedException {
+		if (!state.compareAndSet(QUEUED, WAITING)) {
+			return null;
+		}
+		int permits = (int) Math.max(1, Math.min(file.length(), maxChars));
+		try {
+			budget.acquire(permits);
+		} catch (InterruptedException e) {
+			if (state.get() == ABANDONED) {
+				return null;
+			}
+			throw e;
+		}
+		if (!state.compareAndSet(WAITING, READING)) {
+			budget.release(permits);
+			return null;
+		}
+		boolean loaded = false;
+		try {
+			List<String> statements = new ArrayList<>();
+			SqlStatementReader.Mode mode;
+			try (SqlStatementReader reader = new SqlStatementReader(file, charset)) {
+				mode = reader.getMode();
+				String statement;
+				while ((statement = reader.nextStatement()) != null) {
+					statements.add(statement);
+				}
+			}
+			loaded = true;
+			log.debug("Read ahead {} statements of {}", new Object[] { statements.size(), file });
+			return new Prefetched(mode, statements, permits);
+		} finally {
+			if (!loaded) {
+				budget.release(permits);
+			}
+		}
+	}
+
+	/**
+	 * A queued file, with how far its reading has got.
+	 */
+	private static final class Load {
+		private final AtomicInteger      state;
+		private final Future<Prefetched> future;
+
+		Load(AtomicInteger state, Future<Prefetched> future) {
+			this.state = state;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * The statements of a file split ahead of time.
+	 */
+	private final class Prefetched implements StatementSource {
+		private final SqlStatementReader.Mode mode;
+		private final List<String>            statements;
+		private final int                     permits;
+		private final AtomicBoolean           closed  = new AtomicBoolean();
+		private int                           ordinal = 0;
+
+		Prefetched(SqlStatementReader.Mode mode, List<String> statements, int permits) {
+			this.mode = mode;
+			this.statements = Collections.unmodifiableList(statements);
+			this.permits = permits;
+		}
+
+		@Override
+		public String nextStatement() {
+			return ordinal < statements.size() ? statements.get(ordinal++) : null;
+		}
+
+		@Override
+		public int getOrdinal() {
+			return ordinal;
+		}
+
+		@Override
+		public SqlStatementReader.Mode getMode() {
+			return mode;
+		}
+
+		/**
+		 * @return Prefetched - the same statements from the start, holding none of the cap
+		 */
+		Prefetched view() {
+			return new Prefetched(mode, statements, 0);
+		}
+
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true) && permits > 0) {
+				budget.release(permits);
+			}
+		}
+	}
+}
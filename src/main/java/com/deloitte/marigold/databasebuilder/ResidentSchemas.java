@@ -0,0 +1,140 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.util.StringUtils;
+
+/**
+ * This class keeps a connected processor per schema for the long running
+ * modes, watching the workspace and serving the daemon, so every round
+ * applies what changed without connecting again.
+ *
+ * The processors are created from the processor that loaded the property
+ * file. Its plan, resume and confirmation settings and its progress
+ * listener apply to each round.
+ */
+public class ResidentSchemas implements AutoCloseable {
+	private static final LogManager log = LogManager.getLogger(ResidentSchemas.class);
+
+	private final ScriptProcessor              processor;
+	private final Map<String, ScriptProcessor> processors = new HashMap<>();
+
+	/**
+	 * @param processor - the processor holding the loaded configuration
+	 */
+	public ResidentSchemas(ScriptProcessor processor) {
+		this.processor = processor;
+	}
+
+	/**
+	 * Applies the pending build scripts of every schema and then keeps
+	 * watching the build script roots, applying new and changed directories
+	 * of a schema once the file system has been quiet for the debounce
+	 * interval. The changes are applied without prompting. A round that finds
+	 * the database ahead of the workspace fails rather than waiting for
+	 * someone to acknowledge it. Runs until the process is stopped.
+	 *
+	 * @throws DatabaseBuilderException - if the roots cannot be watched
+	 */
+	public void watch() throws DatabaseBuilderException {
+		processor.setAutoConfirm(true);
+		Map<String, File> roots = new LinkedHashMap<>();
+		for (SchemaDefinition schema : processor.getSettings().schemas) {
+			roots.put(schema.getName(), schema.getRootFile(processor.getSettings().workspace));
+		}
+		// watching starts before the first round so nothing written during it is missed
+		try (WorkspaceWatcher watcher = new WorkspaceWatcher(roots, processor.getSettings().watchDebounce)) {
+			Runtime.getRuntime().addShutdownHook(new Thread(watcher::close, "workspace-watcher-shutdown"));
+			applyChanged(processor.getSchemaNames());
+			watcher.run(this::applyChanged);
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * One round of the watch mode. A failure is logged and the next change
+	 * is waited for, e.g. the fix of the failing statement.
+	 *
+	 * @param changed - names of the schemas to apply
+	 */
+	private void applyChanged(Set<String> changed) {
+		log.info("Applying the build scripts of {}", changed);
+		try {
+			apply(changed);
+			log.info("Build scripts of {} applied, watching for changes", changed);
+		} catch (DatabaseBuilderException e) {
+			log.error("Applying the build scripts of " + changed + " failed, waiting for the next change", e);
+		}
+	}
+
+	/**
+	 * Processes the given schemas, each with its connected processor. Calls
+	 * are serialised.
+	 *
+	 * @param names - the schemas to process, in any order
+	 * @throws DatabaseBuilderException - the first failure
+	 */
+	public synchronized void apply(final Set<String> names) throws DatabaseBuilderException {
+		try {
+			new SchemaScheduler(processor.getSettings().schemaParallelism).run(processor.getSettings().schemas, schema -> {
+				if (!names.contains(schema.getName())) {
+					return;
+				}
+				ScriptProcessor schemaProcessor = connected(schema);
+				schemaProcessor.setPlanOnly(processor.isPlanOnly());
+				schemaProcessor.setResume(processor.isResume());
+				schemaProcessor.setAutoConfirm(processor.isAutoConfirm());
+				schemaProcessor.setProgressListener(processor.getSettings().progressListener);
+				schemaProcessor.processSchema(schema.getName());
+			});
+		} finally {
+			if (!StringUtils.isEmpty(processor.getSettings().metricsDir)) {
+				processor.getMetrics().writeSnapshot(new File(processor.getSettings().metricsDir));
+			}
+		}
+	}
+
+	private ScriptProcessor connected(SchemaDefinition schema) throws DatabaseBuilderException {
+		synchronized (processors) {
+			ScriptProcessor schemaProcessor = processors.get(schema.getName());
+			if (null == schemaProcessor) {
+				schemaProcessor = new ScriptProcessor(processor);
+				schemaProcessor.connect(schema);
+				processors.put(schema.getName(), schemaProcessor);
+			}
+			return schemaProcessor;
+		}
+	}
+
+	/**
+	 * Closes the connection pools of the schemas.
+	 */
+	@Override
+	public void close() {
+		synchronized (processors) {
+			for (Map.Entry<String, ScriptProcessor> entry : processors.entrySet()) {
+				try {
+					entry.getValue().disconnect();
+				} catch (DatabaseBuilderException e) {
+					log.warn("Error closing the connections of schema {}: {}", new Object[] { entry.getKey(), e.getMessage() });
+				}
+			}
+			processors.clear();
+		}
+	}
+
+	/**
+	 * @return Set - the schemas with a connected processor
+	 */
+	public Set<String> getConnectedSchemas() {
+		synchronized (processors) {
+			return new LinkedHashSet<>(processors.keySet());
+		}
+	}
+}
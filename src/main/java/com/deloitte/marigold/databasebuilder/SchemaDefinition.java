@@ -0,0 +1,78 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is an entity bean describing one schema the DatabaseBuilder
+ * maintains: where its change scripts live, which jdbc property file
+ * connects to it and which other schemas must be processed before it.
+ */
+public class SchemaDefinition {
+	private String       name         = null;
+	private String       scriptRoot   = null;
+	private String       propertyFile = null;
+	private List<String> dependsOn    = new ArrayList<>();
+
+	/**
+	 * @param name - the name used to identify the schema and its data source
+	 * @param scriptRoot - the directory of build script directories, relative to the workspace unless absolute
+	 * @param propertyFile - the jdbc property file with the connection variables
+	 * @param dependsOn - names of the schemas that must be processed first, may be null
+	 */
+	public SchemaDefinition(String name, String scriptRoot, String propertyFile, List<String> dependsOn) {
+		super();
+		this.name = name;
+		this.scriptRoot = scriptRoot;
+		this.propertyFile = propertyFile;
+		if (null != dependsOn) {
+			this.dependsOn.addAll(dependsOn);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getScriptRoot() {
+		return scriptRoot;
+	}
+
+	public String getPropertyFile() {
+		return propertyFile;
+	}
+
+	public List<String> getDependsOn() {
+		return Collections.unmodifiableList(dependsOn);
+	}
+
+	/**
+	 * Resolves the script root against the workspace.
+	 *
+	 * @param workspace - the workspace directory from the main property file
+	 * @return File - the directory holding the build script directories of this schema
+	 */
+	public File getRootFile(String workspace) {
+		File root = new File(scriptRoot);
+		if (root.isAbsolute()) {
+			return root;
+		}
+		return new File(workspace + File.separator + scriptRoot);
+	}
+
+	/**
+	 * This is used to display the content of the object as a String
+	 *
+	 * @return string - contents for SchemaDefinition
+	 */
+	@Override
+	public String toString() {
+		return new StringBuilder("name:").append(name)
+				.append(", scriptRoot:").append(scriptRoot)
+				.append(", propertyFile:").append(propertyFile)
+				.append(", dependsOn:").append(dependsOn)
+				.toString();
+	}
+}
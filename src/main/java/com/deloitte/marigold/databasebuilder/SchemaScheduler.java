@@ -0,0 +1,103 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class processes the configured schemas, running those without a
+ * dependency between them at the same time. A schema starts once all the
+ * schemas it depends on have completed successfully.
+ */
+public class SchemaScheduler {
+	private static final LogManager log = LogManager.getLogger(SchemaScheduler.class);
+
+	/**
+	 * The work done for a single schema.
+	 */
+	public interface SchemaRunner {
+		void run(SchemaDefinition schema) throws DatabaseBuilderException;
+	}
+
+	private final int parallelism;
+
+	/**
+	 * @param parallelism - the maximum number of schemas processed at the same time
+	 */
+	public SchemaScheduler(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Processes every schema once its dependencies are done. After the first
+	 * failure no further schemas are started; those already running finish.
+	 *
+	 * @param schemas - the schemas to process
+	 * @param runner - processes a single schema
+	 * @throws DatabaseBuilderException - the first failure, or a dependency that is unknown or circular
+	 */
+	public void run(List<SchemaDefinition> schemas, final SchemaRunner runner) throws DatabaseBuilderException {
+		List<SchemaDefinition> ordered = sortByDependency(schemas);
+		Map<String, Integer> positions = new HashMap<>();
+		List<Set<Integer>> dependencies = new ArrayList<>();
+		for (SchemaDefinition schema : ordered) {
+			Set<Integer> before = new HashSet<>();
+			for (String dependency : schema.getDependsOn()) {
+				before.add(positions.get(dependency));
+			}
+			dependencies.add(before);
+			positions.put(schema.getName(), positions.size());
+		}
+		new ScriptFileScheduler(parallelism).run(ordered, dependencies, schema -> {
+			log.info("Processing schema {}", schema.getName());
+			runner.run(schema);
+		});
+	}
+
+	/**
+	 * Orders the schemas so every schema follows the schemas it depends on,
+	 * otherwise keeping the configured order.
+	 *
+	 * @param schemas - the configured schemas
+	 * @return List - the schemas in dependency order
+	 * @throws DatabaseBuilderException - if a dependency is unknown or circular
+	 */
+	public List<SchemaDefinition> sortByDependency(List<SchemaDefinition> schemas) throws DatabaseBuilderException {
+		Map<String, SchemaDefinition> byName = new LinkedHashMap<>();
+		for (SchemaDefinition schema : schemas) {
+			if (byName.put(schema.getName(), schema) != null) {
+				throw new DatabaseBuilderException("Schema " + schema.getName() + " is configured twice");
+			}
+		}
+		List<SchemaDefinition> ordered = new ArrayList<>();
+		Set<String> done = new HashSet<>();
+		for (SchemaDefinition schema : schemas) {
+			visit(schema, byName, done, new HashSet<String>(), ordered);
+		}
+		return ordered;
+	}
+
+	private void visit(SchemaDefinition schema, Map<String, SchemaDefinition> byName, Set<String> done,
+			Set<String> visiting, List<SchemaDefinition> ordered) throws DatabaseBuilderException {
+		if (done.contains(schema.getName())) {
+			return;
+		}
+		if (!visiting.add(schema.getName())) {
+			throw new DatabaseBuilderException("Circular schema dependency involving " + schema.getName());
+		}
+		for (String dependency : schema.getDependsOn()) {
+			SchemaDefinition required = byName.get(dependency);
+			if (required == null) {
+				throw new DatabaseBuilderException("Schema " + schema.getName() + " depends on unknown schema " + dependency);
+			}
+			visit(required, byName, done, visiting, ordered);
+		}
+		visiting.remove(schema.getName());
+		done.add(schema.getName());
+		ordered.add(schema);
+	}
+}
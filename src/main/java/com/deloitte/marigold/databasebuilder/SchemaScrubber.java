@@ -0,0 +1,423 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * This class empties the schema of the connected user using the data
+ * dictionary rather than a hand written destroy file.
+ *
+ * {@link #drop()} drops every object of the schema in dependency order:
+ * materialized views, then tables with their constraints, then the
+ * remaining triggers, then the other objects such as views, sequences,
+ * code and types. The objects of one step are dropped side by side, except
+ * for tables joined by a foreign key: a table is dropped before the tables
+ * it references, and tables sharing a referenced table one after the other,
+ * so no two drops wait on each other's locks.
+ *
+ * {@link #reset()} keeps the objects and only throws the data away: foreign
+ * keys are disabled, every table is truncated, the foreign keys are enabled
+ * again and every sequence is set back to the start value of its create
+ * statement, or to its minimum value if the workspace does not say. Foreign keys
+ * on the same tables are disabled and enabled one after the other. It is
+ * meant for the test users, whose schema is rebuilt from the same workspace
+ * run after run.
+ */
+public class SchemaScrubber {
+	private static final LogManager log = LogManager.getLogger(SchemaScrubber.class);
+
+	// Constants
+	public static final String MODE_FILE       = "file";
+	public static final String MODE_DICTIONARY = "dictionary";
+	public static final int    DEFAULT_PARALLELISM = 4;
+
+	static final String LIST_MATERIALIZED_VIEWS = "SELECT mview_name FROM user_mviews";
+	static final String LIST_TABLES = "SELECT table_name FROM user_tables WHERE dropped = 'NO' AND nested = 'NO'"
+			+ " AND secondary = 'N' AND (iot_type IS NULL OR iot_type = 'IOT')"
+			+ " AND table_name NOT IN (SELECT mview_name FROM user_mviews)"
+			+ " AND table_name NOT IN (SELECT queue_table FROM user_queue_tables)";
+	static final String LIST_TRUNCATABLE_TABLES = LIST_TABLES
+			+ " AND table_name NOT IN (SELECT table_name FROM user_external_tables)";
+	static final String LIST_OBJECTS = "SELECT object_name, object_type FROM user_objects WHERE generated = 'N'"
+			+ " AND object_name NOT LIKE 'BIN$%' AND object_type IN ('VIEW', 'SEQUENCE', 'SYNONYM', 'PROCEDURE',"
+			+ " 'FUNCTION', 'PACKAGE', 'TRIGGER', 'TYPE') ORDER BY object_type, object_name";
+	static final String LIST_ENABLED_FOREIGN_KEYS = "SELECT c.table_name, c.constraint_name, r.table_name AS r_table_name"
+			+ " FROM user_constraints c LEFT JOIN user_constraints r ON r.owner = c.r_owner"
+			+ " AND r.constraint_name = c.r_constraint_name WHERE c.constraint_type = 'R' AND c.status = 'ENABLED'";
+	static final String LIST_TABLE_REFERENCES = "SELECT c.table_name, r.table_name AS r_table_name FROM user_constraints c"
+			+ " JOIN user_constraints r ON r.owner = c.r_owner AND r.constraint_name = c.r_constraint_name"
+			+ " WHERE c.constraint_type = 'R'";
+	static final String LIST_SEQUENCES = "SELECT sequence_name, min_value, increment_by FROM user_sequences";
+	private static final Pattern DATA = Pattern.compile(
+			"(?is)^(?:\\s|--[^\\n]*(?:\\n|$)|/\\*.*?\\*/)*(insert|update|delete|merge)\\b");
+	private static final Pattern CREATE_SEQUENCE = Pattern.compile(
+			"(?is)^(?:\\s|--[^\\n]*(?:\\n|$)|/\\*.*?\\*/)*create\\s+sequence\\s+(?:(?:\"[^\"]+\"|[\\w$#]+)\\.)?(\"[^\"]+\"|[\\w$#]+)");
+	private static final Pattern START_WITH = Pattern.compile("(?i)\\bstart\\s+with\\s+([+-]?\\d+)");
+	private static final Pattern BLOCK = Pattern.compile(
+			"(?is)^(?:\\s|--[^\\n]*(?:\\n|$)|/\\*.*?\\*/)*(begin|declare|call)\\b");
+
+	private final JdbcTemplate      jdbcTemplate;
+	private final int               parallelism;
+	private final List<String>      failures = Collections.synchronizedList(new ArrayList<String>());
+
+	/**
+	 * @param jdbcTemplate - runs the statements, drawing a connection per statement
+	 * @param parallelism - the maximum number of statements run at the same time
+	 */
+	public SchemaScrubber(JdbcTemplate jdbcTemplate, int parallelism) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Drops every object of the schema.
+	 *
+	 * @return int - the number of objects dropped
+	 * @throws DatabaseBuilderException - if the dictionary cannot be read or any object could not be dropped
+	 */
+	public int drop() throws DatabaseBuilderException {
+		failures.clear();
+		int dropped = 0;
+		try {
+			List<String> statements = new ArrayList<>();
+			for (String view : jdbcTemplate.queryForList(LIST_MATERIALIZED_VIEWS, String.class)) {
+				statements.add(dropStatement("MATERIALIZED VIEW", view));
+			}
+			dropped += runAll(statements);
+
+			statements.clear();
+			Map<String, Set<String>> references = readReferences();
+			List<Set<String>> tables = new ArrayList<>();
+			for (String table : referencingFirst(jdbcTemplate.queryForList(LIST_TABLES, String.class), references)) {
+				statements.add(dropStatement("TABLE", table));
+				Set<String> touched = new HashSet<>();
+				touched.add(table);
+				if (references.containsKey(table)) {
+					touched.addAll(references.get(table));
+				}
+				tables.add(touched);
+			}
+			dropped += runAll(statements, sharingTables(tables));
+
+			// indexes, lobs and table triggers went with their tables, view and schema triggers go before their views
+			statements.clear();
+			List<String> triggers = new ArrayList<>();
+			for (Map<String, Object> object : jdbcTemplate.queryForList(LIST_OBJECTS)) {
+				String type = (String) object.get("OBJECT_TYPE");
+				String statement = dropStatement(type, (String) object.get("OBJECT_NAME"));
+				if ("TRIGGER".equals(type)) {
+					triggers.add(statement);
+				} else {
+					statements.add(statement);
+				}
+			}
+			dropped += runAll(triggers);
+			dropped += runAll(statements);
+		} catch (DataAccessException e) {
+			throw new DatabaseBuilderException("Unable to read the objects of the schema from the data dictionary", e);
+		}
+		checkFailures("drop");
+		log.info("Dropped {} objects", dropped);
+		return dropped;
+	}
+
+	/**
+	 * Truncates every table and sets every sequence back to its minimum value.
+	 *
+	 * @return int - the number of tables truncated
+	 * @throws DatabaseBuilderException - if the dictionary cannot be read or any table or sequence could not be reset
+	 */
+	public int reset() throws DatabaseBuilderException {
+		return reset(Collections.<String, Long>emptyMap());
+	}
+
+	/**
+	 * Truncates every table and sets every sequence back to where its create
+	 * statement started it. The data dictionary does not keep the start
+	 * value, so it comes from the workspace, see {@link #addSequenceStart(String, Map)}.
+	 *
+	 * @param sequenceStarts - the start values by sequence name, a sequence missing here restarts at its minimum value
+	 * @return int - the number of tables truncated
+	 * @throws DatabaseBuilderException - if the dictionary cannot be read or any table or sequence could not be reset
+	 */
+	public int reset(Map<String, Long> sequenceStarts) throws DatabaseBuilderException {
+		failures.clear();
+		int truncated;
+		try {
+			List<Map<String, Object>> foreignKeys = jdbcTemplate.queryForList(LIST_ENABLED_FOREIGN_KEYS);
+			List<Set<String>> tables = new ArrayList<>();
+			List<String> statements = new ArrayList<>();
+			for (Map<String, Object> foreignKey : foreignKeys) {
+				statements.add(constraintStatement("DISABLE", (String) foreignKey.get("TABLE_NAME"),
+						(String) foreignKey.get("CONSTRAINT_NAME")));
+				Set<String> touched = new HashSet<>();
+				touched.add((String) foreignKey.get("TABLE_NAME"));
+				// a reference to another schema has no referenced table here
+				if (null != foreignKey.get("R_TABLE_NAME")) {
+					touched.add((String) foreignKey.get("R_TABLE_NAME"));
+				}
+				tables.add(touched);
+			}
+			List<Set<Integer>> dependencies = sharingTables(tables);
+			runAll(statements, dependencies);
+
+			statements.clear();
+			for (String table : jdbcTemplate.queryForList(LIST_TRUNCATABLE_TABLES, String.class)) {
+				statements.add("TRUNCATE TABLE " + quote(table));
+			}
+			truncated = runAll(statements);
+
+			statements.clear();
+			for (Map<String, Object> foreignKey : foreignKeys) {
+				statements.add(constraintStatement("ENABLE", (String) foreignKey.get("TABLE_NAME"),
+						(String) foreignKey.get("CONSTRAINT_NAME")));
+			}
+			runAll(statements, dependencies);
+
+			for (Map<String, Object> sequence : jdbcTemplate.queryForList(LIST_SEQUENCES)) {
+				String name = (String) sequence.get("SEQUENCE_NAME");
+				Long start = sequenceStarts.get(name);
+				resetSequence(name, null == start ? ((Number) sequence.get("MIN_VALUE")).longValue() : start,
+						((Number) sequence.get("INCREMENT_BY")).longValue());
+			}
+		} catch (DataAccessException e) {
+			throw new DatabaseBuilderException("Unable to read the objects of the schema from the data dictionary", e);
+		}
+		checkFailures("reset");
+		log.info("Truncated {} tables", truncated);
+		return truncated;
+	}
+
+	/**
+	 * @param type - the object type as the data dictionary names it
+	 * @param name - the object name
+	 * @return String - the statement dropping the object with everything that depends on it
+	 */
+	public static String dropStatement(String type, String name) {
+		String upper = type.toUpperCase(Locale.ROOT);
+		StringBuilder statement = new StringBuilder("DROP ").append(upper).append(' ').append(quote(name));
+		if ("TABLE".equals(upper)) {
+			statement.append(" CASCADE CONSTRAINTS PURGE");
+		} else if ("TYPE".equals(upper)) {
+			statement.append(" FORCE");
+		}
+		return statement.toString();
+	}
+
+	/**
+	 * After a reset the build scripts are replayed without their ddl, since
+	 * the objects are still there.
+	 *
+	 * @param statement - a statement of a build script
+	 * @return boolean - true if the statement is plain dml
+	 */
+	public static boolean isDataStatement(String statement) {
+		return DATA.matcher(statement).lookingAt();
+	}
+
+	/**
+	 * Records the start value of a create sequence statement, so a reset
+	 * can restart the sequence where the build script started it.
+	 *
+	 * @param statement - a statement of a build script
+	 * @param sequenceStarts - the start values by sequence name, added to if the statement creates a sequence with a start value
+	 */
+	public static void addSequenceStart(String statement, Map<String, Long> sequenceStarts) {
+		Matcher create = CREATE_SEQUENCE.matcher(statement);
+		if (!create.lookingAt()) {
+			return;
+		}
+		Matcher start = START_WITH.matcher(statement);
+		if (start.find(create.end())) {
+			String name = create.group(1);
+			// the dictionary keeps unquoted names in upper case
+			name = name.startsWith("\"") ? name.substring(1, name.length() - 1) : name.toUpperCase(Locale.ROOT);
+			sequenceStarts.put(name, Long.valueOf(start.group(1)));
+		}
+	}
+
+	/**
+	 * A pl/sql block may create objects through execute immediate, so it
+	 * can neither be skipped nor safely replayed after a reset.
+	 *
+	 * @param statement - a statement of a build script
+	 * @return boolean - true if the statement is an anonymous block or a call
+	 */
+	public static boolean isBlockStatement(String statement) {
+		return BLOCK.matcher(statement).lookingAt();
+	}
+
+	/**
+	 * @param name - a name as stored in the data dictionary
+	 * @return String - the name quoted, so mixed case and reserved names are kept as they are
+	 */
+	public static String quote(String name) {
+		return '"' + name.replace("\"", "\"\"") + '"';
+	}
+
+	/**
+	 * @return Map - for each table with a foreign key, the other tables of the schema it references
+	 */
+	private Map<String, Set<String>> readReferences() {
+		Map<String, Set<String>> references = new HashMap<>();
+		for (Map<String, Object> reference : jdbcTemplate.queryForList(LIST_TABLE_REFERENCES)) {
+			String table = (String) reference.get("TABLE_NAME");
+			String referenced = (String) reference.get("R_TABLE_NAME");
+			if (!table.equals(referenced)) {
+				references.computeIfAbsent(table, key -> new LinkedHashSet<String>()).add(referenced);
+			}
+		}
+		return references;
+	}
+
+	/**
+	 * Orders the tables so each comes before the tables it references. Of a
+	 * cycle of references the table listed first comes last.
+	 *
+	 * @param tables - the tables in the order the dictionary lists them
+	 * @param references - for each table the tables it references
+	 * @return List - the same tables, referencing tables first
+	 */
+	private static List<String> referencingFirst(List<String> tables, Map<String, Set<String>> references) {
+		Map<String, Set<String>> referencedBy = new HashMap<>();
+		for (Map.Entry<String, Set<String>> reference : references.entrySet()) {
+			for (String referenced : reference.getValue()) {
+				referencedBy.computeIfAbsent(referenced, key -> new LinkedHashSet<String>()).add(reference.getKey());
+			}
+		}
+		Set<String> listed = new HashSet<>(tables);
+		Set<String> visited = new HashSet<>();
+		List<String> ordered = new ArrayList<>();
+		for (String table : tables) {
+			visit(table, referencedBy, listed, visited, ordered);
+		}
+		return ordered;
+	}
+
+	private static void visit(String table, Map<String, Set<String>> referencedBy, Set<String> listed, Set<String> visited,
+			List<String> ordered) {
+		if (!visited.add(table)) {
+			return;
+		}
+		if (referencedBy.containsKey(table)) {
+			for (String referencing : referencedBy.get(table)) {
+				if (listed.contains(referencing)) {
+					visit(referencing, referencedBy, listed, visited, ordered);
+				}
+			}
+		}
+		ordered.add(table);
+	}
+
+	/**
+	 * @param tables - for each statement the tables it locks
+	 * @return List - for each statement the earlier statements locking one of the same tables
+	 */
+	private static List<Set<Integer>> sharingTables(List<Set<String>> tables) {
+		List<Set<Integer>> dependencies = new ArrayList<>();
+		for (int index = 0; index < tables.size(); index++) {
+			Set<Integer> before = new HashSet<>();
+			for (int earlier = 0; earlier < index; earlier++) {
+				if (!Collections.disjoint(tables.get(index), tables.get(earlier))) {
+					before.add(earlier);
+				}
+			}
+			dependencies.add(before);
+		}
+		return dependencies;
+	}
+
+	private static String constraintStatement(String action, String table, String constraint) {
+		return "ALTER TABLE " + quote(table) + " " + action + " CONSTRAINT " + quote(constraint);
+	}
+
+	/**
+	 * Sets a sequence back so its next value is its start value. Before
+	 * restart was supported the sequence is stepped back by the distance it
+	 * travelled instead, after which its next value is one increment above
+	 * the start value.
+	 */
+	private void resetSequence(String sequence, long startValue, long increment) {
+		String name = quote(sequence);
+		try {
+			jdbcTemplate.execute("ALTER SEQUENCE " + name + " RESTART START WITH " + startValue);
+			return;
+		} catch (DataAccessException e) {
+			log.debug("Sequence {} cannot restart, stepping it back: {}", new Object[] { sequence, e.getMessage() });
+		}
+		if (increment < 0) {
+			failures.add(sequence + ": descending sequences are only reset by databases supporting restart");
+			return;
+		}
+		try {
+			long current = jdbcTemplate.queryForObject("SELECT " + name + ".NEXTVAL FROM dual", Long.class);
+			if (current > startValue) {
+				jdbcTemplate.execute("ALTER SEQUENCE " + name + " INCREMENT BY " + (startValue - current));
+				try {
+					jdbcTemplate.queryForObject("SELECT " + name + ".NEXTVAL FROM dual", Long.class);
+				} finally {
+					jdbcTemplate.execute("ALTER SEQUENCE " + name + " INCREMENT BY " + increment);
+				}
+			}
+		} catch (DataAccessException e) {
+			failures.add(sequence + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Runs independent statements side by side. A failure is recorded and
+	 * does not stop the others.
+	 *
+	 * @return int - the number of statements that succeeded
+	 */
+	private int runAll(List<String> statements) throws DatabaseBuilderException {
+		List<Set<Integer>> independent = new ArrayList<>();
+		for (int index = 0; index < statements.size(); index++) {
+			independent.add(Collections.<Integer>emptySet());
+		}
+		return runAll(statements, independent);
+	}
+
+	/**
+	 * Runs the statements side by side, each once the earlier statements it
+	 * depends on have run. A failure is recorded and does not stop the others.
+	 *
+	 * @param dependencies - for each statement the positions of the earlier statements it waits for
+	 * @return int - the number of statements that succeeded
+	 */
+	private int runAll(List<String> statements, List<Set<Integer>> dependencies) throws DatabaseBuilderException {
+		if (statements.isEmpty()) {
+			return 0;
+		}
+		final Set<String> succeeded = Collections.synchronizedSet(new HashSet<String>());
+		new ScriptFileScheduler(parallelism).run(statements, dependencies, statement -> {
+			try {
+				log.info("Running {}", statement);
+				jdbcTemplate.execute(statement);
+				succeeded.add(statement);
+			} catch (DataAccessException e) {
+				log.error("Error running " + statement, e);
+				failures.add(statement + ": " + e.getMessage());
+			}
+		});
+		return succeeded.size();
+	}
+
+	private void checkFailures(String action) throws DatabaseBuilderException {
+		if (!failures.isEmpty()) {
+			throw new DatabaseBuilderException("Unable to " + action + " " + failures.size() + " objects of the schema: " + failures);
+		}
+	}
+}
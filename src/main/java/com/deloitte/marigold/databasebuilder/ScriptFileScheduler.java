@@ -0,0 +1,286 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class runs the sql files of one build script directory concurrently
+ * where it is safe to do so.
+ *
+ * Each file is scanned for the names of the database objects it creates or
+ * references. A file depends on every earlier file (in the numeric order
+ * established by the ScriptProcessor) that shares an object name with it, and
+ * only starts once those files have completed. Files with no shared objects
+ * run side by side on a bounded pool of threads, each of which draws its own
+ * connection from the data source. Given a {@link ReadAheadPipeline} the
+ * files are scanned from the statements it splits, which are then run
+ * without reading the file again.
+ */
+public class ScriptFileScheduler {
+	private static final LogManager log = LogManager.getLogger(ScriptFileScheduler.class);
+
+	// Constants
+	public static final Set<String> OBJECT_KEYWORDS = new HashSet<>(Arrays.asList(
+			"TABLE", "VIEW", "INDEX", "SEQUENCE", "SYNONYM", "TRIGGER", "PROCEDURE", "FUNCTION",
+			"PACKAGE", "BODY", "TYPE", "INTO", "UPDATE", "FROM", "JOIN", "ON", "REFERENCES"));
+
+	/**
+	 * The work done for a single file.
+	 */
+	public interface FileRunner {
+		void run(File file) throws DatabaseBuilderException;
+	}
+
+	/**
+	 * The work done for a single item of {@link #run(List, List, ItemRunner)}.
+	 */
+	public interface ItemRunner<T> {
+		void run(T item) throws DatabaseBuilderException;
+	}
+
+	private final int               parallelism;
+	private final Charset           charset;
+	private final ReadAheadPipeline readAhead;
+
+	/**
+	 * @param parallelism - the maximum number of files run at the same time
+	 */
+	public ScriptFileScheduler(int parallelism) {
+		this(parallelism, Charset.defaultCharset());
+	}
+
+	/**
+	 * @param parallelism - the maximum number of files run at the same time
+	 * @param charset - the encoding of the sql files scanned for dependencies
+	 */
+	public ScriptFileScheduler(int parallelism, Charset charset) {
+		this(parallelism, charset, null);
+	}
+
+	/**
+	 * @param parallelism - the maximum number of files run at the same time
+	 * @param charset - the encoding of the sql files scanned for dependencies
+	 * @param readAhead - scans the files from what it has read ahead, so they are not read again to run, may be null
+	 */
+	public ScriptFileScheduler(int parallelism, Charset charset, ReadAheadPipeline readAhead) {
+		this.parallelism = Math.max(1, parallelism);
+		this.charset = charset;
+		this.readAhead = readAhead;
+	}
+
+	/**
+	 * Runs the files, keeping their order wherever one depends on another.
+	 * After the first failure no further files are started; the files already
+	 * running are allowed to finish.
+	 *
+	 * @param files - the sql files in the order they must run in when dependent
+	 * @param runner - runs a single file
+	 * @throws DatabaseBuilderException - the first failure of any file
+	 */
+	public void run(final List<File> files, final FileRunner runner) throws DatabaseBuilderException {
+		run(files, buildDependencies(files), runner::run);
+	}
+
+	/**
+	 * Runs the items, each once the items it depends on have completed.
+	 * After the first failure no further items are started; the items already
+	 * running are allowed to finish.
+	 *
+	 * @param items - the work in the order it must run in when dependent
+	 * @param dependencies - for each item the positions of the earlier items it waits for
+	 * @param runner - runs a single item
+	 * @throws DatabaseBuilderException - the first failure of any item
+	 */
+	public <T> void run(final List<T> items, List<Set<Integer>> dependencies, final ItemRunner<T> runner)
+			throws DatabaseBuilderException {
+		if (items.isEmpty()) {
+			return;
+		}
+		final AtomicReference<DatabaseBuilderException> failure = new AtomicReference<>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, items.size()));
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		try {
+			for (int index = 0; index < items.size(); index++) {
+				final T item = items.get(index);
+				List<CompletableFuture<Void>> before = new ArrayList<>();
+				for (Integer dependency : dependencies.get(index)) {
+					before.add(futures.get(dependency));
+				}
+				futures.add(CompletableFuture.allOf(before.toArray(new CompletableFuture[before.size()]))
+						.thenRunAsync(() -> {
+							if (failure.get() != null) {
+								throw new CompletionException(failure.get());
+							}
+							try {
+								runner.run(item);
+							} catch (DatabaseBuilderException e) {
+								failure.compareAndSet(null, e);
+								throw new CompletionException(e);
+							} catch (RuntimeException e) {
+								failure.compareAndSet(null, new DatabaseBuilderException(e));
+								throw e;
+							}
+						}, executor));
+			}
+			for (CompletableFuture<Void> future : futures) {
+				try {
+					future.join();
+				} catch (CompletionException e) {
+					// recorded in failure, keep waiting for the items still running
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+
+	/**
+	 * Works out, for each file, which earlier files it has to wait for.
+	 *
+	 * @param files - the sql files in numeric order
+	 * @return List - for each file the positions of the earlier files it depends on
+	 * @throws DatabaseBuilderException - if a file cannot be read
+	 */
+	public List<Set<Integer>> buildDependencies(List<File> files) throws DatabaseBuilderException {
+		Set<String> objectNames = new HashSet<>();
+		List<Set<String>> touched = new ArrayList<>();
+		for (File file : files) {
+			touched.add(scanFile(file, objectNames));
+		}
+		for (Set<String> names : touched) {
+			names.retainAll(objectNames);
+		}
+		List<Set<Integer>> dependencies = new ArrayList<>();
+		for (int index = 0; index < files.size(); index++) {
+			Set<Integer> before = new HashSet<>();
+			for (int earlier = 0; earlier < index; earlier++) {
+				if (!Collections.disjoint(touched.get(index), touched.get(earlier))) {
+					before.add(earlier);
+				}
+			}
+			log.debug("{} waits for {}", new Object[] { files.get(index).getName(), before });
+			dependencies.add(before);
+		}
+		return dependencies;
+	}
+
+	/**
+	 * Collects every identifier used by the file and adds the ones used as an
+	 * object name (following TABLE, INTO, FROM, ON and the like) to objectNames.
+	 * Procedure files may build sql dynamically so their string literals are
+	 * scanned too.
+	 */
+	private Set<String> scanFile(File file, Set<String> objectNames) throws DatabaseBuilderException {
+		Set<String> identifiers = new HashSet<>();
+		if (DelimitedDataFile.isDataFile(file)) {
+			// a data file only touches its table
+			String table = DelimitedDataFile.tableName(file).toUpperCase();
+			table = table.substring(table.lastIndexOf('.') + 1);
+			identifiers.add(table);
+			objectNames.add(table);
+			return identifiers;
+		}
+		try (StatementSource reader = null == readAhead ? new SqlStatementReader(file, charset) : readAhead.peek(file)) {
+			boolean scanLiterals = reader.getMode() == SqlStatementReader.Mode.PROCEDURE;
+			String statement;
+			while ((statement = reader.nextStatement()) != null) {
+				scanStatement(statement, scanLiterals, identifiers, objectNames);
+			}
+		} catch (IOException e) {
+			throw new DatabaseBuilderException(ScriptProcessor.ERR_FILE_READ + file.getPath(), e);
+		}
+		return identifiers;
+	}
+
+	static void scanStatement(String sql, boolean scanLiterals, Set<String> identifiers, Set<String> objectNames) {
+		boolean afterKeyword = false;
+		int length = sql.length();
+		int index = 0;
+		while (index < length) {
+			char c = sql.charAt(index);
+			if (c == '-' && index + 1 < length && sql.charAt(index + 1) == '-') {
+				while (index < length && sql.charAt(index) != '\n') {
+					index++;
+				}
+			} else if (c == '/' && index + 1 < length && sql.charAt(index + 1) == '*') {
+				int end = sql.indexOf("*/", index + 2);
+				index = end < 0 ? length : end + 2;
+			} else if (c == '\'' && !scanLiterals) {
+				index++;
+				while (index < length) {
+					if (sql.charAt(index) == '\'') {
+						if (index + 1 < length && sql.charAt(index + 1) == '\'') {
+							index++;
+						} else {
+							break;
+						}
+					}
+					index++;
+				}
+				index++;
+				afterKeyword = false;
+			} else if (c == '"' || Character.isLetter(c)) {
+				// read a possibly schema qualified name, keeping the last part as the object
+				String last = null;
+				boolean more = true;
+				while (more && index < length) {
+					int start = index;
+					String part;
+					if (sql.charAt(index) == '"') {
+						int end = sql.indexOf('"', index + 1);
+						end = end < 0 ? length : end;
+						part = sql.substring(start + 1, end).toUpperCase();
+						index = end + 1;
+					} else {
+						while (index < length && isIdentifierPart(sql.charAt(index))) {
+							index++;
+						}
+						part = sql.substring(start, index).toUpperCase();
+					}
+					identifiers.add(part);
+					last = part;
+					more = index + 1 < length && sql.charAt(index) == '.'
+							&& (sql.charAt(index + 1) == '"' || Character.isLetter(sql.charAt(index + 1)));
+					if (more) {
+						index++;
+					}
+				}
+				if (afterKeyword && last != null && !OBJECT_KEYWORDS.contains(last)) {
+					objectNames.add(last);
+					afterKeyword = false;
+				} else {
+					afterKeyword = OBJECT_KEYWORDS.contains(last) || (afterKeyword && isModifier(last));
+				}
+			} else {
+				if (!Character.isWhitespace(c)) {
+					afterKeyword = false;
+				}
+				index++;
+			}
+		}
+	}
+
+	private static boolean isModifier(String word) {
+		// e.g. CREATE INDEX ... ON TABLE, DROP TABLE IF, MATERIALIZED VIEW LOG ON
+		return "IF".equals(word) || "EXISTS".equals(word) || "ONLY".equals(word) || "LOG".equals(word);
+	}
+
+	private static boolean isIdentifierPart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#';
+	}
+}
@@ -1,14 +1,21 @@
 package com.deloitte.marigold.databasebuilder;
 
+import static com.deloitte.marigold.databasebuilder.BuildScript.ADD_CHECKSUM_COLUMNS;
+import static com.deloitte.marigold.databasebuilder.BuildScript.CHECKSUM;
+import static com.deloitte.marigold.databasebuilder.BuildScript.CHECKSUM_COLUMN_EXISTS_QUERY;
 import static com.deloitte.marigold.databasebuilder.BuildScript.DB_BUILD_SCRIPTS_EXISTS_QUERY;
 import static com.deloitte.marigold.databasebuilder.BuildScript.DB_BUILD_SCRIPT_CREATE;
+import static com.deloitte.marigold.databasebuilder.BuildScript.FILE_CHECKSUMS;
 import static com.deloitte.marigold.databasebuilder.BuildScript.FIND_FORCED_REBUILD_FLAG;
+import static com.deloitte.marigold.databasebuilder.BuildScript.GET_ALL_BUILD_SCRIPTS;
+import static com.deloitte.marigold.databasebuilder.BuildScript.GET_ALL_BUILD_SCRIPTS_WITHOUT_CHECKSUMS;
 import static com.deloitte.marigold.databasebuilder.BuildScript.GET_DB_USER;
-import static com.deloitte.marigold.databasebuilder.BuildScript.GET_LATEST_BUILD_SCRIPT;
+import static com.deloitte.marigold.databasebuilder.BuildScript.GET_WORKSPACE_CHECKSUM;
 import static com.deloitte.marigold.databasebuilder.BuildScript.ORDERBY;
 import static com.deloitte.marigold.databasebuilder.BuildScript.OWNER_TAG;
 import static com.deloitte.marigold.databasebuilder.BuildScript.SCRIPT_ID;
 import static com.deloitte.marigold.databasebuilder.BuildScript.SCRIPT_NAME;
+import static com.deloitte.marigold.databasebuilder.BuildScript.UPDATE_WORKSPACE_CHECKSUM;
 import static com.deloitte.marigold.databasebuilder.JDBCConnectionHandler.MARIGOLD_DATA_SCHEMA;
 import static com.deloitte.marigold.databasebuilder.JDBCConnectionHandler.MARIGOLD_SCHEMA;
 
@@ -16,6 +23,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -26,16 +34,22 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Scanner;
-
-import javax.sql.DataSource;
+import java.util.Set;
+import java.util.SortedMap;
 
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.support.JdbcDaoSupport;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 import org.springframework.util.StringUtils;
 
 /**
@@ -68,26 +82,94 @@ public class ScriptProcessor extends JdbcDaoSupport {
 	public static final String     TEST_USER             = "mg_test";
 	public static final String     TEST_DATA_USER        = "mg_data_test";
 	public static final String     FORCE_REBUILD_FLD     = "forceFullDBRebuild";
+	public static final String     THROTTLE_MODE_FLD     = "throttleMode";
+	public static final String     THROTTLE_DELAY_FLD    = "throttleDelayMillis";
+	public static final String     THROTTLE_MAX_FLD      = "throttleMaxDelayMillis";
+	public static final String     FILE_PARALLELISM_FLD  = "fileParallelism";
+	public static final String     SCHEMAS_FLD           = "schemas";
+	public static final String     SCHEMA_PREFIX         = "schema.";
+	public static final String     SCHEMA_SCRIPTS_FLD    = ".scripts";
+	public static final String     SCHEMA_PROP_FLD       = ".propertyFile";
+	public static final String     SCHEMA_DEPENDS_FLD    = ".dependsOn";
+	public static final String     SCHEMA_PARALLEL_FLD   = "schemaParallelism";
+	public static final String     TRANSACTION_MODE_FLD  = "transactionMode";
+	public static final String     COMMIT_ROWS_FLD       = "commitEveryRows";
+	public static final String     COMMIT_MILLIS_FLD     = "commitEveryMillis";
+	public static final String     VERIFY_CHECKSUMS_FLD  = "verifyChecksums";
+	public static final String     CHECKSUM_INDEX_FLD    = "checksumIndexDir";
+	public static final String     DB_BUILDER_FLD        = "/.marigold/db_builder";
+	public static final String     EXEC_HISTORY_FLD      = "executionHistoryDir";
+	public static final String     PLAN_COMMAND          = "plan";
+	public static final String     LOG_SQL_MAX_FLD       = "logSqlMaxLength";
+	public static final String     METRICS_DIR_FLD       = "metricsDir";
+	public static final String     METRICS_INTERVAL_FLD  = "metricsIntervalSeconds";
+	public static final String     PROGRESS_JOURNAL_FLD  = "progressJournalDir";
+	public static final String     RESUME_OPTION         = "--resume";
+	public static final String     WATCH_COMMAND         = "watch";
+	public static final String     WATCH_DEBOUNCE_FLD    = "watchDebounceMillis";
+	public static final String     AUTO_CONFIRM_FLD      = "autoConfirm";
+	public static final String     DAEMON_COMMAND        = "daemon";
+	public static final String     DAEMON_PORT_FLD       = "daemonPort";
+	public static final String     DAEMON_TOKEN_FLD      = "daemonTokenFile";
+	public static final String     DAEMON_CONFIRM_FLD    = "daemonAutoConfirm";
+	public static final String     FANOUT_COMMAND        = "fanout";
+	public static final String     TARGETS_FLD           = "targets";
+	public static final String     TARGET_PREFIX         = "target.";
+	public static final String     TARGET_PARALLEL_FLD   = "targetParallelism";
+	public static final String     READ_AHEAD_FLD        = "readAheadMaxMb";
+	public static final String     INSERT_BATCH_FLD      = "insertBatchSize";
+	public static final int        DEFAULT_INSERT_BATCH  = 1;
+	public static final String     DATA_BATCH_FLD        = "dataBatchSize";
+	public static final String     DATA_PARALLEL_FLD     = "dataParallelism";
+	public static final String     DATA_DIRECT_PATH_FLD  = "dataDirectPath";
+	public static final String     SCRIPT_ENCODING_FLD   = "scriptEncoding";
+	public static final String     SESSION_PROFILE_FLD   = "sessionProfile.";
+	public static final String     DEFER_DDL_FLD         = "deferIndexesOnRebuild";
+	public static final String     DEFERRED_PARALLEL_FLD = "deferredParallelism";
+	public static final String     SCRUB_MODE_FLD        = "scrubMode";
+	public static final String     SCRUB_PARALLEL_FLD    = "scrubParallelism";
+	public static final String     TEST_RESET_FLD        = "testReset";
  
+	// prompts of schemas processed in parallel must not interleave
+	private static final Object    PROMPT_LOCK           = new Object();
+	private static final Object    PLAN_LOCK             = new Object();
+	// journal slot of a held back statement, at DEFERRED_OWED until it has run
+	private static final String    DEFERRED_KEY          = "#deferred-";
+	private static final int       DEFERRED_OWED         = 1;
+
+	private Settings               settings              = new Settings();
 	private String                 destroyString         = null;
-	private Scanner                reader                = new Scanner(System.in);
+	private Scanner                reader                = null;
 	private InputStream            input 	             = null;
-	private Properties 	           prop                  = new Properties();
 	private ArrayList<BuildScript> buildScripts          = new ArrayList<>();
 	private JDBCConnectionHandler  jdbcConnectionHandler = null;	
-	private String                 marigoldDBScripts     = null;
-	private String                 marigoldDataDBScripts = null;
-	private String                 mainPropertyFile      = null;
-	private String                 marPropertyFile       = null;
-	private String                 marDataPropertyFile   = null;
-	private String                 workspace             = null;
-	private String                 marigoldServices      = null;
-	private String                 forceDBRebuildFlag    = null;
+	private StatementThrottle      throttle              = null;
+	private TransactionBatch       transaction           = null;
+	private String                 dbUser                = null;
+	private Boolean                dbBuildScriptsExist   = null;
+	private boolean                checksumColumns       = true;
+	private List<BuildScript>      outOfOrderScripts     = new ArrayList<>();
+	private String                 workspaceChecksum     = null;
+	private SortedMap<String, WorkspaceChecksums.DirectoryChecksum> directoryChecksums = null;
+	private ExecutionHistory       executionHistory      = null;
+	private String                 schemaName            = null;
+	private ProgressJournal        journal               = null;
+	private File                   journalScript         = null;
+	private ReadAheadPipeline      readAhead             = null;
+	private boolean                fullRebuild           = false;
+	private volatile boolean       deferring             = false;
+	private final List<DeferredStatement> deferredStatements = new ArrayList<>();
+	private final Map<DeferredStatement, ProgressJournal.Cursor> deferredCursors = new HashMap<>();
+	private final List<BuildScript> unrecordedScripts = new ArrayList<>();
+	private Connection             bookkeepingConnection = null;
+	private volatile boolean       resetting             = false;
+	private WorkspaceChecksums     checksumIndex         = null;
 	
 	public ScriptProcessor() throws DatabaseBuilderException {
 		super();
+		reader = new Scanner(System.in);
 		try {
-			mainPropertyFile = System.getProperty("user.home") + MAIN_PROPERTY_FLD;
+			settings.mainPropertyFile = System.getProperty("user.home") + MAIN_PROPERTY_FLD;
 			loadPropertyFile();
 		} catch (DatabaseBuilderException e) {
 			// TODO Auto-generated catch block
@@ -98,10 +180,11 @@ public class ScriptProcessor extends JdbcDaoSupport {
 	
 	public ScriptProcessor(String test) throws DatabaseBuilderException {
 		super();
+		reader = new Scanner(System.in);
 
 		if(test.equalsIgnoreCase(MG_TEST_CONSTRUCTOR)) {
 			try {
-				mainPropertyFile = System.getProperty("user.home") + MG_TEST_PROP_FILE;
+				settings.mainPropertyFile = System.getProperty("user.home") + MG_TEST_PROP_FILE;
 				loadMGTestPropertyFile();
 				processTopLevelDir();
 			} catch (DatabaseBuilderException e) {
@@ -113,86 +196,517 @@ public class ScriptProcessor extends JdbcDaoSupport {
 		}
 	}
 
+	/**
+	 * Creates a processor configured from the given properties instead of a
+	 * property file in the home directory, e.g. for benchmarks and harnesses.
+	 * 
+	 * @param properties - the same keys as database-builder.properties
+	 * @throws DatabaseBuilderException - if a setting is invalid
+	 */
+	public ScriptProcessor(Properties properties) throws DatabaseBuilderException {
+		super();
+		reader = new Scanner(System.in);
+		settings.prop.putAll(properties);
+		applyProperties(MAR_PROP_FLD, MAR_DATA_PROP_FLD);
+	}
+
+	/**
+	 * Creates a processor for a single schema sharing the configuration
+	 * of the processor that loaded the property file.
+	 * 
+	 * @param parent - the processor holding the loaded configuration
+	 */
+	ScriptProcessor(ScriptProcessor parent) {
+		super();
+		this.reader                = parent.reader;
+		this.settings              = parent.settings.copy();
+	}
+
 	/**
 	 * This is the starting point for processing the root directory for all the
-	 * database change scripts.
+	 * database change scripts. Every configured schema is processed by its own
+	 * processor, schemas without a dependency between them in parallel.
+	 * When a metrics directory is configured a snapshot is written at the
+	 * end of the run, and every few seconds during it if so configured.
 	 * @return 
 	 * 
 	 * @throws DatabaseBuilderException - this wraps all exceptions
 	 */
 	public void processTopLevelDir() throws DatabaseBuilderException {
-		processMarigoldSchema();
-		processMarigoldDataSchema();
+		File metricsFile = startMetrics();
+		try {
+			processSchemas();
+		} finally {
+			stopMetrics(metricsFile);
+		}
 	}
 	
-	public void processMarigoldSchema() throws DatabaseBuilderException {
-		DataSource dataSource = null;
-		try {
-			jdbcConnectionHandler = new JDBCConnectionHandler();
-			jdbcConnectionHandler.setMarPropertyFile(marPropertyFile);    
-			jdbcConnectionHandler.setMarDataPropertyFile(marDataPropertyFile);
-			dataSource = jdbcConnectionHandler.getDataSource(JDBCConnectionHandler.MARIGOLD_SCHEMA);
-			setDataSource(dataSource);
-			processSchema(MARIGOLD_SCHEMA);
-			jdbcConnectionHandler.closeConnection();
-			jdbcConnectionHandler.clearPropertyFile();
-		} catch (DatabaseBuilderException e) {
-			log.error(e.getMessage());
-			throw e;
+	/**
+	 * Starts writing metrics snapshots if a metrics directory is configured.
+	 * 
+	 * @return File - the metrics directory, null if none is configured
+	 */
+	File startMetrics() {
+		File metricsFile = StringUtils.isEmpty(settings.metricsDir) ? null : new File(settings.metricsDir);
+		if (null != metricsFile) {
+			settings.metrics.startExporter(metricsFile, settings.metricsInterval);
+		}
+		return metricsFile;
+	}
+	
+	/**
+	 * Stops the snapshots started by {@link #startMetrics()} and writes the last one.
+	 * 
+	 * @param metricsFile - the metrics directory, null if none is configured
+	 */
+	void stopMetrics(File metricsFile) {
+		if (null != metricsFile) {
+			settings.metrics.stopExporter();
+			settings.metrics.writeSnapshot(metricsFile);
 		}
 	}
+	
+	void processSchemas() throws DatabaseBuilderException {
+		new SchemaScheduler(settings.schemaParallelism).run(settings.schemas, new SchemaScheduler.SchemaRunner() {
+			
+			@Override
+			public void run(SchemaDefinition schema) throws DatabaseBuilderException {
+				new ScriptProcessor(ScriptProcessor.this).processSchemaDefinition(schema);
+			}
+		});
+	}
+	
+	/**
+	 * @return String - the schema, qualified with the target when fanning out, labelling metrics and naming state files
+	 */
+	private String qualifiedName(String schema) {
+		return qualify(settings.target, schema);
+	}
+	
+	static String qualify(String targetName, String schema) {
+		return null == targetName ? schema : targetName + "." + schema;
+	}
+	
+	public void processMarigoldSchema() throws DatabaseBuilderException {
+		processSchemaDefinition(getSchemaDefinition(MARIGOLD_SCHEMA));
+	}
 
 	public void processMarigoldDataSchema() throws DatabaseBuilderException {
-		DataSource dataSource = null;
+		processSchemaDefinition(getSchemaDefinition(MARIGOLD_DATA_SCHEMA));
+	}
+
+	/**
+	 * Connects to the schema, processes its change scripts and closes the
+	 * connection again.
+	 * 
+	 * @param schema - the schema to process
+	 * @throws DatabaseBuilderException - wraps all exceptions thrown within.
+	 */
+	public void processSchemaDefinition(SchemaDefinition schema) throws DatabaseBuilderException {
 		try {
-			jdbcConnectionHandler = new JDBCConnectionHandler();
-			jdbcConnectionHandler.setMarDataPropertyFile(marDataPropertyFile);	
-			jdbcConnectionHandler.setMarPropertyFile(marPropertyFile);
-			dataSource = jdbcConnectionHandler.getDataSource(JDBCConnectionHandler.MARIGOLD_DATA_SCHEMA);
-			setDataSource(dataSource);
-			processSchema(MARIGOLD_DATA_SCHEMA);
-			jdbcConnectionHandler.clearPropertyFile();
+			connect(schema);
+			processSchema(schema.getName());
+			disconnect();
 		} catch (DatabaseBuilderException e) {
 			log.error(e.getMessage());
 			throw e;
 		}
 	}
+	
+	/**
+	 * Opens the connection pool of the schema.
+	 * 
+	 * @param schema - the schema this processor works on
+	 * @throws DatabaseBuilderException - if the schema has no property file or cannot be connected to
+	 */
+	void connect(SchemaDefinition schema) throws DatabaseBuilderException {
+		if (StringUtils.isEmpty(schema.getPropertyFile())) {
+			String key = MARIGOLD_SCHEMA.equals(schema.getName()) ? MAR_PROP_FLD
+					: MARIGOLD_DATA_SCHEMA.equals(schema.getName()) ? MAR_DATA_PROP_FLD
+					: SCHEMA_PREFIX + schema.getName() + SCHEMA_PROP_FLD;
+			throw new DatabaseBuilderException("Schema " + schema.getName() + " has no property file, set " + key);
+		}
+		jdbcConnectionHandler = new JDBCConnectionHandler();
+		jdbcConnectionHandler.setMarPropertyFile(settings.marPropertyFile);    
+		jdbcConnectionHandler.setMarDataPropertyFile(settings.marDataPropertyFile);
+		jdbcConnectionHandler.setPropertyFile(schema.getName(), schema.getPropertyFile());
+		// the historical schemas are looked up by name, so a target's files must replace the defaults
+		if (MARIGOLD_SCHEMA.equals(schema.getName()) && null != schema.getPropertyFile()) {
+			jdbcConnectionHandler.setMarPropertyFile(schema.getPropertyFile());
+		} else if (MARIGOLD_DATA_SCHEMA.equals(schema.getName()) && null != schema.getPropertyFile()) {
+			jdbcConnectionHandler.setMarDataPropertyFile(schema.getPropertyFile());
+		}
+		setDataSource(jdbcConnectionHandler.getDataSource(schema.getName()));
+	}
+	
+	void disconnect() throws DatabaseBuilderException {
+		jdbcConnectionHandler.closeConnection();
+		jdbcConnectionHandler.clearPropertyFile();
+	}
+	
+	/**
+	 * @return Set - the names of the configured schemas, in the configured order
+	 */
+	public Set<String> getSchemaNames() {
+		Set<String> names = new LinkedHashSet<>();
+		for (SchemaDefinition schema : settings.schemas) {
+			names.add(schema.getName());
+		}
+		return names;
+	}
+	
+	private SchemaDefinition getSchemaDefinition(String name) throws DatabaseBuilderException {
+		for (SchemaDefinition schema : settings.schemas) {
+			if (schema.getName().equals(name)) {
+				return schema;
+			}
+		}
+		throw new DatabaseBuilderException("Schema " + name + " is not configured");
+	}
 
 	/**
 	 * This is the method for processing an individual change script directory.
+	 * In plan mode the pending statements are printed instead of executed.
 	 * 
 	 * @param schemaToProcess - identifies which of the supported schemas to run.
 	 * @throws DatabaseBuilderException - wraps all exceptions thrown within.
 	 */
 	public void processSchema(String schemaToProcess) throws DatabaseBuilderException {
-		BuildScript dbBuildScript;
+		schemaName = schemaToProcess;
+		executionHistory = new ExecutionHistory(new File(settings.executionHistoryDir, ExecutionHistory.HISTORY_FILE_NAME
+				+ qualifiedName(schemaToProcess) + ExecutionHistory.HISTORY_FILE_EXT));
+		try {
+			applyBuildScripts(schemaToProcess);
+		} finally {
+			executionHistory.save();
+		}
+	}
+	
+	private void applyBuildScripts(String schemaToProcess) throws DatabaseBuilderException {
+		AppliedHistory history;
+		throttle = StatementThrottle.create(settings.throttleMode, settings.throttleDelay, settings.throttleMaxDelay, getJdbcTemplate());
 		buildScripts.clear();
+		directoryChecksums = null;
+		workspaceChecksum = null;
+		Connection con = jdbcConnectionHandler.getConnection(schemaToProcess);
+		boolean unchanged = false;
+		if (settings.verifyChecksums) {
+			hashWorkspace(schemaToProcess);
+			unchanged = workspaceChecksum.equals(getStoredWorkspaceChecksum(con));
+			if (!isTestUser() && unchanged) {
+				log.info("Workspace of schema {} is unchanged since the last complete run, nothing to apply", schemaToProcess);
+				report(qualifiedName(schemaToProcess) + ": unchanged since the last complete run");
+				if (settings.planOnly) {
+					printPlan(schemaToProcess);
+				}
+				return;
+			}
+		}
 		parseRootFile(schemaToProcess);
 		Collections.sort(buildScripts);
-		Connection con = jdbcConnectionHandler.getConnection(schemaToProcess);
-		dbBuildScript = getLatestFromDBBuildScripts(con);
-		parseBuildScripts(dbBuildScript, con);
-		boolean dbBuildScriptTableDoesNotExist = true;
-		if(isTestUser() || promptUser()) {
-			for(BuildScript buildScript : buildScripts) {
+		history = loadAppliedHistory(con);
+		boolean drift = reportDrift(history);
+		boolean consistent = parseBuildScripts(history, con);
+		boolean applied = buildScripts.isEmpty();
+		report(qualifiedName(schemaToProcess) + ": " + buildScripts.size() + " build scripts pending");
+		if (settings.planOnly) {
+			printPlan(schemaToProcess);
+			return;
+		}
+		if(isTestUser() || settings.autoConfirm || promptUser()) {
+			journal = new ProgressJournal(new File(settings.progressJournalDir, ProgressJournal.JOURNAL_FILE_NAME + qualifiedName(schemaToProcess)
+					+ ProgressJournal.JOURNAL_FILE_EXT));
+			if (settings.readAheadMaxMb > 0) {
+				readAhead = new ReadAheadPipeline(settings.readAheadMaxMb, settings.scriptCharset);
+			}
+			// full rebuilds and increments run with the session settings of their own profile
+			jdbcConnectionHandler.setSessionProfile(fullRebuild ? settings.rebuildProfile : settings.incrementProfile);
+			// a test user rebuilt from an unchanged workspace only needs its data thrown away and loaded again
+			Map<String, Long> sequenceStarts = new HashMap<>();
+			resetting = settings.testReset && isTestUser() && unchanged && resettable(schemaToProcess, sequenceStarts);
+			deferring = settings.deferIndexes && fullRebuild && !resetting;
+			bookkeepingConnection = con;
+			try {
+				if (resetting) {
+					log.info("Workspace of schema {} is unchanged, resetting its data rather than rebuilding it", schemaToProcess);
+					report(qualifiedName(schemaToProcess) + ": unchanged, resetting the data");
+					new SchemaScrubber(getJdbcTemplate(), settings.scrubParallelism).reset(sequenceStarts);
+				}
+				applyPendingBuildScripts(con);
+				runDeferredStatements();
+			} finally {
+				resetting = false;
+				deferring = false;
+				discardDeferredStatements();
+				bookkeepingConnection = null;
+				jdbcConnectionHandler.setSessionProfile(null);
+				if (null != readAhead) {
+					readAhead.close();
+					readAhead = null;
+				}
+				journal.close();
+				journal = null;
+			}
+			applied = true;
+		}
+		if (settings.verifyChecksums && applied && consistent && !drift) {
+			// every directory of the workspace is now recorded, so the next run can skip straight to the end
+			updateWorkspaceChecksum(con);
+		}
+	}
+	
+	/**
+	 * A reset only replays plain dml. Pl/sql blocks routinely create objects
+	 * through execute immediate, so a workspace running any is dropped and
+	 * rebuilt instead. The same pass collects the start values of the
+	 * sequences, which the data dictionary does not keep.
+	 * 
+	 * @param schemaToProcess - the schema being built
+	 * @param sequenceStarts - filled with the start values by sequence name
+	 * @return boolean - false if a pending build script runs a pl/sql block
+	 * @throws DatabaseBuilderException - if a sql file cannot be read
+	 */
+	private boolean resettable(String schemaToProcess, Map<String, Long> sequenceStarts) throws DatabaseBuilderException {
+		for (BuildScript buildScript : buildScripts) {
+			for (File sqlFile : orderSqlFiles(buildScript.getFile())) {
+				if (DelimitedDataFile.isDataFile(sqlFile)) {
+					continue;
+				}
+				try (SqlStatementReader reader = new SqlStatementReader(sqlFile, settings.scriptCharset)) {
+					String statement;
+					while ((statement = reader.nextStatement()) != null) {
+						if (SchemaScrubber.isBlockStatement(statement)) {
+							log.info("Workspace of schema {} runs pl/sql blocks in {}, rebuilding it rather than resetting its data",
+									schemaToProcess, sqlFile.getPath());
+							return false;
+						}
+						SchemaScrubber.addSequenceStart(statement, sequenceStarts);
+					}
+				} catch (IOException e) {
+					throw new DatabaseBuilderException(ERR_FILE_READ + sqlFile.getPath(), e);
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Runs the pending build scripts one after the other, recording each in
+	 * the db_build_scripts table. Progress within a build script is kept in
+	 * the journal until its row is recorded. A build script that leaves ddl
+	 * deferred is only recorded once that ddl has been built, see
+	 * {@link #runDeferredStatements()}.
+	 * 
+	 * @param con - the bookkeeping connection
+	 * @throws DatabaseBuilderException - if a build script fails
+	 */
+	private void applyPendingBuildScripts(Connection con) throws DatabaseBuilderException {
+		for (int index = 0; index < buildScripts.size(); index++) {
+			BuildScript buildScript = buildScripts.get(index);
+			String name = buildScript.getFile().getName();
+			if (null != readAhead) {
+				// the files of the next directory are read while this one runs
+				if (index == 0) {
+					readAhead.prefetch(orderSqlFiles(buildScript.getFile()));
+				}
+				if (index + 1 < buildScripts.size()) {
+					readAhead.prefetch(orderSqlFiles(buildScripts.get(index + 1).getFile()));
+				}
+			}
+			if (journal.hasProgress(name)) {
+				if (settings.resume) {
+					log.info("Resuming build script {} after the statements applied by an earlier run", buildScript);
+				} else {
+					log.warn("Build script {} was partially applied by an earlier run and runs from the start, use "
+							+ RESUME_OPTION + " to carry on from where it stopped", buildScript);
+					journal.clear(name);
+				}
+			}
+			if (isTransactional()) {
+				transaction = new TransactionBatch(getDataSource(), settings.commitEveryRows, settings.commitEveryMillis);
+				transaction.setCommitListener(journal::flush);
+			}
+			long started = System.currentTimeMillis();
+			report(qualifiedName(schemaName) + ": applying " + buildScript);
+			try {
 				runChangeScript(buildScript.getFile());
-				try {
-					if (dbBuildScriptTableDoesNotExist && !doesDBBuildScriptsExist(con.createStatement())) {
-						createDBBuildScripts(con.createStatement());
+				if (hasDeferredStatements()) {
+					// until the deferred ddl is built the journal keeps what the build script still owes
+					log.info("Build script {} is recorded once its deferred indexes and constraints are built", buildScript);
+					if (null != transaction) {
+						transaction.commit();
 					}
-					dbBuildScriptTableDoesNotExist = false;
-				} catch (SQLException e) {
-					throw new DatabaseBuilderException(e);
+					unrecordedScripts.add(buildScript);
+				} else {
+					// any held back before it had their ddl built early
+					recordBuildScripts();
+					ensureDBBuildScripts(con);
+					if (null != transaction) {
+						// the bookkeeping row commits together with the final batch
+						insertDBBuildScript(transaction.getConnection(), buildScript);
+						transaction.commit();
+					} else {
+						insertDBBuildScript(con, buildScript);
+					}
+					journal.clear(name);
+				}
+				settings.metrics.buildScript(qualifiedName(schemaName), System.currentTimeMillis() - started);
+				report(qualifiedName(schemaName) + ": applied " + buildScript + " in " + formatDuration(System.currentTimeMillis() - started));
+			} catch (DatabaseBuilderException e) {
+				if (null != transaction) {
+					transaction.rollback();
+					journal.discard();
+				}
+				throw e;
+			} finally {
+				if (null != transaction) {
+					transaction.close();
+					transaction = null;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Records the build scripts held back by {@link #applyPendingBuildScripts(Connection)},
+	 * in order, once none of their deferred ddl is left to build.
+	 * 
+	 * @throws DatabaseBuilderException - if a row cannot be inserted
+	 */
+	private void recordBuildScripts() throws DatabaseBuilderException {
+		for (Iterator<BuildScript> iterator = unrecordedScripts.iterator(); iterator.hasNext();) {
+			BuildScript buildScript = iterator.next();
+			ensureDBBuildScripts(bookkeepingConnection);
+			insertDBBuildScript(bookkeepingConnection, buildScript);
+			journal.clear(buildScript.getFile().getName());
+			iterator.remove();
+			log.info("Recorded build script {} now its deferred ddl is built", buildScript);
+		}
+	}
+	
+	/**
+	 * The scrub may have dropped the db_build_scripts table, in which case the
+	 * cached answer was cleared and the table is created again.
+	 */
+	private void ensureDBBuildScripts(Connection con) throws DatabaseBuilderException {
+		try (Statement statement = con.createStatement()) {
+			if (!doesDBBuildScriptsExist(statement)) {
+				createDBBuildScripts(statement);
+			}
+		} catch (SQLException e) {
+			throw new DatabaseBuilderException(e);
+		}
+	}
+	
+	/**
+	 * Hashes every build script directory of the schema, reusing the checksums
+	 * of files that have not changed since the last run. The index stays in
+	 * memory for the next call of a resident processor.
+	 */
+	private void hashWorkspace(String schemaToProcess) throws DatabaseBuilderException {
+		if (null == settings.sharedChecksums) {
+			directoryChecksums = hashRoot(schemaToProcess);
+		} else {
+			// every target of a fan out run applies the same workspace, the first one hashes it
+			synchronized (settings.sharedChecksums) {
+				directoryChecksums = settings.sharedChecksums.get(schemaToProcess);
+				if (null == directoryChecksums) {
+					directoryChecksums = hashRoot(schemaToProcess);
+					settings.sharedChecksums.put(schemaToProcess, directoryChecksums);
+				}
+			}
+		}
+		workspaceChecksum = WorkspaceChecksums.workspaceChecksum(directoryChecksums);
+		log.info("workspace checksum of {} is {}", new Object[] { schemaToProcess, workspaceChecksum });
+	}
+	
+	private SortedMap<String, WorkspaceChecksums.DirectoryChecksum> hashRoot(String schemaToProcess) throws DatabaseBuilderException {
+		if (null == checksumIndex) {
+			checksumIndex = new WorkspaceChecksums(new File(settings.checksumIndexDir, WorkspaceChecksums.INDEX_FILE_NAME
+					+ schemaToProcess + WorkspaceChecksums.INDEX_FILE_EXT));
+		}
+		SortedMap<String, WorkspaceChecksums.DirectoryChecksum> checksums = checksumIndex.hashRoot(
+				getSchemaDefinition(schemaToProcess).getRootFile(settings.workspace));
+		checksumIndex.save();
+		return checksums;
+	}
+	
+	private String getStoredWorkspaceChecksum(Connection con) {
+		FlightRecorderEvents.BookkeepingQuery event = beginBookkeeping("getStoredWorkspaceChecksum");
+		try {
+			try (PreparedStatement preparedStatement = con.prepareStatement(GET_WORKSPACE_CHECKSUM)) {
+				preparedStatement.setString(1, settings.forceDBRebuildFlag);
+				try (ResultSet resultSet = preparedStatement.executeQuery()) {
+					return resultSet.next() ? resultSet.getString(1) : null;
 				}
-				insertDBBuildScript(con, buildScript);
+			} catch (SQLException e) {
+				// no table or no checksum column yet, the full comparison below will set them up
+				log.debug("No stored workspace checksum: {}", e.getMessage());
+				return null;
+			}
+		} finally {
+			event.commit();
+		}
+	}
+	
+	private void updateWorkspaceChecksum(Connection con) throws DatabaseBuilderException {
+		FlightRecorderEvents.BookkeepingQuery event = beginBookkeeping("updateWorkspaceChecksum");
+		try {
+			try (PreparedStatement preparedStatement = con.prepareStatement(UPDATE_WORKSPACE_CHECKSUM)) {
+				preparedStatement.setString(1, workspaceChecksum);
+				preparedStatement.executeUpdate();
+			} catch (SQLException e) {
+				throw new DatabaseBuilderException(e);
+			}
+		} finally {
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Compares the files of already applied build script directories with the
+	 * checksums recorded when they were applied.
+	 * 
+	 * @return boolean - true if any applied directory has changed since
+	 */
+	private boolean reportDrift(AppliedHistory history) {
+		if (null == directoryChecksums) {
+			return false;
+		}
+		boolean drift = false;
+		for (BuildScript buildScript : buildScripts) {
+			BuildScript recorded = history.get(buildScript.getOrder());
+			if (null == recorded || null == recorded.getChecksum() || null == buildScript.getChecksum() || recorded.getChecksum().equals(buildScript.getChecksum())) {
+				continue;
 			}
+			drift = true;
+			List<String> changes = directoryChecksums.get(buildScript.getFile().getName()).drift(
+					null == recorded.getFileChecksums() ? "" : recorded.getFileChecksums());
+			log.warn("Drift in applied build script {}: {}", new Object[] { buildScript, changes });
 		}
+		return drift;
+	}
+	
+	private void report(String message) {
+		if (null != settings.progressListener) {
+			settings.progressListener.progress(message);
+		}
+	}
+	
+	private boolean isTransactional() {
+		return TransactionBatch.MODE_BUILD_SCRIPT.equalsIgnoreCase(settings.transactionMode);
 	}
 	
 	private boolean promptUser() {
 		if(buildScripts.size() == 0) {
 			return false;
 		}
+		synchronized (PROMPT_LOCK) {
+			return promptUserForChanges();
+		}
+	}
+	
+	private boolean promptUserForChanges() {
 		  // Reading from System.in
 		System.out.println("The database schema being updated is as follows:" );
 		System.out.println("\tHost: " + jdbcConnectionHandler.getHost());
@@ -201,7 +715,8 @@ public class ScriptProcessor extends JdbcDaoSupport {
 		System.out.println("\nThe changes to be applied are as follows:");
 
 		for(BuildScript work:buildScripts) {
-			System.out.println("\t" + work.getOrder() + ") " + work.getName());
+			System.out.println("\t" + work.getOrder() + ") " + work.getName()
+					+ (outOfOrderScripts.contains(work) ? "   <-- out of order, older than the latest applied script" : ""));
 		}
 		
 		System.out.println("Please enter yes to continue:");
@@ -213,6 +728,12 @@ public class ScriptProcessor extends JdbcDaoSupport {
 	}
 	
 	private void promptUnbalancedState(BuildScript dbBuildScript) {
+		synchronized (PROMPT_LOCK) {
+			promptUnbalancedStateForSchema(dbBuildScript);
+		}
+	}
+	
+	private void promptUnbalancedStateForSchema(BuildScript dbBuildScript) {
 		  // Reading from System.in
 		System.out.println("*************************************************************");
 		System.out.println("The database schema has been advanced beyond the file system." );
@@ -230,22 +751,31 @@ public class ScriptProcessor extends JdbcDaoSupport {
 	
 	private void parseRootFile(String schemaToProcess) throws DatabaseBuilderException {
 		File rootFile = null;
+		FlightRecorderEvents.WorkspaceScan event = new FlightRecorderEvents.WorkspaceScan();
+		event.begin();
 		//System.out.println("***ParseRootFile***");
-		if(schemaToProcess.equals(MARIGOLD_SCHEMA)) {
-			rootFile = new File(workspace + File.separator + marigoldDBScripts);
-		} else if(schemaToProcess.equals(MARIGOLD_DATA_SCHEMA)) {
-			rootFile = new File(workspace + File.separator + marigoldDataDBScripts);
-		}
-		log.info("rootFile is " + rootFile);
+		rootFile = getSchemaDefinition(schemaToProcess).getRootFile(settings.workspace);
+		log.info("rootFile is {}", rootFile);
 		if(null == rootFile) {
 			throw new DatabaseBuilderException("Root File cannot be null!");
 		} else {
 			File[] files = rootFile.listFiles();
 			for (File file : files) {
 				//System.out.println(file.getName());
-				buildScripts.add(new BuildScript(file));
+				BuildScript buildScript = new BuildScript(file);
+				if (null != directoryChecksums && directoryChecksums.containsKey(file.getName())) {
+					buildScript.setChecksum(directoryChecksums.get(file.getName()).getChecksum());
+					buildScript.setFileChecksums(directoryChecksums.get(file.getName()).getManifest());
+				}
+				buildScripts.add(buildScript);
 			}
 		}
+		if (event.shouldCommit()) {
+			event.schema = schemaToProcess;
+			event.root = rootFile.getPath();
+			event.buildScripts = buildScripts.size();
+			event.commit();
+		}
 		//System.out.println("***ParseRootFile Completed***");
 	}
 
@@ -259,15 +789,52 @@ public class ScriptProcessor extends JdbcDaoSupport {
 	public void runChangeScript(File subjectFile) throws DatabaseBuilderException {
 		// This switches out the end of line separator based on operating system.
 		// Windows uses a carriage return, but linux just has a new line
-		log.info("OS NAME " + System.getProperty("os.name"));
+		log.debug("OS NAME {}", System.getProperty("os.name"));
 
 		// go to the database-scripts directory and pull down the create scripts
 		File[] files = subjectFile.listFiles();
 		Map<Integer, File> toRun = new HashMap<>();
 		Map<Integer, File> ruleMap = new HashMap<>();
 
+		journalScript = subjectFile;
 		processFiles(files, toRun, ruleMap);
 		scrubDatabase(toRun);
+		List<File> orderedFiles = orderSqlFiles(toRun, ruleMap);
+		
+		if (settings.fileParallelism > 1 && orderedFiles.size() > 1 && null == transaction) {
+			// independent files run side by side, dependent ones keep the order above
+			new ScriptFileScheduler(settings.fileParallelism, settings.scriptCharset, readAhead).run(orderedFiles,
+					this::runSqlFile);
+		} else {
+			for (File sqlFile : orderedFiles) {
+				runSqlFile(sqlFile);
+			}
+		}
+	}
+	
+	/**
+	 * Lists the sql files of a build script directory in the order
+	 * runChangeScript runs them, without the destroy file.
+	 * 
+	 * @param subjectFile - the build script directory
+	 * @return List - the sql files in execution order
+	 */
+	public List<File> orderSqlFiles(File subjectFile) {
+		Map<Integer, File> toRun = new HashMap<>();
+		Map<Integer, File> ruleMap = new HashMap<>();
+		processFiles(subjectFile.listFiles(), toRun, ruleMap);
+		return orderSqlFiles(toRun, ruleMap);
+	}
+	
+	/**
+	 * Puts the sql files of a build script directory in the order they run,
+	 * leaving out the destroy file and appending the rules.
+	 * 
+	 * @param toRun - the numbered sql files
+	 * @param ruleMap - the numbered rule files
+	 * @return List - the sql files in execution order
+	 */
+	private List<File> orderSqlFiles(Map<Integer, File> toRun, Map<Integer, File> ruleMap) {
 		toRun = scrubMap(toRun);
 
 		// add the rules to the map, skipping 0 since it will be null
@@ -278,7 +845,7 @@ public class ScriptProcessor extends JdbcDaoSupport {
 		}
 
 
-		log.info("Running the following sql files:" + toRun);
+		log.info("Running the following sql files:{}", toRun);
 		
 		// This logic is important since the order the files are processed is important.
 		List<Map.Entry<Integer, String>> fileList = new ArrayList(toRun.entrySet());
@@ -290,30 +857,231 @@ public class ScriptProcessor extends JdbcDaoSupport {
 			}
 		});
 		
+		List<File> orderedFiles = new ArrayList<>();
 		for (Map.Entry entry : fileList) {
-			try {
-				// read this sql file from the disk
-				String sql = new String(Files.readAllBytes(toRun.get(entry.getKey()).toPath()));
-				if (sql.startsWith("set define off;"))
-					sql = sql.substring("set define off;".length());
-
-				
-				// procedures + large statements have to be parsed differently
-				if (toRun.get(entry.getKey()).getName().contains("PROCEDURES") || toRun.get(entry.getKey()).getName().contains("Large_Statements")
-						|| toRun.get(entry.getKey()).getName().contains("TRIGGERS")) {
-					runProcedures(sql);
-					// rules have to be parsed differently. There is the expectation of ;--end\r\n
-
-				} else if (toRun.get(entry.getKey()).getName().contains("Rules")) {
-					processRules(sql);
-				} else {
-					runListOfCommands(sql, toRun, (Integer)entry.getKey());
+			orderedFiles.add(toRun.get(entry.getKey()));
+		}
+		return orderedFiles;
+	}
+	
+	/**
+	 * Prints every statement the pending build scripts would run, grouped by
+	 * build script and file, with an estimate from the recorded timings.
+	 * Long statements are abbreviated as in the log. Each build script is
+	 * printed as soon as it has been read, and nothing is executed.
+	 * 
+	 * @param schemaToProcess - the schema being planned
+	 * @throws DatabaseBuilderException - if a sql file cannot be read
+	 */
+	private void printPlan(String schemaToProcess) throws DatabaseBuilderException {
+		// the lock keeps the plans of schemas processed in parallel apart
+		synchronized (PLAN_LOCK) {
+			StringBuilder header = new StringBuilder();
+			long total = 0;
+			int statements = 0;
+			int unknown = 0;
+			header.append("Plan for schema ").append(qualifiedName(schemaToProcess)).append(" (").append(jdbcConnectionHandler.getUser())
+					.append('@').append(jdbcConnectionHandler.getHost()).append('/').append(jdbcConnectionHandler.getSid())
+					.append("), ").append(buildScripts.size()).append(" build scripts pending").append(NON_WINDOWS_SEP);
+			SessionProfile profile = fullRebuild ? settings.rebuildProfile : settings.incrementProfile;
+			if (null != profile) {
+				header.append("Session profile ").append(profile.getName()).append(": ").append(profile.getStatements()).append(NON_WINDOWS_SEP);
+			}
+			if (SchemaScrubber.MODE_DICTIONARY.equals(settings.scrubMode)) {
+				header.append("Destroy files drop every object found in the data dictionary").append(NON_WINDOWS_SEP);
+			}
+			if (settings.deferIndexes && fullRebuild) {
+				header.append("Non unique indexes, foreign keys and check constraints are built after the data is loaded").append(NON_WINDOWS_SEP);
+			}
+			writePlan(header);
+			for (BuildScript buildScript : buildScripts) {
+				StringBuilder steps = new StringBuilder();
+				long scriptTotal = 0;
+				Map<Integer, File> toRun = new HashMap<>();
+				Map<Integer, File> ruleMap = new HashMap<>();
+				processFiles(buildScript.getFile().listFiles(), toRun, ruleMap);
+				List<File> orderedFiles = new ArrayList<>();
+				if (toRun.containsKey(0) && null != toRun.get(0)) {
+					orderedFiles.add(toRun.get(0));
+				}
+				orderedFiles.addAll(orderSqlFiles(toRun, ruleMap));
+				for (File sqlFile : orderedFiles) {
+					steps.append("    ").append(sqlFile.getName()).append(NON_WINDOWS_SEP);
+					if (DelimitedDataFile.isDataFile(sqlFile)) {
+						try (DelimitedDataFile data = new DelimitedDataFile(sqlFile, settings.scriptCharset)) {
+							long rows = 0;
+							while (null != data.nextRow()) {
+								rows++;
+							}
+							// the history holds the time per row
+							ExecutionHistory.Estimate estimate = executionHistory.estimate(data.getInsertSql(settings.dataDirectPath && null == transaction));
+							statements++;
+							if (null == estimate) {
+								unknown++;
+							} else {
+								scriptTotal += estimate.getMillis() * rows;
+							}
+							steps.append("      [").append(statements).append("] ")
+									.append(null == estimate ? "no history" : (estimate.isExact() ? "" : "~") + formatDuration(estimate.getMillis() * rows))
+									.append(NON_WINDOWS_SEP).append("        load ").append(rows).append(" rows into ")
+									.append(data.getTable()).append(NON_WINDOWS_SEP);
+						} catch (IOException e) {
+							throw new DatabaseBuilderException(ERR_FILE_READ + sqlFile.getPath(), e);
+						}
+						continue;
+					}
+					try (SqlStatementReader reader = new SqlStatementReader(sqlFile, settings.scriptCharset)) {
+						List<String> fileStatements = new ArrayList<>();
+						if (sqlFile == toRun.get(0)) {
+							// the destroy file runs as a single call
+							fileStatements.add(new String(Files.readAllBytes(sqlFile.toPath()), settings.scriptCharset));
+						} else {
+							String statement;
+							while ((statement = reader.nextStatement()) != null) {
+								fileStatements.add(statement);
+							}
+						}
+						for (String statement : fileStatements) {
+							ExecutionHistory.Estimate estimate = executionHistory.estimate(statement);
+							statements++;
+							if (null == estimate) {
+								unknown++;
+							} else {
+								scriptTotal += estimate.getMillis();
+							}
+							steps.append("      [").append(statements).append("] ")
+									.append(null == estimate ? "no history" : (estimate.isExact() ? "" : "~") + formatDuration(estimate.getMillis()))
+									.append(NON_WINDOWS_SEP).append("        ")
+									.append(LogManager.sql(statement).toString().replace(NON_WINDOWS_SEP, NON_WINDOWS_SEP + "        "))
+									.append(NON_WINDOWS_SEP);
+						}
+					} catch (IOException e) {
+						throw new DatabaseBuilderException(ERR_FILE_READ + sqlFile.getPath(), e);
+					}
 				}
+				total += scriptTotal;
+				StringBuilder section = new StringBuilder();
+				section.append("  ").append(buildScript.getOrder()).append(") ").append(buildScript.getName())
+						.append(outOfOrderScripts.contains(buildScript) ? " (out of order)" : "")
+						.append(", estimated ").append(formatDuration(scriptTotal)).append(NON_WINDOWS_SEP).append(steps);
+				writePlan(section);
+			}
+			StringBuilder summary = new StringBuilder();
+			summary.append("Total: ").append(statements).append(" statements, ETA ").append(formatDuration(total));
+			if (unknown > 0) {
+				summary.append(" plus ").append(unknown).append(" statements without recorded timings");
+			}
+			if (settings.fileParallelism > 1) {
+				summary.append(", assuming the files run one after the other");
+			}
+			summary.append(NON_WINDOWS_SEP);
+			writePlan(summary);
+		}
+	}
+	
+	private void writePlan(CharSequence section) {
+		if (null != settings.progressListener) {
+			settings.progressListener.progress(section.toString());
+		} else {
+			System.out.print(section);
+			System.out.flush();
+		}
+	}
+	
+	private static String formatDuration(long millis) {
+		if (millis < 1000) {
+			return millis + " ms";
+		} else if (millis < 60000) {
+			return String.format("%.1f s", millis / 1000.0);
+		}
+		long seconds = millis / 1000;
+		return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+	}
+	
+	/**
+	 * Runs all the statements of a single sql file.
+	 * 
+	 * @param sqlFile - the sql file to run
+	 * @throws DatabaseBuilderException - if the file cannot be read or a statement in a plain sql file fails
+	 */
+	private void runSqlFile(File sqlFile) throws DatabaseBuilderException {
+		if (DelimitedDataFile.isDataFile(sqlFile)) {
+			loadDataFile(sqlFile);
+			return;
+		}
+		long started = System.currentTimeMillis();
+		// stream the statements of this sql file from the disk one at a time
+		try (StatementSource reader = null == readAhead ? new SqlStatementReader(sqlFile, settings.scriptCharset) : readAhead.open(sqlFile)) {
+			ProgressJournal.Cursor cursor = openCursor(sqlFile);
+			if (null != cursor && cursor.getCompleted() == ProgressJournal.COMPLETE) {
+				log.info("Skipping {}, completed by an earlier run", sqlFile);
+				return;
+			}
+			boolean deferred = false;
+			// procedures + large statements and rules are delimited differently
+			if (reader.getMode() == SqlStatementReader.Mode.PROCEDURE) {
+				runProcedures(reader, sqlFile, cursor);
+			} else if (reader.getMode() == SqlStatementReader.Mode.RULE) {
+				processRules(reader, sqlFile, cursor);
+			} else {
+				deferred = runListOfCommands(reader, sqlFile, cursor);
+			}
+			// a file that held back ddl is read again by a resumed run, for the statements it still owes
+			if (!deferred) {
+				recordProgress(cursor, ProgressJournal.COMPLETE);
+			}
+			settings.metrics.file(qualifiedName(schemaName), System.currentTimeMillis() - started);
 
-			} catch (Exception e) {
-				log.error(ERR_FILE_READ + toRun.get(entry.getKey()).getPath(), e);
-				throw new DatabaseBuilderException(e.getMessage());
+		} catch (Exception e) {
+			log.error(ERR_FILE_READ + sqlFile.getPath(), e);
+			throw new DatabaseBuilderException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Loads a delimited data file into its table, see {@link DelimitedDataFile}.
+	 * Outside a transaction every batch of dataBatchSize rows commits on its
+	 * own and up to dataParallelism batches load side by side. With
+	 * dataDirectPath the rows are written above the high water mark; each
+	 * such batch locks the table until it commits, so direct path batches
+	 * queue behind one another rather than running side by side.
+	 * 
+	 * @param dataFile - the data file to load
+	 * @throws DatabaseBuilderException - if the file is not valid or a batch fails
+	 */
+	private void loadDataFile(File dataFile) throws DatabaseBuilderException {
+		long started = System.currentTimeMillis();
+		// a direct path insert leaves the table unreadable until the commit, so it needs a commit of its own
+		boolean directPath = settings.dataDirectPath && null == transaction;
+		int parallelism = null == transaction ? settings.dataParallelism : 1;
+		try (DelimitedDataFile data = new DelimitedDataFile(dataFile, settings.scriptCharset)) {
+			final ProgressJournal.Cursor cursor = openCursor(dataFile);
+			if (null != cursor && cursor.getCompleted() == ProgressJournal.COMPLETE) {
+				log.info("Skipping {}, completed by an earlier run", dataFile);
+				return;
 			}
+			final String sql = data.getInsertSql(directPath);
+			log.info("Loading {} into {}: {}", new Object[] { dataFile, data.getTable(), LogManager.sql(sql) });
+			long rows = new DataFileLoader(settings.dataBatchSize, parallelism).load(data, null == cursor ? 0 : cursor.getCompleted(),
+					batch -> runDataBatch(sql, batch, dataFile), loaded -> recordProgress(cursor, loaded));
+			log.info("Loaded {} rows into {}", new Object[] { rows, data.getTable() });
+			recordProgress(cursor, ProgressJournal.COMPLETE);
+			settings.metrics.file(qualifiedName(schemaName), System.currentTimeMillis() - started);
+		} catch (IOException e) {
+			log.error(ERR_FILE_READ + dataFile.getPath(), e);
+			throw new DatabaseBuilderException(ERR_FILE_READ + dataFile.getPath(), e);
+		}
+	}
+	
+	private void runDataBatch(String sql, List<Object[]> rows, File dataFile) throws DatabaseBuilderException {
+		try {
+			executeBatch(sql, sql, rows, false, dataFile);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DatabaseBuilderException("Interrupted while loading " + dataFile.getPath(), e);
+		} catch (RuntimeException | SQLException e) {
+			settings.metrics.error(qualifiedName(schemaName));
+			throw new DatabaseBuilderException(e.getMessage(), e);
 		}
 	}
 	
@@ -328,15 +1096,23 @@ public class ScriptProcessor extends JdbcDaoSupport {
 		return cleanMap;
 	}
 	
-	private void processRules(String sql) throws InterruptedException{
-		
-		String[] rules = sql.split(";--end" + WINDOWS_SEP);
-		for (String rule : rules) {
-			String statement1 = rule;
-			statement1 = statement1.trim();
-			if (isValidStatement(statement1)) {
-				Thread.sleep(200);
-				runJDBCUpdate(rule, sql, statement1);
+	private void processRules(StatementSource reader, File sqlFile, ProgressJournal.Cursor cursor) throws IOException {
+		// both \r\n and \n line endings after ;--end are recognised by the reader
+		String rule;
+		while ((rule = reader.nextStatement()) != null) {
+			if (isCompleted(reader, cursor) || skippedByReset(rule, reader, cursor)) {
+				continue;
+			}
+			try {
+				log.info(ERR_WRITING_STMT, LogManager.sql(rule));
+				executeStatement(rule, sqlFile);
+				recordProgress(cursor, reader.getOrdinal());
+			} catch (DataAccessException e1) {
+				log.error("Error creating rule:\n" + rule, e1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				log.error("Interrupted while running rule:\n" + rule, e);
+				return;
 			}
 		}
 	}
@@ -372,14 +1148,36 @@ public class ScriptProcessor extends JdbcDaoSupport {
 		}
 	}
 	
-	private void scrubDatabase(Map<Integer, File> toRun) {
-		log.info("scrubDatabase method call is in list is " + toRun.containsKey(0));
+	private void scrubDatabase(Map<Integer, File> toRun) throws DatabaseBuilderException {
+		log.debug("scrubDatabase method call is in list is {}", toRun.containsKey(0));
 		if(toRun.containsKey(0)) {
-			log.info("Dropping all old tables");
-			try {
+			if (resetting) {
+				log.info("Skipping {}, the tables were truncated instead", toRun.get(0));
+				return;
+			}
+			// the tables are dropped and built again, so their ddl can wait for the data too
+			runDeferredStatements();
+			deferring = settings.deferIndexes;
+			if (SchemaScrubber.MODE_DICTIONARY.equals(settings.scrubMode)) {
+				scrubFromDictionary(toRun.get(0));
+				return;
+			}
+			try {
+				ProgressJournal.Cursor cursor = openCursor(toRun.get(0));
+				if (null != cursor && cursor.getCompleted() == ProgressJournal.COMPLETE) {
+					log.info("Skipping {}, the earlier run already dropped the old tables", toRun.get(0));
+					return;
+				}
+				log.info("Dropping all old tables");
 				// destroy logic
-				destroyString = new String(Files.readAllBytes(toRun.get(0).toPath()));
+				destroyString = new String(Files.readAllBytes(toRun.get(0).toPath()), settings.scriptCharset);
+				dbBuildScriptsExist = null;
+				long start = System.currentTimeMillis();
 				getJdbcTemplate().update(destroyString);
+				if (null != executionHistory) {
+					executionHistory.record(destroyString, System.currentTimeMillis() - start);
+				}
+				recordProgress(cursor, ProgressJournal.COMPLETE);
 			} catch (DataAccessException e) {
 				log.error("Error writing sql statement from file: " + toRun.get(0).toPath(), e);
 			} catch (Exception e) {
@@ -390,162 +1188,651 @@ public class ScriptProcessor extends JdbcDaoSupport {
 		}
 	}
 	
-	private void runProcedures(String sql) {
-		String[] procedures = sql.split("--<");
-		for (String procedure : procedures) {
-			String statement1 = procedure;
-			statement1 = statement1.trim();
-			if (!isValidStatement(statement1))
+	/**
+	 * Drops every object of the schema found in the data dictionary instead
+	 * of running the destroy file, which only marks where the scrub happens.
+	 * Unlike the destroy file a failure stops the build, since the scripts
+	 * that follow would fail on the objects left behind.
+	 * 
+	 * @param destroyFile - the 0- file of the build script
+	 * @throws DatabaseBuilderException - if the dictionary cannot be read or an object cannot be dropped
+	 */
+	private void scrubFromDictionary(File destroyFile) throws DatabaseBuilderException {
+		ProgressJournal.Cursor cursor;
+		try {
+			cursor = openCursor(destroyFile);
+		} catch (IOException e) {
+			throw new DatabaseBuilderException(ERR_FILE_READ + destroyFile.toPath(), e);
+		}
+		if (null != cursor && cursor.getCompleted() == ProgressJournal.COMPLETE) {
+			log.info("Skipping {}, the earlier run already dropped the old objects", destroyFile);
+			return;
+		}
+		log.info("Dropping all objects of the schema found in the data dictionary");
+		dbBuildScriptsExist = null;
+		long start = System.currentTimeMillis();
+		int dropped = new SchemaScrubber(getJdbcTemplate(), settings.scrubParallelism).drop();
+		if (null != executionHistory) {
+			executionHistory.record("-- dropped " + dropped + " objects found in the data dictionary",
+					System.currentTimeMillis() - start);
+		}
+		recordProgress(cursor, ProgressJournal.COMPLETE);
+	}
+	
+	private void runProcedures(StatementSource reader, File sqlFile, ProgressJournal.Cursor cursor) throws IOException {
+		String procedure;
+		while ((procedure = reader.nextStatement()) != null) {
+			if (isCompleted(reader, cursor) || skippedByReset(procedure, reader, cursor)) {
 				continue;
-
+			}
 			try {
-				log.info(ERR_WRITING_STMT, new Object[] { statement1 });
-				Thread.sleep(200);
-				getJdbcTemplate().update(statement1);
+				log.info(ERR_WRITING_STMT, LogManager.sql(procedure));
+				executeStatement(procedure, sqlFile);
+				recordProgress(cursor, reader.getOrdinal());
 			} catch (DataAccessException e1) {
-				log.error("Error creating procedure:\n" + statement1, e1);
+				log.error("Error creating procedure:\n" + procedure, e1);
 			} catch (Exception e) {
 				log.error("Run procedures method go Exception: ", e);
 			}
 		}
 	}
 	
-	private void runListOfCommands(String sql, Map<Integer, File> toRun, int toRunIndex) throws DatabaseBuilderException {
-		// split on ; which turns the file into a list of commands that the jdbcTemplate can execute
-		String[] sqlFiles = sql.split(";--<");
-
-		// loop through the sql statements and run them.
-		for (String sqlFile : sqlFiles) {
-			String s1 = null;
-			try {
-				s1 = sqlFile.trim();
-				if (isValidStatement(s1)) {
-					log.info("writing statement{} ", new Object[] { s1 });
-					Thread.sleep(200);
-					getJdbcTemplate().update(s1);
+	/**
+	 * @return boolean - true if a statement of the file was deferred until the data is loaded
+	 */
+	private boolean runListOfCommands(StatementSource reader, File sqlFile, ProgressJournal.Cursor cursor)
+			throws DatabaseBuilderException, IOException {
+		// the reader splits on ;--< which turns the file into a list of commands that the jdbcTemplate can execute
+		String s1;
+		// consecutive inserts of literals with the same shape are collected and run as one batch
+		String batchSql = null;
+		List<String> batchStatements = new ArrayList<>();
+		List<Object[]> batchValues = new ArrayList<>();
+		boolean deferredAny = false;
+		while ((s1 = reader.nextStatement()) != null) {
+			if (isCompleted(reader, cursor)) {
+				deferredAny |= resumeDeferredStatement(s1, sqlFile, reader.getOrdinal());
+				continue;
+			}
+			InsertStatement insert = settings.insertBatchSize > 1 ? InsertStatement.parse(s1) : null;
+			if (!batchStatements.isEmpty() && (null == insert || !insert.getSql().equals(batchSql))) {
+				runInsertBatch(batchSql, batchStatements, batchValues, reader.getOrdinal() - 1, sqlFile, cursor);
+			}
+			if (null != insert) {
+				batchSql = insert.getSql();
+				batchStatements.add(s1);
+				batchValues.add(insert.getValues());
+				if (batchStatements.size() >= settings.insertBatchSize) {
+					runInsertBatch(batchSql, batchStatements, batchValues, reader.getOrdinal(), sqlFile, cursor);
 				}
-			} catch (Exception e1) {
-				log.error("Error writing sql statement from file '" + toRun.get(toRunIndex).getPath() + "', statement:\n"
-						+ s1, e1);
-				//System.exit(-1);
-				throw new DatabaseBuilderException(e1.getMessage());
+				continue;
+			}
+			if (skippedByReset(s1, reader, cursor)) {
+				continue;
+			}
+			DeferredStatement deferred = deferring ? DeferredStatement.parse(s1, sqlFile) : null;
+			if (null != deferred) {
+				log.info("Deferring {} until the data is loaded", deferred);
+				addDeferredStatement(deferred, openDeferredCursor(sqlFile, reader.getOrdinal()));
+				recordProgress(cursor, reader.getOrdinal());
+				deferredAny = true;
+				continue;
+			}
+			runCommand(s1, sqlFile, cursor, reader.getOrdinal());
+		}
+		if (!batchStatements.isEmpty()) {
+			runInsertBatch(batchSql, batchStatements, batchValues, reader.getOrdinal(), sqlFile, cursor);
+		}
+		return deferredAny;
+	}
+	
+	/**
+	 * Holds a statement back, marking it in the journal as owed so a run
+	 * that stops before it is built still knows about it.
+	 */
+	private void addDeferredStatement(DeferredStatement deferred, ProgressJournal.Cursor deferredCursor) {
+		if (null != deferredCursor) {
+			deferredCursor.advance(DEFERRED_OWED);
+		}
+		synchronized (deferredStatements) {
+			deferredStatements.add(deferred);
+			if (null != deferredCursor) {
+				deferredCursors.put(deferred, deferredCursor);
 			}
 		}
 	}
 	
-	private void runJDBCUpdate(String rule, String sql, String statement1) {
+	/**
+	 * Marks a deferred statement as built in the journal.
+	 */
+	private void deferredStatementBuilt(DeferredStatement deferred) {
+		ProgressJournal.Cursor deferredCursor;
+		synchronized (deferredStatements) {
+			deferredCursor = deferredCursors.remove(deferred);
+		}
+		if (null != deferredCursor) {
+			deferredCursor.advance(ProgressJournal.COMPLETE);
+		}
+	}
+	
+	/**
+	 * A statement an earlier run completed may only have been deferred, and
+	 * never built if that run stopped first. Such a statement is deferred
+	 * again, or run now if this run does not defer.
+	 * 
+	 * @return boolean - true if the statement was deferred again
+	 */
+	private boolean resumeDeferredStatement(String statement, File sqlFile, int ordinal)
+			throws DatabaseBuilderException, IOException {
+		DeferredStatement deferred = null == journal ? null : DeferredStatement.parse(statement, sqlFile);
+		if (null == deferred) {
+			return false;
+		}
+		ProgressJournal.Cursor deferredCursor = openDeferredCursor(sqlFile, ordinal);
+		if (null == deferredCursor || deferredCursor.getCompleted() != DEFERRED_OWED) {
+			return false;
+		}
+		if (deferring) {
+			log.info("Deferring {} again, an earlier run stopped before building it", deferred);
+			addDeferredStatement(deferred, deferredCursor);
+			return true;
+		}
+		log.info("Building {} now, an earlier run stopped before building it", deferred);
+		runCommand(statement, sqlFile, null, ordinal);
+		deferredCursor.advance(ProgressJournal.COMPLETE);
+		return false;
+	}
+	
+	private void runCommand(String statement, File sqlFile, ProgressJournal.Cursor cursor, int ordinal)
+			throws DatabaseBuilderException {
 		try {
-			log.info(ERR_WRITING_STMT, new Object[] { statement1 });
-			getJdbcTemplate().update(rule);
-		} catch (DataAccessException e1) {
-			log.info("Windows separator parsing failed, trying Unix separator...");
-			String[] rules = sql.split(";--end" + NON_WINDOWS_SEP);
-			for (String ruleStr : rules) {
-				String statement2 = ruleStr;
-				statement2 = statement2.trim();
-				if (!isValidStatement(statement2))
-					continue;
-				try {
-					log.info(ERR_WRITING_STMT, new Object[] { statement2 });
-					Thread.sleep(200);
-					getJdbcTemplate().update(ruleStr);
-				} catch (DataAccessException e2) {
-					log.error("Error creating rule:\n" + statement1, e1);
-					log.error("Error creating rule:\n" + statement2, e2);
-				} catch (Exception e) {
-					log.error("Error with run jdbc update methos: ", e);
+			log.info(ERR_WRITING_STMT, LogManager.sql(statement));
+			executeStatement(statement, sqlFile);
+			recordProgress(cursor, ordinal);
+		} catch (Exception e1) {
+			log.error("Error writing sql statement from file '" + sqlFile.getPath() + "', statement:\n"
+					+ statement, e1);
+			throw new DatabaseBuilderException(e1.getMessage());
+		}
+	}
+	
+	/**
+	 * Runs collected inserts as one jdbc batch and empties the lists. Outside
+	 * a transaction the batch commits as a whole. If it fails it is rolled
+	 * back and the inserts run one at a time, so the failing insert is
+	 * reported and those before it are applied, as without batching.
+	 * 
+	 * @param sql - the parameterised insert shared by the statements
+	 * @param statements - the inserts as written, for logging and the fallback
+	 * @param values - the values of every insert
+	 * @param lastOrdinal - the ordinal of the last insert in the file
+	 */
+	private void runInsertBatch(String sql, List<String> statements, List<Object[]> values, int lastOrdinal,
+			File sqlFile, ProgressJournal.Cursor cursor) throws DatabaseBuilderException {
+		List<String> batch = new ArrayList<>(statements);
+		List<Object[]> rows = new ArrayList<>(values);
+		statements.clear();
+		values.clear();
+		if (batch.size() == 1) {
+			runCommand(batch.get(0), sqlFile, cursor, lastOrdinal);
+			return;
+		}
+		try {
+			log.info("Writing a batch of {} inserts: {}", new Object[] { batch.size(), LogManager.sql(sql) });
+			executeBatch(sql, batch.get(0), rows, true, sqlFile);
+			recordProgress(cursor, lastOrdinal);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DatabaseBuilderException("Interrupted while running a batch of inserts from " + sqlFile.getPath(), e);
+		} catch (RuntimeException | SQLException e) {
+			if (null != transaction) {
+				settings.metrics.error(qualifiedName(schemaName));
+				log.error("Error writing a batch of inserts from file '" + sqlFile.getPath() + "', first statement:\n"
+						+ batch.get(0), e);
+				throw new DatabaseBuilderException(e.getMessage());
+			}
+			log.warn("Batch of {} inserts from {} failed and was rolled back, running them one at a time: {}",
+					new Object[] { batch.size(), sqlFile, e.getMessage() });
+			int ordinal = lastOrdinal - batch.size();
+			for (String statement : batch) {
+				runCommand(statement, sqlFile, cursor, ++ordinal);
+			}
+		}
+	}
+	
+	/**
+	 * Sends a batch of inserts in one round trip, throttled and measured as
+	 * a whole. When the rows stand for insert statements each counts as a
+	 * statement in the metrics, with an equal share of the elapsed time,
+	 * otherwise the batch counts as one statement. A failure is counted by
+	 * the caller, since a failed batch of inserts runs again one at a time.
+	 * 
+	 * @param statement - the statement the timings are recorded under
+	 * @param rowsAreStatements - true if every row was written as an insert of its own
+	 * @return int - the number of rows affected
+	 */
+	private int executeBatch(String sql, String statement, List<Object[]> rows, boolean rowsAreStatements, File sqlFile)
+			throws InterruptedException, SQLException {
+		FlightRecorderEvents.StatementExecution event = new FlightRecorderEvents.StatementExecution();
+		event.begin();
+		throttle.beforeStatement();
+		long start = System.currentTimeMillis();
+		try {
+			int[] counts;
+			if (null != transaction) {
+				counts = transaction.getJdbcTemplate().batchUpdate(sql, rows);
+			} else {
+				counts = batchUpdateAtomically(sql, rows);
+			}
+			int total = 0;
+			long elapsed = System.currentTimeMillis() - start;
+			for (int count : counts) {
+				// drivers may report success without a count
+				int affected = count >= 0 ? count : 1;
+				total += affected;
+				if (rowsAreStatements) {
+					settings.metrics.statement(qualifiedName(schemaName), elapsed / counts.length, affected);
 				}
 			}
+			if (!rowsAreStatements) {
+				settings.metrics.statement(qualifiedName(schemaName), elapsed, total);
+			}
+			if (null != transaction) {
+				transaction.afterStatement(total);
+			}
+			if (null != executionHistory) {
+				// every row of the batch has the same fingerprint
+				executionHistory.record(statement, elapsed / rows.size());
+			}
+			event.rows = total;
+			event.succeeded = true;
+			return total;
+		} finally {
+			throttle.afterStatement(System.currentTimeMillis() - start);
+			if (event.shouldCommit()) {
+				event.schema = schemaName;
+				event.file = sqlFile.getPath();
+				event.fingerprint = ExecutionHistory.fingerprint(statement);
+				event.commit();
+			}
 		}
 	}
-
-	private BuildScript getLatestFromDBBuildScripts(Connection con) throws DatabaseBuilderException {
-		BuildScript buildScript = null;
-		//System.out.println("***Getting Latest from DBBuildScripts Table***");
+	
+	private int[] batchUpdateAtomically(String sql, List<Object[]> rows) throws SQLException {
+		try (Connection connection = getDataSource().getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				int[] counts = new JdbcTemplate(new SingleConnectionDataSource(connection, true)).batchUpdate(sql, rows);
+				connection.commit();
+				return counts;
+			} catch (RuntimeException | SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Opens the journal slot of a sql file of the build script being run.
+	 * The checksum comes from the workspace hash when there is one.
+	 * 
+	 * @param sqlFile - a file of the build script directory
+	 * @return ProgressJournal.Cursor - the progress of the file, or null outside of an apply run
+	 * @throws IOException - if the file cannot be hashed
+	 */
+	private ProgressJournal.Cursor openCursor(File sqlFile) throws IOException {
+		return openCursor(sqlFile, "");
+	}
+	
+	/**
+	 * Opens the journal slot of a statement deferred from a sql file of the
+	 * build script being run, at {@link #DEFERRED_OWED} until it is built.
+	 * 
+	 * @param sqlFile - a file of the build script directory
+	 * @param ordinal - the ordinal of the statement in the file
+	 * @return ProgressJournal.Cursor - the state of the statement, or null outside of an apply run
+	 * @throws IOException - if the file cannot be hashed
+	 */
+	private ProgressJournal.Cursor openDeferredCursor(File sqlFile, int ordinal) throws IOException {
+		return openCursor(sqlFile, DEFERRED_KEY + ordinal);
+	}
+	
+	private ProgressJournal.Cursor openCursor(File sqlFile, String suffix) throws IOException {
+		if (null == journal || null == journalScript) {
+			return null;
+		}
+		String path = journalScript.toPath().relativize(sqlFile.toPath()).toString().replace(File.separatorChar, '/');
+		WorkspaceChecksums.DirectoryChecksum directory = null == directoryChecksums ? null
+				: directoryChecksums.get(journalScript.getName());
+		String checksum = null == directory ? null : directory.getFileChecksum(path);
+		if (null == checksum) {
+			checksum = WorkspaceChecksums.fileChecksum(sqlFile);
+		}
+		return journal.cursor(journalScript.getName(), path + suffix, checksum);
+	}
+	
+	/**
+	 * @return boolean - true if the statement just read was applied by an earlier run
+	 */
+	private static boolean isCompleted(StatementSource reader, ProgressJournal.Cursor cursor) {
+		return null != cursor && reader.getOrdinal() <= cursor.getCompleted();
+	}
+	
+	/**
+	 * After a reset the objects are still there, so only the statements
+	 * writing data run again. A skipped statement counts as done.
+	 */
+	private boolean skippedByReset(String statement, StatementSource reader, ProgressJournal.Cursor cursor) {
+		if (!resetting || SchemaScrubber.isDataStatement(statement)) {
+			return false;
+		}
+		log.debug("Skipping {}, the schema was reset rather than dropped", LogManager.sql(statement));
+		recordProgress(cursor, reader.getOrdinal());
+		return true;
+	}
+	
+	/**
+	 * In transactional mode progress only counts once it has been committed.
+	 */
+	private void recordProgress(ProgressJournal.Cursor cursor, int ordinal) {
+		if (null == cursor) {
+			return;
+		} else if (null != transaction) {
+			cursor.defer(ordinal);
+		} else {
+			cursor.advance(ordinal);
+		}
+	}
+	
+	/**
+	 * Sends a single statement to the database, letting the throttle
+	 * hold it back first if the database is under pressure. In
+	 * transactional mode the statement runs on the build script's
+	 * connection and counts towards its next commit.
+	 *
+	 * @param statement - the sql to execute
+	 * @param sqlFile - the file the statement comes from
+	 * @return int - the number of rows affected
+	 * @throws InterruptedException - if interrupted while the throttle is waiting
+	 */
+	private int executeStatement(String statement, File sqlFile) throws InterruptedException {
+		if (deferring && DeferredStatement.isStructural(statement)) {
+			runDeferredStatementsNamedIn(statement);
+		}
+		FlightRecorderEvents.StatementExecution event = new FlightRecorderEvents.StatementExecution();
+		event.begin();
+		throttle.beforeStatement();
+		long start = System.currentTimeMillis();
 		try {
-			Statement statement = con.createStatement();
-			if (doesDBBuildScriptsExist(statement)) {
-				buildScript = getDBBuildScript(statement);
-				//System.out.println(buildScript.toString());
+			int rows;
+			if (null != transaction) {
+				rows = transaction.getJdbcTemplate().update(statement);
+				transaction.afterStatement(rows);
 			} else {
-				createDBBuildScripts(statement);
-				//System.out.println("***build script table created***");
+				rows = getJdbcTemplate().update(statement);
 			}
-		} catch (SQLException e) {
-			throw new DatabaseBuilderException(e);
-		} 
-		log.info("getLatestFromDBBuildScripts returned " + buildScript);
-		return buildScript;
+			long elapsed = System.currentTimeMillis() - start;
+			if (null != executionHistory) {
+				executionHistory.record(statement, elapsed);
+			}
+			settings.metrics.statement(qualifiedName(schemaName), elapsed, rows);
+			event.rows = rows;
+			event.succeeded = true;
+			return rows;
+		} catch (RuntimeException e) {
+			settings.metrics.error(qualifiedName(schemaName));
+			throw e;
+		} finally {
+			throttle.afterStatement(System.currentTimeMillis() - start);
+			if (event.shouldCommit()) {
+				// the fingerprint is only worth hashing when a recording wants the event
+				event.schema = schemaName;
+				event.file = sqlFile.getPath();
+				event.fingerprint = ExecutionHistory.fingerprint(statement);
+				event.commit();
+			}
+		}
 	}
 
-	private BuildScript getDBBuildScript(Statement statement) throws DatabaseBuilderException {
-		BuildScript buildScript = null;
-	    try {
-			ResultSet  resultSet = statement.executeQuery(GET_LATEST_BUILD_SCRIPT);
-			if(resultSet.next()) {
-				buildScript = new BuildScript(resultSet.getBigDecimal(ORDERBY), resultSet.getString(SCRIPT_NAME), null);
-				buildScript.setScriptId(resultSet.getInt(SCRIPT_ID));
+	/**
+	 * Runs the index and constraint ddl held back during a full rebuild once
+	 * the data has been loaded. Statements on unrelated tables run side by
+	 * side, those sharing a table one after the other in their original order.
+	 * The build scripts waiting on them are recorded once they have all been
+	 * built; until then the journal marks them as owed, for --resume.
+	 * 
+	 * @throws DatabaseBuilderException - the first statement that failed
+	 */
+	private void runDeferredStatements() throws DatabaseBuilderException {
+		List<DeferredStatement> statements;
+		synchronized (deferredStatements) {
+			statements = new ArrayList<>(deferredStatements);
+			deferredStatements.clear();
+		}
+		if (statements.isEmpty()) {
+			recordBuildScripts();
+			return;
+		}
+		long started = System.currentTimeMillis();
+		report(qualifiedName(schemaName) + ": building " + statements.size() + " deferred indexes and constraints");
+		List<Set<Integer>> dependencies = new ArrayList<>();
+		for (int index = 0; index < statements.size(); index++) {
+			Set<Integer> before = new HashSet<>();
+			for (int earlier = 0; earlier < index; earlier++) {
+				if (!Collections.disjoint(statements.get(index).getTables(), statements.get(earlier).getTables())) {
+					before.add(earlier);
+				}
 			}
-			
+			dependencies.add(before);
+		}
+		new ScriptFileScheduler(settings.deferredParallelism).run(statements, dependencies, deferred -> {
+			try {
+				log.info(ERR_WRITING_STMT, LogManager.sql(deferred.getSql()));
+				executeStatement(deferred.getSql(), deferred.getFile());
+				deferredStatementBuilt(deferred);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DatabaseBuilderException("Interrupted while running deferred statements", e);
+			} catch (RuntimeException e) {
+				log.error("Error running deferred statement from file '" + deferred.getFile().getPath() + "', statement:\n"
+						+ deferred.getSql(), e);
+				throw new DatabaseBuilderException(e.getMessage(), e);
+			}
+		});
+		log.info("Built {} deferred indexes and constraints in {} ms",
+				new Object[] { statements.size(), System.currentTimeMillis() - started });
+		recordBuildScripts();
+	}
+	
+	/**
+	 * Runs the deferred statements a structural statement names before it,
+	 * e.g. an index that is about to be dropped or a table about to be
+	 * altered, so holding them back never changes what the statement sees.
+	 */
+	private void runDeferredStatementsNamedIn(String statement) throws InterruptedException {
+		List<DeferredStatement> named = new ArrayList<>();
+		synchronized (deferredStatements) {
+			if (deferredStatements.isEmpty()) {
+				return;
+			}
+			Set<String> identifiers = new HashSet<>();
+			ScriptFileScheduler.scanStatement(statement, true, identifiers, new HashSet<String>());
+			for (Iterator<DeferredStatement> iterator = deferredStatements.iterator(); iterator.hasNext();) {
+				DeferredStatement deferred = iterator.next();
+				if (deferred.isNamedIn(identifiers)) {
+					named.add(deferred);
+					iterator.remove();
+				}
+			}
+		}
+		for (DeferredStatement deferred : named) {
+			log.info("Running deferred {} now, a later statement depends on it", deferred);
+			executeStatement(deferred.getSql(), deferred.getFile());
+			deferredStatementBuilt(deferred);
+		}
+	}
+	
+	/**
+	 * @return boolean - true if ddl held back by this run is still to be built
+	 */
+	private boolean hasDeferredStatements() {
+		synchronized (deferredStatements) {
+			return !deferredCursors.isEmpty() || !deferredStatements.isEmpty();
+		}
+	}
+	
+	private void discardDeferredStatements() {
+		synchronized (deferredStatements) {
+			if (!deferredStatements.isEmpty()) {
+				log.warn("The run stopped before {} deferred index and constraint statements were run: {}",
+						new Object[] { deferredStatements.size(), deferredStatements });
+				deferredStatements.clear();
+			}
+			deferredCursors.clear();
+		}
+		if (!unrecordedScripts.isEmpty()) {
+			log.warn("Build scripts {} are not recorded, their deferred ddl was not built, use " + RESUME_OPTION
+					+ " to build it", unrecordedScripts);
+			unrecordedScripts.clear();
+		}
+	}
+	
+	/**
+	 * Loads every row of the db_build_scripts table into the applied history
+	 * index, creating the table first if it does not exist yet.
+	 * 
+	 * @param con - the bookkeeping connection
+	 * @return AppliedHistory - the recorded build scripts ordered by their order
+	 * @throws DatabaseBuilderException - wraps any sql exception
+	 */
+	private AppliedHistory loadAppliedHistory(Connection con) throws DatabaseBuilderException {
+		FlightRecorderEvents.BookkeepingQuery event = beginBookkeeping("loadAppliedHistory");
+		try {
+			AppliedHistory history = new AppliedHistory();
+			try (Statement statement = con.createStatement()) {
+				if (doesDBBuildScriptsExist(statement)) {
+					checksumColumns = addChecksumColumns(statement);
+					try (ResultSet resultSet = statement.executeQuery(checksumColumns ? GET_ALL_BUILD_SCRIPTS : GET_ALL_BUILD_SCRIPTS_WITHOUT_CHECKSUMS)) {
+						while (resultSet.next()) {
+							BuildScript buildScript = new BuildScript(resultSet.getBigDecimal(ORDERBY), resultSet.getString(SCRIPT_NAME), null);
+							buildScript.setScriptId(resultSet.getInt(SCRIPT_ID));
+							if (checksumColumns) {
+								buildScript.setChecksum(resultSet.getString(CHECKSUM));
+								buildScript.setFileChecksums(resultSet.getString(FILE_CHECKSUMS));
+							}
+							history.add(buildScript);
+						}
+					}
+				} else if (!settings.planOnly) {
+					createDBBuildScripts(statement);
+					checksumColumns = true;
+				}
+			} catch (SQLException e) {
+				throw new DatabaseBuilderException(e);
+			} 
+			log.info("loadAppliedHistory found {} build scripts, latest {}", new Object[] { history.size(), history.getLatest() });
+			return history;
+		} finally {
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Brings a db_build_scripts table created before checksums were recorded
+	 * up to date, but only when verifyChecksums asks for them. Otherwise, and
+	 * for a plan, the table is left as it is and build scripts are recorded
+	 * without checksums.
+	 * 
+	 * @return boolean - true if the table has the checksum columns
+	 */
+	private boolean addChecksumColumns(Statement statement) throws DatabaseBuilderException {
+		String sql = CHECKSUM_COLUMN_EXISTS_QUERY.replace(OWNER_TAG, getDBUser(statement));
+		try {
+			boolean exists;
+			try (ResultSet resultSet = statement.executeQuery(sql)) {
+				exists = resultSet.next();
+			}
+			if (!exists && settings.verifyChecksums && !settings.planOnly) {
+				log.warn("verifyChecksums is set, altering " + BuildScript.DB_BUILD_SCRIPTS
+						+ " to add the checksum, fileChecksums and workspaceChecksum columns");
+				statement.execute(ADD_CHECKSUM_COLUMNS);
+				exists = true;
+			}
+			return exists;
 		} catch (SQLException e) {
-			throw new DatabaseBuilderException(e);
+			throw new DatabaseBuilderException("Error adding checksum columns to " + BuildScript.DB_BUILD_SCRIPTS, e);
 		}
-		return buildScript;
 	}
 	
 	private String getDBUser(Statement statement) throws DatabaseBuilderException {
-		String user = null;
-		
-		try {
-			ResultSet resultSet = statement.executeQuery(GET_DB_USER);
+		if (null != dbUser) {
+			return dbUser;
+		}
+		try (ResultSet resultSet = statement.executeQuery(GET_DB_USER)) {
 			if(resultSet.next()) {
-				user = resultSet.getString(1);
+				dbUser = resultSet.getString(1);
 			}
 		} catch (SQLException e) {
 			throw new DatabaseBuilderException(e);
 		}
-		return user;
+		return dbUser;
 	}
 
+	/**
+	 * Checks the data dictionary for the db_build_scripts table. The answer
+	 * is cached for the run; scrubbing the schema clears it.
+	 */
 	private boolean doesDBBuildScriptsExist(Statement statement) throws DatabaseBuilderException {
-		ResultSet resultSet;
-		try {
-			String sql = DB_BUILD_SCRIPTS_EXISTS_QUERY;
-			sql = sql.replace(OWNER_TAG, getDBUser(statement));
-			resultSet = statement.executeQuery(sql);
-			if (resultSet.next()) {
-				log.info("db script table exists");
-				return true;
-			}
+		if (null != dbBuildScriptsExist) {
+			return dbBuildScriptsExist;
+		}
+		String sql = DB_BUILD_SCRIPTS_EXISTS_QUERY;
+		sql = sql.replace(OWNER_TAG, getDBUser(statement));
+		try (ResultSet resultSet = statement.executeQuery(sql)) {
+			dbBuildScriptsExist = resultSet.next();
 		} catch (SQLException e) {
 			throw new DatabaseBuilderException(e);
 		}
-		log.info("db script table does not exist");
-		return false;
+		log.info(dbBuildScriptsExist ? "db script table exists" : "db script table does not exist");
+		return dbBuildScriptsExist;
 	}
 
 	private void createDBBuildScripts(Statement statement) throws DatabaseBuilderException {
-		log.info("creating db script table");
+		FlightRecorderEvents.BookkeepingQuery event = beginBookkeeping("createDBBuildScripts");
 		try {
-			createDBBuildScriptSeq(statement);
-			statement.execute(DB_BUILD_SCRIPT_CREATE);
-		} catch (SQLException e) {
-			throw new DatabaseBuilderException(e);
+			log.info("creating db script table");
+			try {
+				createDBBuildScriptSeq(statement);
+				statement.execute(DB_BUILD_SCRIPT_CREATE);
+				dbBuildScriptsExist = true;
+			} catch (SQLException e) {
+				throw new DatabaseBuilderException(e);
+			}
+		} finally {
+			event.commit();
 		}
 	}
 	
 	private void insertDBBuildScript(Connection connection, BuildScript buildScript) throws DatabaseBuilderException {
-		log.info("inserting in db script table");
-		PreparedStatement preparedStatement;
+		FlightRecorderEvents.BookkeepingQuery event = beginBookkeeping("insertDBBuildScript");
 		try {
-			preparedStatement = connection.prepareStatement(BuildScript.INSERT_BUILD_SCRIPT);
-			preparedStatement.setBigDecimal( 1, buildScript.getOrder());
-			preparedStatement.setString(2, buildScript.getName());
+			log.info("inserting in db script table");
+			try (PreparedStatement preparedStatement = connection.prepareStatement(checksumColumns
+					? BuildScript.INSERT_BUILD_SCRIPT : BuildScript.INSERT_BUILD_SCRIPT_WITHOUT_CHECKSUMS)) {
+				preparedStatement.setBigDecimal( 1, buildScript.getOrder());
+				preparedStatement.setString(2, buildScript.getName());
+				if (checksumColumns) {
+					preparedStatement.setString(3, buildScript.getChecksum());
+					preparedStatement.setString(4, buildScript.getFileChecksums());
+				}
 
-			// execute insert SQL stetement
-			preparedStatement.executeUpdate();
-		} catch (SQLException e) {
-			throw new DatabaseBuilderException(e);
+				// execute insert SQL stetement
+				preparedStatement.executeUpdate();
+			} catch (SQLException e) {
+				throw new DatabaseBuilderException(e);
+			}
+		} finally {
+			event.commit();
 		}
 	}
 	
@@ -558,46 +1845,53 @@ public class ScriptProcessor extends JdbcDaoSupport {
 		}
 	}
 	
-	private void parseBuildScripts(BuildScript dbBuildScript, Connection connection) throws DatabaseBuilderException {
+	/**
+	 * Reduces the build scripts found in the file system to the ones that
+	 * have not been applied, as a set difference against the applied history.
+	 * 
+	 * @param history - the rows of the db_build_scripts table
+	 * @param connection - the bookkeeping connection
+	 * @throws DatabaseBuilderException - wraps any sql exception, or the database is ahead of the file system and no one can be prompted
+	 */
+	private boolean parseBuildScripts(AppliedHistory history, Connection connection) throws DatabaseBuilderException {
 		log.info("parsing scripts");
 		boolean doForcedRebuild = hasForcedRebuildFlag(connection);
+		outOfOrderScripts.clear();
+		fullRebuild = isTestUser() || doForcedRebuild;
 		
-		//System.out.println("***ParsingBuildScripts***");
-		if(dbBuildScript == null && !isTestUser()) {
+		if(history.isEmpty() && !isTestUser()) {
 			buildScripts.clear();
-			//System.out.println("Cleared buildscript list");
-			return;
+			return false;
 		}
 		
-		int position = buildScripts.indexOf(dbBuildScript);
-		if(dbBuildScript == null && !isTestUser()) {
+		if(!history.isEmpty() && !doForcedRebuild
+				&& history.missingFrom(buildScripts).contains(history.getLatest())) {
 			buildScripts.clear();
-			//System.out.println("Cleared buildscript list");
-			return;
+			if (settings.planOnly) {
+				log.warn("The database has been advanced beyond the file system, latest applied {}", history.getLatest());
+			} else if (settings.autoConfirm) {
+				// without anyone to acknowledge it the round fails, as it would stop at the prompt
+				throw new DatabaseBuilderException("The database has been advanced beyond the file system, latest applied "
+						+ history.getLatest());
+			} else {
+				promptUnbalancedState(history.getLatest());
+			}
+			return false;
 		}
 		
-		if(position < 0 && !doForcedRebuild) {
-			buildScripts.clear();
-			promptUnbalancedState(dbBuildScript);
-			return;
-		}
-
 		if(isTestUser() || doForcedRebuild) {
-			//System.out.println("has forced rebuild flag");
-			return;
-		}
-		
-		//System.out.println("position of build script in buildScripts is " + position);
-		//System.out.println("size of buildScripts from file system is " + buildScripts.size());
-		if(isTestUser() || hasForcedRebuildFlag(connection)) {
-			System.out.println("has forced rebuild flag");
-			return;
+			log.info("full rebuild, all build scripts will be applied");
+			return true;
 		}
 		
-		for(int index = 0; index <= position; index++) {
-			//remove lowers the index by one on each remove
-			buildScripts.remove(0);
+		List<BuildScript> pending = history.pending(buildScripts);
+		outOfOrderScripts.addAll(history.outOfOrder(pending));
+		if(!outOfOrderScripts.isEmpty()) {
+			log.warn("Build scripts older than the latest applied one have not been applied: {}", outOfOrderScripts);
 		}
+		buildScripts.clear();
+		buildScripts.addAll(pending);
+		return true;
 	}
 	
 	private boolean isTestUser(){
@@ -605,23 +1899,39 @@ public class ScriptProcessor extends JdbcDaoSupport {
 	}
 	
 	private boolean hasForcedRebuildFlag(Connection connection) throws DatabaseBuilderException {
-		boolean result = false;
-		
-		log.info("checking for forced rebuild");
-		PreparedStatement preparedStatement;
+		FlightRecorderEvents.BookkeepingQuery event = beginBookkeeping("hasForcedRebuildFlag");
 		try {
-			preparedStatement = connection.prepareStatement(FIND_FORCED_REBUILD_FLAG);
-			preparedStatement.setFloat( 1, new Float(-1));
-			preparedStatement.setString(2, forceDBRebuildFlag);
-			ResultSet resultSet = preparedStatement.executeQuery();
-			if(resultSet.next()) {
-				result = true;
+			boolean result = false;
+			
+			log.info("checking for forced rebuild");
+			if (Boolean.FALSE.equals(dbBuildScriptsExist)) {
+				// a plan of a new schema does not create the table
+				return false;
 			}
-		} catch (SQLException e) {
-			throw new DatabaseBuilderException(e);
+			try (PreparedStatement preparedStatement = connection.prepareStatement(FIND_FORCED_REBUILD_FLAG)) {
+				preparedStatement.setFloat( 1, new Float(-1));
+				preparedStatement.setString(2, settings.forceDBRebuildFlag);
+				try (ResultSet resultSet = preparedStatement.executeQuery()) {
+					if(resultSet.next()) {
+						result = true;
+					}
+				}
+			} catch (SQLException e) {
+				throw new DatabaseBuilderException(e);
+			}
+			log.info("hasForcedRebuildFlag() returned {}", result);
+			return result;
+		} finally {
+			event.commit();
 		}
-		log.info("hasForcedRebuildFlag() returned " + result);
-		return result;
+	}
+
+	private FlightRecorderEvents.BookkeepingQuery beginBookkeeping(String query) {
+		FlightRecorderEvents.BookkeepingQuery event = new FlightRecorderEvents.BookkeepingQuery();
+		event.schema = schemaName;
+		event.query = query;
+		event.begin();
+		return event;
 	}
 
 	private boolean isValidStatement(String statement) {
@@ -634,28 +1944,22 @@ public class ScriptProcessor extends JdbcDaoSupport {
 
 	public void loadPropertyFile() throws DatabaseBuilderException {
 		try {
-			input = new FileInputStream(mainPropertyFile);
-			log.info("Loading property file " + mainPropertyFile);
+			input = new FileInputStream(settings.mainPropertyFile);
+			log.info("Loading property file " + settings.mainPropertyFile);
 
 			// load a properties file
-			prop.load(input);
-
-			workspace = prop.getProperty(WORKSPACE_FLD);
-			marigoldDBScripts = prop.getProperty(MAR_DB_SCR_FLD);
-			marigoldDataDBScripts = prop.getProperty(MAR_DATA_SCR_FLD);
-			marigoldServices = prop.getProperty(MAR_SERVICE_FLD);
-			marPropertyFile = prop.getProperty(MAR_PROP_FLD);
-			marDataPropertyFile = prop.getProperty(MAR_DATA_PROP_FLD);
-			forceDBRebuildFlag = prop.getProperty(FORCE_REBUILD_FLD);
+			settings.prop.load(input);
+
+			applyProperties(MAR_PROP_FLD, MAR_DATA_PROP_FLD);
 			
 			// get the property value and print it out
-			logger.info("workspace:" + workspace);
-			logger.info("marigoldDBScripts:" + marigoldDBScripts);
-			logger.info("marigoldDataDBScripts:" + marigoldDataDBScripts);
-			logger.info("marigoldServices:" + marigoldServices);
-			logger.info("marPropertyFile:" + marPropertyFile);
-			logger.info("marDataPropertyFile:" + marDataPropertyFile);
-			logger.info("forceDBRebuildFlag:" + forceDBRebuildFlag);
+			logger.info("workspace:" + settings.workspace);
+			logger.info("marigoldDBScripts:" + settings.marigoldDBScripts);
+			logger.info("marigoldDataDBScripts:" + settings.marigoldDataDBScripts);
+			logger.info("marigoldServices:" + settings.marigoldServices);
+			logger.info("marPropertyFile:" + settings.marPropertyFile);
+			logger.info("marDataPropertyFile:" + settings.marDataPropertyFile);
+			logger.info("forceDBRebuildFlag:" + settings.forceDBRebuildFlag);
 
 		} catch (IOException ex) {
 			throw new DatabaseBuilderException(ex);
@@ -673,28 +1977,22 @@ public class ScriptProcessor extends JdbcDaoSupport {
 
 	public void loadMGTestPropertyFile() throws DatabaseBuilderException {
 		try {
-			input = new FileInputStream(mainPropertyFile);
-			log.info("Loading property file " + mainPropertyFile);
+			input = new FileInputStream(settings.mainPropertyFile);
+			log.info("Loading property file " + settings.mainPropertyFile);
 
 			// load a properties file
-			prop.load(input);
-
-			workspace             = prop.getProperty(WORKSPACE_FLD);
-			marigoldDBScripts     = prop.getProperty(MAR_DB_SCR_FLD);
-			marigoldDataDBScripts = prop.getProperty(MAR_DATA_SCR_FLD);
-			marigoldServices      = prop.getProperty(MAR_SERVICE_FLD);
-			marPropertyFile       = prop.getProperty(MG_TEST_PROP_FLD);
-			marDataPropertyFile   = prop.getProperty(MG_DATA_TEST_PROP_FLD);
-			forceDBRebuildFlag    = prop.getProperty(FORCE_REBUILD_FLD);
+			settings.prop.load(input);
+
+			applyProperties(MG_TEST_PROP_FLD, MG_DATA_TEST_PROP_FLD);
 			
 			// get the property value and print it out
-			logger.info("workspace:" + workspace);
-			logger.info("marigoldDBScripts:" + marigoldDBScripts);
-			logger.info("marigoldDataDBScripts:" + marigoldDataDBScripts);
-			logger.info("marigoldServices:" + marigoldServices);
-			logger.info("mgTestPropertyFile:" + marPropertyFile);
-			logger.info("mgDataTestPropertyFile:" + marDataPropertyFile);
-			logger.info("forceDBRebuildFlag:" + forceDBRebuildFlag);
+			logger.info("workspace:" + settings.workspace);
+			logger.info("marigoldDBScripts:" + settings.marigoldDBScripts);
+			logger.info("marigoldDataDBScripts:" + settings.marigoldDataDBScripts);
+			logger.info("marigoldServices:" + settings.marigoldServices);
+			logger.info("mgTestPropertyFile:" + settings.marPropertyFile);
+			logger.info("mgDataTestPropertyFile:" + settings.marDataPropertyFile);
+			logger.info("forceDBRebuildFlag:" + settings.forceDBRebuildFlag);
 
 		} catch (IOException ex) {
 			throw new DatabaseBuilderException(ex);
@@ -710,20 +2008,292 @@ public class ScriptProcessor extends JdbcDaoSupport {
 		}
 	}
 
+	/**
+	 * Reads the settings from the loaded properties.
+	 * 
+	 * @param marPropKey - the key of the jdbc property file of the marigold schema
+	 * @param marDataPropKey - the key of the jdbc property file of the marigoldData schema
+	 */
+	private void applyProperties(String marPropKey, String marDataPropKey) throws DatabaseBuilderException {
+		settings.workspace             = settings.prop.getProperty(WORKSPACE_FLD);
+		settings.marigoldDBScripts     = settings.prop.getProperty(MAR_DB_SCR_FLD);
+		settings.marigoldDataDBScripts = settings.prop.getProperty(MAR_DATA_SCR_FLD);
+		settings.marigoldServices      = settings.prop.getProperty(MAR_SERVICE_FLD);
+		settings.marPropertyFile       = settings.prop.getProperty(marPropKey);
+		settings.marDataPropertyFile   = settings.prop.getProperty(marDataPropKey);
+		settings.forceDBRebuildFlag    = settings.prop.getProperty(FORCE_REBUILD_FLD);
+		loadExecutionProperties();
+	}
+
+	private void loadExecutionProperties() throws DatabaseBuilderException {
+		settings.throttleMode = settings.prop.getProperty(THROTTLE_MODE_FLD);
+		try {
+			settings.fileParallelism = Integer.parseInt(settings.prop.getProperty(FILE_PARALLELISM_FLD, "1").trim());
+			settings.throttleDelay = Long.parseLong(settings.prop.getProperty(THROTTLE_DELAY_FLD,
+					String.valueOf(StatementThrottle.DEFAULT_FIXED_DELAY)).trim());
+			settings.throttleMaxDelay = Long.parseLong(settings.prop.getProperty(THROTTLE_MAX_FLD,
+					String.valueOf(StatementThrottle.DEFAULT_MAX_DELAY)).trim());
+			settings.schemaParallelism = Integer.parseInt(settings.prop.getProperty(SCHEMA_PARALLEL_FLD, "1").trim());
+			settings.targetParallelism = Integer.parseInt(settings.prop.getProperty(TARGET_PARALLEL_FLD, "1").trim());
+			settings.readAheadMaxMb = Integer.parseInt(settings.prop.getProperty(READ_AHEAD_FLD,
+					String.valueOf(ReadAheadPipeline.DEFAULT_MAX_MB)).trim());
+			settings.insertBatchSize = Integer.parseInt(settings.prop.getProperty(INSERT_BATCH_FLD,
+					String.valueOf(DEFAULT_INSERT_BATCH)).trim());
+			settings.dataBatchSize = Integer.parseInt(settings.prop.getProperty(DATA_BATCH_FLD,
+					String.valueOf(DataFileLoader.DEFAULT_BATCH_SIZE)).trim());
+			settings.dataParallelism = Integer.parseInt(settings.prop.getProperty(DATA_PARALLEL_FLD, "1").trim());
+			settings.deferredParallelism = Integer.parseInt(settings.prop.getProperty(DEFERRED_PARALLEL_FLD, "4").trim());
+			settings.scrubParallelism = Integer.parseInt(settings.prop.getProperty(SCRUB_PARALLEL_FLD,
+					String.valueOf(SchemaScrubber.DEFAULT_PARALLELISM)).trim());
+			settings.commitEveryRows = Long.parseLong(settings.prop.getProperty(COMMIT_ROWS_FLD,
+					String.valueOf(TransactionBatch.DEFAULT_ROWS)).trim());
+			settings.commitEveryMillis = Long.parseLong(settings.prop.getProperty(COMMIT_MILLIS_FLD,
+					String.valueOf(TransactionBatch.DEFAULT_MILLIS)).trim());
+			settings.metricsInterval = Long.parseLong(settings.prop.getProperty(METRICS_INTERVAL_FLD, "0").trim());
+			settings.watchDebounce = Long.parseLong(settings.prop.getProperty(WATCH_DEBOUNCE_FLD,
+					String.valueOf(WorkspaceWatcher.DEFAULT_DEBOUNCE_MILLIS)).trim());
+			settings.daemonPort = BuilderDaemon.port(settings.prop);
+			LogManager.setSqlMaxLength(Integer.parseInt(settings.prop.getProperty(LOG_SQL_MAX_FLD,
+					String.valueOf(LogManager.DEFAULT_SQL_MAX_LENGTH)).trim()));
+		} catch (NumberFormatException e) {
+			throw new DatabaseBuilderException("Throttle delays, parallelism limits, commit intervals, the sql log length and the daemon port must be whole numbers", e);
+		}
+		settings.transactionMode = settings.prop.getProperty(TRANSACTION_MODE_FLD, TransactionBatch.MODE_AUTO).trim();
+		settings.verifyChecksums = Boolean.parseBoolean(settings.prop.getProperty(VERIFY_CHECKSUMS_FLD, "false").trim());
+		settings.checksumIndexDir = settings.prop.getProperty(CHECKSUM_INDEX_FLD, System.getProperty("user.home") + DB_BUILDER_FLD).trim();
+		settings.executionHistoryDir = settings.prop.getProperty(EXEC_HISTORY_FLD, System.getProperty("user.home") + DB_BUILDER_FLD).trim();
+		settings.progressJournalDir = settings.prop.getProperty(PROGRESS_JOURNAL_FLD, System.getProperty("user.home") + DB_BUILDER_FLD).trim();
+		settings.autoConfirm = Boolean.parseBoolean(settings.prop.getProperty(AUTO_CONFIRM_FLD, "false").trim());
+		settings.daemonTokenFile = BuilderDaemon.tokenFile(settings.prop);
+		settings.daemonAutoConfirm = Boolean.parseBoolean(settings.prop.getProperty(DAEMON_CONFIRM_FLD, "false").trim());
+		settings.dataDirectPath = Boolean.parseBoolean(settings.prop.getProperty(DATA_DIRECT_PATH_FLD, "false").trim());
+		String encoding = settings.prop.getProperty(SCRIPT_ENCODING_FLD);
+		if (null != encoding && !encoding.trim().isEmpty()) {
+			try {
+				settings.scriptCharset = Charset.forName(encoding.trim());
+			} catch (IllegalArgumentException e) {
+				throw new DatabaseBuilderException("Unknown " + SCRIPT_ENCODING_FLD + " " + encoding.trim(), e);
+			}
+		}
+		settings.deferIndexes = Boolean.parseBoolean(settings.prop.getProperty(DEFER_DDL_FLD, "false").trim());
+		settings.scrubMode = settings.prop.getProperty(SCRUB_MODE_FLD, SchemaScrubber.MODE_FILE).trim().toLowerCase(Locale.ROOT);
+		if (!SchemaScrubber.MODE_FILE.equals(settings.scrubMode) && !SchemaScrubber.MODE_DICTIONARY.equals(settings.scrubMode)) {
+			throw new DatabaseBuilderException(SCRUB_MODE_FLD + " must be " + SchemaScrubber.MODE_FILE + " or "
+					+ SchemaScrubber.MODE_DICTIONARY + ", not " + settings.scrubMode);
+		}
+		settings.testReset = Boolean.parseBoolean(settings.prop.getProperty(TEST_RESET_FLD, "false").trim());
+		settings.rebuildProfile = SessionProfile.parse(SessionProfile.REBUILD, settings.prop.getProperty(SESSION_PROFILE_FLD + SessionProfile.REBUILD));
+		settings.incrementProfile = SessionProfile.parse(SessionProfile.INCREMENT, settings.prop.getProperty(SESSION_PROFILE_FLD + SessionProfile.INCREMENT));
+		settings.metricsDir = settings.prop.getProperty(METRICS_DIR_FLD);
+		loadSchemaDefinitions();
+		logger.info("throttleMode:" + settings.throttleMode);
+		logger.info("fileParallelism:" + settings.fileParallelism);
+		logger.info("transactionMode:" + settings.transactionMode);
+		logger.info("verifyChecksums:" + settings.verifyChecksums);
+	}
+
+	/**
+	 * Reads the list of schemas. When no list is configured the two
+	 * historical schemas are used, marigoldData following marigold.
+	 * 
+	 * @throws DatabaseBuilderException - if a listed schema has no scripts
+	 */
+	private void loadSchemaDefinitions() throws DatabaseBuilderException {
+		settings.schemas = new ArrayList<>();
+		String names = settings.prop.getProperty(SCHEMAS_FLD);
+		if (StringUtils.isEmpty(names)) {
+			settings.schemas.add(new SchemaDefinition(MARIGOLD_SCHEMA, settings.marigoldDBScripts, settings.marPropertyFile, null));
+			settings.schemas.add(new SchemaDefinition(MARIGOLD_DATA_SCHEMA, settings.marigoldDataDBScripts, settings.marDataPropertyFile,
+					Collections.singletonList(MARIGOLD_SCHEMA)));
+		} else {
+			for (String name : names.split(",")) {
+				name = name.trim();
+				if (name.isEmpty()) {
+					continue;
+				}
+				List<String> dependsOn = new ArrayList<>();
+				for (String dependency : settings.prop.getProperty(SCHEMA_PREFIX + name + SCHEMA_DEPENDS_FLD, "").split(",")) {
+					if (!dependency.trim().isEmpty()) {
+						dependsOn.add(dependency.trim());
+					}
+				}
+				String scripts = settings.prop.getProperty(SCHEMA_PREFIX + name + SCHEMA_SCRIPTS_FLD);
+				if (StringUtils.isEmpty(scripts) || scripts.trim().isEmpty()) {
+					throw new DatabaseBuilderException("Schema " + name + " is listed in " + SCHEMAS_FLD + " but has no "
+							+ SCHEMA_PREFIX + name + SCHEMA_SCRIPTS_FLD);
+				}
+				// targets name their own property files, so a missing one is only reported when it is used
+				settings.schemas.add(new SchemaDefinition(name, scripts.trim(),
+						settings.prop.getProperty(SCHEMA_PREFIX + name + SCHEMA_PROP_FLD), dependsOn));
+			}
+		}
+		for (SchemaDefinition schema : settings.schemas) {
+			logger.info("schema:" + schema);
+		}
+	}
+
+	/**
+	 * @return Settings - the configuration, for the classes running this processor's schemas
+	 */
+	Settings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * @return ExecutionMetrics - the counters shared by every schema of this run
+	 */
+	public ExecutionMetrics getMetrics() {
+		return settings.metrics;
+	}
+
+	/**
+	 * @param progressListener - receives a line per schema and build script as they are processed, and the plan
+	 */
+	public void setProgressListener(ProgressListener progressListener) {
+		settings.progressListener = progressListener;
+	}
+
+	public boolean isAutoConfirm() {
+		return settings.autoConfirm;
+	}
+
+	/**
+	 * @param autoConfirm - true to apply the pending build scripts without prompting, as the watch mode does
+	 */
+	public void setAutoConfirm(boolean autoConfirm) {
+		settings.autoConfirm = autoConfirm;
+	}
+
+	public int getDaemonPort() {
+		return settings.daemonPort;
+	}
+
+	/**
+	 * @return File - where the daemon writes the token its clients have to send
+	 */
+	public File getDaemonTokenFile() {
+		return settings.daemonTokenFile;
+	}
+
+	public boolean isDaemonAutoConfirm() {
+		return settings.daemonAutoConfirm;
+	}
+
+	/**
+	 * @param daemonAutoConfirm - true to let the daemon apply pending build scripts, which it does without prompting
+	 */
+	public void setDaemonAutoConfirm(boolean daemonAutoConfirm) {
+		settings.daemonAutoConfirm = daemonAutoConfirm;
+	}
+
+	public boolean isResume() {
+		return settings.resume;
+	}
+
+	/**
+	 * @param resume - true to skip the statements a failed or killed run already applied
+	 */
+	public void setResume(boolean resume) {
+		settings.resume = resume;
+	}
+
+	public boolean isPlanOnly() {
+		return settings.planOnly;
+	}
+
+	/**
+	 * @param planOnly - true to print the pending statements and their estimated duration instead of running them
+	 */
+	public void setPlanOnly(boolean planOnly) {
+		settings.planOnly = planOnly;
+	}
+
 	public String getMarPropertyFile() {
-		return marPropertyFile;
+		return settings.marPropertyFile;
 	}
 
 	public void setMarPropertyFile(String marPropertyFile) {
-		this.marPropertyFile = marPropertyFile;
+		settings.marPropertyFile = marPropertyFile;
 	}
 
 	public String getMarDataPropertyFile() {
-		return marDataPropertyFile;
+		return settings.marDataPropertyFile;
 	}
 
 	public void setMarDataPropertyFile(String marDataPropertyFile) {
-		this.marDataPropertyFile = marDataPropertyFile;
+		settings.marDataPropertyFile = marDataPropertyFile;
+	}
+
+	/**
+	 * The configuration of a run. The processors of the schemas and targets
+	 * of a run each start from a copy of the settings of the processor that
+	 * loaded the property file, so a new setting only has to be added here.
+	 * The properties and the schemas are copied, the metrics, the progress
+	 * listener and the other shared objects stay shared unless replaced, as
+	 * a target does.
+	 */
+	static final class Settings implements Cloneable {
+		Properties             prop                  = new Properties();
+		String                 mainPropertyFile      = null;
+		String                 workspace             = null;
+		String                 marigoldDBScripts     = null;
+		String                 marigoldDataDBScripts = null;
+		String                 marigoldServices      = null;
+		String                 marPropertyFile       = null;
+		String                 marDataPropertyFile   = null;
+		String                 forceDBRebuildFlag    = null;
+		String                 throttleMode          = null;
+		long                   throttleDelay         = StatementThrottle.DEFAULT_FIXED_DELAY;
+		long                   throttleMaxDelay      = StatementThrottle.DEFAULT_MAX_DELAY;
+		int                    fileParallelism       = 1;
+		int                    schemaParallelism     = 1;
+		List<SchemaDefinition> schemas               = new ArrayList<>();
+		String                 transactionMode       = TransactionBatch.MODE_AUTO;
+		long                   commitEveryRows       = TransactionBatch.DEFAULT_ROWS;
+		long                   commitEveryMillis     = TransactionBatch.DEFAULT_MILLIS;
+		boolean                verifyChecksums       = false;
+		String                 checksumIndexDir      = null;
+		boolean                planOnly              = false;
+		String                 executionHistoryDir   = null;
+		ExecutionMetrics       metrics               = new ExecutionMetrics();
+		String                 metricsDir            = null;
+		long                   metricsInterval       = 0;
+		String                 progressJournalDir    = null;
+		boolean                resume                = false;
+		long                   watchDebounce         = WorkspaceWatcher.DEFAULT_DEBOUNCE_MILLIS;
+		boolean                autoConfirm           = false;
+		int                    daemonPort            = BuilderDaemon.DEFAULT_PORT;
+		File                   daemonTokenFile       = null;
+		boolean                daemonAutoConfirm     = false;
+		ProgressListener       progressListener      = null;
+		String                 target                = null;
+		int                    targetParallelism     = 1;
+		int                    readAheadMaxMb        = ReadAheadPipeline.DEFAULT_MAX_MB;
+		int                    insertBatchSize       = DEFAULT_INSERT_BATCH;
+		int                    dataBatchSize         = DataFileLoader.DEFAULT_BATCH_SIZE;
+		int                    dataParallelism       = 1;
+		boolean                dataDirectPath        = false;
+		Charset                scriptCharset         = Charset.defaultCharset();
+		SessionProfile         rebuildProfile        = null;
+		SessionProfile         incrementProfile      = null;
+		boolean                deferIndexes          = false;
+		int                    deferredParallelism   = 4;
+		String                 scrubMode             = SchemaScrubber.MODE_FILE;
+		int                    scrubParallelism      = SchemaScrubber.DEFAULT_PARALLELISM;
+		boolean                testReset             = false;
+		Map<String, SortedMap<String, WorkspaceChecksums.DirectoryChecksum>> sharedChecksums = null;
+
+		Settings copy() {
+			try {
+				Settings copy = (Settings) clone();
+				copy.prop = new Properties();
+				copy.prop.putAll(prop);
+				copy.schemas = new ArrayList<>(schemas);
+				return copy;
+			} catch (CloneNotSupportedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
 	}
 
 }
@@ -0,0 +1,100 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * This class is a named set of session settings applied to every connection
+ * of a run, e.g. a parallel degree for index builds and a ddl lock timeout
+ * for full rebuilds, and more careful settings for production increments.
+ *
+ * The settings are separated by semi colons. A setting of the form
+ * name=value becomes alter session set name=value, anything else, e.g.
+ * alter session force parallel ddl parallel 8, runs as written.
+ */
+public class SessionProfile {
+	private static final LogManager log = LogManager.getLogger(SessionProfile.class);
+
+	// Constants
+	public static final String REBUILD   = "rebuild";
+	public static final String INCREMENT = "increment";
+	private static final Pattern PARAMETER = Pattern.compile("[A-Za-z_][\\w.\"]*\\s*=.*", Pattern.DOTALL);
+
+	private final String       name;
+	private final List<String> statements;
+
+	/**
+	 * @param name - the name of the profile, for the log
+	 * @param statements - the statements run on every connection
+	 */
+	public SessionProfile(String name, List<String> statements) {
+		this.name = name;
+		this.statements = Collections.unmodifiableList(new ArrayList<>(statements));
+	}
+
+	/**
+	 * @param name - the name of the profile
+	 * @param settings - the settings separated by semi colons, may be null
+	 * @return SessionProfile - the profile, null if there are no settings
+	 */
+	public static SessionProfile parse(String name, String settings) {
+		if (null == settings) {
+			return null;
+		}
+		List<String> statements = new ArrayList<>();
+		for (String setting : settings.split(";")) {
+			String trimmed = setting.trim();
+			if (trimmed.isEmpty()) {
+				continue;
+			}
+			statements.add(PARAMETER.matcher(trimmed).matches() ? "ALTER SESSION SET " + trimmed : trimmed);
+		}
+		return statements.isEmpty() ? null : new SessionProfile(name, statements);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public List<String> getStatements() {
+		return statements;
+	}
+
+	/**
+	 * Runs the settings on a new session. A setting the database rejects is
+	 * logged and skipped, so a wrong profile slows a run down rather than
+	 * stopping it.
+	 *
+	 * @param connection - the physical connection
+	 * @return int - the number of settings that failed
+	 */
+	public int apply(Connection connection) {
+		int failed = 0;
+		for (String statement : statements) {
+			try (Statement sessionStatement = connection.createStatement()) {
+				sessionStatement.execute(statement);
+			} catch (SQLException e) {
+				failed++;
+				log.warn("Session profile {} could not apply '{}': {}", new Object[] { name, statement, e.getMessage() });
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * This is used to display the content of the object as a String
+	 *
+	 * @return string - contents for SessionProfile
+	 */
+	@Override
+	public String toString() {
+		return new StringBuilder("name:").append(name)
+				.append(", statements:").append(statements)
+				.toString();
+	}
+}
@@ -0,0 +1,261 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * This class splits a sql file into statements in a single pass over
+ * the file. Only the statement currently being assembled is held in
+ * memory, so heap use does not grow with the size of the file.
+ *
+ * The delimiter depends on the kind of file, see {@link Mode}. Rule
+ * files accept both Windows and Unix line endings after the delimiter.
+ */
+public class SqlStatementReader implements StatementSource {
+	// Constants
+	public static final String SET_DEFINE_OFF = "set define off;";
+	private static final int   BUFFER_SIZE    = 64 * 1024;
+
+	/**
+	 * The delimiter flavours used by the change scripts.
+	 */
+	public enum Mode {
+		/** plain ddl and dml files, statements end with ;--&lt; */
+		STANDARD(";--<"),
+		/** procedures, triggers and large statements keep their semi colon and end with --&lt; */
+		PROCEDURE("--<"),
+		/** rule files end each statement with ;--end and a line ending */
+		RULE(";--end" + ScriptProcessor.WINDOWS_SEP, ";--end" + ScriptProcessor.NON_WINDOWS_SEP);
+
+		private final String[] delimiters;
+
+		Mode(String... delimiters) {
+			this.delimiters = delimiters;
+		}
+
+		/**
+		 * Derives the delimiter flavour from the name of a sql file.
+		 *
+		 * @param file - the sql file
+		 * @return Mode - the delimiter flavour the file is written in
+		 */
+		public static Mode forFile(File file) {
+			String name = file.getName();
+			if (name.contains("PROCEDURES") || name.contains("Large_Statements") || name.contains("TRIGGERS")) {
+				return PROCEDURE;
+			} else if (name.contains("Rules")) {
+				return RULE;
+			}
+			return STANDARD;
+		}
+	}
+
+	private final Reader        reader;
+	private final Mode          mode;
+	private final StringBuilder current = new StringBuilder();
+	private final char[]        buffer  = new char[BUFFER_SIZE];
+	private int                 position = 0;
+	private int                 limit    = 0;
+	private boolean             atStart  = true;
+	private boolean             eof      = false;
+	private int                 ordinal  = 0;
+	private final String        source;
+	private final FlightRecorderEvents.FileRead fileRead = new FlightRecorderEvents.FileRead();
+	private long                characters = 0;
+	private long                readNanos  = 0;
+
+	/**
+	 * Opens the file in the platform default charset and derives the
+	 * delimiter flavour from its name.
+	 *
+	 * @param file - the sql file to split
+	 * @throws IOException - if the file cannot be opened
+	 */
+	public SqlStatementReader(File file) throws IOException {
+		this(file, Charset.defaultCharset());
+	}
+
+	/**
+	 * Opens the file and derives the delimiter flavour from its name.
+	 *
+	 * @param file - the sql file to split
+	 * @param charset - the encoding of the workspace files
+	 * @throws IOException - if the file cannot be opened
+	 */
+	public SqlStatementReader(File file, Charset charset) throws IOException {
+		this(new InputStreamReader(new FileInputStream(file), charset), Mode.forFile(file), file.getPath());
+	}
+
+	/**
+	 * @param reader - the source of the sql text, closed with this reader
+	 * @param mode - the delimiter flavour of the text
+	 */
+	public SqlStatementReader(Reader reader, Mode mode) {
+		this(reader, mode, null);
+	}
+
+	private SqlStatementReader(Reader reader, Mode mode, String source) {
+		this.reader = reader;
+		this.mode = mode;
+		this.source = source;
+		fileRead.begin();
+	}
+
+	@Override
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return int - the one based position of the statement last returned by {@link #nextStatement()}
+	 */
+	@Override
+	public int getOrdinal() {
+		return ordinal;
+	}
+
+	/**
+	 * Reads up to the next delimiter and returns the trimmed statement.
+	 * Empty statements are skipped.
+	 *
+	 * @return String - the next statement or null at the end of the file
+	 * @throws IOException - if the file cannot be read
+	 */
+	@Override
+	public String nextStatement() throws IOException {
+		FlightRecorderEvents.StatementSplit split = new FlightRecorderEvents.StatementSplit();
+		split.begin();
+		String statement = readStatement();
+		if (null != statement && split.shouldCommit()) {
+			split.file = source;
+			split.ordinal = ordinal;
+			split.length = statement.length();
+			split.commit();
+		}
+		return statement;
+	}
+
+	private String readStatement() throws IOException {
+		while (fill()) {
+			char c = buffer[position++];
+			current.append(c);
+			if (atStart) {
+				int matched = matchSetDefineOff();
+				if (matched == SET_DEFINE_OFF.length()) {
+					atStart = false;
+					current.setLength(0);
+					continue;
+				}
+				atStart = matched >= 0;
+			}
+			int delimiterLength = matchDelimiter(c);
+			if (delimiterLength > 0) {
+				String statement = take(current.length() - delimiterLength);
+				if (!statement.isEmpty()) {
+					return statement;
+				}
+			}
+		}
+		// whatever follows the last delimiter is the final statement
+		String tail = current.toString();
+		for (String delimiter : mode.delimiters) {
+			String bare = delimiter.trim();
+			if (tail.trim().endsWith(bare)) {
+				tail = tail.substring(0, tail.lastIndexOf(bare));
+				break;
+			}
+		}
+		current.setLength(0);
+		current.append(tail);
+		String statement = take(current.length());
+		return statement.isEmpty() ? null : statement;
+	}
+
+	/**
+	 * Compares what has been read so far, after any leading whitespace,
+	 * with set define off; ignoring case.
+	 *
+	 * @return int - the number of characters matched or -1 once they differ
+	 */
+	private int matchSetDefineOff() {
+		int start = 0;
+		while (start < current.length() && Character.isWhitespace(current.charAt(start))) {
+			start++;
+		}
+		int matched = current.length() - start;
+		if (matched > SET_DEFINE_OFF.length()) {
+			return -1;
+		}
+		for (int index = 0; index < matched; index++) {
+			if (Character.toLowerCase(current.charAt(start + index)) != SET_DEFINE_OFF.charAt(index)) {
+				return -1;
+			}
+		}
+		return matched;
+	}
+
+	private String take(int length) {
+		String statement = current.substring(0, length).trim();
+		current.setLength(0);
+		atStart = false;
+		if (!statement.isEmpty()) {
+			ordinal++;
+		}
+		return statement;
+	}
+
+	private boolean fill() throws IOException {
+		if (position < limit) {
+			return true;
+		}
+		if (eof) {
+			return false;
+		}
+		long start = System.nanoTime();
+		limit = reader.read(buffer, 0, buffer.length);
+		readNanos += System.nanoTime() - start;
+		position = 0;
+		if (limit <= 0) {
+			limit = 0;
+			eof = true;
+			return false;
+		}
+		characters += limit;
+		return true;
+	}
+
+	private int matchDelimiter(char last) {
+		for (String delimiter : mode.delimiters) {
+			int length = delimiter.length();
+			if (delimiter.charAt(length - 1) != last || current.length() < length) {
+				continue;
+			}
+			int offset = current.length() - length;
+			boolean match = true;
+			for (int index = 0; index < length - 1 && match; index++) {
+				match = current.charAt(offset + index) == delimiter.charAt(index);
+			}
+			if (match) {
+				return length;
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+		fileRead.end();
+		if (fileRead.shouldCommit()) {
+			fileRead.file = source;
+			fileRead.characters = characters;
+			fileRead.statements = ordinal;
+			fileRead.readTime = readNanos;
+			fileRead.commit();
+		}
+	}
+}
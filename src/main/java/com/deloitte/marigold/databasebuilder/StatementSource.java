@@ -0,0 +1,28 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The statements of one sql file, in order. They are either split from the
+ * file as they are asked for, see {@link SqlStatementReader}, or were split
+ * ahead of time by a {@link ReadAheadPipeline}.
+ */
+public interface StatementSource extends Closeable {
+
+	/**
+	 * @return String - the next statement or null at the end of the file
+	 * @throws IOException - if the file cannot be read
+	 */
+	String nextStatement() throws IOException;
+
+	/**
+	 * @return int - the one based position of the statement last returned by {@link #nextStatement()}
+	 */
+	int getOrdinal();
+
+	/**
+	 * @return Mode - the delimiter flavour of the file
+	 */
+	SqlStatementReader.Mode getMode();
+}
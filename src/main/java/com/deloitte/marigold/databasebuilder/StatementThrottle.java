@@ -0,0 +1,221 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.util.function.LongSupplier;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * This class controls the pacing of the statements the ScriptProcessor sends
+ * to the database. It replaces the fixed sleep that used to precede every
+ * statement.
+ *
+ * Three modes are supported:
+ * <ul>
+ * <li>none - statements are sent as fast as the database accepts them (default)</li>
+ * <li>fixed - a constant delay before every statement, the historical behaviour</li>
+ * <li>adaptive - no delay until the database pushes back, either through rising
+ * statement latency or through blocked sessions reported by v$session</li>
+ * </ul>
+ */
+public abstract class StatementThrottle {
+	private static final LogManager log = LogManager.getLogger(StatementThrottle.class);
+
+	// Constants
+	public static final String MODE_NONE          = "none";
+	public static final String MODE_FIXED         = "fixed";
+	public static final String MODE_ADAPTIVE      = "adaptive";
+	public static final long   DEFAULT_FIXED_DELAY = 200;
+	public static final long   DEFAULT_MAX_DELAY   = 2000;
+
+	public static final String BLOCKED_SESSIONS_QUERY = "SELECT COUNT(*) FROM v$session WHERE blocking_session IS NOT NULL";
+
+	/**
+	 * Called before each statement is sent to the database. Implementations
+	 * block the calling thread for as long as the statement should be held back.
+	 *
+	 * @throws InterruptedException - if the thread is interrupted while waiting
+	 */
+	public abstract void beforeStatement() throws InterruptedException;
+
+	/**
+	 * Called after each statement completes, successfully or not.
+	 *
+	 * @param elapsedMillis - the time the statement spent in the database
+	 */
+	public void afterStatement(long elapsedMillis) {
+		// only the adaptive throttle reacts to latency
+	}
+
+	/**
+	 * @return long - the delay the next statement is held back by, in milliseconds
+	 */
+	public long getDelayMillis() {
+		return 0;
+	}
+
+	/**
+	 * Creates the throttle for the given mode.
+	 *
+	 * @param mode - one of none, fixed or adaptive; null or empty means none
+	 * @param fixedDelayMillis - the delay used by the fixed throttle and the initial back off step of the adaptive throttle
+	 * @param maxDelayMillis - the upper bound on the delay of the adaptive throttle
+	 * @param jdbcTemplate - used by the adaptive throttle to sample v$session
+	 * @return StatementThrottle - the throttle for the mode
+	 * @throws DatabaseBuilderException - if the mode is not recognised
+	 */
+	public static StatementThrottle create(String mode, long fixedDelayMillis, long maxDelayMillis,
+			JdbcTemplate jdbcTemplate) throws DatabaseBuilderException {
+		return create(mode, fixedDelayMillis, maxDelayMillis, jdbcTemplate, System::currentTimeMillis);
+	}
+
+	/**
+	 * Creates the throttle for the given mode, timing the v$session samples
+	 * of the adaptive throttle with the given clock.
+	 *
+	 * @param mode - one of none, fixed or adaptive; null or empty means none
+	 * @param fixedDelayMillis - the delay used by the fixed throttle and the initial back off step of the adaptive throttle
+	 * @param maxDelayMillis - the upper bound on the delay of the adaptive throttle
+	 * @param jdbcTemplate - used by the adaptive throttle to sample v$session
+	 * @param clock - the current time in milliseconds
+	 * @return StatementThrottle - the throttle for the mode
+	 * @throws DatabaseBuilderException - if the mode is not recognised
+	 */
+	public static StatementThrottle create(String mode, long fixedDelayMillis, long maxDelayMillis,
+			JdbcTemplate jdbcTemplate, LongSupplier clock) throws DatabaseBuilderException {
+		if (mode == null || mode.trim().isEmpty() || mode.trim().equalsIgnoreCase(MODE_NONE)) {
+			return new NoThrottle();
+		} else if (mode.trim().equalsIgnoreCase(MODE_FIXED)) {
+			return new FixedThrottle(fixedDelayMillis);
+		} else if (mode.trim().equalsIgnoreCase(MODE_ADAPTIVE)) {
+			return new AdaptiveThrottle(fixedDelayMillis, maxDelayMillis, jdbcTemplate, clock);
+		}
+		throw new DatabaseBuilderException("Unknown throttle mode \"" + mode + "\"");
+	}
+
+	static final class NoThrottle extends StatementThrottle {
+
+		@Override
+		public void beforeStatement() {
+			// never waits
+		}
+	}
+
+	static final class FixedThrottle extends StatementThrottle {
+		private final long delayMillis;
+
+		FixedThrottle(long delayMillis) {
+			this.delayMillis = delayMillis;
+		}
+
+		@Override
+		public void beforeStatement() throws InterruptedException {
+			if (delayMillis > 0) {
+				Thread.sleep(delayMillis);
+			}
+		}
+
+		@Override
+		public long getDelayMillis() {
+			return delayMillis;
+		}
+	}
+
+	/**
+	 * Backs off multiplicatively while the database is under pressure and
+	 * recovers multiplicatively once the pressure is gone. Pressure is either a
+	 * short term latency average well above the long term baseline or blocked
+	 * sessions seen in v$session.
+	 */
+	static final class AdaptiveThrottle extends StatementThrottle {
+		private static final double FAST_WEIGHT        = 0.2;
+		private static final double SLOW_WEIGHT        = 0.01;
+		private static final double LATENCY_RATIO      = 2.0;
+		private static final int    WARM_UP_STATEMENTS = 20;
+		private static final long   SAMPLE_INTERVAL    = 5000;
+
+		private final long         stepMillis;
+		private final long         maxDelayMillis;
+		private final JdbcTemplate jdbcTemplate;
+		private final LongSupplier clock;
+
+		private double  fastLatency    = 0;
+		private double  slowLatency    = 0;
+		private long    statements     = 0;
+		private long    delayMillis    = 0;
+		private long    lastSample     = 0;
+		private boolean blocked        = false;
+		private boolean sampleSessions = true;
+
+		AdaptiveThrottle(long stepMillis, long maxDelayMillis, JdbcTemplate jdbcTemplate, LongSupplier clock) {
+			this.stepMillis = Math.max(1, stepMillis);
+			this.maxDelayMillis = Math.max(this.stepMillis, maxDelayMillis);
+			this.jdbcTemplate = jdbcTemplate;
+			this.clock = clock;
+		}
+
+		@Override
+		public void beforeStatement() throws InterruptedException {
+			sampleBlockedSessions();
+			long delay;
+			synchronized (this) {
+				delay = delayMillis;
+			}
+			if (delay > 0) {
+				Thread.sleep(delay);
+			}
+		}
+
+		@Override
+		public synchronized long getDelayMillis() {
+			return delayMillis;
+		}
+
+		@Override
+		public synchronized void afterStatement(long elapsedMillis) {
+			statements++;
+			if (statements == 1) {
+				fastLatency = elapsedMillis;
+				slowLatency = elapsedMillis;
+			} else {
+				fastLatency += FAST_WEIGHT * (elapsedMillis - fastLatency);
+				slowLatency += SLOW_WEIGHT * (elapsedMillis - slowLatency);
+			}
+			boolean slow = statements > WARM_UP_STATEMENTS && fastLatency > LATENCY_RATIO * Math.max(1, slowLatency);
+			if (slow || blocked) {
+				long previous = delayMillis;
+				delayMillis = Math.min(maxDelayMillis, Math.max(stepMillis, delayMillis * 2));
+				if (previous != delayMillis) {
+					log.info("Database pushing back (latency {} ms, baseline {} ms, blocked {}), delaying statements {} ms",
+							new Object[] { Math.round(fastLatency), Math.round(slowLatency), blocked, delayMillis });
+				}
+			} else if (delayMillis > 0) {
+				delayMillis = delayMillis / 2;
+			}
+		}
+
+		private void sampleBlockedSessions() {
+			synchronized (this) {
+				long now = clock.getAsLong();
+				if (!sampleSessions || jdbcTemplate == null || now - lastSample < SAMPLE_INTERVAL) {
+					return;
+				}
+				lastSample = now;
+			}
+			boolean result;
+			try {
+				Integer count = jdbcTemplate.queryForObject(BLOCKED_SESSIONS_QUERY, Integer.class);
+				result = count != null && count > 0;
+			} catch (DataAccessException e) {
+				log.warn("Unable to sample v$session, adaptive throttle will use statement latency only: {}", e.getMessage());
+				synchronized (this) {
+					sampleSessions = false;
+				}
+				result = false;
+			}
+			synchronized (this) {
+				blocked = result;
+			}
+		}
+	}
+}
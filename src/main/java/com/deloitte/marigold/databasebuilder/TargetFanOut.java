@@ -0,0 +1,171 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.springframework.util.StringUtils;
+
+/**
+ * This class applies the workspace to every configured target, up to the
+ * target parallelism at the same time. A target is a set of jdbc property
+ * files, one per schema, and is processed like a run of its own, so a
+ * failure stops that target only. The workspace is hashed once for all
+ * targets.
+ *
+ * Every target works on its own copy of the configuration with its own
+ * metrics, which are added to the metrics of the run once the target is
+ * done, and reports its progress prefixed with its name.
+ */
+public class TargetFanOut {
+	private static final LogManager log = LogManager.getLogger(TargetFanOut.class);
+
+	private final ScriptProcessor processor;
+
+	/**
+	 * @param processor - the processor holding the loaded configuration
+	 */
+	public TargetFanOut(ScriptProcessor processor) {
+		this.processor = processor;
+	}
+
+	/**
+	 * Processes every target and prints a table of the results at the end.
+	 *
+	 * @return List - the result of every target, in the configured order
+	 * @throws DatabaseBuilderException - if the targets are not configured, or after the table if any target failed
+	 */
+	public List<TargetResult> run() throws DatabaseBuilderException {
+		Map<String, List<SchemaDefinition>> targets = loadTargets();
+		processor.getSettings().sharedChecksums = new HashMap<>();
+		File metricsFile = processor.startMetrics();
+		List<TargetResult> results = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(Math.max(1, processor.getSettings().targetParallelism),
+				targets.size()));
+		try {
+			List<Future<TargetResult>> futures = new ArrayList<>();
+			for (final Map.Entry<String, List<SchemaDefinition>> entry : targets.entrySet()) {
+				futures.add(executor.submit(() -> processTarget(entry.getKey(), entry.getValue())));
+			}
+			for (Future<TargetResult> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DatabaseBuilderException("Interrupted waiting for the targets", e);
+		} catch (ExecutionException e) {
+			throw new DatabaseBuilderException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+			processor.getSettings().sharedChecksums = null;
+			processor.stopMetrics(metricsFile);
+		}
+		report(results);
+		List<String> failed = new ArrayList<>();
+		for (TargetResult result : results) {
+			if (!result.isSucceeded()) {
+				failed.add(result.getName());
+			}
+		}
+		if (!failed.isEmpty()) {
+			throw new DatabaseBuilderException(failed.size() + " of " + results.size() + " targets failed: " + failed);
+		}
+		return results;
+	}
+
+	/**
+	 * Processes the schemas of one target. Any failure is caught and becomes
+	 * the result of the target.
+	 */
+	private TargetResult processTarget(final String name, List<SchemaDefinition> targetSchemas) {
+		ScriptProcessor targetProcessor = new ScriptProcessor(processor);
+		ScriptProcessor.Settings settings = targetProcessor.getSettings();
+		settings.target = name;
+		settings.schemas = targetSchemas;
+		settings.metrics = new ExecutionMetrics();
+		final ProgressListener listener = settings.progressListener;
+		if (null != listener) {
+			// the targets run side by side, so their messages are told apart and handed over one at a time
+			settings.progressListener = message -> {
+				synchronized (listener) {
+					listener.progress(name + ": " + message);
+				}
+			};
+		}
+		long started = System.currentTimeMillis();
+		String message = null;
+		try {
+			log.info("Processing target {}", name);
+			targetProcessor.processSchemas();
+		} catch (DatabaseBuilderException | RuntimeException e) {
+			log.error("Target " + name + " failed", e);
+			message = e.getMessage();
+		} finally {
+			processor.getMetrics().add(settings.metrics);
+		}
+		long buildScriptCount = 0;
+		long statements = 0;
+		long errors = 0;
+		for (SchemaDefinition schema : targetSchemas) {
+			String label = ScriptProcessor.qualify(name, schema.getName());
+			buildScriptCount += settings.metrics.getCount(ExecutionMetrics.BUILD_SCRIPTS, label);
+			statements += settings.metrics.getCount(ExecutionMetrics.STATEMENTS, label);
+			errors += settings.metrics.getCount(ExecutionMetrics.ERRORS, label);
+		}
+		return new TargetResult(name, null == message, buildScriptCount, statements, errors,
+				System.currentTimeMillis() - started, message);
+	}
+
+	private void report(List<TargetResult> results) {
+		StringBuilder table = new StringBuilder(TargetResult.header()).append(ScriptProcessor.NON_WINDOWS_SEP);
+		for (TargetResult result : results) {
+			table.append(result.toRow()).append(ScriptProcessor.NON_WINDOWS_SEP);
+		}
+		log.info("Results of {} targets{}{}", new Object[] { results.size(), ScriptProcessor.NON_WINDOWS_SEP, table });
+		if (null != processor.getSettings().progressListener) {
+			processor.getSettings().progressListener.progress(table.toString());
+		} else {
+			System.out.print(table);
+		}
+	}
+
+	/**
+	 * Reads the list of targets. Every target names the jdbc property file
+	 * of each configured schema, e.g. target.qa.marigold.propertyFile.
+	 *
+	 * @return Map - the schemas of every target, keyed by target name in the configured order
+	 * @throws DatabaseBuilderException - if no targets are listed or a property file is missing
+	 */
+	private Map<String, List<SchemaDefinition>> loadTargets() throws DatabaseBuilderException {
+		ScriptProcessor.Settings settings = processor.getSettings();
+		Map<String, List<SchemaDefinition>> targets = new LinkedHashMap<>();
+		for (String name : settings.prop.getProperty(ScriptProcessor.TARGETS_FLD, "").split(",")) {
+			name = name.trim();
+			if (name.isEmpty()) {
+				continue;
+			}
+			List<SchemaDefinition> targetSchemas = new ArrayList<>();
+			for (SchemaDefinition schema : settings.schemas) {
+				String key = ScriptProcessor.TARGET_PREFIX + name + "." + schema.getName() + ScriptProcessor.SCHEMA_PROP_FLD;
+				String propertyFile = settings.prop.getProperty(key);
+				if (StringUtils.isEmpty(propertyFile)) {
+					throw new DatabaseBuilderException("Target " + name + " has no " + key);
+				}
+				targetSchemas.add(new SchemaDefinition(schema.getName(), schema.getScriptRoot(), propertyFile.trim(),
+						schema.getDependsOn()));
+			}
+			targets.put(name, targetSchemas);
+		}
+		if (targets.isEmpty()) {
+			throw new DatabaseBuilderException("No targets configured, list them in " + ScriptProcessor.TARGETS_FLD);
+		}
+		return targets;
+	}
+}
@@ -0,0 +1,98 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.util.Locale;
+
+/**
+ * This class is an entity bean holding the outcome of applying the
+ * workspace to one target of a fan out run.
+ */
+public class TargetResult {
+	private final String  name;
+	private final boolean succeeded;
+	private final long    buildScripts;
+	private final long    statements;
+	private final long    errors;
+	private final long    millis;
+	private final String  message;
+
+	/**
+	 * @param name - the target name
+	 * @param succeeded - true if every schema of the target was processed
+	 * @param buildScripts - build script directories applied
+	 * @param statements - statements executed
+	 * @param errors - statements, files and build scripts that failed
+	 * @param millis - wall clock time of the target
+	 * @param message - the failure, null if it succeeded
+	 */
+	public TargetResult(String name, boolean succeeded, long buildScripts, long statements, long errors, long millis,
+			String message) {
+		this.name = name;
+		this.succeeded = succeeded;
+		this.buildScripts = buildScripts;
+		this.statements = statements;
+		this.errors = errors;
+		this.millis = millis;
+		this.message = message;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isSucceeded() {
+		return succeeded;
+	}
+
+	public long getBuildScripts() {
+		return buildScripts;
+	}
+
+	public long getStatements() {
+		return statements;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	public long getMillis() {
+		return millis;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return String - the header line of {@link #toRow()}
+	 */
+	public static String header() {
+		return String.format(Locale.ROOT, "%-20s %-7s %13s %11s %7s %10s  %s", "target", "status", "build scripts", "statements",
+				"errors", "seconds", "message");
+	}
+
+	/**
+	 * @return String - the result as a line of the result table
+	 */
+	public String toRow() {
+		return String.format(Locale.ROOT, "%-20s %-7s %13d %11d %7d %10.1f  %s", name, succeeded ? "OK" : "FAILED",
+				buildScripts, statements, errors, millis / 1000.0, null == message ? "" : message);
+	}
+
+	/**
+	 * This is used to display the content of the object as a String
+	 *
+	 * @return string - contents for TargetResult
+	 */
+	@Override
+	public String toString() {
+		return new StringBuilder("name:").append(name)
+				.append(", succeeded:").append(succeeded)
+				.append(", buildScripts:").append(buildScripts)
+				.append(", statements:").append(statements)
+				.append(", errors:").append(errors)
+				.append(", millis:").append(millis)
+				.append(", message:").append(message)
+				.toString();
+	}
+}
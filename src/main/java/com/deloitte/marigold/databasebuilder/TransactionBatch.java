@@ -0,0 +1,167 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.function.LongSupplier;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+/**
+ * This class holds the single connection all statements of one build
+ * script run on when transactional grouping is enabled. Auto commit is
+ * off and the work is committed every N rows or every M milliseconds,
+ * whichever comes first, and once more together with the db_build_scripts
+ * row at the end of the build script.
+ *
+ * Note that Oracle commits implicitly around every DDL statement, so only
+ * runs of DML are grouped.
+ */
+public class TransactionBatch {
+	private static final LogManager log = LogManager.getLogger(TransactionBatch.class);
+
+	// Constants
+	public static final String MODE_AUTO          = "auto";
+	public static final String MODE_BUILD_SCRIPT  = "buildScript";
+	public static final long   DEFAULT_ROWS       = 1000;
+	public static final long   DEFAULT_MILLIS     = 5000;
+
+	private final Connection   connection;
+	private final JdbcTemplate jdbcTemplate;
+	private final long         commitEveryRows;
+	private final long         commitEveryMillis;
+	private final LongSupplier clock;
+	private long               rowsSinceCommit = 0;
+	private long               lastCommit;
+	private long               commits         = 0;
+	private SQLException       failure         = null;
+	private Runnable           commitListener  = null;
+
+	/**
+	 * Takes a connection from the data source and turns auto commit off.
+	 *
+	 * @param dataSource - the pool the connection is drawn from
+	 * @param commitEveryRows - rows affected between intermediate commits, 0 for no row limit
+	 * @param commitEveryMillis - milliseconds between intermediate commits, 0 for no time limit
+	 * @throws DatabaseBuilderException - if no connection can be obtained
+	 */
+	public TransactionBatch(DataSource dataSource, long commitEveryRows, long commitEveryMillis)
+			throws DatabaseBuilderException {
+		this(dataSource, commitEveryRows, commitEveryMillis, System::currentTimeMillis);
+	}
+
+	/**
+	 * Takes a connection from the data source and turns auto commit off,
+	 * timing the commits with the given clock.
+	 *
+	 * @param dataSource - the pool the connection is drawn from
+	 * @param commitEveryRows - rows affected between intermediate commits, 0 for no row limit
+	 * @param commitEveryMillis - milliseconds between intermediate commits, 0 for no time limit
+	 * @param clock - the current time in milliseconds
+	 * @throws DatabaseBuilderException - if no connection can be obtained
+	 */
+	public TransactionBatch(DataSource dataSource, long commitEveryRows, long commitEveryMillis, LongSupplier clock)
+			throws DatabaseBuilderException {
+		this.commitEveryRows = commitEveryRows;
+		this.commitEveryMillis = commitEveryMillis;
+		this.clock = clock;
+		lastCommit = clock.getAsLong();
+		try {
+			connection = dataSource.getConnection();
+			connection.setAutoCommit(false);
+		} catch (SQLException e) {
+			throw new DatabaseBuilderException("Unable to open the transaction connection", e);
+		}
+		jdbcTemplate = new JdbcTemplate(new SingleConnectionDataSource(connection, true));
+	}
+
+	/**
+	 * @param commitListener - called after every commit, e.g. to record the progress that is now durable
+	 */
+	public void setCommitListener(Runnable commitListener) {
+		this.commitListener = commitListener;
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * @return JdbcTemplate - a template running every statement on the transaction connection
+	 */
+	public JdbcTemplate getJdbcTemplate() {
+		return jdbcTemplate;
+	}
+
+	/**
+	 * Counts the rows of a completed statement and commits when either
+	 * limit has been reached. A failed intermediate commit is kept and
+	 * reported by {@link #commit()}.
+	 *
+	 * @param rows - the number of rows the statement affected
+	 */
+	public void afterStatement(int rows) {
+		rowsSinceCommit += Math.max(0, rows);
+		boolean rowLimit = commitEveryRows > 0 && rowsSinceCommit >= commitEveryRows;
+		boolean timeLimit = commitEveryMillis > 0 && clock.getAsLong() - lastCommit >= commitEveryMillis;
+		if ((rowLimit || timeLimit) && failure == null) {
+			try {
+				commitNow();
+			} catch (SQLException e) {
+				log.error("Intermediate commit failed", e);
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * Commits the outstanding work, including the bookkeeping row.
+	 *
+	 * @throws DatabaseBuilderException - if this or an earlier intermediate commit failed
+	 */
+	public void commit() throws DatabaseBuilderException {
+		if (failure != null) {
+			throw new DatabaseBuilderException("An intermediate commit failed", failure);
+		}
+		try {
+			commitNow();
+		} catch (SQLException e) {
+			throw new DatabaseBuilderException("Commit failed", e);
+		}
+		log.info("Build script committed in {} commits", commits);
+	}
+
+	/**
+	 * Rolls back whatever has not been committed yet.
+	 */
+	public void rollback() {
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			log.error("Rollback failed", e);
+		}
+	}
+
+	/**
+	 * Returns the connection to the pool, which restores auto commit.
+	 */
+	public void close() {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			log.error("Error closing transaction connection", e);
+		}
+	}
+
+	private void commitNow() throws SQLException {
+		connection.commit();
+		commits++;
+		rowsSinceCommit = 0;
+		lastCommit = clock.getAsLong();
+		if (null != commitListener) {
+			commitListener.run();
+		}
+	}
+}
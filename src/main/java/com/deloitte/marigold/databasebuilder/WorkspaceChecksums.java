@@ -0,0 +1,275 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class computes SHA-256 checksums of the build script directories of
+ * a schema and of every file within them.
+ *
+ * A sidecar index on the local disk remembers the checksum of each file
+ * together with its modification time and size, so unchanged files are not
+ * read again. Files that do need hashing are hashed in parallel.
+ *
+ * The workspace checksum combines the checksums of all directories and is
+ * stored in the database after a complete run, so an unchanged workspace can
+ * be recognised with a single query.
+ */
+public class WorkspaceChecksums {
+	private static final LogManager log = LogManager.getLogger(WorkspaceChecksums.class);
+
+	// Constants
+	public static final String ALGORITHM        = "SHA-256";
+	public static final String MANIFEST_SEP     = "=";
+	public static final String INDEX_FILE_NAME  = "checksum-index-";
+	public static final String INDEX_FILE_EXT   = ".properties";
+	private static final int   BUFFER_SIZE      = 64 * 1024;
+	private static final char[] HEX             = "0123456789abcdef".toCharArray();
+
+	private final File                          indexFile;
+	private final Map<String, String>           index  = new ConcurrentHashMap<>();
+	private volatile boolean                    dirty  = false;
+
+	/**
+	 * @param indexFile - the sidecar index, created on {@link #save()} if it does not exist
+	 */
+	public WorkspaceChecksums(File indexFile) {
+		this.indexFile = indexFile;
+		if (indexFile.isFile()) {
+			Properties properties = new Properties();
+			try (InputStream input = new FileInputStream(indexFile)) {
+				properties.load(input);
+				for (String path : properties.stringPropertyNames()) {
+					index.put(path, properties.getProperty(path));
+				}
+			} catch (IOException e) {
+				log.warn("Ignoring unreadable checksum index {}: {}", new Object[] { indexFile, e.getMessage() });
+			}
+		}
+	}
+
+	/**
+	 * Hashes every build script directory under the root.
+	 *
+	 * @param rootFile - the directory holding the build script directories
+	 * @return SortedMap - directory checksums keyed and sorted by directory name
+	 * @throws DatabaseBuilderException - if a file cannot be read
+	 */
+	public SortedMap<String, DirectoryChecksum> hashRoot(File rootFile) throws DatabaseBuilderException {
+		File[] directories = rootFile.listFiles();
+		if (null == directories) {
+			throw new DatabaseBuilderException("Unable to list " + rootFile);
+		}
+		// collect every file first so hashing can spread across all cores
+		final Map<File, String> relativePaths = new TreeMap<>();
+		for (File directory : directories) {
+			collect(directory, "", relativePaths);
+		}
+		final Map<File, String> hashes = new ConcurrentHashMap<>();
+		try {
+			relativePaths.keySet().parallelStream().forEach(file -> hashes.put(file, checksum(file)));
+		} catch (UncheckedIOException e) {
+			throw new DatabaseBuilderException(ScriptProcessor.ERR_FILE_READ + e.getMessage(), e.getCause());
+		}
+		SortedMap<String, DirectoryChecksum> result = new TreeMap<>();
+		for (File directory : directories) {
+			result.put(directory.getName(), new DirectoryChecksum());
+		}
+		for (Map.Entry<File, String> entry : relativePaths.entrySet()) {
+			String relative = entry.getValue();
+			int slash = relative.indexOf('/');
+			String directory = slash < 0 ? relative : relative.substring(0, slash);
+			String name = slash < 0 ? relative : relative.substring(slash + 1);
+			result.get(directory).files.put(name, hashes.get(entry.getKey()));
+		}
+		return result;
+	}
+
+	/**
+	 * Combines the directory checksums into a single checksum for the workspace.
+	 *
+	 * @param directories - the result of {@link #hashRoot(File)}
+	 * @return String - hex encoded SHA-256
+	 */
+	public static String workspaceChecksum(SortedMap<String, DirectoryChecksum> directories) {
+		MessageDigest digest = newDigest();
+		for (Map.Entry<String, DirectoryChecksum> entry : directories.entrySet()) {
+			digest.update((entry.getKey() + MANIFEST_SEP + entry.getValue().getChecksum() + "\n")
+					.getBytes(StandardCharsets.UTF_8));
+		}
+		return hex(digest.digest());
+	}
+
+	/**
+	 * Writes the sidecar index if any checksum was computed during this run.
+	 */
+	public void save() {
+		if (!dirty) {
+			return;
+		}
+		Properties properties = new Properties();
+		properties.putAll(index);
+		File parent = indexFile.getAbsoluteFile().getParentFile();
+		if (null != parent && !parent.isDirectory() && !parent.mkdirs()) {
+			log.warn("Unable to create directory for checksum index {}", indexFile);
+			return;
+		}
+		try (OutputStream output = new FileOutputStream(indexFile)) {
+			properties.store(output, "DatabaseBuilder checksum index: path = modified,size,sha256");
+			dirty = false;
+		} catch (IOException e) {
+			log.warn("Unable to write checksum index {}: {}", new Object[] { indexFile, e.getMessage() });
+		}
+	}
+
+	private void collect(File file, String prefix, Map<File, String> relativePaths) {
+		String relative = prefix + file.getName();
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (null != children) {
+				for (File child : children) {
+					collect(child, relative + "/", relativePaths);
+				}
+			}
+		} else {
+			relativePaths.put(file, relative);
+		}
+	}
+
+	private String checksum(File file) {
+		String path = file.getAbsolutePath();
+		String key = file.lastModified() + "," + file.length() + ",";
+		String cached = index.get(path);
+		if (null != cached && cached.startsWith(key)) {
+			return cached.substring(key.length());
+		}
+		String checksum;
+		try {
+			checksum = fileChecksum(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(file.getPath(), e);
+		}
+		index.put(path, key + checksum);
+		dirty = true;
+		return checksum;
+	}
+
+	/**
+	 * @param file - the file to hash
+	 * @return String - hex encoded SHA-256 of the contents
+	 * @throws IOException - if the file cannot be read
+	 */
+	public static String fileChecksum(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream input = new FileInputStream(file)) {
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return hex(digest.digest());
+	}
+
+	/**
+	 * @param text - the text to hash
+	 * @return String - hex encoded SHA-256 of the UTF-8 bytes
+	 */
+	public static String checksum(String text) {
+		return hex(newDigest().digest(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(ALGORITHM + " is required by every JVM", e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int index = 0; index < bytes.length; index++) {
+			chars[index * 2] = HEX[(bytes[index] >> 4) & 0xf];
+			chars[index * 2 + 1] = HEX[bytes[index] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * The checksums of one build script directory and the files within it.
+	 */
+	public static final class DirectoryChecksum {
+		private final SortedMap<String, String> files = new TreeMap<>();
+
+		/**
+		 * @return String - SHA-256 over the sorted file manifest
+		 */
+		public String getChecksum() {
+			return hex(newDigest().digest(getManifest().getBytes(StandardCharsets.UTF_8)));
+		}
+
+		/**
+		 * @param path - the path of a file within the directory, with / separators
+		 * @return String - the checksum of the file, or null if it was not hashed
+		 */
+		public String getFileChecksum(String path) {
+			return files.get(path);
+		}
+
+		/**
+		 * @return String - one line per file in the form path=sha256, sorted by path
+		 */
+		public String getManifest() {
+			StringBuilder manifest = new StringBuilder();
+			for (Map.Entry<String, String> entry : files.entrySet()) {
+				manifest.append(entry.getKey()).append(MANIFEST_SEP).append(entry.getValue()).append('\n');
+			}
+			return manifest.toString();
+		}
+
+		/**
+		 * Compares the files against a manifest recorded when the directory was applied.
+		 *
+		 * @param recordedManifest - the manifest stored in db_build_scripts
+		 * @return List - descriptions of the changed, added and removed files, empty if none
+		 */
+		public List<String> drift(String recordedManifest) {
+			SortedMap<String, String> recorded = new TreeMap<>();
+			for (String line : recordedManifest.split("\n")) {
+				int separator = line.lastIndexOf(MANIFEST_SEP);
+				if (separator > 0) {
+					recorded.put(line.substring(0, separator), line.substring(separator + 1).trim());
+				}
+			}
+			List<String> drift = new ArrayList<>();
+			for (Map.Entry<String, String> entry : files.entrySet()) {
+				String before = recorded.remove(entry.getKey());
+				if (null == before) {
+					drift.add("added " + entry.getKey());
+				} else if (!before.equals(entry.getValue())) {
+					drift.add("changed " + entry.getKey());
+				}
+			}
+			for (String removed : recorded.keySet()) {
+				drift.add("removed " + removed);
+			}
+			return drift;
+		}
+	}
+}
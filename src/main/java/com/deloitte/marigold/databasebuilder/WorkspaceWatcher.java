@@ -0,0 +1,157 @@
+package com.deloitte.marigold.databasebuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class watches the build script roots of the schemas and reports
+ * which schemas changed once the file system has been quiet for a while,
+ * so a directory being copied or checked out is applied once, complete.
+ *
+ * The watch service only reports changes directly within a registered
+ * directory, so every directory below the roots is registered, including
+ * those created while watching.
+ */
+public class WorkspaceWatcher implements AutoCloseable {
+	private static final LogManager log = LogManager.getLogger(WorkspaceWatcher.class);
+
+	// Constants
+	public static final long DEFAULT_DEBOUNCE_MILLIS = 2000;
+
+	/**
+	 * Called with the schemas whose build script root changed.
+	 */
+	public interface ChangeListener {
+		void changed(Set<String> schemas);
+	}
+
+	private final WatchService          watchService;
+	private final Map<WatchKey, String> schemas = new ConcurrentHashMap<>();
+	private final long                  debounceMillis;
+	private volatile boolean            closed  = false;
+
+	/**
+	 * @param roots - the build script root of every schema, keyed by schema name
+	 * @param debounceMillis - how long the file system must be quiet before changes are reported
+	 * @throws DatabaseBuilderException - if a root cannot be watched
+	 */
+	public WorkspaceWatcher(Map<String, File> roots, long debounceMillis) throws DatabaseBuilderException {
+		this.debounceMillis = Math.max(0, debounceMillis);
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			for (Map.Entry<String, File> root : roots.entrySet()) {
+				register(root.getValue().toPath(), root.getKey());
+				log.info("Watching {} for schema {}", new Object[] { root.getValue(), root.getKey() });
+			}
+		} catch (IOException e) {
+			close();
+			throw new DatabaseBuilderException("Unable to watch the build script roots", e);
+		}
+	}
+
+	/**
+	 * Reports changes until {@link #close()} is called or the thread is interrupted.
+	 *
+	 * @param listener - receives the changed schemas, on this thread
+	 */
+	public void run(ChangeListener listener) {
+		Set<String> pending = new LinkedHashSet<>();
+		long deadline = 0;
+		try {
+			while (!closed) {
+				WatchKey key;
+				if (pending.isEmpty()) {
+					key = watchService.take();
+				} else {
+					key = watchService.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				}
+				if (null == key) {
+					// quiet for long enough
+					Set<String> changed = pending;
+					pending = new LinkedHashSet<>();
+					listener.changed(changed);
+					continue;
+				}
+				String schema = schemas.get(key);
+				if (null != schema && handle(key, schema)) {
+					pending.add(schema);
+					deadline = System.currentTimeMillis() + debounceMillis;
+				}
+				if (!key.reset()) {
+					schemas.remove(key);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// closed while waiting
+		}
+	}
+
+	/**
+	 * Stops watching, {@link #run(ChangeListener)} returns.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			if (null != watchService) {
+				watchService.close();
+			}
+		} catch (IOException e) {
+			log.warn("Error closing the watch service: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * @return boolean - true if any event of the key is a change to the workspace
+	 */
+	private boolean handle(WatchKey key, String schema) {
+		Path directory = (Path) key.watchable();
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			changed = true;
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				log.warn("Missed file events for schema {}, the whole root is compared", schema);
+				continue;
+			}
+			Path child = directory.resolve((Path) event.context());
+			log.debug("{} {}", new Object[] { event.kind().name(), child });
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+				try {
+					register(child, schema);
+				} catch (IOException e) {
+					log.warn("Unable to watch {}: {}", new Object[] { child, e.getMessage() });
+				}
+			}
+		}
+		return changed;
+	}
+
+	private void register(Path start, final String schema) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				schemas.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), schema);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
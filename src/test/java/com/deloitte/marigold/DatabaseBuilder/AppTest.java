@@ -1,17 +1,81 @@
 package com.deloitte.marigold.DatabaseBuilder;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
 import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.sql.DataSource;
+
+import com.deloitte.marigold.databasebuilder.AppliedHistory;
 import com.deloitte.marigold.databasebuilder.BuildScript;
+import com.deloitte.marigold.databasebuilder.BuilderDaemon;
+import com.deloitte.marigold.databasebuilder.ConnectionPool;
+import com.deloitte.marigold.databasebuilder.DaemonClient;
+import com.deloitte.marigold.databasebuilder.DataFileLoader;
 import com.deloitte.marigold.databasebuilder.DatabaseBuilderException;
+import com.deloitte.marigold.databasebuilder.DeferredStatement;
+import com.deloitte.marigold.databasebuilder.DelimitedDataFile;
+import com.deloitte.marigold.databasebuilder.ExecutionHistory;
+import com.deloitte.marigold.databasebuilder.ExecutionMetrics;
+import com.deloitte.marigold.databasebuilder.InsertStatement;
 import com.deloitte.marigold.databasebuilder.JDBCConnectionHandler;
+import com.deloitte.marigold.databasebuilder.LogManager;
+import com.deloitte.marigold.databasebuilder.ProgressJournal;
+import com.deloitte.marigold.databasebuilder.ReadAheadPipeline;
+import com.deloitte.marigold.databasebuilder.SchemaDefinition;
+import com.deloitte.marigold.databasebuilder.SchemaScheduler;
+import com.deloitte.marigold.databasebuilder.SchemaScrubber;
+import com.deloitte.marigold.databasebuilder.ScriptFileScheduler;
 import com.deloitte.marigold.databasebuilder.ScriptProcessor;
+import com.deloitte.marigold.databasebuilder.SessionProfile;
+import com.deloitte.marigold.databasebuilder.SqlStatementReader;
+import com.deloitte.marigold.databasebuilder.StatementSource;
+import com.deloitte.marigold.databasebuilder.StatementThrottle;
+import com.deloitte.marigold.databasebuilder.TargetFanOut;
+import com.deloitte.marigold.databasebuilder.TransactionBatch;
+import com.deloitte.marigold.databasebuilder.WorkspaceChecksums;
+import com.deloitte.marigold.databasebuilder.WorkspaceWatcher;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.SqlParameterValue;
+
 /**
  * Unit test for Database Builder App.
  */
@@ -95,6 +159,91 @@ public class AppTest
 		}
     }*/
     
+    /**
+     * Without a naming container the data source is created straight from
+     * the property file, so a bad url fails when the pool first connects
+     * rather than in a JNDI lookup.
+     */
+    public void testDirectDataSource() throws Exception {
+    	File jdbcFile = writeTempFile("direct-jdbc", "url=jdbc:unknown:direct\nuser=builder\npassword=builder\n");
+    	JDBCConnectionHandler handler = new JDBCConnectionHandler();
+    	handler.setPropertyFile("direct", jdbcFile.getPath());
+    	try {
+    		handler.getDataSource("direct");
+    		fail("Connected to an unknown database");
+    	} catch (DatabaseBuilderException e) {
+    		assertEquals("Unable to open connections for schema direct", e.getMessage());
+    	}
+    	assertEquals("jdbc:unknown:direct", handler.getUrl());
+    }
+
+    /**
+     * Every target is processed even though another fails: the target on
+     * the embedded database is applied while the one on an unknown database
+     * fails, and the failure is reported at the end.
+     */
+    public void testFanOutIsolatesTargets() throws Exception {
+    	final File jdbcFile = writeTempFile("fanout-jdbc", "url=jdbc:unknown:fanout\nuser=builder\npassword=builder\n");
+    	EmbeddedDatabase.withWorkspace(WorkspaceGenerator.shape(3, 1, 2, 0), (database, root, properties) -> {
+    		String embeddedJdbcFile = (String) properties.remove(ScriptProcessor.SCHEMA_PREFIX + EmbeddedDatabase.SCHEMA
+    				+ ScriptProcessor.SCHEMA_PROP_FLD);
+    		properties.setProperty(ScriptProcessor.TARGETS_FLD, "qa, dr");
+    		properties.setProperty(ScriptProcessor.TARGET_PARALLEL_FLD, "2");
+    		ScriptProcessor processor = new ScriptProcessor(properties);
+    		try {
+    			new TargetFanOut(processor).run();
+    			fail("Targets without a property file were accepted");
+    		} catch (DatabaseBuilderException e) {
+    			assertEquals("Target qa has no target.qa.bench.propertyFile", e.getMessage());
+    		}
+
+    		properties.setProperty(ScriptProcessor.TARGET_PREFIX + "qa.bench" + ScriptProcessor.SCHEMA_PROP_FLD, embeddedJdbcFile);
+    		properties.setProperty(ScriptProcessor.TARGET_PREFIX + "dr.bench" + ScriptProcessor.SCHEMA_PROP_FLD, jdbcFile.getPath());
+    		processor = new ScriptProcessor(properties);
+    		final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+    		processor.setProgressListener(messages::add);
+    		try {
+    			new TargetFanOut(processor).run();
+    			fail("An unknown database was applied to");
+    		} catch (DatabaseBuilderException e) {
+    			assertEquals("1 of 2 targets failed: [dr]", e.getMessage());
+    		}
+    		assertEquals(3, database.queryForLong("select count(*) from db_build_scripts where orderby >= 0"));
+    		assertEquals(2, database.queryForLong("select count(*) from synthetic_3"));
+    		assertEquals(3, processor.getMetrics().getCount(ExecutionMetrics.BUILD_SCRIPTS, "qa." + EmbeddedDatabase.SCHEMA));
+    		// each target reports under its own name, the table of results comes last
+    		assertTrue(messages.toString(), messages.get(0).startsWith("qa: ") || messages.get(0).startsWith("dr: "));
+    		assertTrue(messages.get(messages.size() - 1).contains("qa"));
+    	});
+    }
+
+    /**
+     * A listed schema without scripts or a property file is reported by the missing key.
+     */
+    public void testSchemaWithoutPropertyFile() throws Exception {
+    	File root = EmbeddedDatabase.generateWorkspace(new WorkspaceGenerator());
+    	try {
+    		Properties properties = new Properties();
+    		properties.setProperty(ScriptProcessor.WORKSPACE_FLD, root.getParent());
+    		properties.setProperty(ScriptProcessor.SCHEMAS_FLD, "bench");
+    		try {
+    			new ScriptProcessor(properties);
+    			fail("A schema without scripts was accepted");
+    		} catch (DatabaseBuilderException e) {
+    			assertTrue(e.getMessage(), e.getMessage().endsWith("has no schema.bench.scripts"));
+    		}
+    		properties.setProperty(ScriptProcessor.SCHEMA_PREFIX + "bench" + ScriptProcessor.SCHEMA_SCRIPTS_FLD, root.getName());
+    		try {
+    			new ScriptProcessor(properties).processTopLevelDir();
+    			fail("A schema without a property file was connected to");
+    		} catch (DatabaseBuilderException e) {
+    			assertTrue(e.getMessage(), e.getMessage().contains("schema.bench.propertyFile"));
+    		}
+    	} finally {
+    		EmbeddedDatabase.delete(root);
+    	}
+    }
+
     /**
      * This method tests that it is able to parse
      * the top level directory of change scripts.
@@ -135,4 +284,1418 @@ public class AppTest
 			lastBuildScript = buildScript;
     	}
     }
+    
+    /**
+     * The default throttle must never hold statements back and
+     * unknown modes must be rejected.
+     */
+    public void testStatementThrottleModes() throws Exception {
+    	StatementThrottle throttle = StatementThrottle.create(null, 200, 2000, null);
+    	long start = System.currentTimeMillis();
+    	for(int i = 0; i < 100; i++) {
+    		throttle.beforeStatement();
+    		throttle.afterStatement(1);
+    	}
+    	assertTrue(System.currentTimeMillis() - start < 200);
+    	try {
+    		StatementThrottle.create("bogus", 200, 2000, null);
+    		fail();
+    	} catch (DatabaseBuilderException e) {
+    		assertTrue(e.getMessage().contains("bogus"));
+    	}
+    }
+    
+    /**
+     * The fixed throttle holds every statement back by the same delay.
+     */
+    public void testFixedThrottle() throws Exception {
+    	StatementThrottle throttle = StatementThrottle.create(StatementThrottle.MODE_FIXED, 30, 2000, null);
+    	throttle.afterStatement(5000);
+    	assertEquals(30, throttle.getDelayMillis());
+    	long start = System.currentTimeMillis();
+    	throttle.beforeStatement();
+    	assertTrue(System.currentTimeMillis() - start >= 30);
+    }
+    
+    /**
+     * Blocked sessions double the adaptive delay up to its maximum, v$session
+     * is sampled at most once per interval and the delay decays once the
+     * blocking is gone.
+     */
+    public void testAdaptiveThrottleBlockedSessions() throws Exception {
+    	final long[] now = { 10000 };
+    	final int[] blocked = { 1 };
+    	final int[] samples = { 0 };
+    	JdbcTemplate template = new JdbcTemplate() {
+    		@Override
+    		public <T> T queryForObject(String sql, Class<T> requiredType) {
+    			assertEquals(StatementThrottle.BLOCKED_SESSIONS_QUERY, sql);
+    			samples[0]++;
+    			return requiredType.cast(blocked[0]);
+    		}
+    	};
+    	StatementThrottle throttle = StatementThrottle.create(StatementThrottle.MODE_ADAPTIVE, 10, 40, template, () -> now[0]);
+    	throttle.beforeStatement();
+    	assertEquals(1, samples[0]);
+    	assertEquals(0, throttle.getDelayMillis());
+    	long[] expected = { 10, 20, 40, 40 };
+    	for (long delay : expected) {
+    		throttle.afterStatement(5);
+    		assertEquals(delay, throttle.getDelayMillis());
+    	}
+    	throttle.beforeStatement();
+    	assertEquals(1, samples[0]);
+
+    	blocked[0] = 0;
+    	now[0] += 5000;
+    	throttle.beforeStatement();
+    	assertEquals(2, samples[0]);
+    	long previous = throttle.getDelayMillis();
+    	for (int statement = 0; statement < 10 && previous > 0; statement++) {
+    		throttle.afterStatement(5);
+    		assertTrue(throttle.getDelayMillis() < previous);
+    		previous = throttle.getDelayMillis();
+    	}
+    	assertEquals(0, previous);
+    }
+    
+    /**
+     * Latency well above the baseline grows the adaptive delay and it decays
+     * once statements are fast again.
+     */
+    public void testAdaptiveThrottleLatency() throws Exception {
+    	StatementThrottle throttle = StatementThrottle.create(StatementThrottle.MODE_ADAPTIVE, 10, 40, null, () -> 0L);
+    	for (int statement = 0; statement < 20; statement++) {
+    		throttle.afterStatement(10);
+    	}
+    	assertEquals(0, throttle.getDelayMillis());
+    	throttle.afterStatement(100);
+    	assertEquals(10, throttle.getDelayMillis());
+    	throttle.afterStatement(100);
+    	assertEquals(20, throttle.getDelayMillis());
+    	for (int statement = 0; statement < 50 && throttle.getDelayMillis() > 0; statement++) {
+    		throttle.afterStatement(10);
+    	}
+    	assertEquals(0, throttle.getDelayMillis());
+    }
+    
+    /**
+     * Every delimiter flavour and both line endings are split in a single pass.
+     */
+    public void testSqlStatementReader() throws Exception {
+    	SqlStatementReader reader = new SqlStatementReader(new StringReader(
+    			"set define off;\ncreate table a (x number);--<\ninsert into a values (1);--<\n\n"),
+    			SqlStatementReader.Mode.STANDARD);
+    	assertEquals("create table a (x number)", reader.nextStatement());
+    	assertEquals("insert into a values (1)", reader.nextStatement());
+    	assertNull(reader.nextStatement());
+    	assertEquals(2, reader.getOrdinal());
+    	reader.close();
+    	
+    	reader = new SqlStatementReader(new StringReader("\n  SET DEFINE OFF;\nx;--<\nset define off;--<\n"),
+    			SqlStatementReader.Mode.STANDARD);
+    	assertEquals("x", reader.nextStatement());
+    	// only the start of the file is checked
+    	assertEquals("set define off", reader.nextStatement());
+    	assertNull(reader.nextStatement());
+    	reader.close();
+    	
+    	reader = new SqlStatementReader(new StringReader(
+    			"create procedure p as begin null; end;\n--<\ncreate view v as select 1 from dual;--<"),
+    			SqlStatementReader.Mode.PROCEDURE);
+    	assertEquals("create procedure p as begin null; end;", reader.nextStatement());
+    	assertEquals("create view v as select 1 from dual;", reader.nextStatement());
+    	assertNull(reader.nextStatement());
+    	reader.close();
+    	
+    	reader = new SqlStatementReader(new StringReader(
+    			"insert into r values(1);--end\r\ninsert into r values(2);--end\ninsert into r values(3);--end"),
+    			SqlStatementReader.Mode.RULE);
+    	assertEquals("insert into r values(1)", reader.nextStatement());
+    	assertEquals("insert into r values(2)", reader.nextStatement());
+    	assertEquals("insert into r values(3)", reader.nextStatement());
+    	assertNull(reader.nextStatement());
+    	reader.close();
+    }
+    
+    /**
+     * Prefetched files hand out the same statements and ordinals as the
+     * reader, a file larger than the cap is still read once the files before
+     * it are finished with, and files never queued are streamed.
+     */
+    public void testReadAheadPipeline() throws Exception {
+    	File first = writeTempFile("1-readahead", "create table a (x number);--<\ninsert into a values (1);--<\n");
+    	StringBuilder large = new StringBuilder();
+    	while (large.length() < 1536 * 1024) {
+    		large.append("insert into a values (").append(large.length()).append(");--<\n");
+    	}
+    	File second = writeTempFile("2-readahead", large.toString());
+    	File third = writeTempFile("3-readahead-PROCEDURES", "create procedure p as begin null; end;\n--<\n");
+    	File streamed = writeTempFile("4-readahead", "insert into a values (2);--<\n");
+    	try (ReadAheadPipeline pipeline = new ReadAheadPipeline(1)) {
+    		pipeline.prefetch(Arrays.asList(first, second, third));
+    		for (File file : Arrays.asList(first, second, third, streamed)) {
+    			try (StatementSource source = pipeline.open(file); SqlStatementReader reader = new SqlStatementReader(file)) {
+    				assertEquals(reader.getMode(), source.getMode());
+    				String statement;
+    				while ((statement = reader.nextStatement()) != null) {
+    					assertEquals(statement, source.nextStatement());
+    					assertEquals(reader.getOrdinal(), source.getOrdinal());
+    				}
+    				assertNull(source.nextStatement());
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Files scanned for their dependencies are split once, whether or not the
+     * reader had got to them, and run from what the scan read.
+     */
+    public void testReadAheadScan() throws Exception {
+    	File first = writeTempFile("1-scan", "create table a (x number);--<\ninsert into a values (1);--<\n");
+    	File second = writeTempFile("2-scan", "insert into b select x from a;--<\n");
+    	File third = writeTempFile("3-scan", "insert into c values (1);--<\n");
+    	try (ReadAheadPipeline pipeline = new ReadAheadPipeline(1)) {
+    		pipeline.prefetch(Arrays.asList(first, second));
+    		List<Set<Integer>> dependencies = new ScriptFileScheduler(2, Charset.defaultCharset(), pipeline)
+    				.buildDependencies(Arrays.asList(first, second, third));
+    		assertEquals(Collections.singleton(0), dependencies.get(1));
+    		assertTrue(dependencies.get(2).isEmpty());
+    		// gone from the disk, so only what the scan read can run
+    		for (File file : Arrays.asList(first, second, third)) {
+    			assertTrue(file.delete());
+    		}
+    		try (StatementSource source = pipeline.open(first)) {
+    			assertEquals("create table a (x number)", source.nextStatement());
+    			assertEquals("insert into a values (1)", source.nextStatement());
+    			assertNull(source.nextStatement());
+    		}
+    		try (StatementSource source = pipeline.open(third)) {
+    			assertEquals("insert into c values (1)", source.nextStatement());
+    			assertEquals(1, source.getOrdinal());
+    		}
+    	}
+    }
+
+    /**
+     * Files run side by side open later files before earlier prefetched ones
+     * are finished with. Those are streamed from the disk instead of waiting
+     * for a reader that has no room under the cap.
+     */
+    public void testReadAheadParallelFiles() throws Exception {
+    	String[] tables = { "a", "a", "c", "d" };
+    	final List<File> files = new ArrayList<File>();
+    	for (int index = 0; index < tables.length; index++) {
+    		StringBuilder content = new StringBuilder();
+    		while (content.length() < 700 * 1024) {
+    			content.append("insert into ").append(tables[index]).append(" values (").append(content.length()).append(");--<\n");
+    		}
+    		files.add(writeTempFile((index + 1) + "-parallel", content.toString()));
+    	}
+    	final ReadAheadPipeline pipeline = new ReadAheadPipeline(1);
+    	final AtomicInteger statements = new AtomicInteger();
+    	final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    	Thread run = new Thread(() -> {
+    		try {
+    			pipeline.prefetch(files);
+    			new ScriptFileScheduler(2).run(files, file -> {
+    				try (StatementSource source = pipeline.open(file)) {
+    					while (null != source.nextStatement()) {
+    						statements.incrementAndGet();
+    					}
+    				} catch (IOException e) {
+    					throw new DatabaseBuilderException(e.getMessage(), e);
+    				}
+    			});
+    		} catch (Throwable e) {
+    			failures.add(e);
+    		}
+    	});
+    	run.setDaemon(true);
+    	try {
+    		run.start();
+    		run.join(TimeUnit.SECONDS.toMillis(60));
+    		assertFalse("The files waited on each other for good", run.isAlive());
+    		assertEquals(Collections.emptyList(), failures);
+    		int expected = 0;
+    		for (File file : files) {
+    			try (SqlStatementReader reader = new SqlStatementReader(file)) {
+    				while (null != reader.nextStatement()) {
+    					expected++;
+    				}
+    			}
+    		}
+    		assertEquals(expected, statements.get());
+    	} finally {
+    		pipeline.close();
+    	}
+    }
+
+    /**
+     * Inserts of literals are parameterised, anything else runs as written.
+     */
+    public void testInsertStatement() throws Exception {
+    	InsertStatement insert = InsertStatement.parse("INSERT INTO app.t (id, name, note)\nvalues (-1.5, 'it''s', NULL)");
+    	assertEquals("INSERT INTO app.t (id, name, note) VALUES (?, ?, ?)", insert.getSql());
+    	assertEquals(new BigDecimal("-1.5"), insert.getValues()[0]);
+    	assertEquals("it's", insert.getValues()[1]);
+    	assertNull(((SqlParameterValue) insert.getValues()[2]).getValue());
+    	assertEquals(insert.getSql(), InsertStatement.parse("insert into app.t (id,name,note) values (2,'b',null)").getSql());
+    	assertNull(InsertStatement.parse("insert into t (id, created) values (1, sysdate)"));
+    	assertNull(InsertStatement.parse("insert into t (id, created) values (1, to_date('2020-01-01', 'yyyy-mm-dd'))"));
+    	assertNull(InsertStatement.parse("insert into t (id, name) values (1)"));
+    	assertNull(InsertStatement.parse("insert into t values (1, 'a')"));
+    	assertNull(InsertStatement.parse("insert into t (id) select id from s"));
+    }
+
+    /**
+     * A batch of inserts failing part way through is rolled back and run one
+     * statement at a time, so the rows before the failing insert are written
+     * and the failure names the insert itself.
+     */
+    public void testInsertBatchFallback() throws Exception {
+    	EmbeddedDatabase.withWorkspace(WorkspaceGenerator.shape(1, 1, 100, 0), (database, root, properties) -> {
+    		StringBuilder content = new StringBuilder();
+    		for (int id : new int[] { 1, 2, 3, 2, 5 }) {
+    			content.append("insert into synthetic_1 (id, name, amount) values (").append(id).append(", 'row ").append(id)
+    					.append("', 1.5);--<\n");
+    		}
+    		writeFile(new File(new File(root, "1_0-synthetic1"), "2" + WorkspaceGenerator.DATA_FILE), content.toString());
+    		properties.setProperty(ScriptProcessor.INSERT_BATCH_FLD, "10");
+    		try {
+    			new ScriptProcessor(properties).processTopLevelDir();
+    			fail("A duplicate key in a batch of inserts was accepted");
+    		} catch (DatabaseBuilderException e) {
+    			// expected, the duplicate fails on its own
+    		}
+    		assertEquals(3, database.queryForLong("select count(*) from synthetic_1"));
+    		assertEquals(3, database.queryForLong("select max(id) from synthetic_1"));
+    		assertEquals(0, database.queryForLong("select count(*) from db_build_scripts where orderby >= 0"));
+    	});
+    }
+
+    /**
+     * Sql and data files are both read in the configured scriptEncoding, and
+     * an unknown encoding is refused.
+     */
+    public void testScriptEncoding() throws Exception {
+    	Charset latin1 = StandardCharsets.ISO_8859_1;
+    	File sql = File.createTempFile("1-names", ".sql");
+    	File csv = File.createTempFile("2-names", DelimitedDataFile.CSV_EXT);
+    	try {
+    		Files.write(sql.toPath(), "insert into names values ('M\u00fcller');--<\n".getBytes(latin1));
+    		Files.write(csv.toPath(), "name\nM\u00fcller\n".getBytes(latin1));
+    		try (SqlStatementReader reader = new SqlStatementReader(sql, latin1)) {
+    			assertTrue(reader.nextStatement().contains("M\u00fcller"));
+    		}
+    		try (DelimitedDataFile data = new DelimitedDataFile(csv, latin1)) {
+    			assertEquals("M\u00fcller", data.nextRow()[0]);
+    		}
+    		// read as UTF-8 the latin-1 umlaut is not valid
+    		try (DelimitedDataFile data = new DelimitedDataFile(csv, StandardCharsets.UTF_8)) {
+    			assertFalse("M\u00fcller".equals(data.nextRow()[0]));
+    		}
+    	} finally {
+    		sql.delete();
+    		csv.delete();
+    	}
+    	Properties properties = new Properties();
+    	properties.setProperty(ScriptProcessor.SCRIPT_ENCODING_FLD, "no-such-charset");
+    	try {
+    		new ScriptProcessor(properties);
+    		fail("An unknown encoding was accepted");
+    	} catch (DatabaseBuilderException e) {
+    		assertEquals("Unknown scriptEncoding no-such-charset", e.getMessage());
+    	}
+    }
+
+    /**
+     * Data files are streamed row by row with typed, quoted and null values.
+     */
+    public void testDelimitedDataFile() throws Exception {
+    	File csv = File.createTempFile("40-country", DelimitedDataFile.CSV_EXT);
+    	csv.deleteOnExit();
+    	writeFile(csv, "# seed data\r\nid:number,name,joined:date\r\n1,\"Smith, J\",2020-01-31\r\n\r\n"
+    			+ "2,\"say \"\"hi\"\"\nthere\",\r\n3,,2021-02-03 04:05:06\r\n4,x,31/12/2020\r\n");
+    	try (DelimitedDataFile data = new DelimitedDataFile(csv)) {
+    		assertTrue(DelimitedDataFile.isDataFile(csv));
+    		assertTrue(data.getTable().startsWith("country"));
+    		assertEquals("INSERT /*+ APPEND_VALUES */ INTO " + data.getTable() + " (id, name, joined) VALUES (?, ?, ?)",
+    				data.getInsertSql(true));
+    		Object[] row = data.nextRow();
+    		assertEquals(3, data.getLine());
+    		assertEquals(new BigDecimal(1), row[0]);
+    		assertEquals("Smith, J", row[1]);
+    		assertEquals(Timestamp.valueOf("2020-01-31 00:00:00"), row[2]);
+    		row = data.nextRow();
+    		assertEquals(5, data.getLine());
+    		assertEquals("say \"hi\"\nthere", row[1]);
+    		assertNull(((SqlParameterValue) row[2]).getValue());
+    		row = data.nextRow();
+    		assertEquals(7, data.getLine());
+    		assertNull(((SqlParameterValue) row[1]).getValue());
+    		try {
+    			data.nextRow();
+    			fail("31/12/2020 is not a date");
+    		} catch (DatabaseBuilderException e) {
+    			assertTrue(e.getMessage(), e.getMessage().startsWith("Line 8 of "));
+    		}
+    		assertNull(data.nextRow());
+    	}
+    	writeFile(csv, "id:blob\n1\n");
+    	try {
+    		new DelimitedDataFile(csv).close();
+    		fail("blob is not a supported type");
+    	} catch (DatabaseBuilderException e) {
+    		// expected
+    	}
+    }
+
+    /**
+     * Batches load side by side and progress only counts rows without a gap.
+     */
+    public void testDataFileLoader() throws Exception {
+    	File tsv = File.createTempFile("50-item", DelimitedDataFile.TSV_EXT);
+    	tsv.deleteOnExit();
+    	StringBuilder content = new StringBuilder("id:number\tname\n");
+    	for (int id = 1; id <= 10; id++) {
+    		content.append(id).append("\titem ").append(id).append('\n');
+    	}
+    	writeFile(tsv, content.toString());
+    	final List<Object> loaded = Collections.synchronizedList(new ArrayList<>());
+    	final List<Integer> progress = Collections.synchronizedList(new ArrayList<>());
+    	try (DelimitedDataFile data = new DelimitedDataFile(tsv)) {
+    		long rows = new DataFileLoader(3, 3).load(data, 2, batch -> {
+    			for (Object[] row : batch) {
+    				loaded.add(row[0]);
+    			}
+    		}, progress::add);
+    		assertEquals(8, rows);
+    	}
+    	assertEquals(8, loaded.size());
+    	assertFalse(loaded.contains(new BigDecimal(2)));
+    	assertEquals(Integer.valueOf(10), progress.get(progress.size() - 1));
+    	for (int index = 1; index < progress.size(); index++) {
+    		assertTrue(progress.get(index) > progress.get(index - 1));
+    	}
+
+    	progress.clear();
+    	try (DelimitedDataFile data = new DelimitedDataFile(tsv)) {
+    		new DataFileLoader(3, 1).load(data, 0, batch -> {
+    			if (batch.get(0)[0].equals(new BigDecimal(4))) {
+    				throw new DatabaseBuilderException("unique constraint violated");
+    			}
+    		}, progress::add);
+    		fail("the second batch fails");
+    	} catch (DatabaseBuilderException e) {
+    		assertTrue(e.getMessage(), e.getMessage().contains("rows 4 to 6 (from line 5)"));
+    	}
+    	assertEquals(Arrays.asList(3), progress);
+    }
+
+    /**
+     * The pool applies the session profile once per connection and drops
+     * connections set up for another profile.
+     */
+    public void testSessionProfile() throws Exception {
+    	SessionProfile rebuild = SessionProfile.parse(SessionProfile.REBUILD,
+    			"alter session force parallel ddl parallel 8; ddl_lock_timeout=60;;");
+    	assertEquals(Arrays.asList("alter session force parallel ddl parallel 8", "ALTER SESSION SET ddl_lock_timeout=60"),
+    			rebuild.getStatements());
+    	assertNull(SessionProfile.parse(SessionProfile.INCREMENT, " ; "));
+    	assertNull(SessionProfile.parse(SessionProfile.INCREMENT, null));
+    	SessionProfile increment = SessionProfile.parse(SessionProfile.INCREMENT, "ddl_lock_timeout=30");
+
+    	final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+    	final List<Connection> opened = new ArrayList<>();
+    	DataSource source = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+    			(proxy, method, args) -> {
+    				Connection physical = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+    						new Class<?>[] { Connection.class }, (connection, call, callArgs) -> {
+    							if ("createStatement".equals(call.getName())) {
+    								return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Statement.class },
+    										(statement, statementCall, statementArgs) -> {
+    											if ("execute".equals(statementCall.getName())) {
+    												executed.add((String) statementArgs[0]);
+    											}
+    											return "execute".equals(statementCall.getName()) ? Boolean.FALSE : null;
+    										});
+    							}
+    							return call.getReturnType() == boolean.class ? Boolean.valueOf(!"isClosed".equals(call.getName())) : null;
+    						});
+    				opened.add(physical);
+    				return physical;
+    			});
+    	ConnectionPool pool = new ConnectionPool(source, 0, 2, 0, 1);
+    	pool.setSessionProfile(rebuild);
+    	pool.getConnection().close();
+    	pool.getConnection().close();
+    	assertEquals(1, opened.size());
+    	assertEquals(rebuild.getStatements(), executed);
+
+    	executed.clear();
+    	pool.setSessionProfile(increment);
+    	pool.getConnection().close();
+    	assertEquals(2, opened.size());
+    	assertEquals(increment.getStatements(), executed);
+    	pool.shutdown();
+    }
+
+    /**
+     * Returned connections are handed out again instead of opening new ones.
+     */
+    public void testConnectionPoolReuse() throws Exception {
+    	List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    	ConnectionPool pool = new ConnectionPool(recordingDataSource(calls, Collections.<Integer>emptySet()), 1, 2, 0, 1);
+    	pool.prewarm();
+    	assertEquals(Arrays.asList("open 1"), calls);
+    	pool.getConnection().close();
+    	pool.getConnection().close();
+    	assertEquals(Arrays.asList("open 1"), calls);
+    	Connection first = pool.getConnection();
+    	Connection second = pool.getConnection();
+    	assertEquals(Arrays.asList("open 1", "open 2"), calls);
+    	// the physical connection stays out of reach
+    	assertSame(first, first.unwrap(Connection.class));
+    	assertTrue(first.isWrapperFor(Connection.class));
+    	assertFalse(first.isWrapperFor(Statement.class));
+    	try {
+    		first.unwrap(Statement.class);
+    		fail("A pooled connection unwrapped to another interface");
+    	} catch (SQLException e) {
+    		// expected
+    	}
+    	pool.setLoginTimeout(5);
+    	pool.setLogWriter(null);
+    	first.close();
+    	second.close();
+    	pool.shutdown();
+    	assertTrue(calls.contains("close 1"));
+    	assertTrue(calls.contains("close 2"));
+    }
+
+    /**
+     * An idle connection that fails validation is closed and replaced.
+     */
+    public void testConnectionPoolValidation() throws Exception {
+    	List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    	ConnectionPool pool = new ConnectionPool(recordingDataSource(calls, Collections.singleton(1)), 0, 2, 0, 1);
+    	pool.setValidateAfterIdleMillis(0);
+    	pool.getConnection().close();
+    	pool.getConnection().close();
+    	assertEquals(Arrays.asList("open 1", "validate 1", "close 1", "open 2"), calls);
+    	pool.getConnection().close();
+    	assertEquals(Arrays.asList("open 1", "validate 1", "close 1", "open 2", "validate 2"), calls);
+    	pool.shutdown();
+    }
+
+    /**
+     * A borrow waits while every connection is in use and goes on once one is returned.
+     */
+    public void testConnectionPoolWaitsAtMaxSize() throws Exception {
+    	List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    	final ConnectionPool pool = new ConnectionPool(recordingDataSource(calls, Collections.<Integer>emptySet()), 0, 1, 0, 1);
+    	Connection first = pool.getConnection();
+    	final CountDownLatch borrowed = new CountDownLatch(1);
+    	Thread waiting = new Thread(() -> {
+    		try {
+    			pool.getConnection().close();
+    			borrowed.countDown();
+    		} catch (Exception e) {
+    			throw new IllegalStateException(e);
+    		}
+    	});
+    	waiting.start();
+    	// parked on the pool rather than handed a second connection
+    	while (waiting.getState() != Thread.State.WAITING && waiting.getState() != Thread.State.TIMED_WAITING) {
+    		Thread.yield();
+    	}
+    	assertEquals(1, borrowed.getCount());
+    	first.close();
+    	assertTrue(borrowed.await(5, TimeUnit.SECONDS));
+    	waiting.join();
+    	assertEquals(Arrays.asList("open 1"), calls);
+    	pool.shutdown();
+    }
+
+    /**
+     * Prepared statements are reused per connection, a statement in use is
+     * not shared and the least recently used statement is closed when the
+     * cache is full.
+     */
+    public void testConnectionPoolStatementCache() throws Exception {
+    	List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    	ConnectionPool pool = new ConnectionPool(recordingDataSource(calls, Collections.<Integer>emptySet()), 0, 1, 1, 1);
+    	Connection connection = pool.getConnection();
+    	connection.prepareStatement("select a").close();
+    	PreparedStatement cached = connection.prepareStatement("select a");
+    	assertEquals(Arrays.asList("open 1", "prepare 1 select a"), calls);
+    	connection.prepareStatement("select a").close();
+    	assertEquals(Arrays.asList("open 1", "prepare 1 select a", "prepare 1 select a", "close statement select a"), calls);
+    	cached.close();
+    	assertTrue(cached.isClosed());
+    	connection.prepareStatement("select b").close();
+    	// the new statement is prepared before the least recently used one makes room for it
+    	assertEquals(Arrays.asList("open 1", "prepare 1 select a", "prepare 1 select a", "close statement select a",
+    			"prepare 1 select b", "close statement select a"), calls);
+    	connection.close();
+    	pool.shutdown();
+    }
+
+    /**
+     * The transaction commits once the rows since the last commit reach the
+     * limit and again at the end, telling the listener each time.
+     */
+    public void testTransactionBatchCommitsEveryRows() throws Exception {
+    	List<String> calls = new ArrayList<>();
+    	final int[] notified = { 0 };
+    	TransactionBatch transaction = new TransactionBatch(transactionDataSource(calls, false), 10, 0);
+    	transaction.setCommitListener(() -> notified[0]++);
+    	assertEquals(Arrays.asList("setAutoCommit false"), calls);
+    	transaction.afterStatement(4);
+    	transaction.afterStatement(4);
+    	assertFalse(calls.contains("commit"));
+    	transaction.afterStatement(4);
+    	assertEquals(Arrays.asList("setAutoCommit false", "commit"), calls);
+    	assertEquals(1, notified[0]);
+    	transaction.afterStatement(9);
+    	transaction.commit();
+    	transaction.close();
+    	assertEquals(Arrays.asList("setAutoCommit false", "commit", "commit", "close"), calls);
+    	assertEquals(2, notified[0]);
+    }
+
+    /**
+     * The transaction commits once the time since the last commit reaches the limit.
+     */
+    public void testTransactionBatchCommitsOnTime() throws Exception {
+    	List<String> calls = new ArrayList<>();
+    	final long[] now = { 10000 };
+    	TransactionBatch transaction = new TransactionBatch(transactionDataSource(calls, false), 0, 200, () -> now[0]);
+    	now[0] += 199;
+    	transaction.afterStatement(1);
+    	assertFalse(calls.contains("commit"));
+    	now[0] += 1;
+    	transaction.afterStatement(0);
+    	assertEquals(Arrays.asList("setAutoCommit false", "commit"), calls);
+    	transaction.close();
+    }
+
+    /**
+     * A failed intermediate commit is reported by the final commit and the
+     * work is rolled back without telling the listener.
+     */
+    public void testTransactionBatchRollback() throws Exception {
+    	List<String> calls = new ArrayList<>();
+    	final int[] notified = { 0 };
+    	TransactionBatch transaction = new TransactionBatch(transactionDataSource(calls, true), 1, 0);
+    	transaction.setCommitListener(() -> notified[0]++);
+    	transaction.afterStatement(1);
+    	transaction.afterStatement(1);
+    	try {
+    		transaction.commit();
+    		fail("A failed intermediate commit was not reported");
+    	} catch (DatabaseBuilderException e) {
+    		assertEquals("An intermediate commit failed", e.getMessage());
+    	}
+    	transaction.rollback();
+    	transaction.close();
+    	assertEquals(Arrays.asList("setAutoCommit false", "commit", "rollback", "close"), calls);
+    	assertEquals(0, notified[0]);
+    }
+
+    /**
+     * @param calls - receives the transaction calls made on the connection
+     * @param failCommit - true to make every commit fail
+     * @return DataSource - a data source handing out a single fake connection
+     */
+    private static DataSource transactionDataSource(final List<String> calls, final boolean failCommit) {
+    	final Connection connection = (Connection) Proxy.newProxyInstance(AppTest.class.getClassLoader(),
+    			new Class<?>[] { Connection.class }, (proxy, call, args) -> {
+    				switch (call.getName()) {
+    				case "setAutoCommit":
+    					calls.add("setAutoCommit " + args[0]);
+    					return null;
+    				case "commit":
+    					calls.add("commit");
+    					if (failCommit) {
+    						throw new SQLException("ORA-02091: transaction rolled back");
+    					}
+    					return null;
+    				case "rollback":
+    				case "close":
+    					calls.add(call.getName());
+    					return null;
+    				default:
+    					return call.getReturnType() == boolean.class ? Boolean.FALSE : null;
+    				}
+    			});
+    	return (DataSource) Proxy.newProxyInstance(AppTest.class.getClassLoader(), new Class<?>[] { DataSource.class },
+    			(proxy, method, args) -> connection);
+    }
+
+    /**
+     * @param calls - receives open, prepare, validate and close calls of the connections handed out
+     * @param invalid - the numbers of the connections that fail validation, counting from 1
+     * @return DataSource - a data source of fake connections
+     */
+    static DataSource recordingDataSource(final List<String> calls, final Set<Integer> invalid) {
+    	final int[] opened = { 0 };
+    	return (DataSource) Proxy.newProxyInstance(AppTest.class.getClassLoader(), new Class<?>[] { DataSource.class },
+    			(proxy, method, args) -> {
+    				final int number = ++opened[0];
+    				calls.add("open " + number);
+    				return Proxy.newProxyInstance(AppTest.class.getClassLoader(), new Class<?>[] { Connection.class },
+    						(connection, call, callArgs) -> {
+    							switch (call.getName()) {
+    							case "prepareStatement":
+    								final String sql = (String) callArgs[0];
+    								calls.add("prepare " + number + " " + sql);
+    								return Proxy.newProxyInstance(AppTest.class.getClassLoader(),
+    										new Class<?>[] { PreparedStatement.class }, (statement, statementCall, statementArgs) -> {
+    											if ("close".equals(statementCall.getName())) {
+    												calls.add("close statement " + sql);
+    											}
+    											return statementCall.getReturnType() == boolean.class ? Boolean.FALSE : null;
+    										});
+    							case "isValid":
+    								calls.add("validate " + number);
+    								return !invalid.contains(number);
+    							case "close":
+    								calls.add("close " + number);
+    								return null;
+    							case "getAutoCommit":
+    								return Boolean.TRUE;
+    							default:
+    								return call.getReturnType() == boolean.class ? Boolean.FALSE : null;
+    							}
+    						});
+    			});
+    }
+
+    /**
+     * Only non unique indexes, foreign keys and check constraints are held back.
+     */
+    public void testDeferredStatement() throws Exception {
+    	File file = new File("2-indexes.sql");
+    	DeferredStatement index = DeferredStatement.parse("CREATE INDEX app.customer_name_ix ON app.customer (name)", file);
+    	assertEquals("CUSTOMER_NAME_IX", index.getName());
+    	assertEquals(Collections.singleton("CUSTOMER"), index.getTables());
+    	assertEquals("IX", DeferredStatement.parse("create bitmap index \"ix\" on t (flag)", file).getName());
+    	DeferredStatement foreignKey = DeferredStatement.parse(
+    			"alter table orders add constraint orders_customer_fk foreign key (customer_id) references customer (id)", file);
+    	assertEquals("ORDERS_CUSTOMER_FK", foreignKey.getName());
+    	assertEquals(new HashSet<>(Arrays.asList("ORDERS", "CUSTOMER")), foreignKey.getTables());
+    	DeferredStatement check = DeferredStatement.parse("ALTER TABLE orders ADD (CHECK (amount >= 0))", file);
+    	assertNull(check.getName());
+    	assertNull(DeferredStatement.parse("create unique index customer_uk on customer (email)", file));
+    	assertNull(DeferredStatement.parse("alter table customer add constraint customer_pk primary key (id)", file));
+    	assertNull(DeferredStatement.parse("insert into customer (id) values (1)", file));
+
+    	assertTrue(DeferredStatement.isStructural("drop index customer_name_ix"));
+    	assertTrue(DeferredStatement.isStructural("BEGIN execute immediate 'truncate table orders'; END;"));
+    	assertFalse(DeferredStatement.isStructural("insert into orders (id) values (1)"));
+    	assertFalse(DeferredStatement.isStructural("create or replace procedure p as begin null; end;"));
+    	assertTrue(DeferredStatement.isStructural("-- rebuilt later\ndrop index customer_name_ix"));
+    	assertTrue(index.isNamedIn(Collections.singleton("CUSTOMER_NAME_IX")));
+    	assertTrue(foreignKey.isNamedIn(Collections.singleton("CUSTOMER")));
+    	assertFalse(check.isNamedIn(Collections.singleton("CUSTOMER")));
+    }
+
+    /**
+     * The dictionary scrub quotes the names it drops and a reset replays only data.
+     */
+    public void testSchemaScrubber() throws Exception {
+    	assertEquals("DROP TABLE \"Orders\" CASCADE CONSTRAINTS PURGE", SchemaScrubber.dropStatement("TABLE", "Orders"));
+    	assertEquals("DROP TYPE \"ADDRESS_T\" FORCE", SchemaScrubber.dropStatement("type", "ADDRESS_T"));
+    	assertEquals("DROP PACKAGE \"PKG\"", SchemaScrubber.dropStatement("PACKAGE", "PKG"));
+    	assertEquals("\"A\"\"B\"", SchemaScrubber.quote("A\"B"));
+
+    	assertTrue(SchemaScrubber.isDataStatement("insert into orders (id) values (1)"));
+    	assertTrue(SchemaScrubber.isDataStatement("-- seed\n/* lookups */ MERGE INTO country c USING dual ON (1 = 0)"));
+    	assertFalse(SchemaScrubber.isDataStatement("BEGIN load_orders; END;"));
+    	assertTrue(SchemaScrubber.isBlockStatement("BEGIN load_orders; END;"));
+    	assertTrue(SchemaScrubber.isBlockStatement("-- seed\ndeclare n number; begin null; end;"));
+    	assertFalse(SchemaScrubber.isBlockStatement("insert into orders (id) values (1)"));
+    	Map<String, Long> sequenceStarts = new HashMap<>();
+    	SchemaScrubber.addSequenceStart("create sequence app.order_seq minvalue 1 start with 100 increment by 1", sequenceStarts);
+    	SchemaScrubber.addSequenceStart("CREATE SEQUENCE \"Mixed_Seq\" START WITH -5 MINVALUE -10", sequenceStarts);
+    	SchemaScrubber.addSequenceStart("create sequence plain_seq", sequenceStarts);
+    	SchemaScrubber.addSequenceStart("create table start_with (id number)", sequenceStarts);
+    	assertEquals(Long.valueOf(100), sequenceStarts.get("ORDER_SEQ"));
+    	assertEquals(Long.valueOf(-5), sequenceStarts.get("Mixed_Seq"));
+    	assertEquals(2, sequenceStarts.size());
+    	assertFalse(SchemaScrubber.isDataStatement("create table orders (id number)"));
+    	assertFalse(SchemaScrubber.isDataStatement("-- insert the orders\ncreate index orders_ix on orders (id)"));
+    	assertFalse(SchemaScrubber.isDataStatement("updated_view_refresh"));
+    }
+
+    /**
+     * Tables are dropped before the tables they reference, and statements on
+     * tables joined by a foreign key never run at the same time, when
+     * dropping and when disabling and enabling the foreign keys for a reset.
+     */
+    public void testSchemaScrubberForeignKeys() throws Exception {
+    	final Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+    	references.put("LINES", new HashSet<String>(Arrays.asList("ORDERS", "PRODUCT")));
+    	references.put("ORDERS", new HashSet<String>(Arrays.asList("CUSTOMER")));
+    	final List<Map<String, Object>> foreignKeys = new ArrayList<Map<String, Object>>();
+    	for (Map.Entry<String, Set<String>> reference : references.entrySet()) {
+    		for (String referenced : reference.getValue()) {
+    			Map<String, Object> foreignKey = new HashMap<String, Object>();
+    			foreignKey.put("TABLE_NAME", reference.getKey());
+    			foreignKey.put("CONSTRAINT_NAME", reference.getKey() + "_" + referenced + "_FK");
+    			foreignKey.put("R_TABLE_NAME", referenced);
+    			foreignKeys.add(foreignKey);
+    		}
+    	}
+    	final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+    	final List<String> clashes = Collections.synchronizedList(new ArrayList<String>());
+    	final Set<String> locked = new HashSet<String>();
+    	JdbcTemplate template = new JdbcTemplate() {
+    		@Override
+    		public <T> List<T> queryForList(String sql, Class<T> elementType) {
+    			if (sql.startsWith("SELECT table_name FROM user_tables")) {
+    				List<T> tables = new ArrayList<T>();
+    				for (String table : Arrays.asList("CUSTOMER", "DB_BUILD_SCRIPTS", "LINES", "ORDERS", "PRODUCT")) {
+    					tables.add(elementType.cast(table));
+    				}
+    				return tables;
+    			}
+    			return new ArrayList<T>();
+    		}
+
+    		@Override
+    		public List<Map<String, Object>> queryForList(String sql) {
+    			return sql.contains("user_constraints") ? foreignKeys : new ArrayList<Map<String, Object>>();
+    		}
+
+    		@Override
+    		public void execute(String sql) {
+    			Set<String> tables = new HashSet<String>();
+    			String table = sql.replaceFirst("^(DROP|ALTER|TRUNCATE) TABLE \"([^\"]+)\".*$", "$2");
+    			tables.add(table);
+    			if (sql.startsWith("DROP") && references.containsKey(table)) {
+    				tables.addAll(references.get(table));
+    			} else if (sql.startsWith("ALTER")) {
+    				tables.add(sql.replaceFirst("^.*CONSTRAINT \"[A-Z]+_([A-Z]+)_FK\"$", "$1"));
+    			}
+    			synchronized (locked) {
+    				if (!Collections.disjoint(locked, tables)) {
+    					clashes.add(sql);
+    				}
+    				locked.addAll(tables);
+    			}
+    			try {
+    				Thread.sleep(20);
+    			} catch (InterruptedException e) {
+    				Thread.currentThread().interrupt();
+    			}
+    			synchronized (locked) {
+    				locked.removeAll(tables);
+    			}
+    			executed.add(sql);
+    		}
+    	};
+    	SchemaScrubber scrubber = new SchemaScrubber(template, 4);
+    	assertEquals(5, scrubber.drop());
+    	assertEquals(Collections.emptyList(), clashes);
+    	assertTrue(executed.indexOf(SchemaScrubber.dropStatement("TABLE", "LINES"))
+    			< executed.indexOf(SchemaScrubber.dropStatement("TABLE", "ORDERS")));
+    	assertTrue(executed.indexOf(SchemaScrubber.dropStatement("TABLE", "LINES"))
+    			< executed.indexOf(SchemaScrubber.dropStatement("TABLE", "PRODUCT")));
+    	assertTrue(executed.indexOf(SchemaScrubber.dropStatement("TABLE", "ORDERS"))
+    			< executed.indexOf(SchemaScrubber.dropStatement("TABLE", "CUSTOMER")));
+
+    	executed.clear();
+    	assertEquals(5, scrubber.reset());
+    	assertEquals(Collections.emptyList(), clashes);
+    	assertEquals(11, executed.size());
+    	// the foreign keys are disabled before any table is truncated and enabled after all of them
+    	for (int index = 0; index < executed.size(); index++) {
+    		String statement = executed.get(index);
+    		assertEquals(statement, index < 3, statement.contains(" DISABLE CONSTRAINT "));
+    		assertEquals(statement, index >= 3 && index < 8, statement.startsWith("TRUNCATE TABLE "));
+    		assertEquals(statement, index >= 8, statement.contains(" ENABLE CONSTRAINT "));
+    	}
+    	assertTrue(executed.contains("TRUNCATE TABLE \"DB_BUILD_SCRIPTS\""));
+    }
+
+    /**
+     * Files only wait for earlier files that touch the same objects.
+     */
+    public void testScriptFileDependencies() throws Exception {
+    	File tables = writeTempFile("1-tables.sql", "create table a (id number);--<\ncreate table b (id number);--<\n");
+    	File index = writeTempFile("2-index.sql", "create index ai on a(id);--<\n");
+    	File other = writeTempFile("3-c.sql", "create table c (x varchar2(10));--<\ninsert into c values ('from a');--<\n");
+    	File grant = writeTempFile("4-grant.sql", "grant select on b to someone;--<\n");
+    	List<Set<Integer>> dependencies = new ScriptFileScheduler(4)
+    			.buildDependencies(Arrays.asList(tables, index, other, grant));
+    	assertTrue(dependencies.get(0).isEmpty());
+    	assertTrue(dependencies.get(1).contains(0));
+    	assertTrue(dependencies.get(2).isEmpty());
+    	assertTrue(dependencies.get(3).contains(0));
+    	assertFalse(dependencies.get(3).contains(1));
+    }
+    
+    /**
+     * Schemas follow the schemas they depend on and cycles are rejected.
+     */
+    public void testSchemaDependencyOrder() throws Exception {
+    	SchemaScheduler scheduler = new SchemaScheduler(2);
+    	List<SchemaDefinition> ordered = scheduler.sortByDependency(Arrays.asList(
+    			new SchemaDefinition("data", "data_scripts", null, Arrays.asList("core")),
+    			new SchemaDefinition("core", "core_scripts", null, null),
+    			new SchemaDefinition("audit", "audit_scripts", null, null)));
+    	assertEquals("core", ordered.get(0).getName());
+    	assertEquals("data", ordered.get(1).getName());
+    	assertEquals("audit", ordered.get(2).getName());
+    	try {
+    		scheduler.sortByDependency(Arrays.asList(
+    				new SchemaDefinition("a", "a", null, Arrays.asList("b")),
+    				new SchemaDefinition("b", "b", null, Arrays.asList("a"))));
+    		fail();
+    	} catch (DatabaseBuilderException e) {
+    		assertTrue(e.getMessage().contains("Circular"));
+    	}
+    }
+    
+    /**
+     * Pending scripts are the set difference against the recorded history and
+     * scripts older than the latest recorded one are reported as out of order.
+     */
+    public void testAppliedHistory() {
+    	AppliedHistory history = new AppliedHistory();
+    	history.add(new BuildScript(new BigDecimal("-1"), "FORCE_FULL_REBUILD_OF_DB", null));
+    	history.add(new BuildScript(new BigDecimal("1"), "-initial", null));
+    	history.add(new BuildScript(new BigDecimal("3"), "-third", null));
+    	List<BuildScript> fileSystem = Arrays.asList(
+    			new BuildScript(new BigDecimal("1"), "-initial", null),
+    			new BuildScript(new BigDecimal("2"), "-merged", null),
+    			new BuildScript(new BigDecimal("3"), "-third", null),
+    			new BuildScript(new BigDecimal("4"), "-fourth", null));
+    	List<BuildScript> pending = history.pending(fileSystem);
+    	assertEquals(2, pending.size());
+    	assertEquals("-merged", pending.get(0).getName());
+    	assertEquals("-fourth", pending.get(1).getName());
+    	assertEquals(1, history.outOfOrder(pending).size());
+    	assertTrue(history.missingFrom(fileSystem).isEmpty());
+    	assertEquals("-third", history.getLatest().getName());
+    }
+    
+    /**
+     * A file added to an applied directory changes its checksum and is reported as drift.
+     */
+    public void testWorkspaceChecksums() throws Exception {
+    	File root = new File(System.getProperty("java.io.tmpdir"), "checksums-" + System.nanoTime());
+    	File indexFile = File.createTempFile("checksum-index", ".properties");
+    	try {
+    		File directory = new File(root, "1-initial");
+    		assertTrue(directory.mkdirs());
+    		writeFile(new File(directory, "tables.sql"), "create table a (id number);--<\n");
+    		WorkspaceChecksums checksums = new WorkspaceChecksums(indexFile);
+    		SortedMap<String, WorkspaceChecksums.DirectoryChecksum> before = checksums.hashRoot(root);
+    		checksums.save();
+    		String recorded = before.get("1-initial").getManifest();
+    		assertTrue(before.get("1-initial").drift(recorded).isEmpty());
+    		writeFile(new File(directory, "grants.sql"), "grant select on a to someone;--<\n");
+    		SortedMap<String, WorkspaceChecksums.DirectoryChecksum> after = new WorkspaceChecksums(indexFile).hashRoot(root);
+    		assertFalse(WorkspaceChecksums.workspaceChecksum(before).equals(WorkspaceChecksums.workspaceChecksum(after)));
+    		assertEquals(Arrays.asList("added grants.sql"), after.get("1-initial").drift(recorded));
+    	} finally {
+    		EmbeddedDatabase.delete(root);
+    		indexFile.delete();
+    	}
+    }
+    
+    /**
+     * The plan is written one build script at a time, abbreviating long
+     * statements as the log does, and runs nothing.
+     */
+    public void testPlanStreamsBuildScripts() throws Exception {
+    	final StringBuilder name = new StringBuilder();
+    	while (name.length() < LogManager.DEFAULT_SQL_MAX_LENGTH) {
+    		name.append("a long name ");
+    	}
+    	EmbeddedDatabase.withWorkspace(WorkspaceGenerator.shape(2, 1, 100, 0), (database, root, properties) -> {
+    		Files.write(new File(root, "2_0-synthetic2/1" + WorkspaceGenerator.TABLE_FILE).toPath(),
+    				("insert into synthetic_2 (id, name) values (1, '" + name + "');--<\n").getBytes(StandardCharsets.UTF_8),
+    				StandardOpenOption.APPEND);
+    		ScriptProcessor processor = new ScriptProcessor(properties);
+    		List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+    		processor.setProgressListener(messages::add);
+    		processor.setPlanOnly(true);
+    		processor.processTopLevelDir();
+    		List<String> sections = new ArrayList<String>();
+    		for (String message : messages) {
+    			if (message.startsWith("Plan for schema") || message.startsWith("  ") || message.startsWith("Total:")) {
+    				sections.add(message);
+    			}
+    		}
+    		assertEquals(4, sections.size());
+    		assertTrue(sections.get(1).contains("-synthetic1, estimated"));
+    		assertTrue(sections.get(2).contains("-synthetic2, estimated"));
+    		assertTrue(sections.get(2).contains("chars, fingerprint"));
+    		assertFalse(sections.get(2).contains(name));
+    		assertEquals(0, database.queryForLong("select count(*) from information_schema.tables where table_name = 'SYNTHETIC_1'"));
+    	});
+    }
+
+    /**
+     * Statements of the same shape share a saved average, similar ones are estimated roughly.
+     */
+    public void testExecutionHistoryEstimates() throws Exception {
+    	File historyFile = File.createTempFile("execution-history", ".properties");
+    	try {
+    		ExecutionHistory history = new ExecutionHistory(historyFile);
+    		assertNull(history.estimate("insert into a values (1, 'x')"));
+    		history.record("INSERT INTO a VALUES (1, 'x')", 100);
+    		history.record("insert into a\n  values (2, 'y') -- second", 300);
+    		history.save();
+    		history = new ExecutionHistory(historyFile);
+    		assertTrue(history.estimate("insert into a values (3, 'z')").isExact());
+    		assertEquals(200, history.estimate("insert into a values (3, 'z')").getMillis());
+    		assertFalse(history.estimate("insert into b values (1)").isExact());
+    		assertNull(history.estimate("create table b (id number)"));
+    	} finally {
+    		historyFile.delete();
+    	}
+    }
+    
+    /**
+     * Long sql is cut to the configured length and tagged with its size and fingerprint.
+     */
+    public void testLogSqlAbbreviation() {
+    	StringBuilder insert = new StringBuilder("insert all");
+    	for (int row = 0; row < 100; row++) {
+    		insert.append(" into a values (").append(row).append(")");
+    	}
+    	LogManager.setSqlMaxLength(20);
+    	try {
+    		assertEquals("create table a (id)", LogManager.sql("create table a (id)").toString());
+    		String logged = LogManager.sql(insert.toString()).toString();
+    		assertTrue(logged.startsWith("insert all into a va... [" + insert.length() + " chars"));
+    		assertTrue(logged.endsWith(ExecutionHistory.fingerprint(insert.toString()) + "]"));
+    	} finally {
+    		LogManager.setSqlMaxLength(LogManager.DEFAULT_SQL_MAX_LENGTH);
+    	}
+    }
+    
+    /**
+     * Counters and latency buckets are exported per schema as Prometheus text and json.
+     */
+    public void testExecutionMetricsSnapshot() throws Exception {
+    	ExecutionMetrics metrics = new ExecutionMetrics();
+    	metrics.statement("marigold", 3, 10);
+    	metrics.statement("marigold", 2000, 5);
+    	metrics.error("marigoldData");
+    	assertEquals(2, metrics.getCount(ExecutionMetrics.STATEMENTS, "marigold"));
+    	assertEquals(15, metrics.getCount(ExecutionMetrics.ROWS, "marigold"));
+    	String prometheus = metrics.toPrometheus();
+    	assertTrue(prometheus.contains("databasebuilder_errors_total{schema=\"marigoldData\"} 1"));
+    	assertTrue(prometheus.contains("databasebuilder_statement_duration_seconds_bucket{schema=\"marigold\",le=\"0.005\"} 1"));
+    	assertTrue(prometheus.contains("databasebuilder_statement_duration_seconds_count{schema=\"marigold\"} 2"));
+    	File directory = new File(System.getProperty("java.io.tmpdir"), "metrics-" + System.nanoTime());
+    	try {
+    		metrics.writeSnapshot(directory);
+    		assertTrue(new File(directory, ExecutionMetrics.PROMETHEUS_FILE).isFile());
+    	} finally {
+    		EmbeddedDatabase.delete(directory);
+    	}
+    	assertTrue(metrics.toJson().contains("\"marigold\":{"));
+    }
+    
+    /**
+     * A generated workspace has directories that sort by their numeric order
+     * and, in each, sql files ordered tables, data, then rules.
+     */
+    public void testGeneratedWorkspaceOrder() throws Exception {
+    	WorkspaceGenerator generator = new WorkspaceGenerator();
+    	generator.setDirectories(12);
+    	generator.setDataFiles(2);
+    	generator.setRowsPerFile(3);
+    	generator.setRuleFiles(1);
+    	File root = EmbeddedDatabase.generateWorkspace(generator);
+    	try {
+    		List<BuildScript> buildScripts = new ArrayList<BuildScript>();
+    		for (File directory : root.listFiles()) {
+    			buildScripts.add(new BuildScript(directory));
+    		}
+    		Collections.sort(buildScripts);
+    		assertEquals(new BigDecimal("2.0"), buildScripts.get(1).getOrder());
+    		assertEquals(new BigDecimal("12.0"), buildScripts.get(11).getOrder());
+    		List<File> files = new ScriptProcessor(new Properties()).orderSqlFiles(buildScripts.get(0).getFile());
+    		assertEquals(4, files.size());
+    		assertEquals("1-tables.sql", files.get(0).getName());
+    		assertEquals("3-data.sql", files.get(2).getName());
+    		assertEquals("1-Rules.sql", files.get(3).getName());
+    	} finally {
+    		EmbeddedDatabase.delete(root);
+    	}
+    }
+
+    /**
+     * Progress survives reopening the journal, is dropped when the file
+     * changes or the build script is cleared, and deferred progress only
+     * counts once flushed.
+     */
+    public void testProgressJournal() throws Exception {
+    	File journalFile = File.createTempFile("progress-journal", ProgressJournal.JOURNAL_FILE_EXT);
+    	journalFile.delete();
+    	journalFile.deleteOnExit();
+    	ProgressJournal journal = new ProgressJournal(journalFile);
+    	journal.cursor("1_0-tables", "2-data.sql", "aaaa").advance(9000);
+    	journal.cursor("1_0-tables", "1-tables.sql", "bbbb").advance(ProgressJournal.COMPLETE);
+    	ProgressJournal.Cursor deferred = journal.cursor("1_0-tables", "rules/1-Rules.sql", "cccc");
+    	deferred.defer(5);
+    	journal.flush();
+    	deferred.defer(7);
+    	journal.discard();
+    	for (int file = 0; file < 300; file++) {
+    		journal.cursor("2_0-more", file + "-data.sql", "dddd").advance(1);
+    	}
+    	journal.close();
+
+    	journal = new ProgressJournal(journalFile);
+    	assertTrue(journal.hasProgress("1_0-tables"));
+    	assertEquals(9000, journal.cursor("1_0-tables", "2-data.sql", "aaaa").getCompleted());
+    	assertEquals(ProgressJournal.COMPLETE, journal.cursor("1_0-tables", "1-tables.sql", "bbbb").getCompleted());
+    	assertEquals(5, journal.cursor("1_0-tables", "rules/1-Rules.sql", "cccc").getCompleted());
+    	assertEquals(1, journal.cursor("2_0-more", "299-data.sql", "dddd").getCompleted());
+    	assertEquals(0, journal.cursor("1_0-tables", "2-data.sql", "changed").getCompleted());
+    	assertEquals(0, journal.cursor("1_0-tables", "2-data.sql", "changed").getCompleted());
+    	journal.clear("1_0-tables");
+    	assertFalse(journal.hasProgress("1_0-tables"));
+    	assertTrue(journal.hasProgress("2_0-more"));
+    	journal.close();
+    }
+
+    /**
+     * Files written one after the other are reported once, after the quiet
+     * period, and a directory created while watching is watched as well.
+     */
+    public void testWorkspaceWatcherDebounce() throws Exception {
+    	File root = new File(System.getProperty("java.io.tmpdir"), "watched-" + System.nanoTime());
+    	File existing = new File(root, "2_0-existing");
+    	assertTrue(existing.mkdirs());
+    	final List<Set<String>> changes = Collections.synchronizedList(new ArrayList<Set<String>>());
+    	final BlockingQueue<Long> reports = new LinkedBlockingQueue<Long>();
+    	final WorkspaceWatcher watcher = new WorkspaceWatcher(Collections.singletonMap("marigold", root), 300);
+    	Thread thread = new Thread(() -> watcher.run(changed -> {
+    		changes.add(changed);
+    		reports.add(System.currentTimeMillis());
+    	}));
+    	thread.start();
+    	try {
+    		long lastWrite = 0;
+    		for (int file = 1; file <= 5; file++) {
+    			writeFile(new File(existing, file + "-data.sql"), "insert into a values (" + file + ");--<\n");
+    			lastWrite = System.currentTimeMillis();
+    			// further apart than the events of a copy, closer than the quiet period
+    			Thread.sleep(50);
+    		}
+    		Long reported = reports.poll(10, TimeUnit.SECONDS);
+    		assertNotNull(reported);
+    		assertTrue(reported >= lastWrite);
+    		assertEquals(Collections.singleton("marigold"), changes.get(0));
+
+    		// the watcher registers the new directory before it reports its creation
+    		File directory = new File(root, "3_0-new");
+    		assertTrue(directory.mkdir());
+    		assertNotNull(reports.poll(10, TimeUnit.SECONDS));
+    		writeFile(new File(directory, "1-data.sql"), "insert into a values (6);--<\n");
+    		assertNotNull(reports.poll(10, TimeUnit.SECONDS));
+    		assertEquals(3, changes.size());
+    	} finally {
+    		watcher.close();
+    		thread.join(5000);
+    		EmbeddedDatabase.delete(root);
+    	}
+    	assertFalse(thread.isAlive());
+    }
+
+    /**
+     * A db_build_scripts table created before checksums were recorded only
+     * gets the checksum columns once verifyChecksums is switched on, until
+     * then build scripts are recorded without them.
+     */
+    public void testChecksumColumnsOptIn() throws Exception {
+    	EmbeddedDatabase.withWorkspace(WorkspaceGenerator.shape(2, 1, 100, 0), (database, root, properties) -> {
+    		database.execute("CREATE TABLE " + BuildScript.DB_BUILD_SCRIPTS + " (scriptId NUMBER(5) PRIMARY KEY,"
+    				+ " orderby float not null, scriptname VARCHAR2(128) not null, createdOn TIMESTAMP(0) not null)");
+    		database.execute(BuildScript.CREATE_DB_BUILD_SCRIPT_SEQ);
+    		// the first build script was applied by an older release
+    		database.execute("INSERT INTO " + BuildScript.DB_BUILD_SCRIPTS + " VALUES (" + BuildScript.DB_BUILD_SCRIPT_SEQ
+    				+ ".nextval, 1, '-synthetic1', current_timestamp)");
+    		database.execute("create table synthetic_1 (id number(10) primary key)");
+    		database.createUser("builder");
+    		Properties builder = database.processorProperties(root, "builder", 1);
+    		builder.setProperty(ScriptProcessor.AUTO_CONFIRM_FLD, "true");
+    		builder.remove(ScriptProcessor.VERIFY_CHECKSUMS_FLD);
+    		new ScriptProcessor(builder).processTopLevelDir();
+    		assertEquals(2, database.queryForLong("select count(*) from db_build_scripts"));
+    		assertEquals(0, database.queryForLong("select count(*) from information_schema.columns"
+    				+ " where table_name = 'DB_BUILD_SCRIPTS' and column_name = 'CHECKSUM'"));
+
+    		builder.setProperty(ScriptProcessor.VERIFY_CHECKSUMS_FLD, "true");
+    		new ScriptProcessor(builder).processTopLevelDir();
+    		assertEquals(1, database.queryForLong("select count(*) from information_schema.columns"
+    				+ " where table_name = 'DB_BUILD_SCRIPTS' and column_name = 'CHECKSUM'"));
+    	});
+    }
+
+    /**
+     * Rebuilding a test user from an unchanged workspace truncates every
+     * table, db_build_scripts included, replays only the statements writing
+     * data and records the build scripts again. Replaying the create
+     * statements would fail on the tables that are still there.
+     */
+    public void testTestUserReset() throws Exception {
+    	EmbeddedDatabase.withWorkspace(WorkspaceGenerator.shape(2, 1, 3, 1), (database, root, properties) -> {
+    		Files.write(new File(root, "1_0-synthetic1/1" + WorkspaceGenerator.TABLE_FILE).toPath(),
+    				"create sequence order_seq minvalue 1 start with 100;--<\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    		properties.setProperty(ScriptProcessor.VERIFY_CHECKSUMS_FLD, "true");
+    		properties.setProperty(ScriptProcessor.TEST_RESET_FLD, "true");
+    		new ScriptProcessor(properties).processTopLevelDir();
+    		long firstScript = database.queryForLong("select min(scriptId) from db_build_scripts where orderby >= 0");
+    		assertEquals(100, database.queryForLong("select order_seq.nextval from dual"));
+    		assertEquals(101, database.queryForLong("select order_seq.nextval from dual"));
+
+    		new ScriptProcessor(properties).processTopLevelDir();
+    		assertEquals(3, database.queryForLong("select count(*) from synthetic_1"));
+    		assertEquals(3, database.queryForLong("select count(*) from synthetic_2"));
+    		assertEquals(3, database.queryForLong("select count(*) from synthetic_1 where name = 'rule 1'"));
+    		// the old rows went with the truncate and the replay recorded both build scripts again,
+    		// numbered from the start since the sequences were reset too
+    		assertEquals(2, database.queryForLong("select count(*) from db_build_scripts where orderby >= 0"));
+    		assertEquals(firstScript, database.queryForLong("select min(scriptId) from db_build_scripts where orderby >= 0"));
+    		// restarted where its create statement started it rather than at its minimum value
+    		assertEquals(100, database.queryForLong("select order_seq.nextval from dual"));
+    		assertEquals(1, database.queryForLong("select count(*) from db_build_scripts where workspaceChecksum is not null"));
+    		assertEquals(2, database.queryForLong("select count(*) from information_schema.indexes"
+    				+ " where index_name in ('SYNTHETIC_1_NAME', 'SYNTHETIC_2_NAME')"));
+    	});
+    }
+
+    /**
+     * A build script whose deferred ddl fails is not recorded, and the journal
+     * keeps the statements it still owes, so a resumed run builds them and
+     * only then records the build scripts.
+     */
+    public void testDeferredStatementsResume() throws Exception {
+    	final File journalDir = Files.createTempDirectory("databasebuilder-journal").toFile();
+    	try {
+    		EmbeddedDatabase.withWorkspace(WorkspaceGenerator.shape(2, 1, 2, 0), (database, root, properties) -> {
+    			File check = new File(new File(root, "2_0-synthetic2"), "3-check.sql");
+    			properties.setProperty(ScriptProcessor.PROGRESS_JOURNAL_FLD, journalDir.getPath());
+    			properties.setProperty(ScriptProcessor.DEFER_DDL_FLD, "true");
+    			// every row has a positive amount, so the deferred constraint cannot be built
+    			writeFile(check, "alter table synthetic_2 add constraint synthetic_2_amount_ck check (amount < 0);--<\n");
+    			try {
+    				new ScriptProcessor(properties).processTopLevelDir();
+    				fail("A failing deferred constraint was accepted");
+    			} catch (DatabaseBuilderException e) {
+    				// expected
+    			}
+    			assertEquals(0, database.queryForLong("select count(*) from db_build_scripts where orderby >= 0"));
+    			assertEquals(2, database.queryForLong("select count(*) from synthetic_2"));
+
+    			writeFile(check, "alter table synthetic_2 add constraint synthetic_2_amount_ck check (amount >= 0);--<\n");
+    			ScriptProcessor processor = new ScriptProcessor(properties);
+    			processor.setResume(true);
+    			processor.processTopLevelDir();
+    			assertEquals(2, database.queryForLong("select count(*) from db_build_scripts where orderby >= 0"));
+    			assertEquals(2, database.queryForLong("select count(*) from synthetic_2"));
+    			assertEquals(1, database.queryForLong("select count(*) from information_schema.table_constraints"
+    					+ " where constraint_name = 'SYNTHETIC_2_AMOUNT_CK'"));
+    			assertEquals(2, database.queryForLong("select count(*) from information_schema.indexes"
+    					+ " where index_name in ('SYNTHETIC_1_NAME', 'SYNTHETIC_2_NAME')"));
+    		});
+    	} finally {
+    		EmbeddedDatabase.delete(journalDir);
+    	}
+    }
+
+    /**
+     * Without anyone to prompt, as in watch mode, a database that has applied
+     * a build script the workspace no longer has fails the run rather than
+     * only logging a warning.
+     */
+    public void testUnbalancedDatabaseFailsUnattended() throws Exception {
+    	EmbeddedDatabase.withWorkspace(WorkspaceGenerator.shape(3, 1, 2, 0), (database, root, properties) -> {
+    		new ScriptProcessor(properties).processTopLevelDir();
+    		List<BuildScript> buildScripts = new ArrayList<BuildScript>();
+    		for (File directory : root.listFiles()) {
+    			buildScripts.add(new BuildScript(directory));
+    		}
+    		Collections.sort(buildScripts);
+    		EmbeddedDatabase.delete(buildScripts.get(2).getFile());
+
+    		database.createUser("builder");
+    		Properties builder = database.processorProperties(root, "builder", 1);
+    		builder.setProperty(ScriptProcessor.AUTO_CONFIRM_FLD, "true");
+    		try {
+    			new ScriptProcessor(builder).processTopLevelDir();
+    			fail("A database ahead of the workspace was accepted without a prompt");
+    		} catch (DatabaseBuilderException e) {
+    			assertTrue(e.getMessage().contains("advanced beyond the file system"));
+    		}
+    		assertEquals(3, database.queryForLong("select count(*) from db_build_scripts where orderby >= 0"));
+    	});
+    }
+
+    /**
+     * Starts a daemon on a free port and sends it requests that do not need
+     * a database: the status, a request with the wrong token, an apply the
+     * daemon is not allowed to run, and a plan of a schema that is not
+     * configured.
+     */
+    public void testDaemonRequests() throws Exception {
+    	File directory = Files.createTempDirectory("daemon").toFile();
+    	File tokenFile = new File(directory, BuilderDaemon.TOKEN_FILE);
+    	File copy = new File(directory, "copy.token");
+    	BuilderDaemon daemon = new BuilderDaemon(new ScriptProcessor(new Properties()), 0, tokenFile);
+    	daemon.start();
+    	try {
+    		assertTrue(tokenFile.isFile());
+    		if (tokenFile.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+    			assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+    		}
+    		DaemonClient client = new DaemonClient(daemon.getPort(), tokenFile);
+    		ByteArrayOutputStream output = new ByteArrayOutputStream();
+    		assertEquals(0, client.send(DaemonClient.STATUS_COMMAND, null, false, new PrintStream(output, true, "UTF-8")));
+    		String status = output.toString("UTF-8");
+    		assertTrue(status, status.startsWith("{\"uptimeSeconds\":"));
+    		assertTrue(status, status.contains("\"requests\":0"));
+    		assertTrue(status, status.contains("\"applying\":false"));
+    		assertTrue(status, status.contains("\"running\":null"));
+    		assertTrue(status, status.contains("\"connectedSchemas\":[]"));
+
+    		writeFile(copy, "not the token");
+    		output.reset();
+    		assertEquals(1, new DaemonClient(daemon.getPort(), copy).send(DaemonClient.STATUS_COMMAND, null, false,
+    				new PrintStream(output, true, "UTF-8")));
+    		assertTrue(output.toString("UTF-8"), output.toString("UTF-8").contains("HTTP 401"));
+
+    		output.reset();
+    		assertEquals(1, client.send(DaemonClient.APPLY_COMMAND, null, false, new PrintStream(output, true, "UTF-8")));
+    		assertTrue(output.toString("UTF-8").contains(ScriptProcessor.DAEMON_CONFIRM_FLD + ":true"));
+
+    		output.reset();
+    		assertEquals(1, client.send(ScriptProcessor.PLAN_COMMAND, "unknown", false, new PrintStream(output, true, "UTF-8")));
+    		assertTrue(output.toString("UTF-8").contains("Schema unknown is not configured"));
+    		Files.copy(tokenFile.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    	} finally {
+    		daemon.stop();
+    	}
+    	try {
+    		assertFalse(tokenFile.exists());
+    		try {
+    			new DaemonClient(daemon.getPort(), copy).send(DaemonClient.STATUS_COMMAND, null, false, System.out);
+    			fail("The stopped daemon answered");
+    		} catch (DatabaseBuilderException e) {
+    			// expected
+    		}
+    	} finally {
+    		EmbeddedDatabase.delete(directory);
+    	}
+    }
+
+    /**
+     * A daemon allowed to apply applies a generated workspace to the
+     * embedded database, streams its progress, and keeps the schema
+     * connected for the next request.
+     */
+    public void testDaemonApply() throws Exception {
+    	EmbeddedDatabase.withWorkspace(WorkspaceGenerator.shape(3, 1, 2, 0), (database, root, properties) -> {
+    		File tokenFile = new File(root.getParentFile(), root.getName() + ".token");
+    		properties.setProperty(ScriptProcessor.DAEMON_CONFIRM_FLD, "true");
+    		BuilderDaemon daemon = new BuilderDaemon(new ScriptProcessor(properties), 0, tokenFile);
+    		daemon.start();
+    		try {
+    			DaemonClient client = new DaemonClient(daemon.getPort(), tokenFile);
+    			ByteArrayOutputStream output = new ByteArrayOutputStream();
+    			assertEquals(0, client.send(DaemonClient.APPLY_COMMAND, EmbeddedDatabase.SCHEMA, false,
+    					new PrintStream(output, true, "UTF-8")));
+    			String progress = output.toString("UTF-8");
+    			assertTrue(progress, progress.contains("3 build scripts pending"));
+    			assertTrue(progress, progress.trim().endsWith(BuilderDaemon.OK));
+    			assertEquals(3, database.queryForLong("select count(*) from db_build_scripts where orderby >= 0"));
+    			assertEquals(2, database.queryForLong("select count(*) from synthetic_3"));
+
+    			output.reset();
+    			assertEquals(0, client.send(DaemonClient.STATUS_COMMAND, null, false, new PrintStream(output, true, "UTF-8")));
+    			String status = output.toString("UTF-8");
+    			assertTrue(status, status.contains("\"requests\":1"));
+    			assertTrue(status, status.contains("\"failures\":0"));
+    			assertTrue(status, status.contains("\"connectedSchemas\":[\"" + EmbeddedDatabase.SCHEMA + "\"]"));
+    		} finally {
+    			daemon.stop();
+    			tokenFile.delete();
+    		}
+    	});
+    }
+
+    /**
+     * Applies a generated workspace to an embedded database: a full build as
+     * the test user, then new directories as a normal user, then an unchanged
+     * workspace. The throughput of each run is appended to the throughput file.
+     */
+    public void testEmbeddedApply() throws Exception {
+    	final WorkspaceGenerator generator = WorkspaceGenerator.shape(20, 2, 200, 1);
+    	InputStream stdin = System.in;
+    	try {
+    		EmbeddedDatabase.withWorkspace(generator, (database, root, properties) -> {
+    			ScriptProcessor full = new ScriptProcessor(database.processorProperties(root, EmbeddedDatabase.USER, 2));
+    			long started = System.currentTimeMillis();
+    			full.processTopLevelDir();
+    			long statements = full.getMetrics().getCount(ExecutionMetrics.STATEMENTS, EmbeddedDatabase.SCHEMA);
+    			EmbeddedDatabase.recordThroughput("full-20x2x200", statements, System.currentTimeMillis() - started);
+    			assertEquals(20, database.queryForLong("select count(*) from db_build_scripts where orderby >= 0"));
+    			assertEquals(400, database.queryForLong("select count(*) from synthetic_1"));
+    			assertEquals(400, database.queryForLong("select count(*) from synthetic_20"));
+    			assertEquals(10, database.queryForLong("select count(*) from synthetic_20 where name = 'rule 1'"));
+    			assertEquals(0, full.getMetrics().getCount(ExecutionMetrics.ERRORS, EmbeddedDatabase.SCHEMA));
+    			// 2 table statements, 400 inserts and 10 rules per directory
+    			assertEquals(20 * 412, statements);
+
+    			generator.setDirectories(25);
+    			generator.generate(root);
+    			database.createUser("builder");
+    			Properties builder = database.processorProperties(root, "builder", 2);
+    			builder.setProperty(ScriptProcessor.VERIFY_CHECKSUMS_FLD, "true");
+    			System.setIn(new ByteArrayInputStream("yes\n".getBytes(StandardCharsets.UTF_8)));
+    			ScriptProcessor incremental = new ScriptProcessor(builder);
+    			started = System.currentTimeMillis();
+    			incremental.processTopLevelDir();
+    			statements = incremental.getMetrics().getCount(ExecutionMetrics.STATEMENTS, EmbeddedDatabase.SCHEMA);
+    			EmbeddedDatabase.recordThroughput("incremental-5x2x200", statements, System.currentTimeMillis() - started);
+    			assertEquals(25, database.queryForLong("select count(*) from db_build_scripts where orderby >= 0"));
+    			assertEquals(400, database.queryForLong("select count(*) from synthetic_25"));
+    			assertEquals(5 * 412, statements);
+
+    			// the stored workspace checksum matches, so nothing is read or prompted for
+    			System.setIn(new ByteArrayInputStream(new byte[0]));
+    			ScriptProcessor unchanged = new ScriptProcessor(builder);
+    			unchanged.processTopLevelDir();
+    			assertEquals(0, unchanged.getMetrics().getCount(ExecutionMetrics.STATEMENTS, EmbeddedDatabase.SCHEMA));
+    		});
+    	} finally {
+    		System.setIn(stdin);
+    	}
+    }
+
+    private File writeTempFile(String name, String content) throws Exception {
+    	File file = File.createTempFile(name, ".sql");
+    	file.deleteOnExit();
+    	writeFile(file, content);
+    	return file;
+    }
+
+    private void writeFile(File file, String content) throws Exception {
+    	FileWriter writer = new FileWriter(file);
+    	writer.write(content);
+    	writer.close();
+    }
 }
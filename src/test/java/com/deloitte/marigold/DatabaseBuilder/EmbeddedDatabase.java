@@ -0,0 +1,248 @@
+package com.deloitte.marigold.DatabaseBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.deloitte.marigold.databasebuilder.DatabaseBuilderException;
+import com.deloitte.marigold.databasebuilder.JDBCConnectionHandler;
+import com.deloitte.marigold.databasebuilder.ScriptProcessor;
+
+/**
+ * An in memory H2 database in Oracle mode standing in for the Oracle schema,
+ * with views imitating the parts of the Oracle data dictionary the
+ * bookkeeping queries and the schema scrubber use. The connection opened
+ * here keeps the database alive until {@link #close()}.
+ *
+ * Used by the tests and by the benchmarks module, which depends on the test
+ * jar, so both run the engine on any machine without an Oracle instance.
+ */
+public final class EmbeddedDatabase implements AutoCloseable {
+	// Constants
+	public static final String SCHEMA          = "bench";
+	public static final String USER            = ScriptProcessor.TEST_USER;
+	public static final String PASSWORD        = "bench";
+	public static final String THROUGHPUT_FILE = "target/embedded-apply-throughput.csv";
+	public static final String THROUGHPUT_PROP = "embedded.throughput.file";
+
+	private static final String[] DICTIONARY = {
+			"CREATE VIEW ALL_TABLES AS SELECT TABLE_NAME, CAST(CURRENT_USER AS VARCHAR(128)) AS OWNER"
+					+ " FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = 'PUBLIC'",
+			"CREATE VIEW ALL_TAB_COLUMNS AS SELECT TABLE_NAME, COLUMN_NAME, CAST(CURRENT_USER AS VARCHAR(128)) AS OWNER"
+					+ " FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = 'PUBLIC'",
+			// what the schema scrubber reads to reset the schema of a test user
+			"CREATE VIEW USER_TABLES AS SELECT TABLE_NAME, 'NO' AS DROPPED, 'NO' AS NESTED, 'N' AS SECONDARY,"
+					+ " CAST(NULL AS VARCHAR(8)) AS IOT_TYPE FROM INFORMATION_SCHEMA.TABLES"
+					+ " WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_TYPE = 'BASE TABLE'",
+			"CREATE VIEW USER_MVIEWS AS SELECT TABLE_NAME AS MVIEW_NAME FROM INFORMATION_SCHEMA.TABLES WHERE 1 = 0",
+			"CREATE VIEW USER_QUEUE_TABLES AS SELECT TABLE_NAME AS QUEUE_TABLE FROM INFORMATION_SCHEMA.TABLES WHERE 1 = 0",
+			"CREATE VIEW USER_EXTERNAL_TABLES AS SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE 1 = 0",
+			"CREATE VIEW USER_CONSTRAINTS AS SELECT c.TABLE_NAME, c.CONSTRAINT_NAME,"
+					+ " CASE c.CONSTRAINT_TYPE WHEN 'FOREIGN KEY' THEN 'R' WHEN 'PRIMARY KEY' THEN 'P' WHEN 'UNIQUE' THEN 'U'"
+					+ " ELSE 'C' END AS CONSTRAINT_TYPE, 'ENABLED' AS STATUS, CAST(CURRENT_USER AS VARCHAR(128)) AS OWNER,"
+					+ " CAST(CURRENT_USER AS VARCHAR(128)) AS R_OWNER, r.UNIQUE_CONSTRAINT_NAME AS R_CONSTRAINT_NAME"
+					+ " FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS c LEFT JOIN INFORMATION_SCHEMA.REFERENTIAL_CONSTRAINTS r"
+					+ " ON r.CONSTRAINT_SCHEMA = c.CONSTRAINT_SCHEMA AND r.CONSTRAINT_NAME = c.CONSTRAINT_NAME"
+					+ " WHERE c.TABLE_SCHEMA = 'PUBLIC'",
+			"CREATE VIEW USER_SEQUENCES AS SELECT SEQUENCE_NAME, MINIMUM_VALUE AS MIN_VALUE, INCREMENT AS INCREMENT_BY"
+					+ " FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_SCHEMA = 'PUBLIC'" };
+
+	private static final AtomicInteger DATABASES = new AtomicInteger();
+
+	/**
+	 * The body of a test run by {@link EmbeddedDatabase#withWorkspace(WorkspaceGenerator, WorkspaceBody)}.
+	 */
+	public interface WorkspaceBody {
+		/**
+		 * @param database - a new database, closed afterwards
+		 * @param root - the generated workspace, deleted afterwards
+		 * @param properties - the settings applying the workspace as {@link #USER} one file at a time
+		 */
+		void run(EmbeddedDatabase database, File root, Properties properties) throws Exception;
+	}
+
+	private final String     url;
+	private final Connection keepAlive;
+	private final File       directory;
+
+	/**
+	 * Creates the database, owned by the test user.
+	 *
+	 * @param name - a name unique within the JVM
+	 */
+	public EmbeddedDatabase(String name) throws SQLException, IOException {
+		url = "jdbc:h2:mem:" + name + ";MODE=Oracle;DB_CLOSE_DELAY=-1";
+		keepAlive = DriverManager.getConnection(url, USER, PASSWORD);
+		try (Statement statement = keepAlive.createStatement()) {
+			for (String view : DICTIONARY) {
+				statement.execute(view);
+			}
+		}
+		directory = Files.createTempDirectory("databasebuilder-db").toFile();
+	}
+
+	/**
+	 * Adds a user that is not a test user, so the processor compares the
+	 * workspace with the db_build_scripts table and prompts before applying.
+	 *
+	 * @param user - the user name
+	 */
+	public void createUser(String user) throws SQLException {
+		try (Statement statement = keepAlive.createStatement()) {
+			statement.execute("CREATE USER " + user + " PASSWORD '" + PASSWORD + "' ADMIN");
+		}
+	}
+
+	/**
+	 * Configures a processor applying the given workspace to this database.
+	 * Checksums are not verified unless the caller switches them on, the
+	 * index and the execution history are kept in a temporary directory.
+	 *
+	 * @param root - the directory holding the build script directories
+	 * @param user - {@link #USER} to apply every build script without a prompt, or a user from {@link #createUser(String)}
+	 * @param fileParallelism - sql files of a directory run at the same time
+	 * @return Properties - the settings for {@link ScriptProcessor#ScriptProcessor(Properties)}
+	 */
+	public Properties processorProperties(File root, String user, int fileParallelism) throws IOException {
+		Properties jdbc = new Properties();
+		jdbc.setProperty(JDBCConnectionHandler.URL_FIELD, url);
+		jdbc.setProperty(JDBCConnectionHandler.USER_FIELD, user);
+		jdbc.setProperty(JDBCConnectionHandler.PASSWORD_FIELD, PASSWORD);
+		jdbc.setProperty(JDBCConnectionHandler.POOL_MAX_FIELD, String.valueOf(Math.max(2, fileParallelism + 1)));
+		File jdbcFile = new File(directory, SCHEMA + "-" + user + "-jdbc.properties");
+		try (OutputStream output = Files.newOutputStream(jdbcFile.toPath())) {
+			jdbc.store(output, null);
+		}
+		Properties properties = new Properties();
+		properties.setProperty(ScriptProcessor.WORKSPACE_FLD, root.getParent());
+		properties.setProperty(ScriptProcessor.SCHEMAS_FLD, SCHEMA);
+		properties.setProperty(ScriptProcessor.SCHEMA_PREFIX + SCHEMA + ScriptProcessor.SCHEMA_SCRIPTS_FLD, root.getName());
+		properties.setProperty(ScriptProcessor.SCHEMA_PREFIX + SCHEMA + ScriptProcessor.SCHEMA_PROP_FLD, jdbcFile.getPath());
+		properties.setProperty(ScriptProcessor.FILE_PARALLELISM_FLD, String.valueOf(fileParallelism));
+		properties.setProperty(ScriptProcessor.VERIFY_CHECKSUMS_FLD, "false");
+		properties.setProperty(ScriptProcessor.CHECKSUM_INDEX_FLD, directory.getPath());
+		properties.setProperty(ScriptProcessor.EXEC_HISTORY_FLD, directory.getPath());
+		properties.setProperty(ScriptProcessor.FORCE_REBUILD_FLD, "FORCE_FULL_REBUILD_OF_DB");
+		return properties;
+	}
+
+	/**
+	 * @param sql - a statement run as the test user, e.g. to set up an older bookkeeping table
+	 */
+	public void execute(String sql) throws SQLException {
+		try (Statement statement = keepAlive.createStatement()) {
+			statement.execute(sql);
+		}
+	}
+
+	/**
+	 * @param query - a query returning a single number
+	 * @return long - the number, 0 if there is no row
+	 */
+	public long queryForLong(String query) throws SQLException {
+		try (Statement statement = keepAlive.createStatement(); ResultSet resultSet = statement.executeQuery(query)) {
+			return resultSet.next() ? resultSet.getLong(1) : 0;
+		}
+	}
+
+	@Override
+	public void close() throws SQLException, IOException {
+		try (Statement statement = keepAlive.createStatement()) {
+			statement.execute("SHUTDOWN");
+		} finally {
+			keepAlive.close();
+			delete(directory);
+		}
+	}
+
+	/**
+	 * @param generator - the configured shape of the workspace
+	 * @return File - a new temporary directory holding the build script directories
+	 */
+	public static File generateWorkspace(WorkspaceGenerator generator) throws IOException, DatabaseBuilderException {
+		File root = Files.createTempDirectory("databasebuilder-workspace").toFile();
+		generator.generate(root);
+		return root;
+	}
+
+	/**
+	 * Generates a workspace of the given shape, creates a new database and
+	 * runs the body against both. The database is closed and the workspace
+	 * deleted afterwards, whether or not the body fails.
+	 *
+	 * @param shape - the configured shape of the workspace
+	 * @param body - the test
+	 */
+	public static void withWorkspace(WorkspaceGenerator shape, WorkspaceBody body) throws Exception {
+		File root = generateWorkspace(shape);
+		try (EmbeddedDatabase database = new EmbeddedDatabase("workspace" + DATABASES.incrementAndGet())) {
+			body.run(database, root, database.processorProperties(root, USER, 1));
+		} finally {
+			delete(root);
+		}
+	}
+
+	/**
+	 * Appends a run to the throughput file, target/embedded-apply-throughput.csv
+	 * unless the embedded.throughput.file system property names another, so
+	 * runs of different builds on the same machine can be compared.
+	 *
+	 * @param run - what was applied, e.g. the shape of the workspace
+	 * @param statements - statements executed
+	 * @param millis - wall clock time of the run
+	 * @return double - statements per second
+	 */
+	public static double recordThroughput(String run, long statements, long millis) throws IOException {
+		double perSecond = statements * 1000.0 / Math.max(1, millis);
+		File file = new File(System.getProperty(THROUGHPUT_PROP, THROUGHPUT_FILE));
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Unable to create " + parent);
+		}
+		boolean header = !file.isFile();
+		try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND)) {
+			if (header) {
+				writer.write("timestamp,run,statements,millis,statementsPerSecond\n");
+			}
+			writer.write(Instant.now() + "," + run + "," + statements + "," + millis + "," + String.format(Locale.ROOT, "%.1f", perSecond) + "\n");
+		}
+		return perSecond;
+	}
+
+	public static void delete(File root) throws IOException {
+		if (null == root || !root.exists()) {
+			return;
+		}
+		Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
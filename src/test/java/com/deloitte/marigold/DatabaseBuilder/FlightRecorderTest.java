@@ -0,0 +1,147 @@
+package com.deloitte.marigold.DatabaseBuilder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.deloitte.marigold.databasebuilder.ConnectionPool;
+import com.deloitte.marigold.databasebuilder.FlightRecorderEvents;
+import com.deloitte.marigold.databasebuilder.ScriptProcessor;
+import com.deloitte.marigold.databasebuilder.SqlStatementReader;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the flight recorder events of the Database Builder. These
+ * tests record and read back events through the jdk.jfr api, so they are
+ * only compiled by the jfr-tests profile, which is active on JDK 11 and later.
+ */
+public class FlightRecorderTest 
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public FlightRecorderTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( FlightRecorderTest.class );
+    }
+
+    /**
+     * Reading a sql file records a split event per statement and one read
+     * event for the whole file.
+     */
+    public void testFlightRecorderReadEvents() throws Exception {
+    	assertTrue(FlightRecorderEvents.isAvailable());
+    	File sql = File.createTempFile("1-tables.sql", ".sql");
+    	sql.deleteOnExit();
+    	Files.write(sql.toPath(), "create table a (id number);--<\ncreate table b (id number);--<\n".getBytes(StandardCharsets.UTF_8));
+    	File dump = File.createTempFile("statements", ".jfr");
+    	dump.deleteOnExit();
+    	try (Recording recording = new Recording()) {
+    		recording.enable(FlightRecorderEvents.PREFIX + "StatementSplit");
+    		recording.enable(FlightRecorderEvents.PREFIX + "FileRead");
+    		recording.start();
+    		try (SqlStatementReader reader = new SqlStatementReader(sql)) {
+    			while (reader.nextStatement() != null) {
+    				// read every statement
+    			}
+    		}
+    		recording.stop();
+    		recording.dump(dump.toPath());
+    	}
+    	int splits = 0;
+    	for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+    		if (event.getEventType().getName().endsWith("StatementSplit")) {
+    			splits++;
+    		} else {
+    			assertEquals(2, event.getInt("statements"));
+    			assertEquals(sql.getPath(), event.getString("file"));
+    		}
+    	}
+    	assertEquals(2, splits);
+    }
+    /**
+     * Borrowing from the pool records whether a new connection had to be
+     * opened or an idle one was handed out again.
+     */
+    public void testFlightRecorderConnectionEvents() throws Exception {
+    	List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    	ConnectionPool pool = new ConnectionPool(AppTest.recordingDataSource(calls, Collections.<Integer>emptySet()), 0, 1, 0, 1);
+    	File dump = File.createTempFile("connections", ".jfr");
+    	try (Recording recording = new Recording()) {
+    		recording.enable(FlightRecorderEvents.PREFIX + "ConnectionAcquisition");
+    		recording.start();
+    		pool.getConnection().close();
+    		pool.getConnection().close();
+    		recording.stop();
+    		recording.dump(dump.toPath());
+    		List<Boolean> opened = new ArrayList<Boolean>();
+    		for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+    			opened.add(event.getBoolean("opened"));
+    		}
+    		assertEquals(Arrays.asList(true, false), opened);
+    	} finally {
+    		pool.shutdown();
+    		dump.delete();
+    	}
+    }
+    /**
+     * Applying a workspace to the embedded database records an execution
+     * event for every statement and batch, with the schema, file and
+     * fingerprint filled in.
+     */
+    public void testFlightRecorderExecutionEvents() throws Exception {
+    	final File dump = File.createTempFile("executions", ".jfr");
+    	try {
+    		EmbeddedDatabase.withWorkspace(WorkspaceGenerator.shape(2, 1, 3, 1), (database, root, properties) -> {
+    			try (Recording recording = new Recording()) {
+    				recording.enable(FlightRecorderEvents.PREFIX + "StatementExecution");
+    				recording.start();
+    				new ScriptProcessor(properties).processTopLevelDir();
+    				recording.stop();
+    				recording.dump(dump.toPath());
+    			}
+    			int events = 0;
+    			long rows = 0;
+    			for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+    				// events a recording does not mention are on by default, e.g. the connection acquisitions
+    				if (!event.getEventType().getName().endsWith("StatementExecution")) {
+    					continue;
+    				}
+    				events++;
+    				rows += event.getInt("rows");
+    				assertEquals(EmbeddedDatabase.SCHEMA, event.getString("schema"));
+    				assertTrue(event.getBoolean("succeeded"));
+    				assertTrue(event.getString("file").contains(root.getName()));
+    				assertNotNull(event.getString("fingerprint"));
+    			}
+    			assertTrue(events > 0);
+    			assertTrue(rows >= database.queryForLong("select count(*) from synthetic_1")
+    					+ database.queryForLong("select count(*) from synthetic_2"));
+    		});
+    	} finally {
+    		dump.delete();
+    	}
+    }
+    
+}
@@ -0,0 +1,108 @@
+package com.deloitte.marigold.DatabaseBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.stream.Stream;
+
+import com.deloitte.marigold.databasebuilder.LogManager;
+import com.deloitte.marigold.databasebuilder.ScriptProcessor;
+import com.deloitte.marigold.databasebuilder.SqlStatementReader;
+import com.deloitte.marigold.databasebuilder.WorkspaceChecksums;
+
+import oracle.jdbc.pool.OracleConnectionPoolDataSource;
+
+/**
+ * This class walks the start up path of a run without a database, so the
+ * appcds build profile can record which classes a run loads and dump them
+ * into a class data sharing archive shipped next to the jar. Starting from
+ * the archive skips loading, verifying and linking those classes, most of
+ * them Spring, the Oracle driver and the logging framework.
+ *
+ * It configures a processor, hashes and splits a small generated workspace
+ * the way the unchanged check and the first build script do, and creates,
+ * without connecting, the data source and template of a schema.
+ *
+ * Given a budget in milliseconds it also checks the start up time, from the
+ * start of the JVM until the template is ready, leaving out the time spent
+ * generating the workspace. The profile runs it once more on the archive
+ * for that.
+ *
+ * usage : java -cp DatabaseBuilder.jar:test-classes com.deloitte.marigold.DatabaseBuilder.StartupTraining [budget millis]
+ */
+public class StartupTraining {
+	private static final LogManager log = LogManager.getLogger(StartupTraining.class);
+
+	private StartupTraining() {}
+
+	/**
+	 * @param args - optionally the start up budget in milliseconds, 0 or none to skip the check
+	 */
+	public static void main(String[] args) {
+		long budget = args.length > 0 ? Long.parseLong(args[0]) : 0;
+		long generating = 0;
+		File root = null;
+		try {
+			root = Files.createTempDirectory("databasebuilder-training").toFile();
+			File workspace = new File(root, "workspace");
+			long started = System.currentTimeMillis();
+			WorkspaceGenerator generator = new WorkspaceGenerator();
+			generator.setDirectories(2);
+			generator.setRowsPerFile(10);
+			generator.setRuleFiles(1);
+			generator.generate(workspace);
+			generating = System.currentTimeMillis() - started;
+
+			ScriptProcessor processor = new ScriptProcessor(new Properties());
+			WorkspaceChecksums checksums = new WorkspaceChecksums(new File(root, WorkspaceChecksums.INDEX_FILE_NAME
+					+ "training" + WorkspaceChecksums.INDEX_FILE_EXT));
+			SortedMap<String, WorkspaceChecksums.DirectoryChecksum> directories = checksums.hashRoot(workspace);
+			log.info("Training workspace checksum is {}", WorkspaceChecksums.workspaceChecksum(directories));
+			checksums.save();
+
+			int statements = 0;
+			for (File directory : workspace.listFiles()) {
+				for (File sqlFile : processor.orderSqlFiles(directory)) {
+					try (SqlStatementReader reader = new SqlStatementReader(sqlFile)) {
+						while (null != reader.nextStatement()) {
+							statements++;
+						}
+					}
+				}
+			}
+			log.info("Training workspace has {} statements", statements);
+
+			OracleConnectionPoolDataSource dataSource = new OracleConnectionPoolDataSource();
+			dataSource.setURL("jdbc:oracle:thin:@localhost:1521:training");
+			processor.setDataSource(dataSource);
+		} catch (Exception e) {
+			log.error("Error running the start up training", e);
+			System.exit(-1);
+		} finally {
+			delete(root);
+		}
+
+		long startup = ManagementFactory.getRuntimeMXBean().getUptime() - generating;
+		log.info("Start up took {} ms", startup);
+		if (budget > 0 && startup > budget) {
+			log.error("Start up took {} ms, more than the budget of {} ms", new Object[] { startup, budget });
+			System.exit(1);
+		}
+	}
+
+	private static void delete(File root) {
+		if (null == root) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(root.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		} catch (IOException e) {
+			log.warn("Unable to delete {}: {}", new Object[] { root, e.getMessage() });
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package com.deloitte.marigold.DatabaseBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import com.deloitte.marigold.databasebuilder.DatabaseBuilderException;
+import com.deloitte.marigold.databasebuilder.LogManager;
+
+/**
+ * This class writes a synthetic workspace of build script directories in the
+ * layout the ScriptProcessor expects, so the scaling of parsing, ordering,
+ * splitting and applying can be measured on workspaces of any shape.
+ *
+ * Each directory gets a table file, the configured number of data files, and
+ * optionally a procedure file and rule files. The generated sql
+ * sticks to statements that Oracle and an embedded database in Oracle mode
+ * both accept, except for the procedures.
+ *
+ * It ships in the test jar, next to the embedded database harness, for the
+ * tests and the benchmarks module.
+ *
+ * usage : java -cp DatabaseBuilder.jar:DatabaseBuilder-tests.jar com.deloitte.marigold.DatabaseBuilder.WorkspaceGenerator root directories [dataFiles rowsPerFile ruleFiles]
+ */
+public class WorkspaceGenerator {
+	private static final LogManager log = LogManager.getLogger(WorkspaceGenerator.class);
+
+	// Constants
+	public static final String TABLE_FILE     = "-tables.sql";
+	public static final String DATA_FILE      = "-data.sql";
+	public static final String PROCEDURE_FILE = "-PROCEDURES.sql";
+	public static final String RULE_FILE      = "-Rules.sql";
+	public static final String RULES_DIR      = "rules";
+
+	private int     directories     = 100;
+	private int     dataFiles       = 1;
+	private int     rowsPerFile     = 100;
+	private int     ruleFiles       = 0;
+	private int     rulesPerFile    = 10;
+	private boolean procedures      = false;
+
+	/**
+	 * @param directories - build script directories
+	 * @param dataFiles - data files per directory
+	 * @param rowsPerFile - inserts per data file
+	 * @param ruleFiles - rule files per directory
+	 * @return WorkspaceGenerator - a generator of that shape, without procedures
+	 */
+	public static WorkspaceGenerator shape(int directories, int dataFiles, int rowsPerFile, int ruleFiles) {
+		WorkspaceGenerator generator = new WorkspaceGenerator();
+		generator.setDirectories(directories);
+		generator.setDataFiles(dataFiles);
+		generator.setRowsPerFile(rowsPerFile);
+		generator.setRuleFiles(ruleFiles);
+		return generator;
+	}
+
+	/**
+	 * Writes the workspace. Existing files with the same names are overwritten.
+	 *
+	 * @param root - the directory the build script directories are created in
+	 * @throws DatabaseBuilderException - if a file cannot be written
+	 */
+	public void generate(File root) throws DatabaseBuilderException {
+		try {
+			for (int index = 1; index <= directories; index++) {
+				File directory = new File(root, index + "_0-synthetic" + index);
+				File rules = new File(directory, RULES_DIR);
+				File deepest = ruleFiles > 0 ? rules : directory;
+				if (!deepest.isDirectory() && !deepest.mkdirs()) {
+					throw new DatabaseBuilderException("Unable to create " + deepest);
+				}
+				String table = "synthetic_" + index;
+				int file = 1;
+				try (Writer writer = open(new File(directory, file++ + TABLE_FILE))) {
+					writer.write("create table " + table + " (id number(10) primary key, name varchar2(100), amount number(12,2));--<\n");
+					writer.write("create index " + table + "_name on " + table + " (name);--<\n");
+				}
+				for (int data = 0; data < dataFiles; data++) {
+					try (Writer writer = open(new File(directory, file++ + DATA_FILE))) {
+						int first = data * rowsPerFile;
+						for (int row = first; row < first + rowsPerFile; row++) {
+							writer.write("insert into " + table + " (id, name, amount) values (" + row + ", 'row " + row
+									+ " of " + table + "', " + (row % 1000) + ".50);--<\n");
+						}
+					}
+				}
+				if (procedures) {
+					try (Writer writer = open(new File(directory, file++ + PROCEDURE_FILE))) {
+						writer.write("create or replace procedure " + table + "_touch as\nbegin\n  update " + table
+								+ " set amount = amount + 1;\nend;\n--<\n");
+					}
+				}
+				for (int rule = 1; rule <= ruleFiles; rule++) {
+					try (Writer writer = open(new File(rules, rule + RULE_FILE))) {
+						for (int statement = 0; statement < rulesPerFile; statement++) {
+							writer.write("update " + table + " set name = 'rule " + rule + "' where id = " + statement + ";--end\n");
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new DatabaseBuilderException("Unable to generate workspace in " + root, e);
+		}
+		log.info("Generated {} build script directories in {}", new Object[] { directories, root });
+	}
+
+	private static Writer open(File file) throws IOException {
+		return Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+	}
+
+	public int getDirectories() {
+		return directories;
+	}
+
+	public void setDirectories(int directories) {
+		this.directories = directories;
+	}
+
+	public int getDataFiles() {
+		return dataFiles;
+	}
+
+	public void setDataFiles(int dataFiles) {
+		this.dataFiles = dataFiles;
+	}
+
+	public int getRowsPerFile() {
+		return rowsPerFile;
+	}
+
+	public void setRowsPerFile(int rowsPerFile) {
+		this.rowsPerFile = rowsPerFile;
+	}
+
+	public int getRuleFiles() {
+		return ruleFiles;
+	}
+
+	public void setRuleFiles(int ruleFiles) {
+		this.ruleFiles = ruleFiles;
+	}
+
+	public int getRulesPerFile() {
+		return rulesPerFile;
+	}
+
+	public void setRulesPerFile(int rulesPerFile) {
+		this.rulesPerFile = rulesPerFile;
+	}
+
+	public boolean isProcedures() {
+		return procedures;
+	}
+
+	public void setProcedures(boolean procedures) {
+		this.procedures = procedures;
+	}
+
+	/**
+	 * @param args - root directory, number of directories, and optionally data files per directory, rows per data file and rule files per directory
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			log.error("usage: WorkspaceGenerator root directories [dataFiles rowsPerFile ruleFiles]");
+			System.exit(1);
+		}
+		try {
+			WorkspaceGenerator generator = new WorkspaceGenerator();
+			generator.setDirectories(Integer.parseInt(args[1]));
+			if (args.length > 2) {
+				generator.setDataFiles(Integer.parseInt(args[2]));
+			}
+			if (args.length > 3) {
+				generator.setRowsPerFile(Integer.parseInt(args[3]));
+			}
+			if (args.length > 4) {
+				generator.setRuleFiles(Integer.parseInt(args[4]));
+			}
+			generator.generate(new File(args[0]));
+		} catch (Exception e) {
+			log.error("Error generating workspace", e);
+			System.exit(-1);
+		}
+	}
+}